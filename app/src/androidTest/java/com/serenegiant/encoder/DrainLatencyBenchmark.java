@@ -0,0 +1,112 @@
+package com.serenegiant.encoder;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: DrainLatencyBenchmark.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.File;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import android.Manifest;
+import android.util.Log;
+
+import androidx.test.rule.GrantPermissionRule;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * On-device benchmark of per-frame encode-to-mux latency of
+ * MediaEncoder#DRAIN_MODE_POLLING and MediaEncoder#DRAIN_MODE_CALLBACK.
+ * Each mode records audio from internal mic with MediaAudioEncoder
+ * for DURATION_MS into temporary file and reports time-to-mux of the encoder metrics to logcat.
+ * JVM only comparison with FakeEncoderBackend is EncoderPipelineBenchmark of benchmark module.
+ * ./gradlew :app:connectedAndroidTest
+ */
+public class DrainLatencyBenchmark {
+	private static final String TAG = "DrainLatencyBenchmark";
+
+	private static final int[] DRAIN_MODES = {
+		MediaEncoder.DRAIN_MODE_POLLING,
+		MediaEncoder.DRAIN_MODE_CALLBACK,
+	};
+	private static final long DURATION_MS = 10000;
+	private static final long STOP_TIMEOUT_MS = 3000;
+
+	@Rule
+	public final GrantPermissionRule mPermissions = GrantPermissionRule.grant(
+		Manifest.permission.RECORD_AUDIO, Manifest.permission.WRITE_EXTERNAL_STORAGE);
+
+	@Test
+	public void drainModes() throws Exception {
+		for (final int drainMode: DRAIN_MODES) {
+			final LatencyRecorder.Snapshot timeToMux = runDrainMode(drainMode);
+			Log.i(TAG, String.format(Locale.US, "%s:%s",
+				drainMode == MediaEncoder.DRAIN_MODE_CALLBACK ? "callback" : "polling", timeToMux));
+			assertTrue("no sample was written", timeToMux.count > 0);
+		}
+	}
+
+	private static LatencyRecorder.Snapshot runDrainMode(final int drainMode) throws Exception {
+		final CountDownLatch stopped = new CountDownLatch(1);
+		final MediaMuxerWrapper muxer = new MediaMuxerWrapper(".m4a");
+		final MediaAudioEncoder encoder = new MediaAudioEncoder(muxer, new MediaEncoder.MediaEncoderListener() {
+			@Override
+			public void onPrepared(final MediaEncoder encoder) {
+			}
+
+			@Override
+			public void onStopped(final MediaEncoder encoder) {
+				stopped.countDown();
+			}
+		});
+		encoder.setDrainMode(drainMode);
+		encoder.setMetricsEnabled(true);
+		try {
+			muxer.prepare();
+			muxer.startRecording();
+			Thread.sleep(DURATION_MS);
+			muxer.stopRecording();
+			assertTrue("encoder did not stop in time", stopped.await(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+		} finally {
+			awaitMuxerStopped(muxer);
+			new File(muxer.getOutputPath()).delete();
+		}
+		// all samples are already written to muxer when onStopped is called
+		return encoder.getMetrics().timeToMux;
+	}
+
+	/**
+	 * onStopped is called before the encoder stops the muxer, so wait until the file is finished
+	 * before deleting it
+	 * @param muxer
+	 */
+	/*package*/ static void awaitMuxerStopped(final MediaMuxerWrapper muxer) throws InterruptedException {
+		final long limit = System.currentTimeMillis() + STOP_TIMEOUT_MS;
+		while (muxer.isStarted() && (System.currentTimeMillis() < limit)) {
+			Thread.sleep(10);
+		}
+	}
+}
@@ -0,0 +1,153 @@
+package com.serenegiant.encoder;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: RenditionCostBenchmark.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import android.Manifest;
+import android.opengl.Matrix;
+import android.util.Log;
+
+import androidx.test.rule.GrantPermissionRule;
+
+import com.serenegiant.glutilsOld.EGLBase;
+import com.serenegiant.glutilsOld.GLDrawer2D;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * On-device benchmark of the render thread cost of MediaVideoEncoder#addRendition.
+ * The main encoder(1280x720) is fed from an offscreen EGL context and feeds 0, 1 or 2
+ * renditions(640x360) for DURATION_MS into temporary files,
+ * then CPU time and GPU time to draw each output of the render thread are reported.
+ * CPU time is measured without GPU timing because GPU timing calls glFinish.
+ * Results are reported to logcat, ./gradlew :app:connectedAndroidTest
+ */
+public final class RenditionCostBenchmark {
+	private static final String TAG = "RenditionCostBenchmark";
+
+	private static final int[] RENDITION_COUNTS = { 0, 1, 2 };
+	private static final int MAIN_WIDTH = 1280;
+	private static final int MAIN_HEIGHT = 720;
+	private static final int RENDITION_WIDTH = 640;
+	private static final int RENDITION_HEIGHT = 360;
+	private static final long FRAME_INTERVAL_MS = 40;
+	private static final long DURATION_MS = 5000;
+	private static final long STOP_TIMEOUT_MS = 3000;
+
+	@Rule
+	public final GrantPermissionRule mPermissions = GrantPermissionRule.grant(
+		Manifest.permission.WRITE_EXTERNAL_STORAGE);
+
+	@Test
+	public void renditions() throws Exception {
+		final EGLBase egl = new EGLBase(null, false, false);
+		final EGLBase.EglSurface offscreen = egl.createOffscreen(1, 1);
+		final int tex = GLDrawer2D.initTex();
+		try {
+			for (final int count: RENDITION_COUNTS) {
+				for (int i = 0; i < 2; i++) {
+					Log.i(TAG, runRenditions(egl, tex, count, i != 0, DURATION_MS));
+				}
+			}
+		} finally {
+			GLDrawer2D.deleteTex(tex);
+			offscreen.release();
+			egl.release();
+		}
+	}
+
+	private static String runRenditions(final EGLBase egl, final int tex,
+		final int count, final boolean gpuTiming, final long durationMs)
+			throws IOException, InterruptedException {
+
+		final CountDownLatch stopped = new CountDownLatch(count + 1);
+		final MediaEncoder.MediaEncoderListener listener = new MediaEncoder.MediaEncoderListener() {
+			@Override
+			public void onPrepared(final MediaEncoder encoder) {
+			}
+
+			@Override
+			public void onStopped(final MediaEncoder encoder) {
+				stopped.countDown();
+			}
+		};
+		final MediaMuxerWrapper[] muxers = new MediaMuxerWrapper[count + 1];
+		final MediaVideoEncoder[] encoders = new MediaVideoEncoder[count + 1];
+		final StringBuilder sb = new StringBuilder();
+		try {
+			for (int i = 0; i <= count; i++) {
+				muxers[i] = new MediaMuxerWrapper(".mp4");
+				encoders[i] = (i == 0)
+					? new MediaVideoEncoder(muxers[i], listener, MAIN_WIDTH, MAIN_HEIGHT)
+					: new MediaVideoEncoder(muxers[i], listener, RENDITION_WIDTH, RENDITION_HEIGHT, true);
+				muxers[i].prepare();
+			}
+			final MediaVideoEncoder main = encoders[0];
+			main.setEglContext(egl.getContext(), tex);
+			main.setRenderGpuTiming(gpuTiming);
+			for (int i = 1; i <= count; i++) {
+				if (!main.addRendition(encoders[i])) {
+					throw new IllegalStateException("no free output slot");
+				}
+			}
+			for (final MediaMuxerWrapper muxer: muxers) {
+				muxer.startRecording();
+			}
+			final float[] texMatrix = new float[16];
+			Matrix.setIdentityM(texMatrix, 0);
+			final long endMs = System.currentTimeMillis() + durationMs;
+			while (System.currentTimeMillis() < endMs) {
+				main.frameAvailableSoon(texMatrix);
+				Thread.sleep(FRAME_INTERVAL_MS);
+			}
+			// costs are not available after renditions are released
+			sb.append(String.format(Locale.US, "renditions=%d,%s", count, gpuTiming ? "gpu" : "cpu"));
+			for (int i = 0; i <= count; i++) {
+				sb.append(String.format(Locale.US, ",%dx%d:%s",
+					i == 0 ? MAIN_WIDTH : RENDITION_WIDTH, i == 0 ? MAIN_HEIGHT : RENDITION_HEIGHT,
+					gpuTiming ? encoders[i].getRenderGpuCost() : encoders[i].getRenderCpuCost()));
+			}
+			// renditions should be stopped before the main encoder
+			for (int i = count; i >= 0; i--) {
+				muxers[i].stopRecording();
+			}
+			assertTrue("encoders did not stop in time", stopped.await(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+		} finally {
+			for (final MediaMuxerWrapper muxer: muxers) {
+				if (muxer != null) {
+					DrainLatencyBenchmark.awaitMuxerStopped(muxer);
+					new File(muxer.getOutputPath()).delete();
+				}
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -23,25 +23,82 @@ package com.serenegiant.audiovideosample;
 */
 
 import android.os.Bundle;
+import android.os.Environment;
 import androidx.fragment.app.Fragment;
 import android.util.Log;
 import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.ViewGroup;
 import android.widget.ImageButton;
 import android.widget.TextView;
+import android.widget.Toast;
 
+import com.serenegiant.encoder.BitrateController;
+import com.serenegiant.encoder.CodecCapabilityCache;
+import com.serenegiant.encoder.EncoderPool;
 import com.serenegiant.encoder.MediaAudioEncoder;
+import com.serenegiant.encoder.MediaCodecBackend;
 import com.serenegiant.encoder.MediaEncoder;
+import com.serenegiant.encoder.MediaMuxerBackend;
 import com.serenegiant.encoder.MediaMuxerWrapper;
 import com.serenegiant.encoder.MediaVideoEncoder;
+import com.serenegiant.encoder.Mp4Backend;
+import com.serenegiant.encoder.MuxerBackend;
+import com.serenegiant.encoder.PreRollMuxerBackend;
+import com.serenegiant.encoder.StorageProbe;
+import com.serenegiant.muxer.Mp4Recovery;
 
+import java.io.File;
 import java.io.IOException;
 
 public class CameraFragment extends Fragment {
 	private static final boolean DEBUG = false;	// TODO set false on release
 	private static final String TAG = "CameraFragment";
+	private static final int MIN_VIDEO_BITRATE = 500000;		// 500[kbps]
+	private static final int MAX_VIDEO_BITRATE = 8000000;		// 8[Mbps]
+	// optional stages of the recording pipeline below are disabled by default,
+	// then android.media.MediaMuxer writes the output on encoder threads
+	/**
+	 * number of encoded samples that can wait for slow storage on private writer thread,
+	 * 64 is about 1 second of audio and video. 0 means writing on encoder threads.
+	 */
+	private static final int MAX_PENDING_SAMPLES = 0;
+	/**
+	 * duration of encoded history that is recorded before pressing record button
+	 * when pre-roll is enabled from the options menu
+	 */
+	private static final long PRE_ROLL_DURATION_MS = 10000;
+	/**
+	 * memory budget of pre-roll buffer, about 10 seconds at 8Mbps
+	 */
+	private static final int PRE_ROLL_MAX_BYTES = 10 * 1024 * 1024;
+	/**
+	 * write output file with Mp4Backend and its journal so that the recording can be
+	 * recovered by Mp4Recovery when this app was killed while recording.
+	 * false means android.media.MediaMuxer
+	 */
+	private static final boolean USE_RECORDING_JOURNAL = false;
+	/**
+	 * reorder window to write audio and video samples in presentation time order,
+	 * e.g. 500. 0 means writing samples in the order they are encoded.
+	 */
+	private static final long INTERLEAVE_DELAY_MS = 0;
+	private static final int INTERLEAVE_MAX_BYTES = 2 * 1024 * 1024;
+	/**
+	 * move moov to the head of file after recording for progressive playback
+	 */
+	private static final boolean USE_FAST_START = false;
+	/**
+	 * keep warm codecs in EncoderPool and reuse them between recordings to reduce start latency
+	 */
+	private static final boolean USE_ENCODER_POOL = false;
+	/**
+	 * whether unfinished recordings of previous process were already recovered
+	 */
+	private static boolean sRecovered;
 
 	/**
 	 * for camera preview display
@@ -59,6 +116,23 @@ public class CameraFragment extends Fragment {
 	 * muxer for audio/video recording
 	 */
 	private MediaMuxerWrapper mMuxer;
+	/**
+	 * whether mMuxer is writing to the output file(false while buffering pre-roll)
+	 */
+	private boolean mIsRecording;
+	/**
+	 * start encoding for next recording when current video encoder stopped
+	 */
+	private volatile boolean mRequestPreRoll;
+	/**
+	 * whether encoders keep running while not recording and samples are kept
+	 * in PreRollMuxerBackend until next recording is requested
+	 */
+	private boolean mPreRollEnabled;
+	/**
+	 * warm codecs that are reused between recordings to reduce start latency
+	 */
+	private EncoderPool mEncoderPool;
 
 	public CameraFragment() {
 		super();
@@ -75,20 +149,97 @@ public class CameraFragment extends Fragment {
 		updateScaleModeText();
 		mRecordButton = rootView.findViewById(R.id.record_button);
 		mRecordButton.setOnClickListener(mOnClickListener);
+		setHasOptionsMenu(true);
 		return rootView;
 	}
 
+	@Override
+	public void onPrepareOptionsMenu(final Menu menu) {
+		super.onPrepareOptionsMenu(menu);
+		final MenuItem item = menu.findItem(R.id.action_pre_roll);
+		if (item != null) {
+			item.setChecked(mPreRollEnabled);
+		}
+	}
+
+	@Override
+	public boolean onOptionsItemSelected(final MenuItem item) {
+		if (item.getItemId() == R.id.action_pre_roll) {
+			mPreRollEnabled = !mPreRollEnabled;
+			item.setChecked(mPreRollEnabled);
+			if (!mIsRecording) {
+				if (mPreRollEnabled && (mMuxer == null)) {
+					// start buffering now
+					startEncoding();
+				} else if (!mPreRollEnabled && (mMuxer != null)) {
+					// discard buffered history
+					stopRecording(false);
+				}
+			}
+			return true;
+		}
+		return super.onOptionsItemSelected(item);
+	}
+
 	@Override
 	public void onResume() {
 		super.onResume();
 		if (DEBUG) Log.v(TAG, "onResume:");
 		mCameraView.onResume();
+		CodecCapabilityCache.setCacheDir(getActivity().getCacheDir());
+		final EncoderPool pool = mEncoderPool
+			= USE_ENCODER_POOL ? new EncoderPool(MediaCodecBackend.FACTORY, 1) : null;
+		// recording starts after the storage is probed so that startEncoding never probes on UI thread
+		final ImageButton recordButton = mRecordButton;
+		recordButton.setEnabled(false);
+		// creating codec and probing storage are heavy work, so do them on private thread
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				if (pool != null) {
+					try {
+						pool.prewarm(MediaVideoEncoder.MIME_TYPE, null, 1);
+						pool.prewarm(MediaAudioEncoder.MIME_TYPE, null, 1);
+					} catch (final Exception e) {
+						Log.w(TAG, "failed to prewarm encoders", e);
+					}
+				}
+				try {
+					// measure write throughput of the storage before recording is requested
+					StorageProbe.probe(MediaMuxerWrapper.getCaptureDir(Environment.DIRECTORY_MOVIES));
+				} finally {
+					recordButton.post(new Runnable() {
+						@Override
+						public void run() {
+							recordButton.setEnabled(true);
+						}
+					});
+				}
+			}
+		}, "EncoderPrewarm").start();
+		if (USE_RECORDING_JOURNAL && !sRecovered) {
+			// journal that exists when this process starts belongs to crashed recording
+			sRecovered = true;
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					final int n = Mp4Recovery.recoverAll(
+						MediaMuxerWrapper.getCaptureDir(Environment.DIRECTORY_MOVIES));
+					if (n > 0) Log.i(TAG, "recovered " + n + " unfinished recordings");
+				}
+			}, "Mp4Recovery").start();
+		}
 	}
 
 	@Override
 	public void onPause() {
 		if (DEBUG) Log.v(TAG, "onPause:");
-		stopRecording();
+		stopRecording(false);
+		if (mEncoderPool != null) {
+			// codecs that are still in use are released when recording finished
+			mEncoderPool.release();
+			mEncoderPool = null;
+		}
 		mCameraView.onPause();
 		super.onPause();
 	}
@@ -106,10 +257,10 @@ public class CameraFragment extends Fragment {
 				updateScaleModeText();
 				break;
 			case R.id.record_button:
-				if (mMuxer == null)
+				if (!mIsRecording)
 					startRecording();
 				else
-					stopRecording();
+					stopRecording(true);
 				break;
 			}
 		}
@@ -132,32 +283,104 @@ public class CameraFragment extends Fragment {
 	 */
 	private void startRecording() {
 		if (DEBUG) Log.v(TAG, "startRecording:");
+		mRecordButton.setColorFilter(0xffff0000);	// turn red
+		mIsRecording = true;
+		if (mMuxer != null) {
+			// encoders are already running for pre-roll, write buffered history and continue
+			mMuxer.triggerOutput();
+		} else if (startEncoding()) {
+			mMuxer.triggerOutput();
+		} else {
+			mRecordButton.setColorFilter(0);
+			mIsRecording = false;
+		}
+	}
+
+	/**
+	 * start encoders, output file is not written until MediaMuxerWrapper#triggerOutput
+	 * is called when pre-roll is enabled.
+	 * @return false if failed
+	 */
+	private boolean startEncoding() {
+		if (DEBUG) Log.v(TAG, "startEncoding:");
+		// refuse or lower the bitrate if the storage can not sustain it
+		final File dir = MediaMuxerWrapper.getCaptureDir(Environment.DIRECTORY_MOVIES);
+		final StorageProbe.Result probed = StorageProbe.peek(dir);
+		final int videoBitrate;
+		if (probed != null) {
+			final StorageProbe.Plan plan = StorageProbe.plan(
+				probed, MAX_VIDEO_BITRATE, MIN_VIDEO_BITRATE, MediaAudioEncoder.BIT_RATE);
+			Log.i(TAG, "startEncoding:" + plan);
+			if (!plan.accepted) {
+				Toast.makeText(getActivity(),
+					getString(R.string.recording_refused, plan.reason), Toast.LENGTH_LONG).show();
+				return false;
+			}
+			videoBitrate = plan.videoBitrate;
+		} else {
+			// probing failed or the result expired, probing blocks for seconds
+			// so record with the lowest bitrate and probe again for next recording
+			Log.i(TAG, "startEncoding:storage is not probed, use lowest bitrate");
+			videoBitrate = MIN_VIDEO_BITRATE;
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					StorageProbe.probe(dir);
+				}
+			}, "StorageProbe").start();
+		}
 		try {
-			mRecordButton.setColorFilter(0xffff0000);	// turn red
-			mMuxer = new MediaMuxerWrapper(".mp4");	// if you record audio only, ".m4a" is also OK.
+			final String outputPath = MediaMuxerWrapper.createOutputPath(".mp4");	// if you record audio only, ".m4a" is also OK.
+			final MuxerBackend.Factory output = USE_RECORDING_JOURNAL
+				? Mp4Backend.factory(true) : MediaMuxerBackend.FACTORY;
+			mMuxer = new MediaMuxerWrapper(outputPath, mPreRollEnabled
+				? PreRollMuxerBackend.factory(output, PRE_ROLL_DURATION_MS, PRE_ROLL_MAX_BYTES)
+				: output);
+			if (MAX_PENDING_SAMPLES > 0) {
+				// write samples on private thread so that slow storage does not block encoders
+				mMuxer.setAsyncWrite(MAX_PENDING_SAMPLES);
+			}
+			if (INTERLEAVE_DELAY_MS > 0) {
+				// avoid long runs of one track in the output file
+				mMuxer.setInterleave(INTERLEAVE_DELAY_MS, INTERLEAVE_MAX_BYTES);
+			}
+			mMuxer.setFastStart(USE_FAST_START);
 			if (true) {
 				// for video capturing
-				new MediaVideoEncoder(mMuxer, mMediaEncoderListener, mCameraView.getVideoWidth(), mCameraView.getVideoHeight());
+				final MediaVideoEncoder encoder = new MediaVideoEncoder(mMuxer, mMediaEncoderListener, mCameraView.getVideoWidth(), mCameraView.getVideoHeight());
+				encoder.setBackendFactory(mEncoderPool);
+				// lower bitrate on slow storage and static scene
+				encoder.setBitrateController(new BitrateController(MIN_VIDEO_BITRATE, videoBitrate));
 			}
 			if (true) {
 				// for audio capturing
-				new MediaAudioEncoder(mMuxer, mMediaEncoderListener);
+				final MediaEncoder encoder = new MediaAudioEncoder(mMuxer, mMediaEncoderListener);
+				encoder.setBackendFactory(mEncoderPool);
 			}
+			// latency/throughput metrics are logged when recording stopped
+			if (DEBUG) mMuxer.setMetricsEnabled(true);
 			mMuxer.prepare();
 			mMuxer.startRecording();
+			return true;
 		} catch (final IOException e) {
-			mRecordButton.setColorFilter(0);
+			mMuxer = null;
 			Log.e(TAG, "startCapture:", e);
 		}
+		return false;
 	}
 
 	/**
 	 * request stop recording
+	 * @param continuePreRoll start encoding for next recording if pre-roll is enabled
 	 */
-	private void stopRecording() {
+	private void stopRecording(final boolean continuePreRoll) {
 		if (DEBUG) Log.v(TAG, "stopRecording:mMuxer=" + mMuxer);
 		mRecordButton.setColorFilter(0);	// return to default color
+		mIsRecording = false;
 		if (mMuxer != null) {
+			// next pre-roll session starts after the video encoder is detached from the camera view,
+			// this should be set before stopping because the encoder may stop before returning
+			mRequestPreRoll = continuePreRoll && mPreRollEnabled;
 			mMuxer.stopRecording();
 			mMuxer = null;
 			// you should not wait here
@@ -178,8 +401,20 @@ public class CameraFragment extends Fragment {
 		@Override
 		public void onStopped(final MediaEncoder encoder) {
 			if (DEBUG) Log.v(TAG, "onStopped:encoder=" + encoder);
-			if (encoder instanceof MediaVideoEncoder)
+			if (encoder instanceof MediaVideoEncoder) {
 				mCameraView.setVideoEncoder(null);
+				if (mRequestPreRoll) {
+					mRequestPreRoll = false;
+					mCameraView.post(new Runnable() {
+						@Override
+						public void run() {
+							if ((mMuxer == null) && mPreRollEnabled && isResumed()) {
+								startEncoding();
+							}
+						}
+					});
+				}
+			}
 		}
 	};
 }
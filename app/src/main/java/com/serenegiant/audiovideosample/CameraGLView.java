@@ -333,6 +333,10 @@ public final class CameraGLView extends GLSurfaceView {
 
 		private volatile boolean requesrUpdateTex = false;
 		private boolean flip = true;
+		/**
+		 * capture time of the camera frame that is currently on the texture
+		 */
+		private long mStTimestamp;
 		/**
 		 * drawing to GLSurface
 		 * we set renderMode to GLSurfaceView.RENDERMODE_WHEN_DIRTY,
@@ -349,6 +353,7 @@ public final class CameraGLView extends GLSurfaceView {
 				mSTexture.updateTexImage();
 				// get texture matrix
 				mSTexture.getTransformMatrix(mStMatrix);
+				mStTimestamp = mSTexture.getTimestamp();
 			}
 			// draw to preview screen
 			mDrawer.draw(hTex, mStMatrix);
@@ -358,7 +363,7 @@ public final class CameraGLView extends GLSurfaceView {
 					if (mVideoEncoder != null) {
 						// notify to capturing thread that the camera frame is available.
 //						mVideoEncoder.frameAvailableSoon(mStMatrix);
-						mVideoEncoder.frameAvailableSoon(mStMatrix, mMvpMatrix);
+						mVideoEncoder.frameAvailableSoon(mStMatrix, mMvpMatrix, mStTimestamp);
 					}
 				}
 			}
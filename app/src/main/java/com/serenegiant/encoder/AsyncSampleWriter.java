@@ -0,0 +1,293 @@
+package com.serenegiant.encoder;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: AsyncSampleWriter.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+/**
+ * Writer stage between encoders and MuxerBackend.
+ * Encoders copy encoded data into pooled buffers and return immediately,
+ * so that they can release output buffers of codec without waiting for storage.
+ * Single writer thread takes all pending samples at once and writes them to MuxerBackend.
+ * Buffers are reused, so this allocates only when a sample is larger than ever.
+ * When #getMaxPendingSamples samples are waiting, #write blocks until the writer catches up
+ * because dropping encoded data would break the stream.
+ */
+/*package*/ final class AsyncSampleWriter implements Runnable {
+	private static final boolean DEBUG = false;	// TODO set false on release
+	private static final String TAG = "AsyncSampleWriter";
+
+	private static final int MIN_BUFFER_SIZE = 64 * 1024;
+	private static final long CLOSE_TIMEOUT_MS = 3000;
+
+	private static final class Sample {
+		private ByteBuffer mData;
+		private int mTrackIndex;
+		private int mSize;
+		private long mPresentationTimeUs;
+		private int mFlags;
+	}
+
+	private final MuxerBackend mMuxer;
+	private final EncoderMetrics mMetrics;
+	private final int mMaxPendingSamples;
+	/**
+	 * start time to measure start-to-first-sample latency
+	 */
+	private final long mStartBaseNs;
+	private final ReentrantLock mLock = new ReentrantLock();
+	private final Condition mNotEmpty = mLock.newCondition();
+	private final Condition mNotFull = mLock.newCondition();
+	// following fields are guarded by mLock
+	private final ArrayDeque<Sample> mPending;
+	private final ArrayDeque<Sample> mFree;
+	private int mNumSamples;
+	private boolean mRequestClose;
+	private boolean mIsRunning;
+	private IOException mError;
+	// following fields are only accessed on writer thread
+	private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+	private final Sample[] mBatch;
+	private boolean mFirstSampleWritten;
+
+	/**
+	 * @param muxer already started container writer, this is accessed only on the writer thread
+	 * @param metrics metrics of MediaMuxerWrapper
+	 * @param maxPendingSamples maximum number of samples waiting for writing
+	 * @param startBaseNs
+	 */
+	/*package*/ AsyncSampleWriter(final MuxerBackend muxer, final EncoderMetrics metrics,
+		final int maxPendingSamples, final long startBaseNs) {
+
+		if (maxPendingSamples <= 0) throw new IllegalArgumentException("maxPendingSamples should be positive");
+		mMuxer = muxer;
+		mMetrics = metrics;
+		mMaxPendingSamples = maxPendingSamples;
+		mStartBaseNs = startBaseNs;
+		mPending = new ArrayDeque<Sample>(maxPendingSamples);
+		mFree = new ArrayDeque<Sample>(maxPendingSamples);
+		mBatch = new Sample[maxPendingSamples];
+	}
+
+	/*package*/ void start() {
+		mLock.lock();
+		try {
+			mIsRunning = true;
+		} finally {
+			mLock.unlock();
+		}
+		new Thread(this, TAG).start();
+	}
+
+	public int getMaxPendingSamples() {
+		return mMaxPendingSamples;
+	}
+
+	/**
+	 * copy encoded data and queue it for writing, this can be called from any encoder thread
+	 * @param trackIndex
+	 * @param byteBuf
+	 * @param bufferInfo
+	 */
+	/*package*/ void write(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+		final boolean sampling = mMetrics.isEnabled();
+		final long requestNs = sampling ? System.nanoTime() : 0;
+		Sample sample;
+		mLock.lock();
+		try {
+			while ((mNumSamples >= mMaxPendingSamples) && mIsRunning && (mError == null)) {
+				mNotFull.awaitUninterruptibly();
+			}
+			checkError();
+			// metrics are updated only while holding the lock so that they have single writer
+			mMetrics.recordFrameIn();
+			if (!mIsRunning) {
+				// already closed, same as writing to stopped muxer
+				mMetrics.recordDropped();
+				return;
+			}
+			mNumSamples++;
+			sample = mFree.pollFirst();
+			if (sampling) {
+				mMetrics.recordInputWait((System.nanoTime() - requestNs) / 1000L);
+			}
+		} finally {
+			mLock.unlock();
+		}
+		if (sample == null) {
+			sample = new Sample();
+		}
+		// copy outside of the lock, this is the only work on encoder thread
+		final int size = bufferInfo.size;
+		if ((sample.mData == null) || (sample.mData.capacity() < size)) {
+			sample.mData = ByteBuffer.allocateDirect(Math.max(MIN_BUFFER_SIZE, Integer.highestOneBit(size - 1) << 1));
+		}
+		final ByteBuffer data = sample.mData;
+		data.clear();
+		byteBuf.limit(bufferInfo.offset + size);
+		byteBuf.position(bufferInfo.offset);
+		data.put(byteBuf);
+		data.flip();
+		sample.mTrackIndex = trackIndex;
+		sample.mSize = size;
+		sample.mPresentationTimeUs = bufferInfo.presentationTimeUs;
+		sample.mFlags = bufferInfo.flags;
+		mLock.lock();
+		try {
+			mPending.addLast(sample);
+			mNotEmpty.signal();
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * wait until all pending samples are written and stop the writer thread,
+	 * MuxerBackend can be stopped after this returns
+	 */
+	/*package*/ void close() {
+		if (DEBUG) Log.v(TAG, "close:");
+		final long limit = System.nanoTime() + CLOSE_TIMEOUT_MS * 1000000L;
+		mLock.lock();
+		try {
+			mRequestClose = true;
+			mNotEmpty.signal();
+			while (mIsRunning) {
+				final long remain = limit - System.nanoTime();
+				if (remain <= 0) {
+					Log.w(TAG, "close:timeout, pending samples=" + mNumSamples);
+					break;
+				}
+				try {
+					mNotFull.awaitNanos(remain);
+				} catch (final InterruptedException e) {
+					break;
+				}
+			}
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * throw the exception that occurred on writer thread to the caller
+	 */
+	private void checkError() {
+		if (mError != null) {
+			throw new RuntimeException("failed to write sample data", mError);
+		}
+	}
+
+	@Override
+	public void run() {
+		if (DEBUG) Log.v(TAG, "writer thread started:");
+		for ( ; ; ) {
+			int n = 0;
+			mLock.lock();
+			try {
+				while (mPending.isEmpty() && !mRequestClose) {
+					mNotEmpty.awaitUninterruptibly();
+				}
+				if (mPending.isEmpty()) {
+					break;	// closed and all samples are written
+				}
+				// take all pending samples at once
+				for (Sample sample = mPending.pollFirst(); sample != null; sample = mPending.pollFirst()) {
+					mBatch[n++] = sample;
+				}
+			} finally {
+				mLock.unlock();
+			}
+			writeBatch(n);
+			mLock.lock();
+			try {
+				for (int i = 0; i < n; i++) {
+					mFree.addLast(mBatch[i]);
+					mBatch[i] = null;
+				}
+				mNumSamples -= n;
+				mNotFull.signalAll();
+			} finally {
+				mLock.unlock();
+			}
+		}
+		mLock.lock();
+		try {
+			mIsRunning = false;
+			mNotFull.signalAll();
+		} finally {
+			mLock.unlock();
+		}
+		if (DEBUG) Log.v(TAG, "writer thread finished:");
+	}
+
+	/**
+	 * write samples in mBatch to MuxerBackend without holding the lock
+	 * @param n number of samples in mBatch
+	 */
+	private void writeBatch(final int n) {
+		final boolean sampling = mMetrics.isEnabled();
+		for (int i = 0; i < n; i++) {
+			final Sample sample = mBatch[i];
+			if (mError != null) {
+				// discard remaining samples after error
+				mMetrics.recordDropped();
+				continue;
+			}
+			mBufferInfo.set(0, sample.mSize, sample.mPresentationTimeUs, sample.mFlags);
+			// write time is always counted because BitrateController uses it as storage speed
+			final long startNs = System.nanoTime();
+			try {
+				mMuxer.writeSampleData(sample.mTrackIndex, sample.mData, mBufferInfo);
+			} catch (final IOException e) {
+				Log.e(TAG, "failed to write sample data", e);
+				mLock.lock();
+				try {
+					mError = e;
+				} finally {
+					mLock.unlock();
+				}
+				mMetrics.recordDropped();
+				continue;
+			}
+			final long endNs = System.nanoTime();
+			mMetrics.recordWriteTime((endNs - startNs) / 1000L);
+			if (sampling) {
+				mMetrics.recordWritten((endNs - startNs) / 1000L, sample.mSize);
+				if (!mFirstSampleWritten) {
+					mFirstSampleWritten = true;
+					mMetrics.recordStartLatency((endNs - mStartBaseNs) / 1000L);
+				}
+			} else {
+				mMetrics.recordWritten(sample.mSize);
+			}
+		}
+	}
+}
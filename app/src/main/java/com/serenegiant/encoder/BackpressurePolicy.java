@@ -0,0 +1,106 @@
+package com.serenegiant.encoder;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: BackpressurePolicy.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+/**
+ * What producer does when the consumer(render thread or codec) falls behind.
+ * - LATEST_WINS: never wait, the newest frame replaces the pending one and the older one is dropped
+ * - BOUNDED: never wait, keep at most #getCapacity pending frames, newer frames beyond it are dropped
+ * - BLOCK: wait until the consumer has room for at most #getDeadlineNs, then drop
+ * Every dropped frame is counted in EncoderMetrics#framesDropped.
+ */
+public final class BackpressurePolicy {
+	public static final int MODE_LATEST_WINS = 0;
+	public static final int MODE_BOUNDED = 1;
+	public static final int MODE_BLOCK = 2;
+
+	/**
+	 * never wait and keep only the latest frame.
+	 * for MediaEncoder#encode, the latest frame waits for input buffer in the pending queue
+	 */
+	public static final BackpressurePolicy LATEST_WINS = new BackpressurePolicy(MODE_LATEST_WINS, 1, 0);
+
+	/**
+	 * keep at most capacity pending requests.
+	 * for MediaEncoder#encode, at most capacity frames wait for input buffer in the pending queue
+	 * and the caller never waits.
+	 * @param capacity
+	 * @return
+	 */
+	public static BackpressurePolicy bounded(final int capacity) {
+		if (capacity <= 0) throw new IllegalArgumentException("capacity should be positive");
+		return new BackpressurePolicy(MODE_BOUNDED, capacity, 0);
+	}
+
+	/**
+	 * wait until the consumer has room, but at most deadlineMs
+	 * @param deadlineMs
+	 * @return
+	 */
+	public static BackpressurePolicy block(final long deadlineMs) {
+		if (deadlineMs < 0) throw new IllegalArgumentException("deadline should not be negative");
+		return new BackpressurePolicy(MODE_BLOCK, 1, deadlineMs * 1000000L);
+	}
+
+	private final int mMode;
+	private final int mCapacity;
+	private final long mDeadlineNs;
+
+	private BackpressurePolicy(final int mode, final int capacity, final long deadlineNs) {
+		mMode = mode;
+		mCapacity = capacity;
+		mDeadlineNs = deadlineNs;
+	}
+
+	public int getMode() {
+		return mMode;
+	}
+
+	/**
+	 * maximum number of pending requests
+	 * @return
+	 */
+	public int getCapacity() {
+		return mCapacity;
+	}
+
+	/**
+	 * maximum waiting time of MODE_BLOCK
+	 * @return [nsec]
+	 */
+	public long getDeadlineNs() {
+		return mDeadlineNs;
+	}
+
+	@Override
+	public String toString() {
+		switch (mMode) {
+		case MODE_LATEST_WINS:
+			return "latest-wins";
+		case MODE_BOUNDED:
+			return "bounded(" + mCapacity + ")";
+		default:
+			return "block(" + (mDeadlineNs / 1000000L) + "ms)";
+		}
+	}
+}
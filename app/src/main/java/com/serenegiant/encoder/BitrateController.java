@@ -0,0 +1,193 @@
+package com.serenegiant.encoder;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: BitrateController.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.util.Locale;
+
+/**
+ * Adjust bitrate of video encoder while recording with AIMD(additive increase/multiplicative decrease).
+ * Each interval, it compares the metrics of the video encoder and the muxer with previous ones and
+ * - decreases bitrate when frames are dropped, codec queue is getting deep
+ *   or the muxer spends too much time in writing(slow storage)
+ * - decreases bitrate slowly when the encoder uses much less bits than the target(static scene)
+ * - increases bitrate step by step when the encoder uses most of the target without congestion
+ * bitrate is always kept within [min, max]. This class is not thread safe,
+ * MediaVideoEncoder calls #update from the thread that calls #frameAvailableSoon.
+ */
+public class BitrateController {
+	private static final long DEFAULT_INTERVAL_NS = 1000000000L;	// 1[sec]
+	/**
+	 * codec queue deeper than this number of frames is treated as congestion
+	 */
+	private static final int DEFAULT_QUEUE_DEPTH_LIMIT = 5;
+	/**
+	 * ratio of the time spent in muxer writes per interval that is treated as congestion
+	 */
+	private static final float WRITE_BUSY_LIMIT = 0.5f;
+	private static final float DECREASE_FACTOR = 0.75f;
+	private static final float STATIC_DECREASE_FACTOR = 0.9f;
+	private static final float STATIC_USAGE = 0.5f;
+	private static final float INCREASE_USAGE = 0.8f;
+	/**
+	 * number of steps to increase from min to max
+	 */
+	private static final int INCREASE_STEPS = 20;
+
+	private final int mMinBitrate;
+	private final int mMaxBitrate;
+	private long mIntervalNs = DEFAULT_INTERVAL_NS;
+	private int mQueueDepthLimit = DEFAULT_QUEUE_DEPTH_LIMIT;
+	private int mBitrate;
+	private long mLastUpdateNs;
+	private long mLastBytes;
+	private long mLastDropped;
+	private long mLastWriteUs;
+	private int mAdjustCount;
+	private boolean mStarted;
+
+	/**
+	 * @param minBitrate [bps]
+	 * @param maxBitrate [bps]
+	 */
+	public BitrateController(final int minBitrate, final int maxBitrate) {
+		if ((minBitrate <= 0) || (maxBitrate < minBitrate))
+			throw new IllegalArgumentException("invalid range:" + minBitrate + "-" + maxBitrate);
+		mMinBitrate = minBitrate;
+		mMaxBitrate = maxBitrate;
+	}
+
+	/**
+	 * set interval of evaluation, this should be called before recording
+	 * @param intervalMs
+	 */
+	public void setInterval(final long intervalMs) {
+		mIntervalNs = Math.max(1, intervalMs) * 1000000L;
+	}
+
+	/**
+	 * set queue depth that is treated as congestion, this should be called before recording
+	 * @param frames
+	 */
+	public void setQueueDepthLimit(final int frames) {
+		mQueueDepthLimit = Math.max(1, frames);
+	}
+
+	public int getMinBitrate() {
+		return mMinBitrate;
+	}
+
+	public int getMaxBitrate() {
+		return mMaxBitrate;
+	}
+
+	/**
+	 * current target bitrate
+	 * @return [bps]
+	 */
+	public int getBitrate() {
+		return mBitrate;
+	}
+
+	/**
+	 * number of adjustment since #start
+	 * @return
+	 */
+	public int getAdjustCount() {
+		return mAdjustCount;
+	}
+
+	/**
+	 * reset state at starting of encoding
+	 * @param initialBitrate [bps]
+	 * @return initial bitrate within range
+	 */
+	public int start(final int initialBitrate) {
+		mBitrate = clamp(initialBitrate);
+		mStarted = false;
+		mAdjustCount = 0;
+		return mBitrate;
+	}
+
+	/**
+	 * whether #update should be called now, callers can skip taking snapshots of metrics when false
+	 * @param nowNs System#nanoTime
+	 * @return
+	 */
+	public boolean isUpdateDue(final long nowNs) {
+		return !mStarted || (nowNs - mLastUpdateNs >= mIntervalNs);
+	}
+
+	/**
+	 * evaluate metrics and calculate new bitrate if the interval passed
+	 * @param nowNs System#nanoTime
+	 * @param encoder metrics of the video encoder
+	 * @param muxerDropped number of samples dropped by the muxer, MediaMuxerWrapper#getDroppedSamples
+	 * @param writeTimeUs total time spent in writing to the storage, MediaMuxerWrapper#getWriteTimeUs
+	 * @return new bitrate, or 0 if bitrate should not be changed
+	 */
+	public int update(final long nowNs, final EncoderMetrics.Snapshot encoder,
+		final long muxerDropped, final long writeTimeUs) {
+
+		final long dropped = encoder.framesDropped + muxerDropped;
+		final long writeUs = writeTimeUs;
+		if (!mStarted) {
+			mStarted = true;
+			mLastUpdateNs = nowNs;
+			mLastBytes = encoder.bytesWritten;
+			mLastDropped = dropped;
+			mLastWriteUs = writeUs;
+			return 0;
+		}
+		final long elapsedNs = nowNs - mLastUpdateNs;
+		if (elapsedNs < mIntervalNs) return 0;
+		final long outputBitrate = (encoder.bytesWritten - mLastBytes) * 8L * 1000000000L / elapsedNs;
+		final boolean dropping = dropped > mLastDropped;
+		final float writeBusy = (writeUs - mLastWriteUs) * 1000f / elapsedNs;
+		mLastUpdateNs = nowNs;
+		mLastBytes = encoder.bytesWritten;
+		mLastDropped = dropped;
+		mLastWriteUs = writeUs;
+
+		final int prev = mBitrate;
+		if (dropping || (encoder.queueDepth > mQueueDepthLimit) || (writeBusy > WRITE_BUSY_LIMIT)) {
+			mBitrate = clamp((long)(mBitrate * DECREASE_FACTOR));
+		} else if (outputBitrate < mBitrate * STATIC_USAGE) {
+			mBitrate = clamp((long)(mBitrate * STATIC_DECREASE_FACTOR));
+		} else if (outputBitrate >= mBitrate * INCREASE_USAGE) {
+			mBitrate = clamp(mBitrate + (long)(mMaxBitrate - mMinBitrate) / INCREASE_STEPS);
+		}
+		if (mBitrate == prev) return 0;
+		mAdjustCount++;
+		return mBitrate;
+	}
+
+	private int clamp(final long bitrate) {
+		return (int)Math.max(mMinBitrate, Math.min(mMaxBitrate, bitrate));
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.US, "BitrateController:%d[bps](%d-%d),adjusted=%d",
+			mBitrate, mMinBitrate, mMaxBitrate, mAdjustCount);
+	}
+}
@@ -0,0 +1,329 @@
+package com.serenegiant.encoder;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: CodecCapabilityCache.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodecInfo;
+import android.os.Build;
+import android.util.Log;
+import android.util.Range;
+
+/**
+ * Cache of selected encoder and its capabilities for each MIME type.
+ * Walking MediaCodecList and MediaCodecInfo#getCapabilitiesForType is slow,
+ * so the result is kept in memory and in a small properties file.
+ * The file is keyed by Build.FINGERPRINT and discarded automatically
+ * when the system(and therefore the set of codecs) changes.
+ */
+public final class CodecCapabilityCache {
+	private static final boolean DEBUG = false;	// TODO set false on release
+	private static final String TAG = "CodecCapabilityCache";
+
+	private static final String FILE_NAME = "codec_capabilities.properties";
+	/**
+	 * increment this when the format of the file changes
+	 */
+	private static final String VERSION = "1";
+	private static final String KEY_VERSION = "version";
+	private static final String KEY_FINGERPRINT = "fingerprint";
+
+	/**
+	 * selected encoder and its capabilities
+	 */
+	public static final class Entry {
+		public final String mimeType;
+		public final String codecName;
+		/**
+		 * selected color format, 0 for audio
+		 */
+		public final int colorFormat;
+		public final int[] profiles;
+		public final int[] levels;
+		public final int bitrateMin;
+		public final int bitrateMax;
+
+		public Entry(final String mimeType, final String codecName, final int colorFormat,
+			final int[] profiles, final int[] levels, final int bitrateMin, final int bitrateMax) {
+
+			this.mimeType = mimeType;
+			this.codecName = codecName;
+			this.colorFormat = colorFormat;
+			this.profiles = profiles;
+			this.levels = levels;
+			this.bitrateMin = bitrateMin;
+			this.bitrateMax = bitrateMax;
+		}
+
+		/**
+		 * create Entry from MediaCodecInfo, this is slow
+		 * @param info
+		 * @param mimeType
+		 * @param colorFormat
+		 * @return
+		 */
+		public static Entry create(final MediaCodecInfo info, final String mimeType, final int colorFormat) {
+			final MediaCodecInfo.CodecCapabilities caps;
+			try {
+				Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
+				caps = info.getCapabilitiesForType(mimeType);
+			} finally {
+				Thread.currentThread().setPriority(Thread.NORM_PRIORITY);
+			}
+			final int n = caps.profileLevels != null ? caps.profileLevels.length : 0;
+			final int[] profiles = new int[n];
+			final int[] levels = new int[n];
+			for (int i = 0; i < n; i++) {
+				profiles[i] = caps.profileLevels[i].profile;
+				levels[i] = caps.profileLevels[i].level;
+			}
+			int bitrateMin = 0, bitrateMax = Integer.MAX_VALUE;
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+				final Range<Integer> range = getBitrateRange(caps);
+				if (range != null) {
+					bitrateMin = range.getLower();
+					bitrateMax = range.getUpper();
+				}
+			}
+			return new Entry(mimeType, info.getName(), colorFormat, profiles, levels, bitrateMin, bitrateMax);
+		}
+
+		/**
+		 * clamp bitrate into supported range
+		 * @param bitrate
+		 * @return
+		 */
+		public int clampBitrate(final int bitrate) {
+			return Math.max(bitrateMin, Math.min(bitrateMax, bitrate));
+		}
+
+		@Override
+		public String toString() {
+			return "Entry{" + mimeType + "," + codecName + ",color=" + colorFormat
+				+ ",bitrate=" + bitrateMin + "-" + bitrateMax + ",profiles=" + profiles.length + "}";
+		}
+	}
+
+	/**
+	 * query MediaCodecList when the cache does not have the entry
+	 */
+	public interface Loader {
+		/**
+		 * @param mimeType
+		 * @return null if no encoder is available
+		 */
+		public Entry load(final String mimeType);
+	}
+
+	private static final Object sSync = new Object();
+	private static final Map<String, Entry> sEntries = new HashMap<String, Entry>();
+	private static File sCacheDir;
+	private static boolean sLoaded;
+
+	private CodecCapabilityCache() {
+		// never instantiate
+	}
+
+	/**
+	 * set directory to store the cache file(e.g. Context#getCacheDir),
+	 * without this, the cache is kept only in memory
+	 * @param dir
+	 */
+	public static void setCacheDir(final File dir) {
+		synchronized (sSync) {
+			if ((dir != null) ? dir.equals(sCacheDir) : (sCacheDir == null)) return;
+			sCacheDir = dir;
+			sLoaded = false;
+		}
+	}
+
+	/**
+	 * get cached entry
+	 * @param mimeType
+	 * @return null if not cached
+	 */
+	public static Entry peek(final String mimeType) {
+		synchronized (sSync) {
+			loadLocked();
+			return sEntries.get(mimeType);
+		}
+	}
+
+	/**
+	 * get cached entry or load it and save into the cache
+	 * @param mimeType
+	 * @param loader
+	 * @return null if no encoder is available
+	 */
+	public static Entry get(final String mimeType, final Loader loader) {
+		synchronized (sSync) {
+			loadLocked();
+			final Entry entry = sEntries.get(mimeType);
+			if (entry != null) return entry;
+		}
+		// loading is slow, so do it without holding the lock
+		final Entry entry = loader.load(mimeType);
+		if (DEBUG) Log.v(TAG, "get:loaded " + entry);
+		if (entry != null) {
+			synchronized (sSync) {
+				sEntries.put(mimeType, entry);
+				saveLocked();
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * clear all cached entries and the file
+	 */
+	public static void clear() {
+		synchronized (sSync) {
+			sEntries.clear();
+			final File file = getFileLocked();
+			if (file != null) {
+				file.delete();
+			}
+		}
+	}
+
+	private static File getFileLocked() {
+		return sCacheDir != null ? new File(sCacheDir, FILE_NAME) : null;
+	}
+
+	private static void loadLocked() {
+		if (sLoaded) return;
+		sLoaded = true;
+		final File file = getFileLocked();
+		if ((file == null) || !file.exists()) return;
+		final Properties props = new Properties();
+		try {
+			final InputStream in = new FileInputStream(file);
+			try {
+				props.load(in);
+			} finally {
+				in.close();
+			}
+		} catch (final IOException e) {
+			Log.w(TAG, "failed to load cache", e);
+			return;
+		}
+		if (!VERSION.equals(props.getProperty(KEY_VERSION))
+			|| !Build.FINGERPRINT.equals(props.getProperty(KEY_FINGERPRINT))) {
+
+			// system was updated, codecs may be changed
+			if (DEBUG) Log.i(TAG, "discard cache for " + props.getProperty(KEY_FINGERPRINT));
+			file.delete();
+			return;
+		}
+		for (final String name : props.stringPropertyNames()) {
+			if (!name.endsWith(".name")) continue;
+			final String mimeType = name.substring(0, name.length() - ".name".length());
+			try {
+				final Entry entry = readEntry(props, mimeType);
+				if (!sEntries.containsKey(mimeType)) {
+					sEntries.put(mimeType, entry);
+				}
+			} catch (final RuntimeException e) {
+				Log.w(TAG, "broken cache entry:" + mimeType, e);
+			}
+		}
+	}
+
+	private static void saveLocked() {
+		final File file = getFileLocked();
+		if (file == null) return;
+		final Properties props = new Properties();
+		props.setProperty(KEY_VERSION, VERSION);
+		props.setProperty(KEY_FINGERPRINT, Build.FINGERPRINT);
+		for (final Entry entry : sEntries.values()) {
+			writeEntry(props, entry);
+		}
+		// write to temporary file and rename it so that readers never see partial file
+		final File temp = new File(file.getPath() + ".tmp");
+		try {
+			final OutputStream out = new FileOutputStream(temp);
+			try {
+				props.store(out, TAG);
+			} finally {
+				out.close();
+			}
+			if (!temp.renameTo(file)) {
+				throw new IOException("failed to rename " + temp);
+			}
+		} catch (final IOException e) {
+			Log.w(TAG, "failed to save cache", e);
+			temp.delete();
+		}
+	}
+
+	private static Entry readEntry(final Properties props, final String mimeType) {
+		final String prefix = mimeType + ".";
+		final String[] profileLevels = props.getProperty(prefix + "profiles", "").split(",");
+		final int n = profileLevels[0].length() > 0 ? profileLevels.length : 0;
+		final int[] profiles = new int[n];
+		final int[] levels = new int[n];
+		for (int i = 0; i < n; i++) {
+			final int ix = profileLevels[i].indexOf(':');
+			profiles[i] = Integer.parseInt(profileLevels[i].substring(0, ix));
+			levels[i] = Integer.parseInt(profileLevels[i].substring(ix + 1));
+		}
+		return new Entry(mimeType, props.getProperty(prefix + "name"),
+			Integer.parseInt(props.getProperty(prefix + "colorFormat", "0")),
+			profiles, levels,
+			Integer.parseInt(props.getProperty(prefix + "bitrateMin", "0")),
+			Integer.parseInt(props.getProperty(prefix + "bitrateMax", Integer.toString(Integer.MAX_VALUE))));
+	}
+
+	private static void writeEntry(final Properties props, final Entry entry) {
+		final String prefix = entry.mimeType + ".";
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < entry.profiles.length; i++) {
+			if (i > 0) sb.append(',');
+			sb.append(entry.profiles[i]).append(':').append(entry.levels[i]);
+		}
+		props.setProperty(prefix + "name", entry.codecName);
+		props.setProperty(prefix + "colorFormat", Integer.toString(entry.colorFormat));
+		props.setProperty(prefix + "profiles", sb.toString());
+		props.setProperty(prefix + "bitrateMin", Integer.toString(entry.bitrateMin));
+		props.setProperty(prefix + "bitrateMax", Integer.toString(entry.bitrateMax));
+	}
+
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+	private static Range<Integer> getBitrateRange(final MediaCodecInfo.CodecCapabilities caps) {
+		if (caps.getVideoCapabilities() != null) {
+			return caps.getVideoCapabilities().getBitrateRange();
+		} else if (caps.getAudioCapabilities() != null) {
+			return caps.getAudioCapabilities().getBitrateRange();
+		}
+		return null;
+	}
+}
@@ -0,0 +1,125 @@
+package com.serenegiant.encoder;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: EncoderBackend.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+/**
+ * Abstraction of the codec that MediaEncoder uses for encoding.
+ * Semantics of each method and return values(MediaCodec.INFO_XXX, MediaCodec.BUFFER_FLAG_XXX)
+ * are same as android.media.MediaCodec.
+ * MediaCodecBackend is the implementation for actual device
+ * and FakeEncoderBackend is deterministic pure-Java implementation for benchmarking/testing.
+ */
+public interface EncoderBackend {
+	/**
+	 * callback interface for asynchronous mode,
+	 * equivalent to MediaCodec.Callback
+	 */
+	public interface Callback {
+		public void onInputBufferAvailable(final int index);
+		public void onOutputBufferAvailable(final int index, final MediaCodec.BufferInfo info);
+		public void onOutputFormatChanged(final MediaFormat format);
+		public void onError(final Exception e);
+	}
+
+	/**
+	 * factory to create encoder backend for specific MIME type
+	 */
+	public interface Factory {
+		public EncoderBackend createEncoder(final String mimeType) throws IOException;
+	}
+
+	public String getName();
+
+	/**
+	 * whether this backend can work in asynchronous(callback) mode
+	 * @return
+	 */
+	public boolean isCallbackSupported();
+
+	/**
+	 * configure codec as encoder
+	 * @param format
+	 * @param callback null for synchronous mode, otherwise codec works in asynchronous mode
+	 * and the callback is called on private thread.
+	 * @throws IOException
+	 */
+	public void configure(final MediaFormat format, final Callback callback) throws IOException;
+
+	public void start();
+
+	public void stop();
+
+	public void release();
+
+	/**
+	 * @param timeoutUs
+	 * @return index of input buffer or MediaCodec.INFO_TRY_AGAIN_LATER
+	 */
+	public int dequeueInputBuffer(final long timeoutUs);
+
+	public ByteBuffer getInputBuffer(final int index);
+
+	public void queueInputBuffer(final int index, final int offset, final int size,
+		final long presentationTimeUs, final int flags);
+
+	/**
+	 * only for Surface input(video)
+	 */
+	public void signalEndOfInputStream();
+
+	/**
+	 * @param info
+	 * @param timeoutUs
+	 * @return index of output buffer or MediaCodec.INFO_XXX
+	 */
+	public int dequeueOutputBuffer(final MediaCodec.BufferInfo info, final long timeoutUs);
+
+	public ByteBuffer getOutputBuffer(final int index);
+
+	public void releaseOutputBuffer(final int index);
+
+	/**
+	 * change target bitrate while encoding,
+	 * equivalent to MediaCodec#setParameters with PARAMETER_KEY_VIDEO_BITRATE
+	 * @param bitrate [bps]
+	 */
+	public void setVideoBitrate(final int bitrate);
+
+	/**
+	 * request key frame as soon as possible while encoding,
+	 * equivalent to MediaCodec#setParameters with PARAMETER_KEY_REQUEST_SYNC_FRAME
+	 */
+	public void requestSyncFrame();
+
+	/**
+	 * this should be called after INFO_OUTPUT_FORMAT_CHANGED
+	 * @return
+	 */
+	public MediaFormat getOutputFormat();
+}
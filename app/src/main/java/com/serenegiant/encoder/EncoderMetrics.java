@@ -0,0 +1,255 @@
+package com.serenegiant.encoder;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: EncoderMetrics.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency and throughput counters of one encoder or MediaMuxerWrapper.
+ * Owner records latencies only while sampling is enabled, so disabled metrics cost only
+ * a flag check and counting. Frames in, dropped frames and written samples are always counted
+ * so that #queueDepth is consistent even if sampling is enabled while running.
+ * #snapshot can be called from any thread without taking encoder/muxer locks.
+ */
+public final class EncoderMetrics {
+	/**
+	 * immutable copy of EncoderMetrics
+	 */
+	public static final class Snapshot {
+		public final String name;
+		/**
+		 * encoder: wait time of dequeueInputBuffer(input buffer starvation),
+		 * muxer: wait time for the lock of MediaMuxerWrapper or free slot of asynchronous writer[usec]
+		 */
+		public final LatencyRecorder.Snapshot inputWait;
+		/**
+		 * encoder: wait time of dequeueOutputBuffer that returned encoded data,
+		 * only polling mode[usec]
+		 */
+		public final LatencyRecorder.Snapshot outputWait;
+		/**
+		 * encoder: from capturing a frame until writing it to muxer,
+		 * muxer: time spent in MuxerBackend#writeSampleData[usec]
+		 */
+		public final LatencyRecorder.Snapshot timeToMux;
+		public final long framesIn;
+		public final long framesDropped;
+		public final long samplesWritten;
+		public final long bytesWritten;
+		/**
+		 * muxer only: total time spent in MuxerBackend#writeSampleData[usec],
+		 * this is always counted
+		 */
+		public final long writeTimeUs;
+		/**
+		 * number of samples that are in flight(passed to codec but not written to muxer yet),
+		 * input frames are converted to samples by #setInputFramesPerSample.
+		 * Frames that the codec drops internally(e.g. Surface input while output is full)
+		 * are not visible to the owner and stay counted here.
+		 */
+		public final long queueDepth;
+		/**
+		 * muxer only: from MediaMuxerWrapper#prepare until first sample is written,
+		 * -1 if not yet[usec]
+		 */
+		public final long startLatencyUs;
+
+		private Snapshot(final EncoderMetrics metrics) {
+			name = metrics.mName;
+			inputWait = metrics.mInputWait.snapshot();
+			outputWait = metrics.mOutputWait.snapshot();
+			timeToMux = metrics.mTimeToMux.snapshot();
+			// read samplesWritten/framesDropped before framesIn so that queueDepth never becomes negative
+			samplesWritten = metrics.mSamplesWritten.get();
+			bytesWritten = metrics.mBytesWritten.get();
+			framesDropped = metrics.mFramesDropped.get();
+			framesIn = metrics.mFramesIn.get();
+			writeTimeUs = metrics.mWriteTimeUs.get();
+			final int ratio = metrics.mInputFramesPerSample;
+			queueDepth = Math.max(0, framesIn - framesDropped - samplesWritten * ratio) / ratio;
+			startLatencyUs = metrics.mStartLatencyUs.get();
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.US,
+				"%s:in=%d,dropped=%d,written=%d(%d bytes),depth=%d,start=%d[usec],inputWait{%s},outputWait{%s},timeToMux{%s}",
+				name, framesIn, framesDropped, samplesWritten, bytesWritten, queueDepth, startLatencyUs,
+				inputWait, outputWait, timeToMux);
+		}
+	}
+
+	private final String mName;
+	private final LatencyRecorder mInputWait = new LatencyRecorder();
+	private final LatencyRecorder mOutputWait = new LatencyRecorder();
+	private final LatencyRecorder mTimeToMux = new LatencyRecorder();
+	private final AtomicLong mFramesIn = new AtomicLong();
+	private final AtomicLong mFramesDropped = new AtomicLong();
+	private final AtomicLong mSamplesWritten = new AtomicLong();
+	private final AtomicLong mBytesWritten = new AtomicLong();
+	private final AtomicLong mWriteTimeUs = new AtomicLong();
+	private final AtomicLong mStartLatencyUs = new AtomicLong(-1);
+	private volatile boolean mEnabled;
+	private volatile int mInputFramesPerSample = 1;
+
+	public EncoderMetrics(final String name) {
+		mName = name;
+	}
+
+	public String getName() {
+		return mName;
+	}
+
+	/**
+	 * enable/disable sampling. counters are kept when disabled.
+	 * @param enabled
+	 */
+	public void setEnabled(final boolean enabled) {
+		mEnabled = enabled;
+	}
+
+	public boolean isEnabled() {
+		return mEnabled;
+	}
+
+	/**
+	 * number of input frames that are encoded into one output sample,
+	 * e.g. 2 for AAC that encodes 1024 samples from PCM buffers of 512 samples
+	 * @param frames
+	 */
+	public void setInputFramesPerSample(final int frames) {
+		mInputFramesPerSample = Math.max(1, frames);
+	}
+
+	/**
+	 * record wait time of dequeueInputBuffer, called from the thread that feeds frames
+	 * @param waitUs
+	 */
+	public void recordInputWait(final long waitUs) {
+		mInputWait.record(waitUs);
+	}
+
+	/**
+	 * record wait time of dequeueOutputBuffer, called from the draining thread
+	 * @param waitUs
+	 */
+	public void recordOutputWait(final long waitUs) {
+		mOutputWait.record(waitUs);
+	}
+
+	/**
+	 * record one sample written to muxer with its latency, called from the draining thread
+	 * while sampling is enabled
+	 * @param latencyUs
+	 * @param bytes
+	 */
+	public void recordWritten(final long latencyUs, final int bytes) {
+		mTimeToMux.record(latencyUs);
+		recordWritten(bytes);
+	}
+
+	/**
+	 * count one sample written to muxer, owner calls this regardless of #isEnabled
+	 * @param bytes
+	 */
+	public void recordWritten(final int bytes) {
+		mBytesWritten.addAndGet(bytes);
+		mSamplesWritten.incrementAndGet();
+	}
+
+	/**
+	 * count one input frame, owner calls this regardless of #isEnabled
+	 */
+	public void recordFrameIn() {
+		mFramesIn.incrementAndGet();
+	}
+
+	/**
+	 * record dropped frames, owner calls this regardless of #isEnabled
+	 * @param count
+	 */
+	public void recordDropped(final int count) {
+		mFramesDropped.addAndGet(count);
+	}
+
+	public void recordDropped() {
+		mFramesDropped.incrementAndGet();
+	}
+
+	/**
+	 * add time spent in writing to storage, owner calls this regardless of #isEnabled
+	 * @param timeUs
+	 */
+	public void recordWriteTime(final long timeUs) {
+		mWriteTimeUs.addAndGet(timeUs);
+	}
+
+	/**
+	 * total time spent in writing to storage without taking snapshot
+	 * @return [usec]
+	 */
+	public long getWriteTimeUs() {
+		return mWriteTimeUs.get();
+	}
+
+	/**
+	 * number of dropped frames without taking snapshot
+	 * @return
+	 */
+	public long getFramesDropped() {
+		return mFramesDropped.get();
+	}
+
+	/**
+	 * record latency from starting until first sample is written
+	 * @param latencyUs
+	 */
+	public void recordStartLatency(final long latencyUs) {
+		mStartLatencyUs.set(latencyUs);
+	}
+
+	/**
+	 * clear all counters, this should be called while owner is not running
+	 */
+	public void reset() {
+		mInputWait.reset();
+		mOutputWait.reset();
+		mTimeToMux.reset();
+		mFramesIn.set(0);
+		mFramesDropped.set(0);
+		mSamplesWritten.set(0);
+		mBytesWritten.set(0);
+		mWriteTimeUs.set(0);
+		mStartLatencyUs.set(-1);
+	}
+
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	@Override
+	public String toString() {
+		return snapshot().toString();
+	}
+}
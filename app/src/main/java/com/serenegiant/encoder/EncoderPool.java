@@ -0,0 +1,271 @@
+package com.serenegiant.encoder;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: EncoderPool.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+
+import android.media.MediaFormat;
+import android.util.Log;
+
+/**
+ * Pool of warm codec instances that are reused between recordings.
+ * Creating and configuring MediaCodec takes tens of milliseconds on many devices
+ * and it delays the first frame of each recording.
+ * Codecs returned to this pool are stopped and configured again with the same format
+ * (off the start path), so next recording that requests same format only calls #start.
+ * Video codecs of MediaCodecBackend keep their persistent input Surface on API >= 23,
+ * so creating the input Surface is also skipped, the Surface is released when the pool
+ * releases(evicts) the codec. EGL surface of the render thread is still created on each start.
+ * Only synchronous(polling) mode codecs are kept because MediaCodec can not switch
+ * callback mode without reset.
+ * Set this to MediaEncoder#setBackendFactory to use.
+ */
+public final class EncoderPool implements EncoderBackend.Factory {
+	private static final boolean DEBUG = false;	// TODO set false on release
+	private static final String TAG = "EncoderPool";
+
+	/**
+	 * codec that is kept in the pool
+	 */
+	private static final class Entry {
+		private final String mimeType;
+		private final EncoderBackend backend;
+
+		private Entry(final String mimeType, final EncoderBackend backend) {
+			this.mimeType = mimeType;
+			this.backend = backend;
+		}
+	}
+
+	/**
+	 * format that pool configured(or user configured) the codec with
+	 */
+	private static final class Config {
+		private final String mimeType;
+		private final MediaFormat format;
+		private final String signature;
+
+		private Config(final String mimeType, final MediaFormat format, final String signature) {
+			this.mimeType = mimeType;
+			this.format = format;
+			this.signature = signature;
+		}
+	}
+
+	private final Object mSync = new Object();
+	private final EncoderBackend.Factory mFactory;
+	private final int mMaxIdle;
+	private final List<Entry> mIdle = new ArrayList<Entry>();
+	/**
+	 * codecs that are configured by this pool and not started yet
+	 */
+	private final IdentityHashMap<EncoderBackend, Config> mPreconfigured = new IdentityHashMap<EncoderBackend, Config>();
+	/**
+	 * codecs that are handed out and configured by user
+	 */
+	private final IdentityHashMap<EncoderBackend, Config> mInUse = new IdentityHashMap<EncoderBackend, Config>();
+	private final IdentityHashMap<EncoderBackend, String> mMimeTypes = new IdentityHashMap<EncoderBackend, String>();
+	private int mCreated, mReused, mConfigSkipped;
+	private boolean mReleased;
+
+	/**
+	 * @param factory factory to create new codec when the pool has no idle codec
+	 * @param maxIdlePerType maximum number of idle codecs for each MIME type
+	 */
+	public EncoderPool(final EncoderBackend.Factory factory, final int maxIdlePerType) {
+		if (factory == null) throw new NullPointerException("factory is null");
+		mFactory = factory;
+		mMaxIdle = maxIdlePerType > 0 ? maxIdlePerType : 1;
+	}
+
+	/**
+	 * create and configure codecs ahead of recording, this is heavy work
+	 * so this should be called on private thread
+	 * @param mimeType
+	 * @param format format to configure, null only creates the codecs
+	 * @param count number of codecs to prepare
+	 * @throws IOException
+	 */
+	public void prewarm(final String mimeType, final MediaFormat format, final int count) throws IOException {
+		if (DEBUG) Log.v(TAG, "prewarm:" + mimeType + ",count=" + count);
+		for (int i = 0; i < count; i++) {
+			synchronized (mSync) {
+				if (mReleased || (countIdleLocked(mimeType) >= mMaxIdle)) return;
+			}
+			final EncoderBackend backend = mFactory.createEncoder(mimeType);
+			final Config config = format != null ? new Config(mimeType, format, format.toString()) : null;
+			if (config != null) {
+				backend.configure(format, null);
+			}
+			synchronized (mSync) {
+				mCreated++;
+				if (!addIdleLocked(mimeType, backend, config)) {
+					backend.release();
+				}
+			}
+		}
+	}
+
+	/**
+	 * get idle codec or create new one
+	 */
+	@Override
+	public EncoderBackend createEncoder(final String mimeType) throws IOException {
+		synchronized (mSync) {
+			if (mReleased) throw new IllegalStateException("already released");
+			for (int i = mIdle.size() - 1; i >= 0; i--) {
+				final Entry entry = mIdle.get(i);
+				if (entry.mimeType.equals(mimeType)) {
+					mIdle.remove(i);
+					mMimeTypes.put(entry.backend, mimeType);
+					mReused++;
+					return entry.backend;
+				}
+			}
+		}
+		final EncoderBackend backend = mFactory.createEncoder(mimeType);
+		synchronized (mSync) {
+			mCreated++;
+			mMimeTypes.put(backend, mimeType);
+		}
+		return backend;
+	}
+
+	/**
+	 * configure the codec that was taken from this pool.
+	 * when the codec is already configured with same format, this does nothing.
+	 * @param backend
+	 * @param format
+	 * @param callback
+	 * @throws IOException
+	 */
+	public void configure(final EncoderBackend backend, final MediaFormat format,
+		final EncoderBackend.Callback callback) throws IOException {
+
+		final String signature = format.toString();
+		final Config prev;
+		final String mimeType;
+		synchronized (mSync) {
+			prev = mPreconfigured.remove(backend);
+			mimeType = mMimeTypes.get(backend);
+			if ((prev != null) && (callback == null) && prev.signature.equals(signature)) {
+				mConfigSkipped++;
+				mInUse.put(backend, prev);
+				return;
+			}
+		}
+		if (prev != null) {
+			// codec should be stopped before configuring again
+			backend.stop();
+		}
+		backend.configure(format, callback);
+		synchronized (mSync) {
+			mInUse.put(backend, callback == null ? new Config(mimeType, format, signature) : null);
+		}
+	}
+
+	/**
+	 * return the codec to this pool instead of releasing it.
+	 * this should be called after EncoderBackend#stop.
+	 * @param backend
+	 */
+	public void recycle(final EncoderBackend backend) {
+		final Config config;
+		synchronized (mSync) {
+			config = mInUse.remove(backend);
+			final String mimeType = mMimeTypes.remove(backend);
+			if (mReleased || (config == null) || (countIdleLocked(mimeType) >= mMaxIdle)) {
+				// callback mode codecs and overflowed ones are released
+				if (DEBUG) Log.v(TAG, "recycle:release " + backend.getName());
+				backend.release();
+				return;
+			}
+		}
+		try {
+			// configure again for next recording
+			backend.configure(config.format, null);
+		} catch (final Exception e) {
+			Log.w(TAG, "recycle:failed to configure", e);
+			backend.release();
+			return;
+		}
+		synchronized (mSync) {
+			if (!addIdleLocked(config.mimeType, backend, config)) {
+				backend.release();
+			}
+		}
+	}
+
+	/**
+	 * release all idle codecs, codecs that are in use are released when they are recycled.
+	 */
+	public void release() {
+		if (DEBUG) Log.v(TAG, "release:" + this);
+		final List<Entry> idle;
+		synchronized (mSync) {
+			mReleased = true;
+			idle = new ArrayList<Entry>(mIdle);
+			mIdle.clear();
+			mPreconfigured.clear();
+		}
+		for (final Entry entry : idle) {
+			try {
+				entry.backend.release();
+			} catch (final Exception e) {
+				Log.w(TAG, "release:", e);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		synchronized (mSync) {
+			return String.format(Locale.US, "EncoderPool:idle=%d,created=%d,reused=%d,configSkipped=%d",
+				mIdle.size(), mCreated, mReused, mConfigSkipped);
+		}
+	}
+
+	private int countIdleLocked(final String mimeType) {
+		int result = 0;
+		for (final Entry entry : mIdle) {
+			if (entry.mimeType.equals(mimeType)) result++;
+		}
+		return result;
+	}
+
+	/**
+	 * @return false if the codec should be released
+	 */
+	private boolean addIdleLocked(final String mimeType, final EncoderBackend backend, final Config config) {
+		if (mReleased || (countIdleLocked(mimeType) >= mMaxIdle)) return false;
+		mIdle.add(new Entry(mimeType, backend));
+		if (config != null) {
+			mPreconfigured.put(backend, config);
+		}
+		return true;
+	}
+}
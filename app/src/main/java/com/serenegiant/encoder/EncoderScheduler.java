@@ -0,0 +1,294 @@
+package com.serenegiant.encoder;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: EncoderScheduler.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import android.util.Log;
+
+/**
+ * Small bounded thread pool that runs drain/stop work of many MediaEncoders.
+ * Without this, each MediaEncoder has its own thread, so the number of threads grows
+ * with the number of concurrent recordings.
+ * Each Task is never executed on two threads at the same time and repeated schedule requests
+ * are coalesced until the Task runs. Ready tasks run in order of priority then request time.
+ * Tasks never block the worker, polling of codec output backs off while the codec has no output
+ * and stopping(EOS) proceeds by rescheduling, so one stopping encoder does not stall others.
+ * This only shares the drain threads, capturing threads of each encoder
+ * (AudioThread of MediaAudioEncoder and RenderHandler of MediaVideoEncoder) are not shared.
+ * Set this to MediaMuxerWrapper#setScheduler before creating encoders.
+ */
+public final class EncoderScheduler {
+	private static final boolean DEBUG = false;	// TODO set false on release
+	private static final String TAG = "EncoderScheduler";
+
+	public static final int PRIORITY_LOW = 0;
+	public static final int PRIORITY_NORMAL = 5;
+	public static final int PRIORITY_HIGH = 10;
+
+	private static final int STATE_IDLE = 0;
+	private static final int STATE_READY = 1;
+	private static final int STATE_DELAYED = 2;
+	private static final int STATE_RUNNING = 3;
+
+	/**
+	 * unit of work, this is reused for every schedule request so scheduling never allocates
+	 */
+	public static abstract class Task {
+		private final int mPriority;
+		// following fields are guarded by the lock of scheduler
+		private int mState = STATE_IDLE;
+		private long mSeq;
+		private long mDeadlineNs;
+		private boolean mRerun;
+		private long mRerunDeadlineNs;
+
+		/**
+		 * @param priority PRIORITY_LOW...PRIORITY_HIGH, larger value runs first
+		 */
+		public Task(final int priority) {
+			mPriority = priority;
+		}
+
+		public int getPriority() {
+			return mPriority;
+		}
+
+		/**
+		 * this is called on one of the worker threads
+		 */
+		protected abstract void execute();
+	}
+
+	private static final Comparator<Task> READY_ORDER = new Comparator<Task>() {
+		@Override
+		public int compare(final Task lhs, final Task rhs) {
+			if (lhs.mPriority != rhs.mPriority) {
+				return lhs.mPriority > rhs.mPriority ? -1 : 1;
+			}
+			return lhs.mSeq < rhs.mSeq ? -1 : (lhs.mSeq == rhs.mSeq ? 0 : 1);
+		}
+	};
+
+	private static final Comparator<Task> DELAYED_ORDER = new Comparator<Task>() {
+		@Override
+		public int compare(final Task lhs, final Task rhs) {
+			final long diff = lhs.mDeadlineNs - rhs.mDeadlineNs;
+			return diff < 0 ? -1 : (diff == 0 ? 0 : 1);
+		}
+	};
+
+	private final ReentrantLock mLock = new ReentrantLock();
+	private final Condition mCondition = mLock.newCondition();
+	private final PriorityQueue<Task> mReady;
+	private final PriorityQueue<Task> mDelayed;
+	private final Thread[] mWorkers;
+	/**
+	 * latency from the time when a task became ready until it started running,
+	 * recorded while holding mLock so it has single writer at a time
+	 */
+	private final LatencyRecorder mQueueLatency = new LatencyRecorder();
+	private long mSeq;
+	private boolean mReleased;
+
+	/**
+	 * @param name prefix of worker thread name
+	 * @param numThreads number of worker threads
+	 */
+	public EncoderScheduler(final String name, final int numThreads) {
+		if (numThreads <= 0) throw new IllegalArgumentException("numThreads should be positive");
+		mReady = new PriorityQueue<Task>(16, READY_ORDER);
+		mDelayed = new PriorityQueue<Task>(16, DELAYED_ORDER);
+		mWorkers = new Thread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			mWorkers[i] = new Thread(mWorkerRunnable, name + "-" + i);
+			mWorkers[i].start();
+		}
+	}
+
+	public int getThreadCount() {
+		return mWorkers.length;
+	}
+
+	/**
+	 * latency from the time when tasks became ready until they started running
+	 * @return
+	 */
+	public LatencyRecorder.Snapshot getQueueLatency() {
+		return mQueueLatency.snapshot();
+	}
+
+	/**
+	 * request to run the task as soon as possible
+	 * @param task
+	 */
+	public void schedule(final Task task) {
+		schedule(task, 0);
+	}
+
+	/**
+	 * request to run the task after delay.
+	 * if the task is already scheduled, earlier request wins.
+	 * if the task is running now, it runs again after it returns.
+	 * @param task
+	 * @param delayNs
+	 */
+	public void schedule(final Task task, final long delayNs) {
+		final long deadlineNs = System.nanoTime() + (delayNs > 0 ? delayNs : 0);
+		mLock.lock();
+		try {
+			if (mReleased) return;
+			switch (task.mState) {
+			case STATE_IDLE:
+				enqueue(task, deadlineNs);
+				break;
+			case STATE_DELAYED:
+				if (deadlineNs - task.mDeadlineNs < 0) {
+					mDelayed.remove(task);
+					enqueue(task, deadlineNs);
+				}
+				break;
+			case STATE_RUNNING:
+				if (!task.mRerun || (deadlineNs - task.mRerunDeadlineNs < 0)) {
+					task.mRerunDeadlineNs = deadlineNs;
+				}
+				task.mRerun = true;
+				break;
+			default:	// STATE_READY, will run soon
+				break;
+			}
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * stop all worker threads, tasks in the queue are discarded
+	 */
+	public void release() {
+		if (DEBUG) Log.v(TAG, "release:");
+		mLock.lock();
+		try {
+			if (mReleased) return;
+			mReleased = true;
+			mReady.clear();
+			mDelayed.clear();
+			mCondition.signalAll();
+		} finally {
+			mLock.unlock();
+		}
+		for (final Thread worker : mWorkers) {
+			try {
+				worker.join();
+			} catch (final InterruptedException e) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * must be called while holding mLock
+	 */
+	private void enqueue(final Task task, final long deadlineNs) {
+		task.mDeadlineNs = deadlineNs;
+		if (deadlineNs - System.nanoTime() > 0) {
+			task.mState = STATE_DELAYED;
+			mDelayed.add(task);
+		} else {
+			task.mState = STATE_READY;
+			task.mSeq = mSeq++;
+			mReady.add(task);
+		}
+		mCondition.signal();
+	}
+
+	/**
+	 * wait and take next task to run, must be called while holding mLock
+	 * @return null if released
+	 */
+	private Task take() throws InterruptedException {
+		for ( ; !mReleased ; ) {
+			final long nowNs = System.nanoTime();
+			// move tasks whose deadline came to ready queue
+			for (Task delayed = mDelayed.peek();
+				(delayed != null) && (delayed.mDeadlineNs - nowNs <= 0); delayed = mDelayed.peek()) {
+
+				mDelayed.poll();
+				delayed.mState = STATE_READY;
+				delayed.mSeq = mSeq++;
+				mReady.add(delayed);
+			}
+			final Task task = mReady.poll();
+			if (task != null) {
+				task.mState = STATE_RUNNING;
+				mQueueLatency.record((nowNs - task.mDeadlineNs) / 1000L);
+				return task;
+			}
+			final Task next = mDelayed.peek();
+			if (next != null) {
+				mCondition.awaitNanos(next.mDeadlineNs - nowNs);
+			} else {
+				mCondition.await();
+			}
+		}
+		return null;
+	}
+
+	private final Runnable mWorkerRunnable = new Runnable() {
+		@Override
+		public void run() {
+			if (DEBUG) Log.v(TAG, "worker started:" + Thread.currentThread().getName());
+			for ( ; ; ) {
+				final Task task;
+				mLock.lock();
+				try {
+					task = take();
+				} catch (final InterruptedException e) {
+					break;
+				} finally {
+					mLock.unlock();
+				}
+				if (task == null) break;
+				try {
+					task.execute();
+				} catch (final Exception e) {
+					Log.w(TAG, "task failed:", e);
+				}
+				mLock.lock();
+				try {
+					task.mState = STATE_IDLE;
+					if (task.mRerun && !mReleased) {
+						task.mRerun = false;
+						enqueue(task, task.mRerunDeadlineNs);
+					}
+				} finally {
+					mLock.unlock();
+				}
+			}
+			if (DEBUG) Log.v(TAG, "worker finished:" + Thread.currentThread().getName());
+		}
+	};
+}
@@ -0,0 +1,535 @@
+package com.serenegiant.encoder;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: FakeEncoderBackend.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+/**
+ * Deterministic pure-Java encoder backend for benchmarking and load testing
+ * of threading/drain logic without actual codec.
+ * Each queued input(or #renderFrame for Surface input emulation) comes out as one synthetic
+ * encoded sample of configured size after configured latency.
+ * The first 4 bytes of each sample is the sequence number and rest of them are fixed pattern.
+ * This never allocates after #configure.
+ */
+public class FakeEncoderBackend implements EncoderBackend {
+	private static final int DEFAULT_NUM_BUFFERS = 4;
+	private static final int DEFAULT_INPUT_SIZE = 8192;
+
+	private static final int STATE_FREE = 0;
+	private static final int STATE_DEQUEUED = 1;
+	private static final int STATE_QUEUED = 2;
+
+	/**
+	 * create factory that creates FakeEncoderBackend with specific parameters
+	 * @param sampleSize size of each synthetic encoded sample[bytes]
+	 * @param latencyUs latency between queueing input and output being available[usec]
+	 * @param keyFrameInterval every n-th sample is marked as key frame, 1 means all samples are key frame
+	 * @return
+	 */
+	public static Factory factory(final int sampleSize, final long latencyUs, final int keyFrameInterval) {
+		return new Factory() {
+			@Override
+			public EncoderBackend createEncoder(final String mimeType) throws IOException {
+				final FakeEncoderBackend backend = new FakeEncoderBackend(mimeType, sampleSize, latencyUs);
+				backend.setKeyFrameInterval(keyFrameInterval);
+				return backend;
+			}
+		};
+	}
+
+	private final Object mSync = new Object();
+	private final String mMimeType;
+	private final int mSampleSize;
+	private final long mLatencyNs;
+	private int mKeyFrameInterval = 1;
+	private int mNumBuffers = DEFAULT_NUM_BUFFERS;
+
+	private MediaFormat mOutputFormat;
+	private Callback mCallback;
+	private Thread mCallbackThread;
+	private ByteBuffer[] mInputBuffers;
+	private ByteBuffer[] mOutputBuffers;
+	private int[] mInputState;
+	private int[] mOutputState;
+	private byte[] mPattern;
+	// ring of pending(queued but not encoded yet) frames
+	private long[] mPendingPts;
+	private long[] mPendingDueNs;
+	private int[] mPendingFlags;
+	private int[] mPendingInput;
+	private int mPendingHead, mPendingCount;
+
+	private boolean mConfigured, mStarted, mReleased;
+	private boolean mFormatReported;
+	private int mSequence;
+	private long mLastPts;
+	private long mDroppedFrames;
+	private int mVideoBitrate;
+	private boolean mRequestSyncFrame;
+
+	public FakeEncoderBackend(final String mimeType, final int sampleSize, final long latencyUs) {
+		if (sampleSize < 4) throw new IllegalArgumentException("sampleSize should be >= 4");
+		mMimeType = mimeType;
+		mSampleSize = sampleSize;
+		mLatencyNs = latencyUs * 1000L;
+	}
+
+	/**
+	 * @param keyFrameInterval every n-th sample is marked as key frame
+	 */
+	public void setKeyFrameInterval(final int keyFrameInterval) {
+		synchronized (mSync) {
+			mKeyFrameInterval = keyFrameInterval > 0 ? keyFrameInterval : 1;
+		}
+	}
+
+	/**
+	 * set number of input/output buffers, this should be called before #configure
+	 * @param numBuffers
+	 */
+	public void setNumBuffers(final int numBuffers) {
+		synchronized (mSync) {
+			if (mConfigured) throw new IllegalStateException("already configured");
+			mNumBuffers = numBuffers > 0 ? numBuffers : 1;
+		}
+	}
+
+	/**
+	 * number of frames that #renderFrame could not queue because codec was full
+	 * @return
+	 */
+	public long getDroppedFrames() {
+		synchronized (mSync) {
+			return mDroppedFrames;
+		}
+	}
+
+	@Override
+	public String getName() {
+		return "fake." + mMimeType;
+	}
+
+	@Override
+	public boolean isCallbackSupported() {
+		return true;
+	}
+
+	@Override
+	public void configure(final MediaFormat format, final Callback callback) throws IOException {
+		synchronized (mSync) {
+			if (mReleased) throw new IllegalStateException("already released");
+			final int n = mNumBuffers;
+			final int inputSize = format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)
+				? format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE) : DEFAULT_INPUT_SIZE;
+			mInputBuffers = new ByteBuffer[n];
+			mOutputBuffers = new ByteBuffer[n];
+			for (int i = 0; i < n; i++) {
+				mInputBuffers[i] = ByteBuffer.allocateDirect(inputSize);
+				mOutputBuffers[i] = ByteBuffer.allocateDirect(mSampleSize);
+			}
+			mInputState = new int[n];
+			mOutputState = new int[n];
+			final int pending = n * 2 + 1;
+			mPendingPts = new long[pending];
+			mPendingDueNs = new long[pending];
+			mPendingFlags = new int[pending];
+			mPendingInput = new int[pending];
+			mPattern = new byte[mSampleSize];
+			for (int i = 0; i < mSampleSize; i++) {
+				mPattern[i] = (byte)i;
+			}
+			mOutputFormat = createOutputFormat(format);
+			mCallback = callback;
+			mConfigured = true;
+		}
+	}
+
+	/**
+	 * keys of the input format that are copied to the output format
+	 */
+	private static final String[] OUTPUT_INTEGER_KEYS = {
+		MediaFormat.KEY_WIDTH, MediaFormat.KEY_HEIGHT,
+		MediaFormat.KEY_SAMPLE_RATE, MediaFormat.KEY_CHANNEL_COUNT,
+		MediaFormat.KEY_BIT_RATE,
+	};
+
+	/**
+	 * create output format from the input format like MediaCodec,
+	 * the input format is not modified because the caller may reuse it(e.g. EncoderPool)
+	 * @param format
+	 * @return
+	 */
+	private static MediaFormat createOutputFormat(final MediaFormat format) {
+		final MediaFormat result = new MediaFormat();
+		result.setString(MediaFormat.KEY_MIME, format.getString(MediaFormat.KEY_MIME));
+		for (final String key: OUTPUT_INTEGER_KEYS) {
+			if (format.containsKey(key)) {
+				result.setInteger(key, format.getInteger(key));
+			}
+		}
+		// dummy codec specific data
+		result.setByteBuffer("csd-0", ByteBuffer.wrap(new byte[] {0, 0, 0, 1}));
+		return result;
+	}
+
+	@Override
+	public void start() {
+		synchronized (mSync) {
+			if (!mConfigured) throw new IllegalStateException("not configured yet");
+			resetLocked();
+			mStarted = true;
+			if ((mCallback != null) && (mCallbackThread == null)) {
+				mCallbackThread = new Thread(mCallbackTask, getName());
+				mCallbackThread.start();
+			}
+			mSync.notifyAll();
+		}
+	}
+
+	@Override
+	public void stop() {
+		final Thread thread;
+		synchronized (mSync) {
+			mStarted = false;
+			resetLocked();
+			thread = mCallbackThread;
+			mCallbackThread = null;
+			mSync.notifyAll();
+		}
+		if ((thread != null) && (thread != Thread.currentThread())) {
+			try {
+				thread.join();
+			} catch (final InterruptedException e) {
+				// ignore
+			}
+		}
+	}
+
+	@Override
+	public void release() {
+		stop();
+		synchronized (mSync) {
+			mReleased = true;
+			mConfigured = false;
+			mInputBuffers = mOutputBuffers = null;
+		}
+	}
+
+	@Override
+	public int dequeueInputBuffer(final long timeoutUs) {
+		synchronized (mSync) {
+			final long deadline = System.nanoTime() + timeoutUs * 1000L;
+			for ( ; ; ) {
+				if (mStarted) {
+					for (int i = 0; i < mInputState.length; i++) {
+						if (mInputState[i] == STATE_FREE) {
+							mInputState[i] = STATE_DEQUEUED;
+							return i;
+						}
+					}
+				}
+				final long remain = deadline - System.nanoTime();
+				if ((timeoutUs >= 0) && (remain <= 0)) {
+					return MediaCodec.INFO_TRY_AGAIN_LATER;
+				}
+				if (!waitLocked(timeoutUs < 0 ? -1 : remain)) {
+					return MediaCodec.INFO_TRY_AGAIN_LATER;
+				}
+			}
+		}
+	}
+
+	@Override
+	public ByteBuffer getInputBuffer(final int index) {
+		synchronized (mSync) {
+			final ByteBuffer buf = mInputBuffers[index];
+			buf.clear();
+			return buf;
+		}
+	}
+
+	@Override
+	public void queueInputBuffer(final int index, final int offset, final int size,
+		final long presentationTimeUs, final int flags) {
+
+		synchronized (mSync) {
+			if (mInputState[index] != STATE_DEQUEUED)
+				throw new IllegalStateException("input buffer " + index + " is not dequeued");
+			mInputState[index] = STATE_QUEUED;
+			if (!enqueueLocked(presentationTimeUs, flags, index)) {
+				// this never happens because pending ring has enough room for all input buffers
+				mInputState[index] = STATE_FREE;
+			}
+		}
+	}
+
+	@Override
+	public void signalEndOfInputStream() {
+		synchronized (mSync) {
+			// pending ring always has room for EOS(see #renderFrame)
+			enqueueLocked(mLastPts, MediaCodec.BUFFER_FLAG_END_OF_STREAM, -1);
+		}
+	}
+
+	/**
+	 * emulate drawing one frame into input Surface of video encoder.
+	 * frame is dropped when codec is full like actual Surface input.
+	 * @param presentationTimeUs
+	 * @return false if the frame was dropped
+	 */
+	public boolean renderFrame(final long presentationTimeUs) {
+		synchronized (mSync) {
+			// Surface input frames never exceed number of buffers
+			if (!mStarted || (mPendingCount >= mNumBuffers)) {
+				mDroppedFrames++;
+				return false;
+			}
+			return enqueueLocked(presentationTimeUs, 0, -1);
+		}
+	}
+
+	@Override
+	public int dequeueOutputBuffer(final MediaCodec.BufferInfo info, final long timeoutUs) {
+		synchronized (mSync) {
+			final long deadline = System.nanoTime() + timeoutUs * 1000L;
+			for ( ; ; ) {
+				final long now = System.nanoTime();
+				final int result = pollOutputLocked(info, now);
+				if (result != MediaCodec.INFO_TRY_AGAIN_LATER) {
+					return result;
+				}
+				long wait = timeoutUs < 0 ? -1 : deadline - now;
+				if ((mPendingCount > 0) && ((wait < 0) || (mPendingDueNs[mPendingHead] - now < wait))) {
+					wait = Math.max(1, mPendingDueNs[mPendingHead] - now);
+				}
+				if ((timeoutUs >= 0) && (deadline - now <= 0)) {
+					return MediaCodec.INFO_TRY_AGAIN_LATER;
+				}
+				waitLocked(wait);
+			}
+		}
+	}
+
+	@Override
+	public ByteBuffer getOutputBuffer(final int index) {
+		synchronized (mSync) {
+			return mOutputBuffers[index];
+		}
+	}
+
+	@Override
+	public void releaseOutputBuffer(final int index) {
+		synchronized (mSync) {
+			if (mOutputState[index] != STATE_DEQUEUED)
+				throw new IllegalStateException("output buffer " + index + " is not dequeued");
+			mOutputState[index] = STATE_FREE;
+			mSync.notifyAll();
+		}
+	}
+
+	/**
+	 * only records requested bitrate, size of synthetic samples does not change
+	 */
+	@Override
+	public void setVideoBitrate(final int bitrate) {
+		synchronized (mSync) {
+			mVideoBitrate = bitrate;
+		}
+	}
+
+	/**
+	 * next encoded sample becomes key frame
+	 */
+	@Override
+	public void requestSyncFrame() {
+		synchronized (mSync) {
+			mRequestSyncFrame = true;
+		}
+	}
+
+	/**
+	 * bitrate that was set last time by #setVideoBitrate
+	 * @return 0 if never set
+	 */
+	public int getVideoBitrate() {
+		synchronized (mSync) {
+			return mVideoBitrate;
+		}
+	}
+
+	@Override
+	public MediaFormat getOutputFormat() {
+		synchronized (mSync) {
+			return mOutputFormat;
+		}
+	}
+
+//********************************************************************************
+	private void resetLocked() {
+		if (mInputState == null) return;
+		for (int i = 0; i < mInputState.length; i++) {
+			mInputState[i] = STATE_FREE;
+			mOutputState[i] = STATE_FREE;
+		}
+		mPendingHead = mPendingCount = 0;
+		mFormatReported = false;
+		mSequence = 0;
+		mLastPts = 0;
+	}
+
+	private boolean enqueueLocked(final long presentationTimeUs, final int flags, final int inputIndex) {
+		if (!mStarted || (mPendingCount >= mPendingPts.length)) {
+			return false;
+		}
+		final int ix = (mPendingHead + mPendingCount) % mPendingPts.length;
+		mPendingPts[ix] = presentationTimeUs;
+		mLastPts = presentationTimeUs;
+		mPendingFlags[ix] = flags;
+		mPendingInput[ix] = inputIndex;
+		mPendingDueNs[ix] = System.nanoTime() + mLatencyNs;
+		mPendingCount++;
+		mSync.notifyAll();
+		return true;
+	}
+
+	/**
+	 * @param info
+	 * @param now
+	 * @return index of output buffer, INFO_OUTPUT_FORMAT_CHANGED or INFO_TRY_AGAIN_LATER
+	 */
+	private int pollOutputLocked(final MediaCodec.BufferInfo info, final long now) {
+		if (!mStarted) {
+			return MediaCodec.INFO_TRY_AGAIN_LATER;
+		}
+		if (!mFormatReported) {
+			mFormatReported = true;
+			return MediaCodec.INFO_OUTPUT_FORMAT_CHANGED;
+		}
+		if ((mPendingCount == 0) || (mPendingDueNs[mPendingHead] - now > 0)) {
+			return MediaCodec.INFO_TRY_AGAIN_LATER;
+		}
+		int outIx = -1;
+		for (int i = 0; i < mOutputState.length; i++) {
+			if (mOutputState[i] == STATE_FREE) {
+				outIx = i;
+				break;
+			}
+		}
+		if (outIx < 0) {
+			return MediaCodec.INFO_TRY_AGAIN_LATER;
+		}
+		final int head = mPendingHead;
+		mPendingHead = (head + 1) % mPendingPts.length;
+		mPendingCount--;
+		final int inputIx = mPendingInput[head];
+		if (inputIx >= 0) {
+			mInputState[inputIx] = STATE_FREE;
+		}
+		mOutputState[outIx] = STATE_DEQUEUED;
+		final ByteBuffer out = mOutputBuffers[outIx];
+		out.clear();
+		final int flags = mPendingFlags[head];
+		if ((flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+			info.set(0, 0, mPendingPts[head], MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+		} else {
+			final int seq = mSequence++;
+			out.put(mPattern, 0, mSampleSize);
+			out.putInt(0, seq);
+			out.flip();
+			final int outFlags = mRequestSyncFrame || ((seq % mKeyFrameInterval) == 0)
+				? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+			mRequestSyncFrame = false;
+			info.set(0, mSampleSize, mPendingPts[head], outFlags);
+		}
+		mSync.notifyAll();
+		return outIx;
+	}
+
+	/**
+	 * @param waitNs negative value means wait infinitely
+	 * @return false if timeout already expired
+	 */
+	private boolean waitLocked(final long waitNs) {
+		if (waitNs == 0) return false;
+		try {
+			if (waitNs < 0) {
+				mSync.wait();
+			} else {
+				mSync.wait(waitNs / 1000000L, (int)(waitNs % 1000000L));
+			}
+		} catch (final InterruptedException e) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * private thread for asynchronous mode
+	 */
+	private final Runnable mCallbackTask = new Runnable() {
+		@Override
+		public void run() {
+			final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+			for ( ; ; ) {
+				final Callback callback;
+				int inputIx = -1;
+				int outputIx = MediaCodec.INFO_TRY_AGAIN_LATER;
+				synchronized (mSync) {
+					if (!mStarted || (mCallbackThread != Thread.currentThread())) break;
+					callback = mCallback;
+					for (int i = 0; i < mInputState.length; i++) {
+						if (mInputState[i] == STATE_FREE) {
+							mInputState[i] = STATE_DEQUEUED;
+							inputIx = i;
+							break;
+						}
+					}
+					final long now = System.nanoTime();
+					if (inputIx < 0) {
+						outputIx = pollOutputLocked(info, now);
+						if (outputIx == MediaCodec.INFO_TRY_AGAIN_LATER) {
+							waitLocked(mPendingCount > 0 ? Math.max(1, mPendingDueNs[mPendingHead] - now) : -1);
+							continue;
+						}
+					}
+				}
+				try {
+					if (inputIx >= 0) {
+						callback.onInputBufferAvailable(inputIx);
+					} else if (outputIx == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+						callback.onOutputFormatChanged(mOutputFormat);
+					} else {
+						callback.onOutputBufferAvailable(outputIx, info);
+					}
+				} catch (final Exception e) {
+					callback.onError(e);
+				}
+			}
+		}
+	};
+}
@@ -0,0 +1,603 @@
+package com.serenegiant.encoder;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: FanOutMuxerBackend.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+/**
+ * MuxerBackend that delivers each encoded sample to several sinks(MuxerBackend),
+ * e.g. local MP4 file and MPEG-TS over socket, without encoding twice.
+ * Each sample is copied once into a pooled reference counted buffer that all sinks share,
+ * every sink has its own read-only view of the buffer, pending queue and writer thread,
+ * so a slow sink never delays other sinks.
+ * Backpressure of each sink is configured with BackpressurePolicy:
+ * - null: lossless, producer waits while the queue of the sink is full(e.g. local file).
+ *   Error of lossless sink is reported to the caller.
+ * - BOUNDED/LATEST_WINS: sample is dropped for this sink when its queue is full
+ * - BLOCK: wait at most the deadline, then drop
+ * After a sink dropped video sample, its video samples are skipped until next key frame
+ * so that the sink receives decodable stream(degraded). Lossy sink is detached on error
+ * (e.g. socket was closed by peer) and other sinks continue.
+ */
+public class FanOutMuxerBackend implements MuxerBackend {
+	private static final boolean DEBUG = false;	// TODO set false on release
+	private static final String TAG = "FanOutMuxerBackend";
+
+	private static final int MIN_BUFFER_SIZE = 64 * 1024;
+	/**
+	 * queue size of lossless sink
+	 */
+	public static final int DEFAULT_CAPACITY = 64;
+	/**
+	 * maximum waiting time for lossy sink to write remaining samples at #stop
+	 */
+	private static final long LOSSY_STOP_TIMEOUT_MS = 500;
+
+	/**
+	 * create factory of FanOutMuxerBackend
+	 * @param factories factories of sinks, all of them receive the output path.
+	 * Factories except the first one should write to another place(e.g. socket).
+	 * @param policies backpressure policy of each sink, null element means lossless
+	 * @return
+	 */
+	public static Factory factory(final Factory[] factories, final BackpressurePolicy[] policies) {
+		if (factories.length != policies.length)
+			throw new IllegalArgumentException("number of factories and policies should be same");
+		return new Factory() {
+			@Override
+			public MuxerBackend createMuxer(final String outputPath) throws IOException {
+				final FanOutMuxerBackend muxer = new FanOutMuxerBackend();
+				try {
+					for (int i = 0; i < factories.length; i++) {
+						muxer.addSink(factories[i].createMuxer(outputPath), policies[i]);
+					}
+				} catch (final IOException e) {
+					muxer.release();
+					throw e;
+				}
+				return muxer;
+			}
+		};
+	}
+
+	/**
+	 * encoded sample shared by sinks
+	 */
+	private static final class SharedSample {
+		private final AtomicInteger mRefCount = new AtomicInteger();
+		private ByteBuffer mData;
+		/**
+		 * view of mData for each sink, so that sinks can read it concurrently
+		 */
+		private ByteBuffer[] mViews;
+		private int mTrackIndex;
+		private int mSize;
+		private long mPresentationTimeUs;
+		private int mFlags;
+	}
+
+	/**
+	 * one output of fan-out
+	 */
+	private final class Sink implements Runnable {
+		private final int mIndex;
+		private final MuxerBackend mMuxer;
+		private final BackpressurePolicy mPolicy;
+		private final int mCapacity;
+		private final ReentrantLock mLock = new ReentrantLock();
+		private final Condition mNotEmpty = mLock.newCondition();
+		private final Condition mNotFull = mLock.newCondition();
+		private final List<Integer> mTrackIndices = new ArrayList<Integer>();
+		/**
+		 * error of the sink, this is checked on producer thread
+		 */
+		private volatile IOException mError;
+		// following fields are guarded by mLock
+		private final ArrayDeque<SharedSample> mPending;
+		private boolean mRequestClose;
+		private boolean mDiscard;
+		private boolean mIsRunning;
+		private boolean mDetached;
+		private boolean mSkipVideo;
+		/**
+		 * the writer thread did not finish in time and owns the muxer,
+		 * it stops and releases the muxer by itself when it finishes
+		 */
+		private boolean mAbandoned;
+		private long mWritten;
+		private long mDropped;
+		private long mBytes;
+		private int mMaxPending;
+		// following fields are only accessed on writer thread
+		private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+		private Thread mThread;
+
+		private Sink(final int index, final MuxerBackend muxer, final BackpressurePolicy policy) {
+			mIndex = index;
+			mMuxer = muxer;
+			mPolicy = policy;
+			mCapacity = policy != null ? policy.getCapacity() : DEFAULT_CAPACITY;
+			mPending = new ArrayDeque<SharedSample>(mCapacity);
+		}
+
+		/**
+		 * queue the sample for this sink, this is called on producer thread
+		 * @param sample
+		 * @param isVideo
+		 */
+		private void offer(final SharedSample sample, final boolean isVideo) {
+			final boolean isKeyFrame = (sample.mFlags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+			mLock.lock();
+			try {
+				if (mDetached || !mIsRunning) return;
+				if (isVideo && mSkipVideo) {
+					if (!isKeyFrame) {
+						mDropped++;
+						return;
+					}
+					mSkipVideo = false;
+				}
+				if (mPending.size() >= mCapacity) {
+					if (mPolicy == null) {
+						while ((mPending.size() >= mCapacity) && mIsRunning && !mDetached) {
+							mNotFull.awaitUninterruptibly();
+						}
+					} else if (mPolicy.getMode() == BackpressurePolicy.MODE_BLOCK) {
+						long remain = mPolicy.getDeadlineNs();
+						while ((mPending.size() >= mCapacity) && mIsRunning && !mDetached && (remain > 0)) {
+							try {
+								remain = mNotFull.awaitNanos(remain);
+							} catch (final InterruptedException e) {
+								break;
+							}
+						}
+					}
+					if (mDetached || !mIsRunning) return;
+					if (mPending.size() >= mCapacity) {
+						mDropped++;
+						if (isVideo) {
+							// following video samples can not be decoded without this sample
+							mSkipVideo = true;
+						}
+						return;
+					}
+				}
+				sample.mRefCount.incrementAndGet();
+				mPending.addLast(sample);
+				mMaxPending = Math.max(mMaxPending, mPending.size());
+				mNotEmpty.signal();
+			} finally {
+				mLock.unlock();
+			}
+		}
+
+		private void start() {
+			mLock.lock();
+			try {
+				mIsRunning = true;
+			} finally {
+				mLock.unlock();
+			}
+			mThread = new Thread(this, TAG + "#" + mIndex);
+			mThread.start();
+		}
+
+		/**
+		 * request the writer thread to finish after writing pending samples
+		 * @param discard drop pending samples
+		 */
+		private void requestClose(final boolean discard) {
+			mLock.lock();
+			try {
+				mRequestClose = true;
+				mDiscard |= discard;
+				mNotEmpty.signal();
+				mNotFull.signalAll();
+			} finally {
+				mLock.unlock();
+			}
+		}
+
+		/**
+		 * hand over the muxer to the writer thread if it is still running
+		 * @return true if the writer thread is still running and will release the muxer by itself
+		 */
+		private boolean abandon() {
+			mLock.lock();
+			try {
+				if (mIsRunning && (mThread != null) && mThread.isAlive()) {
+					mAbandoned = true;
+				}
+				return mAbandoned;
+			} finally {
+				mLock.unlock();
+			}
+		}
+
+		private void join(final long timeoutMs) {
+			final Thread thread = mThread;
+			if (thread == null) return;
+			try {
+				if (timeoutMs > 0) {
+					thread.join(timeoutMs);
+				} else {
+					thread.join();
+				}
+			} catch (final InterruptedException e) {
+				// ignore
+			}
+		}
+
+		@Override
+		public void run() {
+			if (DEBUG) Log.v(TAG, "sink thread started:" + mIndex);
+			for ( ; ; ) {
+				final SharedSample sample;
+				mLock.lock();
+				try {
+					while (mPending.isEmpty() && !mRequestClose) {
+						mNotEmpty.awaitUninterruptibly();
+					}
+					if (mDiscard) {
+						for (SharedSample s = mPending.pollFirst(); s != null; s = mPending.pollFirst()) {
+							mDropped++;
+							recycle(s);
+						}
+					}
+					sample = mPending.pollFirst();
+					if (sample == null) {
+						break;	// closed and all samples are written
+					}
+				} finally {
+					mLock.unlock();
+				}
+				IOException error = null;
+				if (!mDetached) {
+					final ByteBuffer view = sample.mViews[mIndex];
+					view.limit(sample.mSize).position(0);
+					mBufferInfo.set(0, sample.mSize, sample.mPresentationTimeUs, sample.mFlags);
+					try {
+						mMuxer.writeSampleData(mTrackIndices.get(sample.mTrackIndex), view, mBufferInfo);
+					} catch (final IOException e) {
+						error = e;
+					} catch (final RuntimeException e) {
+						error = new IOException(e);
+					}
+				}
+				recycle(sample);
+				mLock.lock();
+				try {
+					if (error != null) {
+						Log.w(TAG, "sink#" + mIndex + " failed, detached", error);
+						mError = error;
+						detachLocked();
+					} else if (!mDetached) {
+						mWritten++;
+						mBytes += sample.mSize;
+					}
+					mNotFull.signalAll();
+				} finally {
+					mLock.unlock();
+				}
+			}
+			final boolean abandoned;
+			mLock.lock();
+			try {
+				mIsRunning = false;
+				abandoned = mAbandoned;
+				mNotFull.signalAll();
+			} finally {
+				mLock.unlock();
+			}
+			if (abandoned) {
+				// nobody else touches the muxer any more
+				if (!mDetached) {
+					try {
+						mMuxer.stop();
+					} catch (final Exception e) {
+						Log.w(TAG, "failed to stop sink#" + mIndex, e);
+					}
+				}
+				mMuxer.release();
+			}
+			if (DEBUG) Log.v(TAG, "sink thread finished:" + mIndex);
+		}
+
+		private void detachLocked() {
+			mDetached = true;
+			for (SharedSample s = mPending.pollFirst(); s != null; s = mPending.pollFirst()) {
+				mDropped++;
+				recycle(s);
+			}
+		}
+
+		@Override
+		public String toString() {
+			mLock.lock();
+			try {
+				return "sink#" + mIndex + "{policy=" + (mPolicy != null ? mPolicy : "lossless")
+					+ ",written=" + mWritten + ",dropped=" + mDropped + ",bytes=" + mBytes
+					+ ",maxPending=" + mMaxPending + (mDetached ? ",detached" : "") + "}";
+			} finally {
+				mLock.unlock();
+			}
+		}
+	}
+
+	private final List<Sink> mSinks = new ArrayList<Sink>();
+	private final List<Boolean> mIsVideoTrack = new ArrayList<Boolean>();
+	private final ReentrantLock mPoolLock = new ReentrantLock();
+	private final ArrayDeque<SharedSample> mPool = new ArrayDeque<SharedSample>();
+	private boolean mStarted;
+
+	public FanOutMuxerBackend() {
+	}
+
+	/**
+	 * add sink, this should be called before #addTrack
+	 * @param muxer
+	 * @param policy null means lossless
+	 * @return index of the sink
+	 */
+	public int addSink(final MuxerBackend muxer, final BackpressurePolicy policy) {
+		if (mStarted || !mIsVideoTrack.isEmpty()) throw new IllegalStateException("already tracks added");
+		final Sink sink = new Sink(mSinks.size(), muxer, policy);
+		mSinks.add(sink);
+		return sink.mIndex;
+	}
+
+	public int getSinkCount() {
+		return mSinks.size();
+	}
+
+	/**
+	 * number of samples that were written to specific sink
+	 * @param index
+	 * @return
+	 */
+	public long getWrittenSamples(final int index) {
+		final Sink sink = mSinks.get(index);
+		sink.mLock.lock();
+		try {
+			return sink.mWritten;
+		} finally {
+			sink.mLock.unlock();
+		}
+	}
+
+	/**
+	 * number of samples that were dropped for specific sink
+	 * @param index
+	 * @return
+	 */
+	public long getDroppedSamples(final int index) {
+		final Sink sink = mSinks.get(index);
+		sink.mLock.lock();
+		try {
+			return sink.mDropped;
+		} finally {
+			sink.mLock.unlock();
+		}
+	}
+
+	/**
+	 * whether specific sink was detached by error
+	 * @param index
+	 * @return
+	 */
+	public boolean isDetached(final int index) {
+		final Sink sink = mSinks.get(index);
+		sink.mLock.lock();
+		try {
+			return sink.mDetached;
+		} finally {
+			sink.mLock.unlock();
+		}
+	}
+
+	@Override
+	public int addTrack(final MediaFormat format) {
+		if (mStarted) throw new IllegalStateException("already started");
+		if (mSinks.isEmpty()) throw new IllegalStateException("no sink");
+		for (final Sink sink: mSinks) {
+			sink.mTrackIndices.add(sink.mMuxer.addTrack(format));
+		}
+		final String mime = format.getString(MediaFormat.KEY_MIME);
+		mIsVideoTrack.add(mime != null && mime.startsWith("video/"));
+		return mIsVideoTrack.size() - 1;
+	}
+
+	@Override
+	public void start() throws IOException {
+		if (mStarted) throw new IllegalStateException("already started");
+		for (final Sink sink: mSinks) {
+			try {
+				sink.mMuxer.start();
+			} catch (final IOException e) {
+				if (sink.mPolicy == null) throw e;
+				Log.w(TAG, "failed to start sink#" + sink.mIndex + ", detached", e);
+				sink.mDetached = true;
+				sink.mError = e;
+			}
+		}
+		for (final Sink sink: mSinks) {
+			sink.start();
+		}
+		mStarted = true;
+	}
+
+	@Override
+	public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) throws IOException {
+		if (!mStarted) throw new IllegalStateException("not started");
+		// error of lossless sink should be reported like writing to the muxer directly
+		for (final Sink sink: mSinks) {
+			if ((sink.mPolicy == null) && (sink.mError != null)) {
+				throw sink.mError;
+			}
+		}
+		final SharedSample sample = obtain(bufferInfo.size);
+		// copy once, all sinks share this buffer
+		final ByteBuffer data = sample.mData;
+		data.clear();
+		final int limit = byteBuf.limit();
+		final int position = byteBuf.position();
+		byteBuf.limit(bufferInfo.offset + bufferInfo.size).position(bufferInfo.offset);
+		data.put(byteBuf);
+		byteBuf.limit(limit).position(position);
+		sample.mTrackIndex = trackIndex;
+		sample.mSize = bufferInfo.size;
+		sample.mPresentationTimeUs = bufferInfo.presentationTimeUs;
+		sample.mFlags = bufferInfo.flags;
+		// reference of producer, so that the sample is not recycled while distributing
+		sample.mRefCount.set(1);
+		final boolean isVideo = mIsVideoTrack.get(trackIndex);
+		for (final Sink sink: mSinks) {
+			sink.offer(sample, isVideo);
+		}
+		recycle(sample);
+	}
+
+	/**
+	 * wait until lossless sinks write all pending samples and stop sinks
+	 * lossy sink that is still writing after the timeout stops and releases its muxer by itself
+	 * @throws IOException error of lossless sink
+	 */
+	@Override
+	public void stop() throws IOException {
+		if (!mStarted) return;
+		mStarted = false;
+		for (final Sink sink: mSinks) {
+			sink.requestClose(false);
+		}
+		for (final Sink sink: mSinks) {
+			if (sink.mPolicy == null) {
+				sink.join(0);
+			} else {
+				sink.join(LOSSY_STOP_TIMEOUT_MS);
+				if (sink.mThread.isAlive()) {
+					// slow sink should not delay finishing the file
+					sink.requestClose(true);
+					sink.join(LOSSY_STOP_TIMEOUT_MS);
+				}
+			}
+		}
+		IOException error = null;
+		for (final Sink sink: mSinks) {
+			if (sink.abandon()) {
+				Log.w(TAG, "sink#" + sink.mIndex + " is still writing, it will stop and release by itself");
+				continue;
+			}
+			if (sink.mDetached) continue;
+			try {
+				sink.mMuxer.stop();
+			} catch (final IOException e) {
+				if ((sink.mPolicy == null) && (error == null)) error = e;
+				else Log.w(TAG, "failed to stop sink#" + sink.mIndex, e);
+			}
+		}
+		if (DEBUG) Log.v(TAG, "stop:" + toString());
+		for (final Sink sink: mSinks) {
+			if ((sink.mPolicy == null) && (sink.mError != null) && (error == null)) {
+				error = sink.mError;
+			}
+		}
+		if (error != null) throw error;
+	}
+
+	@Override
+	public void release() {
+		for (final Sink sink: mSinks) {
+			if ((sink.mThread != null) && sink.mThread.isAlive()) {
+				sink.requestClose(true);
+				sink.join(LOSSY_STOP_TIMEOUT_MS);
+			}
+			if (!sink.abandon()) {
+				sink.mMuxer.release();
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder("FanOutMuxerBackend{");
+		for (int i = 0; i < mSinks.size(); i++) {
+			if (i > 0) sb.append(',');
+			sb.append(mSinks.get(i));
+		}
+		return sb.append('}').toString();
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * get pooled sample that has enough capacity
+	 * @param size
+	 * @return
+	 */
+	private SharedSample obtain(final int size) {
+		SharedSample sample;
+		mPoolLock.lock();
+		try {
+			sample = mPool.pollFirst();
+		} finally {
+			mPoolLock.unlock();
+		}
+		if (sample == null) {
+			sample = new SharedSample();
+		}
+		if ((sample.mData == null) || (sample.mData.capacity() < size)) {
+			sample.mData = ByteBuffer.allocateDirect(Math.max(MIN_BUFFER_SIZE, Integer.highestOneBit(size - 1) << 1));
+			final int n = mSinks.size();
+			sample.mViews = new ByteBuffer[n];
+			for (int i = 0; i < n; i++) {
+				sample.mViews[i] = sample.mData.duplicate();
+			}
+		}
+		return sample;
+	}
+
+	/**
+	 * release one reference of the sample and return it to the pool if nobody refers it
+	 * @param sample
+	 */
+	private void recycle(final SharedSample sample) {
+		if (sample.mRefCount.decrementAndGet() == 0) {
+			mPoolLock.lock();
+			try {
+				mPool.addLast(sample);
+			} finally {
+				mPoolLock.unlock();
+			}
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package com.serenegiant.encoder;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: FragmentedMp4Backend.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+
+import com.serenegiant.muxer.FragmentedMp4Writer;
+import com.serenegiant.muxer.PreallocatedFileWriter;
+import com.serenegiant.muxer.TrackFormat;
+
+/**
+ * MuxerBackend implementation that writes fragmented MP4 with FragmentedMp4Writer
+ * instead of android.media.MediaMuxer
+ */
+public class FragmentedMp4Backend implements MuxerBackend {
+
+	/**
+	 * create factory of FragmentedMp4Backend
+	 * @param fragmentDurationMs minimum duration of each fragment
+	 * @return
+	 */
+	public static Factory factory(final long fragmentDurationMs) {
+		return factory(fragmentDurationMs, 0, false);
+	}
+
+	/**
+	 * create factory of FragmentedMp4Backend that preallocates output file
+	 * @param fragmentDurationMs minimum duration of each fragment
+	 * @param extentSize size of each allocation of output file, 0 means no preallocation
+	 * @param useMmap write through memory mapped window instead of FileChannel
+	 * @return
+	 */
+	public static Factory factory(final long fragmentDurationMs, final int extentSize, final boolean useMmap) {
+		return new Factory() {
+			@Override
+			public MuxerBackend createMuxer(final String outputPath) throws IOException {
+				return new FragmentedMp4Backend(outputPath, fragmentDurationMs, extentSize, useMmap);
+			}
+		};
+	}
+
+	/**
+	 * allocate blocks of output file with posix_fallocate so that writing does not wait for
+	 * block allocation of file system. Falls back to extending file size if not supported.
+	 */
+	public static final PreallocatedFileWriter.Allocator FALLOCATE = new PreallocatedFileWriter.Allocator() {
+		@Override
+		public void allocate(final RandomAccessFile file, final long offset, final long length) throws IOException {
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+				try {
+					Os.posix_fallocate(file.getFD(), offset, length);
+					return;
+				} catch (final ErrnoException e) {
+					// e.g. file system does not support it
+				}
+			}
+			PreallocatedFileWriter.SET_LENGTH.allocate(file, offset, length);
+		}
+	};
+
+	private final FragmentedMp4Writer mWriter;
+
+	public FragmentedMp4Backend(final String outputPath, final long fragmentDurationMs) throws IOException {
+		this(outputPath, fragmentDurationMs, 0, false);
+	}
+
+	public FragmentedMp4Backend(final String outputPath, final long fragmentDurationMs,
+		final int extentSize, final boolean useMmap) throws IOException {
+
+		mWriter = new FragmentedMp4Writer(outputPath, fragmentDurationMs * 1000L,
+			extentSize, useMmap, FALLOCATE);
+	}
+
+	@Override
+	public int addTrack(final MediaFormat format) {
+		return mWriter.addTrack(toTrackFormat(format));
+	}
+
+	@Override
+	public void start() throws IOException {
+		mWriter.start();
+	}
+
+	@Override
+	public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) throws IOException {
+		mWriter.writeSampleData(trackIndex, byteBuf, bufferInfo.offset, bufferInfo.size,
+			bufferInfo.presentationTimeUs, (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+	}
+
+	@Override
+	public void stop() throws IOException {
+		mWriter.stop();
+	}
+
+	@Override
+	public void release() {
+		mWriter.release();
+	}
+
+	/**
+	 * convert output format of codec
+	 * @param format
+	 * @return
+	 */
+	public static TrackFormat toTrackFormat(final MediaFormat format) {
+		final String mime = format.getString(MediaFormat.KEY_MIME);
+		final int bitrate = format.containsKey(MediaFormat.KEY_BIT_RATE)
+			? format.getInteger(MediaFormat.KEY_BIT_RATE) : 0;
+		final ByteBuffer csd0 = format.containsKey("csd-0") ? format.getByteBuffer("csd-0") : null;
+		if (mime.startsWith("video/")) {
+			final ByteBuffer csd1 = format.containsKey("csd-1") ? format.getByteBuffer("csd-1") : null;
+			return TrackFormat.video(mime, format.getInteger(MediaFormat.KEY_WIDTH),
+				format.getInteger(MediaFormat.KEY_HEIGHT), bitrate, csd0, csd1);
+		} else {
+			return TrackFormat.audio(mime, format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+				format.getInteger(MediaFormat.KEY_CHANNEL_COUNT), bitrate, csd0);
+		}
+	}
+}
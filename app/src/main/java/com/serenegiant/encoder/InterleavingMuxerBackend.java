@@ -0,0 +1,315 @@
+package com.serenegiant.encoder;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: InterleavingMuxerBackend.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+/**
+ * Reorder stage in front of MuxerBackend that writes samples of all tracks
+ * in presentation time order.
+ * Encoders write samples in the order their drain threads run, so the output file can have
+ * long runs of one track, that makes seeking and progressive playback slow.
+ * Samples are kept in per-track queues and the oldest sample is written once every other track
+ * has a newer(or same) sample, so nothing earlier can arrive anymore.
+ * The delay and the memory are bounded: when the newest queued sample is more than maxDelayUs
+ * ahead of the oldest one, or more than maxBytes are queued, the oldest sample is written
+ * without waiting for the other tracks(e.g. audio track stalled or not started yet).
+ * Buffers are reused, so this allocates only when a sample is larger than ever.
+ * Statistics of the achieved interleave are collected on written samples,
+ * so they can be compared with writing without reordering(maxDelayUs=0).
+ * All methods except getters should be called on the thread that writes samples
+ * (MediaMuxerWrapper serializes them).
+ */
+/*package*/ final class InterleavingMuxerBackend implements MuxerBackend {
+	private static final boolean DEBUG = false;	// TODO set false on release
+	private static final String TAG = "InterleavingMuxerBackend";
+
+	private static final int MIN_BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_TRACKS = 8;
+
+	private static final class Sample {
+		private ByteBuffer mData;
+		private int mSize;
+		private long mPresentationTimeUs;
+		private int mFlags;
+	}
+
+	private final MuxerBackend mOutput;
+	private final long mMaxDelayUs;
+	private final int mMaxBytes;
+	private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+	private final List<ArrayDeque<Sample>> mQueues = new ArrayList<ArrayDeque<Sample>>(MAX_TRACKS);
+	private final ArrayDeque<Sample> mFree = new ArrayDeque<Sample>();
+	private int mNumTracks;
+	private int mQueuedBytes;
+	private long mNewestPtsUs = Long.MIN_VALUE;
+	// statistics of written samples
+	private final long[] mLastWrittenPtsUs = new long[MAX_TRACKS];
+	private final boolean[] mWritten = new boolean[MAX_TRACKS];
+	private int mLastTrack = -1;
+	private int mRunLength;
+	/**
+	 * distance of presentation time between written sample and
+	 * the last written sample of the other tracks[usec]
+	 */
+	private final LatencyRecorder mDistance = new LatencyRecorder();
+	/**
+	 * number of consecutive samples of same track
+	 */
+	private final LatencyRecorder mRunLengths = new LatencyRecorder();
+	private volatile int mMaxQueuedBytes;
+	private volatile long mForcedSamples;
+	private volatile long mOutOfOrderSamples;
+
+	/**
+	 * @param output container writer, samples are written to it with same track index
+	 * @param numTracks number of tracks that were already added to the output,
+	 * samples are not written until every track has a sample or the window is exceeded
+	 * @param maxDelayUs maximum difference of presentation time between queued samples,
+	 * 0 disables reordering(only statistics are collected)
+	 * @param maxBytes maximum size of queued samples
+	 */
+	/*package*/ InterleavingMuxerBackend(final MuxerBackend output, final int numTracks,
+		final long maxDelayUs, final int maxBytes) {
+
+		mOutput = output;
+		mMaxDelayUs = Math.max(0, maxDelayUs);
+		mMaxBytes = Math.max(0, maxBytes);
+		ensureTracks(numTracks);
+	}
+
+	/**
+	 * distance of presentation time between each written sample and
+	 * the last written sample of the other tracks, smaller is better interleaved
+	 * @return
+	 */
+	public LatencyRecorder.Snapshot getInterleaveDistance() {
+		return mDistance.snapshot();
+	}
+
+	/**
+	 * number of consecutive samples of same track in the output
+	 * @return
+	 */
+	public LatencyRecorder.Snapshot getRunLength() {
+		return mRunLengths.snapshot();
+	}
+
+	/**
+	 * number of samples that were written without waiting for the other tracks
+	 * because of maxDelayUs or maxBytes
+	 * @return
+	 */
+	public long getForcedSamples() {
+		return mForcedSamples;
+	}
+
+	/**
+	 * number of samples that were written after a sample of another track with later presentation time
+	 * @return
+	 */
+	public long getOutOfOrderSamples() {
+		return mOutOfOrderSamples;
+	}
+
+	/**
+	 * maximum size of queued samples
+	 * @return
+	 */
+	public int getMaxQueuedBytes() {
+		return mMaxQueuedBytes;
+	}
+
+	@Override
+	public int addTrack(final MediaFormat format) {
+		final int trackIndex = mOutput.addTrack(format);
+		ensureTracks(trackIndex + 1);
+		return trackIndex;
+	}
+
+	@Override
+	public void start() throws IOException {
+		mOutput.start();
+	}
+
+	@Override
+	public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) throws IOException {
+		if ((trackIndex < 0) || (trackIndex >= MAX_TRACKS))
+			throw new IllegalArgumentException("invalid track index:" + trackIndex);
+		if (mMaxDelayUs <= 0) {
+			// no reordering
+			writeOutput(trackIndex, byteBuf, bufferInfo);
+			return;
+		}
+		ensureTracks(trackIndex + 1);
+		Sample sample = mFree.pollFirst();
+		if (sample == null) {
+			sample = new Sample();
+		}
+		final int size = bufferInfo.size;
+		if ((sample.mData == null) || (sample.mData.capacity() < size)) {
+			sample.mData = ByteBuffer.allocateDirect(Math.max(MIN_BUFFER_SIZE, Integer.highestOneBit(size - 1) << 1));
+		}
+		final ByteBuffer data = sample.mData;
+		data.clear();
+		byteBuf.limit(bufferInfo.offset + size);
+		byteBuf.position(bufferInfo.offset);
+		data.put(byteBuf);
+		data.flip();
+		sample.mSize = size;
+		sample.mPresentationTimeUs = bufferInfo.presentationTimeUs;
+		sample.mFlags = bufferInfo.flags;
+		mQueues.get(trackIndex).addLast(sample);
+		mQueuedBytes += size;
+		if (mQueuedBytes > mMaxQueuedBytes) {
+			mMaxQueuedBytes = mQueuedBytes;
+		}
+		if (bufferInfo.presentationTimeUs > mNewestPtsUs) {
+			mNewestPtsUs = bufferInfo.presentationTimeUs;
+		}
+		drain(false);
+	}
+
+	/**
+	 * write all queued samples in presentation time order and stop the output
+	 * @throws IOException
+	 */
+	@Override
+	public void stop() throws IOException {
+		drain(true);
+		if (mRunLength > 0) {
+			mRunLengths.record(mRunLength);
+			mRunLength = 0;
+		}
+		mOutput.stop();
+		if (DEBUG) Log.v(TAG, "stop:" + toString());
+	}
+
+	@Override
+	public void release() {
+		for (int i = 0; i < mNumTracks; i++) {
+			mQueues.get(i).clear();
+		}
+		mFree.clear();
+		mQueuedBytes = 0;
+		mOutput.release();
+	}
+
+	@Override
+	public String toString() {
+		final LatencyRecorder.Snapshot runLength = mRunLengths.snapshot();
+		return String.format(Locale.US,
+			"interleave distance(%s),run length(avg=%d,p99=%d,max=%d),forced=%d,outOfOrder=%d,maxQueued=%d bytes",
+			mDistance, runLength.average, runLength.p99, runLength.max,
+			mForcedSamples, mOutOfOrderSamples, mMaxQueuedBytes);
+	}
+
+//--------------------------------------------------------------------------------
+	private void ensureTracks(final int numTracks) {
+		if (numTracks > MAX_TRACKS)
+			throw new IllegalArgumentException("too many tracks:" + numTracks);
+		for (int i = mNumTracks; i < numTracks; i++) {
+			mQueues.add(new ArrayDeque<Sample>());
+		}
+		mNumTracks = Math.max(mNumTracks, numTracks);
+	}
+
+	/**
+	 * write queued samples while the oldest one can be written
+	 * @param flush write all queued samples
+	 * @throws IOException
+	 */
+	private void drain(final boolean flush) throws IOException {
+		for ( ; ; ) {
+			int oldest = -1;
+			long oldestPtsUs = Long.MAX_VALUE;
+			boolean complete = true;
+			for (int i = 0; i < mNumTracks; i++) {
+				final Sample head = mQueues.get(i).peekFirst();
+				if (head == null) {
+					complete = false;
+				} else if (head.mPresentationTimeUs < oldestPtsUs) {
+					oldest = i;
+					oldestPtsUs = head.mPresentationTimeUs;
+				}
+			}
+			if (oldest < 0) break;
+			if (!complete && !flush) {
+				// another track may still have earlier sample
+				if ((mNewestPtsUs - oldestPtsUs <= mMaxDelayUs) && (mQueuedBytes <= mMaxBytes)) {
+					break;
+				}
+				mForcedSamples++;
+			}
+			final Sample sample = mQueues.get(oldest).pollFirst();
+			mQueuedBytes -= sample.mSize;
+			mBufferInfo.set(0, sample.mSize, sample.mPresentationTimeUs, sample.mFlags);
+			try {
+				writeOutput(oldest, sample.mData, mBufferInfo);
+			} finally {
+				mFree.addLast(sample);
+			}
+		}
+	}
+
+	private void writeOutput(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) throws IOException {
+		final long ptsUs = bufferInfo.presentationTimeUs;
+		mOutput.writeSampleData(trackIndex, byteBuf, bufferInfo);
+		// update statistics
+		long distance = -1;
+		boolean outOfOrder = false;
+		for (int i = 0; i < MAX_TRACKS; i++) {
+			if ((i != trackIndex) && mWritten[i]) {
+				final long d = Math.abs(ptsUs - mLastWrittenPtsUs[i]);
+				if (d > distance) distance = d;
+				outOfOrder |= mLastWrittenPtsUs[i] > ptsUs;
+			}
+		}
+		if (distance >= 0) {
+			mDistance.record(distance);
+		}
+		if (outOfOrder) {
+			mOutOfOrderSamples++;
+		}
+		mWritten[trackIndex] = true;
+		mLastWrittenPtsUs[trackIndex] = ptsUs;
+		if (trackIndex == mLastTrack) {
+			mRunLength++;
+		} else {
+			if (mRunLength > 0) {
+				mRunLengths.record(mRunLength);
+			}
+			mLastTrack = trackIndex;
+			mRunLength = 1;
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package com.serenegiant.encoder;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: LatencyRecorder.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Simple latency accumulator with power-of-two histogram.
+ * record is expected to be called from single thread(encoder thread or codec callback thread)
+ * at a time and never allocates, values are in microseconds.
+ * Values can be read from any thread without locking(they may be slightly inconsistent with each other).
+ */
+public final class LatencyRecorder {
+	private static final int NUM_BUCKETS = 32;
+
+	/**
+	 * immutable copy of LatencyRecorder
+	 */
+	public static final class Snapshot {
+		public final long count;
+		public final long average;
+		public final long p50;
+		public final long p90;
+		public final long p99;
+		public final long max;
+
+		private Snapshot(final LatencyRecorder recorder) {
+			count = recorder.getCount();
+			average = recorder.getAverage();
+			p50 = recorder.getPercentile(50);
+			p90 = recorder.getPercentile(90);
+			p99 = recorder.getPercentile(99);
+			max = recorder.getMax();
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.US, "n=%d,avg=%d,p50=%d,p90=%d,p99=%d,max=%d[usec]",
+				count, average, p50, p90, p99, max);
+		}
+	}
+
+	// single writer, so lazySet is enough instead of CAS
+	private final AtomicLongArray mBuckets = new AtomicLongArray(NUM_BUCKETS);
+	private final AtomicLong mCount = new AtomicLong();
+	private final AtomicLong mSum = new AtomicLong();
+	private final AtomicLong mMax = new AtomicLong();
+
+	public void record(final long valueUs) {
+		final long v = valueUs > 0 ? valueUs : 0;
+		final int bucket = Math.min(NUM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(v));
+		mBuckets.lazySet(bucket, mBuckets.get(bucket) + 1);
+		mSum.lazySet(mSum.get() + v);
+		if (v > mMax.get()) mMax.lazySet(v);
+		mCount.lazySet(mCount.get() + 1);
+	}
+
+	public void reset() {
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			mBuckets.set(i, 0);
+		}
+		mSum.set(0);
+		mMax.set(0);
+		mCount.set(0);
+	}
+
+	public long getCount() {
+		return mCount.get();
+	}
+
+	public long getMax() {
+		return mMax.get();
+	}
+
+	public long getAverage() {
+		final long count = mCount.get();
+		return count > 0 ? mSum.get() / count : 0;
+	}
+
+	/**
+	 * get approximate percentile value
+	 * @param percentile 0-100
+	 * @return upper bound of histogram bucket that contains the percentile[usec]
+	 */
+	public long getPercentile(final double percentile) {
+		long count = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			count += mBuckets.get(i);
+		}
+		if (count <= 0) return 0;
+		final long max = mMax.get();
+		final long target = (long)Math.ceil(count * percentile / 100.0);
+		long accum = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			accum += mBuckets.get(i);
+			if (accum >= target) {
+				return Math.min(i == 0 ? 0 : (1L << i) - 1, max);
+			}
+		}
+		return max;
+	}
+
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	@Override
+	public String toString() {
+		return snapshot().toString();
+	}
+}
@@ -25,29 +25,48 @@ package com.serenegiant.encoder;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
+import android.annotation.TargetApi;
 import android.media.AudioFormat;
 import android.media.AudioRecord;
-import android.media.MediaCodec;
+import android.media.AudioTimestamp;
 import android.media.MediaCodecInfo;
 import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.media.MediaRecorder;
+import android.os.Build;
 import android.util.Log;
 
 public class MediaAudioEncoder extends MediaEncoder {
 	private static final boolean DEBUG = false;	// TODO set false on release
 	private static final String TAG = "MediaAudioEncoder";
 
-	private static final String MIME_TYPE = "audio/mp4a-latm";
+	public static final String MIME_TYPE = "audio/mp4a-latm";
     private static final int SAMPLE_RATE = 44100;	// 44.1[KHz] is only setting guaranteed to be available on all devices.
-    private static final int BIT_RATE = 64000;
+    public static final int BIT_RATE = 64000;
 	public static final int SAMPLES_PER_FRAME = 1024;	// AAC, bytes/frame/channel
 	public static final int FRAMES_PER_BUFFER = 25; 	// AAC, frame/buffer/sec
+	private static final int BYTES_PER_SAMPLE = 2;		// 16bit PCM, mono
+	private static final int SAMPLES_PER_ACCESS_UNIT = 1024;	// AAC encodes 1024 samples into one access unit
+	/**
+	 * number of PCM frames between capturing and encoding, about 0.7 seconds
+	 */
+	private static final int RING_FRAMES = 64;
 
-    private AudioThread mAudioThread = null;
+    private volatile AudioThread mAudioThread = null;
+    /**
+     * PCM frames that AudioThread captured, #feedInput passes them to the codec
+     */
+    private volatile PcmRingBuffer mRing;
 
 	public MediaAudioEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener) {
 		super(muxer, listener);
+		// each PCM frame has SAMPLES_PER_FRAME bytes
+		setInputFramesPerSample(SAMPLES_PER_ACCESS_UNIT * BYTES_PER_SAMPLE / SAMPLES_PER_FRAME);
+	}
+
+	@Override
+	/*package*/ boolean isAudioEncoder() {
+		return true;
 	}
 
 	@Override
@@ -56,24 +75,24 @@ public class MediaAudioEncoder extends MediaEncoder {
         mTrackIndex = -1;
         mMuxerStarted = mIsEOS = false;
         // prepare MediaCodec for AAC encoding of audio data from inernal mic.
-        final MediaCodecInfo audioCodecInfo = selectAudioCodec(MIME_TYPE);
-        if (audioCodecInfo == null) {
+        final CodecCapabilityCache.Entry audioCodec = CodecCapabilityCache.get(MIME_TYPE, AUDIO_CODEC_LOADER);
+        if (audioCodec == null) {
             Log.e(TAG, "Unable to find an appropriate codec for " + MIME_TYPE);
             return;
         }
-		if (DEBUG) Log.i(TAG, "selected codec: " + audioCodecInfo.getName());
+		if (DEBUG) Log.i(TAG, "selected codec: " + audioCodec);
 
         final MediaFormat audioFormat = MediaFormat.createAudioFormat(MIME_TYPE, SAMPLE_RATE, 1);
 		audioFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
 		audioFormat.setInteger(MediaFormat.KEY_CHANNEL_MASK, AudioFormat.CHANNEL_IN_MONO);
-		audioFormat.setInteger(MediaFormat.KEY_BIT_RATE, BIT_RATE);
+		audioFormat.setInteger(MediaFormat.KEY_BIT_RATE, audioCodec.clampBitrate(BIT_RATE));
 		audioFormat.setInteger(MediaFormat.KEY_CHANNEL_COUNT, 1);
 //		audioFormat.setLong(MediaFormat.KEY_MAX_INPUT_SIZE, inputFile.length());
 //      audioFormat.setLong(MediaFormat.KEY_DURATION, (long)durationInMs );
 		if (DEBUG) Log.i(TAG, "format: " + audioFormat);
-        mMediaCodec = MediaCodec.createEncoderByType(MIME_TYPE);
-        mMediaCodec.configure(audioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        mMediaCodec.start();
+        mCodec = createBackend(MIME_TYPE, MediaCodecBackend.FACTORY);
+        configureCodec(audioFormat);
+        mCodec.start();
         if (DEBUG) Log.i(TAG, "prepare finishing");
         if (mListener != null) {
         	try {
@@ -89,6 +108,7 @@ public class MediaAudioEncoder extends MediaEncoder {
 		super.startRecording();
 		// create and execute audio capturing thread using internal mic
 		if (mAudioThread == null) {
+			mRing = new PcmRingBuffer(SAMPLES_PER_FRAME, RING_FRAMES);
 	        mAudioThread = new AudioThread();
 			mAudioThread.start();
 		}
@@ -97,9 +117,32 @@ public class MediaAudioEncoder extends MediaEncoder {
 	@Override
     protected void release() {
 		mAudioThread = null;
+		mRing = null;
 		super.release();
     }
 
+	/**
+	 * pass PCM frames in the ring to the codec while it has free input buffer,
+	 * this runs on the encoder thread or EncoderScheduler, so capturing never waits for the codec
+	 * and EOS is sent after AudioThread closed the ring and all frames in it were encoded
+	 */
+	@Override
+	protected boolean feedInput() {
+		final PcmRingBuffer ring = mRing;
+		if (ring == null) return true;
+		for ( ; ; ) {
+			// frames committed before closing are visible after reading the flag
+			final boolean closed = ring.isClosed();
+			final ByteBuffer buf = ring.poll();
+			if (buf == null) return closed;
+			if (!tryEncode(buf, ring.getSize(), ring.getPresentationTimeUs())) {
+				// the frame stays in the ring until the codec has free input buffer
+				return false;
+			}
+			ring.release();
+		}
+	}
+
 	private static final int[] AUDIO_SOURCES = new int[] {
 		MediaRecorder.AudioSource.MIC,
 		MediaRecorder.AudioSource.DEFAULT,
@@ -110,12 +153,14 @@ public class MediaAudioEncoder extends MediaEncoder {
 
 	/**
 	 * Thread to capture audio data from internal mic as uncompressed 16bit PCM data
-	 * and write them to the MediaCodec encoder
+	 * and write them into PcmRingBuffer, the encoder thread passes them to the MediaCodec encoder,
+	 * so that this thread keeps reading the mic while the encoder is waiting for input buffer
 	 */
     private class AudioThread extends Thread {
     	@Override
     	public void run() {
     		android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
+    		final PcmRingBuffer ring = mRing;
     		int cnt = 0;
     		try {
 				final int min_buffer_size = AudioRecord.getMinBufferSize(
@@ -142,27 +187,45 @@ public class MediaAudioEncoder extends MediaEncoder {
 		            try {
 						if (mIsCapturing) {
 		    				if (DEBUG) Log.v(TAG, "AudioThread:start audio recording");
-							final ByteBuffer buf = ByteBuffer.allocateDirect(SAMPLES_PER_FRAME);
-			                int readBytes;
+							// frames are read into this when the ring is full to keep reading the mic
+							final ByteBuffer scratch = ByteBuffer.allocateDirect(SAMPLES_PER_FRAME);
+							final AudioTimestamp timestamp
+								= Build.VERSION.SDK_INT >= Build.VERSION_CODES.N ? new AudioTimestamp() : null;
+			                int readBytes, frames;
+			                long framePosition = 0;
+			                mClock.setAudioSampleRate(SAMPLE_RATE);
 			                audioRecord.startRecording();
 			                try {
 					    		for (; mIsCapturing && !mRequestStop && !mIsEOS ;) {
-					    			// read audio data from internal mic
-									buf.clear();
+					    			// read audio data from internal mic into the ring
+					    			ByteBuffer buf = ring.beginWrite();
+					    			final boolean dropped = buf == null;
+					    			if (dropped) {
+					    				// encoder is too far behind, this frame is discarded(counted as overrun)
+					    				buf = scratch;
+					    				buf.clear();
+					    			}
 					    			readBytes = audioRecord.read(buf, SAMPLES_PER_FRAME);
 					    			if (readBytes > 0) {
-					    			    // set audio data to encoder
-										buf.position(readBytes);
-										buf.flip();
-					    				encode(buf, readBytes, getPTSUs());
-					    				frameAvailableSoon();
+										// presentation time is derived from number of samples read from AudioRecord
+										frames = readBytes / BYTES_PER_SAMPLE;
+										final long ptsUs = mClock.audioPresentationTimeUs(framePosition,
+											captureTimeNs(audioRecord, timestamp, framePosition, frames));
+										framePosition += frames;
+										if (!dropped) {
+											ring.commitWrite(readBytes, ptsUs);
+											frameAvailableSoon();
+										}
 					    				cnt++;
 					    			}
 					    		}
-			    				frameAvailableSoon();
 			                } finally {
 			                	audioRecord.stop();
 			                }
+			                if (DEBUG || (ring.getOverruns() > 0)) {
+			                	Log.i(TAG, "AudioThread:overruns=" + ring.getOverruns()
+			                		+ ",maxFill=" + ring.getMaxFill());
+			                }
 		            	}
 		            } finally {
 		            	audioRecord.release();
@@ -174,15 +237,15 @@ public class MediaAudioEncoder extends MediaEncoder {
     			Log.e(TAG, "AudioThread#run", e);
     		}
 			if (cnt == 0) {
-				final ByteBuffer buf = ByteBuffer.allocateDirect(SAMPLES_PER_FRAME);
-				for (int i = 0; mIsCapturing && (i < 5); i++) {
-					buf.position(SAMPLES_PER_FRAME);
-					buf.flip();
-					try {
-						encode(buf, SAMPLES_PER_FRAME, getPTSUs());
+				for (int i = 0; mIsCapturing && !mIsEOS && (i < 5); i++) {
+					final ByteBuffer buf = ring.beginWrite();
+					if (buf != null) {
+						// silent frame
+						for (int j = 0; j < SAMPLES_PER_FRAME; j++) {
+							buf.put(j, (byte)0);
+						}
+						ring.commitWrite(SAMPLES_PER_FRAME, getPTSUs());
 						frameAvailableSoon();
-					} catch (final Exception e) {
-						break;
 					}
 					synchronized(this) {
 						try {
@@ -192,10 +255,47 @@ public class MediaAudioEncoder extends MediaEncoder {
 					}
 				}
 			}
+			// encoder sends EOS after all frames in the ring were encoded
+			ring.close();
 			if (DEBUG) Log.v(TAG, "AudioThread:finished");
     	}
     }
 
+	/**
+	 * estimate capture time of the first frame of the buffer that was read just now
+	 * @param audioRecord
+	 * @param timestamp null if AudioRecord#getTimestamp is not available
+	 * @param framePosition number of frames read before the buffer
+	 * @param frames number of frames in the buffer
+	 * @return capture time in System#nanoTime base
+	 */
+	private static long captureTimeNs(final AudioRecord audioRecord, final AudioTimestamp timestamp,
+		final long framePosition, final int frames) {
+
+		if ((timestamp != null) && getTimestamp(audioRecord, timestamp)) {
+			return timestamp.nanoTime
+				+ (framePosition - timestamp.framePosition) * 1000000000L / SAMPLE_RATE;
+		}
+		// the last frame of the buffer was captured just before AudioRecord#read returned
+		return System.nanoTime() - frames * 1000000000L / SAMPLE_RATE;
+	}
+
+	@TargetApi(Build.VERSION_CODES.N)
+	private static boolean getTimestamp(final AudioRecord audioRecord, final AudioTimestamp timestamp) {
+		return audioRecord.getTimestamp(timestamp, AudioTimestamp.TIMEBASE_MONOTONIC) == AudioRecord.SUCCESS;
+	}
+
+	/**
+	 * walk MediaCodecList only when CodecCapabilityCache does not have the result
+	 */
+	private static final CodecCapabilityCache.Loader AUDIO_CODEC_LOADER = new CodecCapabilityCache.Loader() {
+		@Override
+		public CodecCapabilityCache.Entry load(final String mimeType) {
+			final MediaCodecInfo codecInfo = selectAudioCodec(mimeType);
+			return codecInfo != null ? CodecCapabilityCache.Entry.create(codecInfo, mimeType, 0) : null;
+		}
+	};
+
     /**
      * select the first codec that match a specific MIME type
      * @param mimeType
@@ -0,0 +1,222 @@
+package com.serenegiant.encoder;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: MediaClock.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * Shared clock of one recording, owned by MediaMuxerWrapper.
+ * All presentationTimeUs that pass through codecs are microseconds since #start,
+ * converted from capture time of each frame instead of the time when it is drained.
+ * - video: SurfaceTexture#getTimestamp of the camera frame
+ * - audio: number of PCM frames read from AudioRecord, anchored to monotonic clock
+ * so audio and video share same time base and encoder scheduling jitter does not affect PTS.
+ * Drift between audio sample clock and monotonic clock is also tracked.
+ */
+public final class MediaClock {
+	private static final boolean DEBUG = false;	// TODO set false on release
+	private static final String TAG = "MediaClock";
+
+	/**
+	 * re-anchor audio clock when its drift exceeds this value,
+	 * this usually means AudioRecord overrun(lost samples)
+	 */
+	private static final long AUDIO_RESYNC_THRESHOLD_US = 100000;	// 100[msec]
+	/**
+	 * video timestamp that differs from System#nanoTime more than this
+	 * is treated as different time base(e.g. CLOCK_BOOTTIME)
+	 */
+	private static final long VIDEO_TIMEBASE_THRESHOLD_NS = 1000000000L;	// 1[sec]
+
+	/**
+	 * immutable copy of drift statistics
+	 */
+	public static final class Snapshot {
+		/**
+		 * absolute drift of audio sample clock against monotonic clock[usec]
+		 */
+		public final LatencyRecorder.Snapshot audioDrift;
+		/**
+		 * last signed drift, positive means audio samples come later than expected[usec]
+		 */
+		public final long lastAudioDriftUs;
+		/**
+		 * number of re-anchoring of audio clock
+		 */
+		public final long audioResyncCount;
+		/**
+		 * delay from capturing video frame until it is passed to encoder[usec]
+		 */
+		public final LatencyRecorder.Snapshot videoDelay;
+		/**
+		 * offset added to video timestamps to convert them into monotonic clock[nsec]
+		 */
+		public final long videoOffsetNs;
+
+		private Snapshot(final MediaClock clock) {
+			audioDrift = clock.mAudioDrift.snapshot();
+			lastAudioDriftUs = clock.mLastAudioDriftUs.get();
+			audioResyncCount = clock.mAudioResyncCount.get();
+			videoDelay = clock.mVideoDelay.snapshot();
+			videoOffsetNs = clock.mVideoOffsetNs;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.US,
+				"audioDrift{%s},lastAudioDrift=%d[usec],resync=%d,videoDelay{%s},videoOffset=%d[nsec]",
+				audioDrift, lastAudioDriftUs, audioResyncCount, videoDelay, videoOffsetNs);
+		}
+	}
+
+	private volatile long mBaseNs;
+	// video, updated only from the thread that passes frames to video encoder
+	private volatile long mVideoOffsetNs;
+	private boolean mHasVideoOffset;
+	private final LatencyRecorder mVideoDelay = new LatencyRecorder();
+	// audio, updated only from audio capturing thread
+	private int mSampleRate;
+	private long mAudioAnchorNs = -1;
+	private long mAudioAnchorFrames;
+	private final LatencyRecorder mAudioDrift = new LatencyRecorder();
+	private final AtomicLong mLastAudioDriftUs = new AtomicLong();
+	private final AtomicLong mAudioResyncCount = new AtomicLong();
+
+	public MediaClock() {
+		mBaseNs = System.nanoTime();
+	}
+
+	/**
+	 * (re)start the clock, all presentation time is relative to this time
+	 */
+	public void start() {
+		mBaseNs = System.nanoTime();
+		mHasVideoOffset = false;
+		mVideoOffsetNs = 0;
+		mAudioAnchorNs = -1;
+		mVideoDelay.reset();
+		mAudioDrift.reset();
+		mLastAudioDriftUs.set(0);
+		mAudioResyncCount.set(0);
+	}
+
+	/**
+	 * current time of this clock
+	 * @return elapsed time since #start[usec]
+	 */
+	public long nowUs() {
+		return (System.nanoTime() - mBaseNs) / 1000L;
+	}
+
+	/**
+	 * convert time in System#nanoTime base to presentation time
+	 * @param timeNs
+	 * @return presentation time[usec], never negative. time before #start is stamped as 0,
+	 * so 0 is a valid presentation time of the first frame
+	 */
+	public long toPresentationTimeUs(final long timeNs) {
+		final long result = (timeNs - mBaseNs) / 1000L;
+		return result > 0 ? result : 0;
+	}
+
+	/**
+	 * convert capture timestamp of video frame to presentation time.
+	 * SurfaceTexture#getTimestamp is usually CLOCK_MONOTONIC(same as System#nanoTime)
+	 * but some devices use other time base, so the offset is estimated with first frame.
+	 * @param timestampNs SurfaceTexture#getTimestamp, 0 or negative means unknown
+	 * @return presentation time[usec]
+	 */
+	public long videoPresentationTimeUs(final long timestampNs) {
+		final long nowNs = System.nanoTime();
+		if (timestampNs <= 0) {
+			return toPresentationTimeUs(nowNs);
+		}
+		if (!mHasVideoOffset) {
+			mHasVideoOffset = true;
+			final long diff = nowNs - timestampNs;
+			mVideoOffsetNs = Math.abs(diff) > VIDEO_TIMEBASE_THRESHOLD_NS ? diff : 0;
+			if (DEBUG) Log.v(TAG, "videoPresentationTimeUs:offset=" + mVideoOffsetNs);
+		}
+		final long captureNs = timestampNs + mVideoOffsetNs;
+		mVideoDelay.record((nowNs - captureNs) / 1000L);
+		return toPresentationTimeUs(captureNs);
+	}
+
+	/**
+	 * set sample rate of audio and reset audio sample clock,
+	 * this should be called before starting audio capturing
+	 * @param sampleRate
+	 */
+	public void setAudioSampleRate(final int sampleRate) {
+		if (sampleRate <= 0) throw new IllegalArgumentException("invalid sample rate:" + sampleRate);
+		mSampleRate = sampleRate;
+		mAudioAnchorNs = -1;
+	}
+
+	/**
+	 * calculate presentation time of audio from the number of PCM frames(samples per channel).
+	 * PTS advances exactly with sample count, and observed capture time is only used
+	 * to anchor the clock and to measure drift.
+	 * @param framePosition number of frames that were read before the first frame of this buffer
+	 * @param observedNs capture time of the first frame of this buffer in System#nanoTime base
+	 * @return presentation time[usec]
+	 */
+	public long audioPresentationTimeUs(final long framePosition, final long observedNs) {
+		if (mSampleRate <= 0) throw new IllegalStateException("sample rate is not set");
+		if (mAudioAnchorNs < 0) {
+			anchorAudio(framePosition, observedNs);
+		}
+		long captureNs = audioFramesToNs(framePosition);
+		final long driftUs = (observedNs - captureNs) / 1000L;
+		if (Math.abs(driftUs) > AUDIO_RESYNC_THRESHOLD_US) {
+			Log.w(TAG, "audio clock drift too large, resync:" + driftUs + "[usec]");
+			anchorAudio(framePosition, observedNs);
+			mAudioResyncCount.incrementAndGet();
+			captureNs = observedNs;
+		}
+		mAudioDrift.record(Math.abs(driftUs));
+		mLastAudioDriftUs.lazySet(driftUs);
+		return toPresentationTimeUs(captureNs);
+	}
+
+	private void anchorAudio(final long framePosition, final long observedNs) {
+		mAudioAnchorNs = observedNs;
+		mAudioAnchorFrames = framePosition;
+	}
+
+	private long audioFramesToNs(final long framePosition) {
+		return mAudioAnchorNs + (framePosition - mAudioAnchorFrames) * 1000000000L / mSampleRate;
+	}
+
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	@Override
+	public String toString() {
+		return snapshot().toString();
+	}
+}
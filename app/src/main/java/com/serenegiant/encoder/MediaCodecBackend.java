@@ -0,0 +1,301 @@
+package com.serenegiant.encoder;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: MediaCodecBackend.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Surface;
+
+/**
+ * EncoderBackend implementation that wraps android.media.MediaCodec
+ */
+public class MediaCodecBackend implements EncoderBackend {
+	private static final boolean DEBUG = false;	// TODO set false on release
+	private static final String TAG = "MediaCodecBackend";
+
+	public static final Factory FACTORY = new Factory() {
+		@Override
+		public EncoderBackend createEncoder(final String mimeType) throws IOException {
+			return createEncoderByType(mimeType);
+		}
+	};
+
+	/**
+	 * create encoder that CodecCapabilityCache selected for the MIME type,
+	 * or the default encoder when the cache does not have it
+	 * @param mimeType
+	 * @return
+	 * @throws IOException
+	 */
+	public static MediaCodecBackend createEncoderByType(final String mimeType) throws IOException {
+		final CodecCapabilityCache.Entry entry = CodecCapabilityCache.peek(mimeType);
+		if (entry != null) {
+			try {
+				return new MediaCodecBackend(MediaCodec.createByCodecName(entry.codecName));
+			} catch (final Exception e) {
+				Log.w(TAG, "failed to create " + entry.codecName + ", fallback to default encoder", e);
+			}
+		}
+		return new MediaCodecBackend(MediaCodec.createEncoderByType(mimeType));
+	}
+
+	private final MediaCodec mMediaCodec;	// API >= 16(Android4.1.2)
+	/**
+	 * cached input/output buffers for synchronous mode(API < 21 compatible way)
+	 */
+	private ByteBuffer[] mInputBuffers, mOutputBuffers;
+	/**
+	 * private thread to receive MediaCodec.Callback events
+	 */
+	private HandlerThread mCallbackThread;
+	/**
+	 * input Surface that is kept while this backend lives(API >= 23)
+	 */
+	private Surface mPersistentSurface;
+	/**
+	 * whether mPersistentSurface was set to the codec after last #configure
+	 */
+	private boolean mSurfaceConfigured;
+
+	protected MediaCodecBackend(final MediaCodec codec) {
+		mMediaCodec = codec;
+	}
+
+	public MediaCodec getMediaCodec() {
+		return mMediaCodec;
+	}
+
+	@Override
+	public String getName() {
+		return mMediaCodec.getName();
+	}
+
+	@Override
+	public boolean isCallbackSupported() {
+		// MediaCodec#setCallback with Handler is API >= 23
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+	}
+
+	@Override
+	public void configure(final MediaFormat format, final Callback callback) throws IOException {
+		if (callback != null) {
+			if (!isCallbackSupported())
+				throw new UnsupportedOperationException("callback mode needs API >= 23");
+			if (mCallbackThread == null) {
+				mCallbackThread = new HandlerThread(TAG);
+				mCallbackThread.start();
+			}
+			setCallback(callback, new Handler(mCallbackThread.getLooper()));
+		}
+		mMediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+		mSurfaceConfigured = false;
+		if (mPersistentSurface != null) {
+			// configured again for reuse(e.g. by EncoderPool), keep same input Surface
+			setInputSurface();
+		}
+	}
+
+	@TargetApi(Build.VERSION_CODES.M)
+	private void setInputSurface() {
+		mMediaCodec.setInputSurface(mPersistentSurface);
+		mSurfaceConfigured = true;
+	}
+
+	@TargetApi(Build.VERSION_CODES.M)
+	private void setCallback(final Callback callback, final Handler handler) {
+		mMediaCodec.setCallback(new MediaCodec.Callback() {
+			@Override
+			public void onInputBufferAvailable(final MediaCodec codec, final int index) {
+				callback.onInputBufferAvailable(index);
+			}
+
+			@Override
+			public void onOutputBufferAvailable(final MediaCodec codec, final int index, final MediaCodec.BufferInfo info) {
+				callback.onOutputBufferAvailable(index, info);
+			}
+
+			@Override
+			public void onError(final MediaCodec codec, final MediaCodec.CodecException e) {
+				callback.onError(e);
+			}
+
+			@Override
+			public void onOutputFormatChanged(final MediaCodec codec, final MediaFormat format) {
+				callback.onOutputFormatChanged(format);
+			}
+		}, handler);
+	}
+
+	/**
+	 * get Surface for encoder input
+	 * this method only can call between #configure and #start.
+	 * On API >= 23, this backend creates persistent input Surface once and sets it again
+	 * on each #configure, so the Surface is reused while this backend is kept in EncoderPool
+	 * and it is released with this backend. Caller should not release the Surface
+	 * when #isInputSurfaceOwner returns true.
+	 * @return
+	 */
+	public Surface createInputSurface() {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+			if (mPersistentSurface == null) {
+				mPersistentSurface = createPersistentInputSurface();
+			}
+			if (!mSurfaceConfigured) {
+				setInputSurface();
+			}
+			return mPersistentSurface;
+		}
+		return mMediaCodec.createInputSurface();	// API >= 18
+	}
+
+	/**
+	 * whether the Surface that #createInputSurface returned is released by this backend
+	 * @return
+	 */
+	public boolean isInputSurfaceOwner() {
+		return mPersistentSurface != null;
+	}
+
+	@TargetApi(Build.VERSION_CODES.M)
+	private static Surface createPersistentInputSurface() {
+		return MediaCodec.createPersistentInputSurface();
+	}
+
+	@Override
+	public void start() {
+		mMediaCodec.start();
+		mInputBuffers = mOutputBuffers = null;
+	}
+
+	@Override
+	public void stop() {
+		mMediaCodec.stop();
+	}
+
+	@Override
+	public void release() {
+		if (DEBUG) Log.v(TAG, "release:");
+		mMediaCodec.release();
+		mInputBuffers = mOutputBuffers = null;
+		if (mPersistentSurface != null) {
+			mPersistentSurface.release();
+			mPersistentSurface = null;
+		}
+		if (mCallbackThread != null) {
+			mCallbackThread.quitSafely();
+			mCallbackThread = null;
+		}
+	}
+
+	@Override
+	public int dequeueInputBuffer(final long timeoutUs) {
+		return mMediaCodec.dequeueInputBuffer(timeoutUs);
+	}
+
+	@Override
+	public ByteBuffer getInputBuffer(final int index) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+			return mMediaCodec.getInputBuffer(index);
+		}
+		if (mInputBuffers == null) {
+			mInputBuffers = mMediaCodec.getInputBuffers();
+		}
+		return mInputBuffers[index];
+	}
+
+	@Override
+	public void queueInputBuffer(final int index, final int offset, final int size,
+		final long presentationTimeUs, final int flags) {
+
+		mMediaCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+	}
+
+	@Override
+	public void signalEndOfInputStream() {
+		mMediaCodec.signalEndOfInputStream();	// API >= 18
+	}
+
+	@Override
+	public int dequeueOutputBuffer(final MediaCodec.BufferInfo info, final long timeoutUs) {
+		final int result = mMediaCodec.dequeueOutputBuffer(info, timeoutUs);
+		if (result == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+			mOutputBuffers = null;
+		}
+		return result;
+	}
+
+	@Override
+	public ByteBuffer getOutputBuffer(final int index) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+			return mMediaCodec.getOutputBuffer(index);
+		}
+		if (mOutputBuffers == null) {
+			mOutputBuffers = mMediaCodec.getOutputBuffers();
+		}
+		return mOutputBuffers[index];
+	}
+
+	@Override
+	public void releaseOutputBuffer(final int index) {
+		mMediaCodec.releaseOutputBuffer(index, false);
+	}
+
+	@Override
+	public void setVideoBitrate(final int bitrate) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+			setParameters(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+		} else {
+			if (DEBUG) Log.w(TAG, "setVideoBitrate:not supported on API < 19");
+		}
+	}
+
+	@Override
+	public void requestSyncFrame() {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+			setParameters(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+		} else {
+			if (DEBUG) Log.w(TAG, "requestSyncFrame:not supported on API < 19");
+		}
+	}
+
+	@TargetApi(Build.VERSION_CODES.KITKAT)
+	private void setParameters(final String key, final int value) {
+		final Bundle params = new Bundle();
+		params.putInt(key, value);
+		mMediaCodec.setParameters(params);	// API >= 19
+	}
+
+	@Override
+	public MediaFormat getOutputFormat() {
+		return mMediaCodec.getOutputFormat();	// API >= 16
+	}
+}
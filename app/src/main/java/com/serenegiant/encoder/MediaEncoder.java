@@ -25,6 +25,11 @@ package com.serenegiant.encoder;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 import android.media.MediaCodec;
 import android.media.MediaFormat;
@@ -35,9 +40,33 @@ public abstract class MediaEncoder implements Runnable {
 	private static final String TAG = "MediaEncoder";
 
 	protected static final int TIMEOUT_USEC = 10000;	// 10[msec]
+	/**
+	 * first interval of polling codec output when running on EncoderScheduler,
+	 * the interval doubles on each polling without output
+	 */
+	private static final long SCHEDULED_POLL_INTERVAL_NS = 1000000L;	// 1[msec]
+	/**
+	 * number of polling without output before waiting for next drain request,
+	 * 1+2+4+8+16+32 = 63msec, close to drain on private thread(50msec)
+	 */
+	private static final int SCHEDULED_POLL_COUNT = 6;
+	/**
+	 * maximum time for sending EOS and receiving it from the codec when stopping
+	 */
+	private static final long STOP_TIMEOUT_NS = 1000000000L;	// 1[sec]
 	protected static final int MSG_FRAME_AVAILABLE = 1;
 	protected static final int MSG_STOP_RECORDING = 9;
 
+	/**
+	 * drain mode: poll MediaCodec#dequeueOutputBuffer on encoder thread(default)
+	 */
+	public static final int DRAIN_MODE_POLLING = 0;
+	/**
+	 * drain mode: codec pushes output buffers via EncoderBackend.Callback
+	 * (MediaCodec.Callback, API >= 23) and write them to muxer as soon as they are available
+	 */
+	public static final int DRAIN_MODE_CALLBACK = 1;
+
 	public interface MediaEncoderListener {
 		public void onPrepared(MediaEncoder encoder);
 		public void onStopped(MediaEncoder encoder);
@@ -49,9 +78,18 @@ public abstract class MediaEncoder implements Runnable {
 	 */
     protected volatile boolean mIsCapturing;
 	/**
-	 * Flag that indicate the frame data will be available soon.
+	 * Number of drain requests since the encoder thread checked last time.
+	 * Producers(frameAvailableSoon) only increment this and never take mSync.
+	 */
+	private final AtomicInteger mRequestDrain = new AtomicInteger();
+	/**
+	 * encoder thread, producers unpark this when it is waiting for drain request
+	 */
+	private volatile Thread mEncoderThread;
+	/**
+	 * Flag that indicate the encoder thread is going to park/parked
 	 */
-	private int mRequestDrain;
+	private volatile boolean mIsWaiting;
     /**
      * Flag to request stop capturing
      */
@@ -69,38 +107,207 @@ public abstract class MediaEncoder implements Runnable {
      */
     protected int mTrackIndex;
     /**
-     * MediaCodec instance for encoding
+     * codec instance for encoding, usually MediaCodecBackend
      */
-    protected MediaCodec mMediaCodec;				// API >= 16(Android4.1.2)
+    protected EncoderBackend mCodec;
+    /**
+     * factory to create codec, null means default(MediaCodecBackend)
+     */
+    private EncoderBackend.Factory mBackendFactory;
     /**
      * Weak refarence of MediaMuxerWarapper instance
      */
     protected final WeakReference<MediaMuxerWrapper> mWeakMuxer;
+    /**
+     * shared clock of the muxer, all presentationTimeUs are based on this
+     */
+    protected final MediaClock mClock;
     /**
      * BufferInfo instance for dequeuing
      */
     private MediaCodec.BufferInfo mBufferInfo;		// API >= 16(Android4.1.2)
 
     protected final MediaEncoderListener mListener;
+    /**
+     * requested drain mode, DRAIN_MODE_POLLING or DRAIN_MODE_CALLBACK
+     */
+    private int mDrainMode = DRAIN_MODE_POLLING;
+    /**
+     * true when the codec is configured with EncoderBackend.Callback
+     */
+    private boolean mIsCallbackMode;
+    /**
+     * input buffer indices that codec passed with Callback#onInputBufferAvailable
+     */
+    private final LinkedBlockingQueue<Integer> mInputIndices = new LinkedBlockingQueue<Integer>();
+    /**
+     * latency/throughput counters, only updated while enabled
+     */
+    private final EncoderMetrics mMetrics = new EncoderMetrics(getClass().getSimpleName());
+    /**
+     * what #encode does when codec has no input buffer, null means waiting while capturing
+     */
+    private volatile BackpressurePolicy mBackpressure;
+    /**
+     * frames that are waiting for free input buffer with LATEST_WINS/BOUNDED policy
+     * and recycled ones, only accessed from the thread that calls #encode
+     */
+    private final ArrayDeque<PendingFrame> mPendingFrames = new ArrayDeque<PendingFrame>();
+    private final ArrayDeque<PendingFrame> mFreeFrames = new ArrayDeque<PendingFrame>();
+    /**
+     * shared scheduler of the muxer, null means this encoder has its own thread
+     */
+    private final EncoderScheduler mScheduler;
+    /**
+     * drain/stop work on mScheduler, null when this encoder has its own thread
+     */
+    private final EncoderScheduler.Task mScheduledTask;
+    /**
+     * number of continuous polling on mScheduler that got no output
+     */
+    private int mScheduledPollCount;
+    /**
+     * Flag that indicate the encoder released on mScheduler
+     */
+    private boolean mScheduledReleased;
+    /**
+     * time limit of stopping on mScheduler, 0 means stopping is not started yet
+     */
+    private long mScheduledStopLimitNs;
 
     public MediaEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener) {
     	if (listener == null) throw new NullPointerException("MediaEncoderListener is null");
     	if (muxer == null) throw new NullPointerException("MediaMuxerWrapper is null");
 		mWeakMuxer = new WeakReference<MediaMuxerWrapper>(muxer);
+		mClock = muxer.getClock();
 		muxer.addEncoder(this);
 		mListener = listener;
+		mScheduler = muxer.getScheduler();
         synchronized (mSync) {
             // create BufferInfo here for effectiveness(to reduce GC)
             mBufferInfo = new MediaCodec.BufferInfo();
-            // wait for starting thread
-            new Thread(this, getClass().getSimpleName()).start();
-            try {
-            	mSync.wait();
-            } catch (final InterruptedException e) {
+            if (mScheduler != null) {
+            	// audio has higher priority because it can not drop frames as video does
+            	mScheduledTask = new EncoderScheduler.Task(isAudioEncoder()
+            		? EncoderScheduler.PRIORITY_HIGH : EncoderScheduler.PRIORITY_NORMAL) {
+            		@Override
+            		protected void execute() {
+            			runScheduled();
+            		}
+            	};
+            	mRequestStop = false;
+            	mRequestDrain.set(0);
+            } else {
+            	mScheduledTask = null;
+	            // wait for starting thread
+	            new Thread(this, getClass().getSimpleName()).start();
+	            try {
+	            	mSync.wait();
+	            } catch (final InterruptedException e) {
+	            }
             }
         }
 	}
 
+    /**
+     * set drain mode. this should be called before #prepare
+     * DRAIN_MODE_CALLBACK falls back to DRAIN_MODE_POLLING when the backend does not support it(API < 23)
+     * @param drainMode DRAIN_MODE_POLLING or DRAIN_MODE_CALLBACK
+     */
+    public void setDrainMode(final int drainMode) {
+    	if ((drainMode != DRAIN_MODE_POLLING) && (drainMode != DRAIN_MODE_CALLBACK))
+    		throw new IllegalArgumentException("unknown drain mode:" + drainMode);
+    	synchronized (mSync) {
+    		mDrainMode = drainMode;
+    	}
+    }
+
+    public int getDrainMode() {
+    	synchronized (mSync) {
+    		return mDrainMode;
+    	}
+    }
+
+    /**
+     * whether the codec pushes output buffers by callback,
+     * this is valid after #prepare and output buffers should not be drained by #drain when true
+     * @return
+     */
+    protected boolean isCallbackMode() {
+    	return mIsCallbackMode;
+    }
+
+    /**
+     * set factory of codec backend. this should be called before #prepare
+     * if the factory is EncoderPool, codec is returned to the pool instead of releasing.
+     * @param factory null means MediaCodecBackend
+     */
+    public void setBackendFactory(final EncoderBackend.Factory factory) {
+    	synchronized (mSync) {
+    		mBackendFactory = factory;
+    	}
+    }
+
+    /**
+     * set backpressure policy that is applied when codec can not accept frames as fast as they come.
+     * dropped frames are counted in EncoderMetrics.Snapshot#framesDropped even if metrics are disabled.
+     * @param policy null means waiting for input buffer while capturing(default)
+     */
+    public void setBackpressurePolicy(final BackpressurePolicy policy) {
+    	mBackpressure = policy;
+    }
+
+    public BackpressurePolicy getBackpressurePolicy() {
+    	return mBackpressure;
+    }
+
+    /**
+     * count frames that were discarded by backpressure
+     * @param count
+     */
+    protected void onFramesDropped(final int count) {
+    	mMetrics.recordDropped(count);
+    }
+
+    /**
+     * request key frame to the codec, e.g. to start new segment file at the key frame
+     */
+    public void requestSyncFrame() {
+    	final EncoderBackend codec = mCodec;
+    	if (codec == null) return;
+    	try {
+    		codec.requestSyncFrame();
+    	} catch (final IllegalStateException e) {
+    		// codec is already released
+    		if (DEBUG) Log.w(TAG, "requestSyncFrame:", e);
+    	}
+    }
+
+    /**
+     * enable/disable sampling of metrics, disabled by default
+     * @param enabled
+     */
+    public void setMetricsEnabled(final boolean enabled) {
+    	mMetrics.setEnabled(enabled);
+    }
+
+    /**
+     * number of frames passed to #frameAvailableSoon that are encoded into one output sample,
+     * this is used to calculate queue depth of the metrics
+     * @param frames
+     */
+    protected void setInputFramesPerSample(final int frames) {
+    	mMetrics.setInputFramesPerSample(frames);
+    }
+
+    /**
+     * get latency/throughput metrics of this encoder, this can be called from any thread
+     * @return
+     */
+    public EncoderMetrics.Snapshot getMetrics() {
+    	return mMetrics.snapshot();
+    }
+
     public String getOutputPath() {
     	final MediaMuxerWrapper muxer = mWeakMuxer.get();
     	return muxer != null ? muxer.getOutputPath() : null;
@@ -112,16 +319,37 @@ public abstract class MediaEncoder implements Runnable {
      */
     public boolean frameAvailableSoon() {
 //    	if (DEBUG) Log.v(TAG, "frameAvailableSoon");
-        synchronized (mSync) {
-            if (!mIsCapturing || mRequestStop) {
-                return false;
-            }
-            mRequestDrain++;
-            mSync.notifyAll();
+        if (!mIsCapturing || mRequestStop) {
+            return false;
+        }
+        mRequestDrain.incrementAndGet();
+        mMetrics.recordFrameIn();
+        if (mScheduledTask != null) {
+        	mScheduler.schedule(mScheduledTask);
+        	return true;
+        }
+        // mIsWaiting is written before the encoder thread re-checks mRequestDrain,
+        // so either it sees our increment or we see mIsWaiting and unpark it.
+        if (mIsWaiting) {
+        	LockSupport.unpark(mEncoderThread);
         }
         return true;
     }
 
+    /**
+     * wake up encoder thread regardless of it is waiting or not
+     */
+    private void wakeupEncoder() {
+    	if (mScheduledTask != null) {
+    		mScheduler.schedule(mScheduledTask);
+    		return;
+    	}
+    	final Thread thread = mEncoderThread;
+    	if (thread != null) {
+    		LockSupport.unpark(thread);
+    	}
+    }
+
     /**
      * encoding loop on private thread
      */
@@ -130,38 +358,49 @@ public abstract class MediaEncoder implements Runnable {
 //		android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
         synchronized (mSync) {
             mRequestStop = false;
-    		mRequestDrain = 0;
+    		mRequestDrain.set(0);
+    		mEncoderThread = Thread.currentThread();
             mSync.notify();
         }
         final boolean isRunning = true;
         boolean localRequestStop;
         boolean localRequestDrain;
         while (isRunning) {
-        	synchronized (mSync) {
-        		localRequestStop = mRequestStop;
-        		localRequestDrain = (mRequestDrain > 0);
-        		if (localRequestDrain)
-        			mRequestDrain--;
-        	}
+    		localRequestStop = mRequestStop;
+    		// requests that come while draining are coalesced into next drain
+    		localRequestDrain = mRequestDrain.getAndSet(0) > 0;
 	        if (localRequestStop) {
-	           	drain();
-	           	// request stop recording
-	           	signalEndOfInputStream();
-	           	// process output data again for EOS signale
-	           	drain();
+	        	finishInput();
+	        	if (mIsCallbackMode) {
+	        		// request stop recording and wait for EOS from Callback
+	        		signalEndOfInputStream(-1);
+	        		waitEOS();
+	        	} else {
+		           	drain();
+		           	// request stop recording
+		           	signalEndOfInputStream(-1);
+		           	// process output data again for EOS signale
+		           	drain();
+	        	}
 	           	// release all related objects
 	           	release();
 	           	break;
 	        }
 	        if (localRequestDrain) {
-	        	drain();
+	        	feedInput();
+	        	// output buffers are pushed by MediaCodec.Callback in callback mode
+	        	if (!mIsCallbackMode) {
+	        		drain();
+	        	}
 	        } else {
-	        	synchronized (mSync) {
-		        	try {
-						mSync.wait();
-					} catch (final InterruptedException e) {
-						break;
-					}
+	        	mIsWaiting = true;
+	        	// re-check after publishing mIsWaiting to avoid missing wake up
+	        	if ((mRequestDrain.get() == 0) && !mRequestStop) {
+	        		LockSupport.park(this);
+	        	}
+	        	mIsWaiting = false;
+	        	if (Thread.interrupted()) {
+	        		break;
 	        	}
         	}
         } // end of while
@@ -169,9 +408,126 @@ public abstract class MediaEncoder implements Runnable {
         synchronized (mSync) {
         	mRequestStop = true;
             mIsCapturing = false;
+            mEncoderThread = null;
         }
 	}
 
+	/**
+	 * one step of encoding loop on EncoderScheduler, this is equivalent of one loop of #run
+	 * but never blocks the worker, stopping also proceeds step by step until EOS comes out.
+	 */
+	private void runScheduled() {
+		if (mScheduledReleased) return;
+		if (mRequestStop) {
+			stopScheduled();
+			return;
+		}
+		final boolean requested = mRequestDrain.getAndSet(0) > 0;
+		if (requested) {
+			mScheduledPollCount = 0;
+		}
+		if (!mIsCapturing) return;
+		feedInput();
+		if (mIsCallbackMode) return;
+		final MediaMuxerWrapper muxer = mWeakMuxer.get();
+		if (mMuxerStarted && (muxer != null) && !muxer.isStarted()) {
+			// waiting for other encoders to start muxer, workers should not block here
+			schedulePoll();
+			return;
+		}
+		if (drain(0)) {
+			mScheduledPollCount = 0;
+		}
+		// codec may still have frames, poll again a little later
+		schedulePoll();
+	}
+
+	/**
+	 * request next polling with exponential backoff,
+	 * polling stops after SCHEDULED_POLL_COUNT times without output until next drain request
+	 */
+	private void schedulePoll() {
+		if (mScheduledPollCount < SCHEDULED_POLL_COUNT) {
+			mScheduler.schedule(mScheduledTask, SCHEDULED_POLL_INTERVAL_NS << mScheduledPollCount);
+			mScheduledPollCount++;
+		}
+	}
+
+	/**
+	 * one step of stopping on EncoderScheduler, this is rescheduled until EOS comes out
+	 * from the codec or STOP_TIMEOUT_NS passed, and releases the encoder at the end
+	 */
+	private void stopScheduled() {
+		final long now = System.nanoTime();
+		if (mScheduledStopLimitNs == 0) {
+			mScheduledStopLimitNs = now + STOP_TIMEOUT_NS;
+		}
+		final boolean timeout = now - mScheduledStopLimitNs > 0;
+		if (!mIsCallbackMode) {
+			// release output buffers, otherwise the codec may not accept remaining frames and EOS
+			drain(0);
+		}
+		if (!mIsEOS && mIsCapturing) {
+			if (feedInput()) {
+				signalEndOfInputStream(0);
+			} else if (timeout) {
+				Log.w(TAG, "stopScheduled:remaining input frames are discarded");
+				signalEndOfInputStream(0);
+			}
+		}
+		if (mIsCapturing && !timeout) {
+			// callback mode wakes up this task when EOS comes, so polling is not necessary
+			mScheduler.schedule(mScheduledTask, mIsCallbackMode && mIsEOS
+				? mScheduledStopLimitNs - now : SCHEDULED_POLL_INTERVAL_NS);
+			return;
+		}
+		if (mIsCapturing) {
+			Log.w(TAG, "stopScheduled:timeout");
+		}
+		release();
+		mScheduledReleased = true;
+		synchronized (mSync) {
+			mIsCapturing = false;
+		}
+	}
+
+	/**
+	 * wait until #feedInput passes all frames that subclass keeps to the codec,
+	 * only used on private thread
+	 */
+	private void finishInput() {
+		final long limitNs = System.nanoTime() + STOP_TIMEOUT_NS;
+		while (mIsCapturing && !feedInput()) {
+			if (System.nanoTime() - limitNs > 0) {
+				Log.w(TAG, "finishInput:remaining input frames are discarded");
+				break;
+			}
+			if (mIsCallbackMode) {
+				LockSupport.parkNanos(this, SCHEDULED_POLL_INTERVAL_NS);
+			} else {
+				// release output buffers, otherwise the codec can not accept remaining frames
+				drain();
+			}
+		}
+	}
+
+	/**
+	 * pass the input frames that this encoder keeps to the codec by #tryEncode,
+	 * this is called on the encoder thread or EncoderScheduler on each drain request,
+	 * while waiting for output and when stopping, EOS is sent after this returned true.
+	 * subclasses that pass frames by #encode from their own thread need not override this.
+	 * @return true if no frame is left
+	 */
+	protected boolean feedInput() {
+		return true;
+	}
+
+	/**
+	 * whether this is audio encoder or not, MediaMuxerWrapper uses this to assign the encoder
+	 * @return
+	 */
+	/*package*/ abstract boolean isAudioEncoder();
+
 	/*
     * prepareing method for each sub class
     * this method should be implemented in sub class, so set this as abstract method
@@ -179,6 +535,114 @@ public abstract class MediaEncoder implements Runnable {
     */
    /*package*/ abstract void prepare() throws IOException;
 
+	/**
+	 * create codec backend with the factory set by #setBackendFactory
+	 * @param mimeType
+	 * @param defaultFactory factory to use when no factory is set
+	 * @return
+	 * @throws IOException
+	 */
+	protected EncoderBackend createBackend(final String mimeType,
+		final EncoderBackend.Factory defaultFactory) throws IOException {
+
+		final EncoderBackend.Factory factory;
+		synchronized (mSync) {
+			factory = mBackendFactory != null ? mBackendFactory : defaultFactory;
+		}
+		return factory.createEncoder(mimeType);
+	}
+
+	/**
+	 * configure mCodec as encoder with requested drain mode
+	 * @param format
+	 * @throws IOException
+	 */
+	protected void configureCodec(final MediaFormat format) throws IOException {
+		final boolean callbackMode;
+		final EncoderBackend.Factory factory;
+		synchronized (mSync) {
+			callbackMode = (mDrainMode == DRAIN_MODE_CALLBACK) && mCodec.isCallbackSupported();
+			factory = mBackendFactory;
+		}
+		mInputIndices.clear();
+		mIsCallbackMode = callbackMode;
+		if (DEBUG) Log.v(TAG, "configureCodec:callbackMode=" + callbackMode);
+		if (factory instanceof EncoderPool) {
+			// pooled codec may be already configured with same format
+			((EncoderPool)factory).configure(mCodec, format, callbackMode ? mCodecCallback : null);
+		} else {
+			mCodec.configure(format, callbackMode ? mCodecCallback : null);
+		}
+	}
+
+	/**
+	 * callback from codec for callback mode, called on private thread of codec
+	 */
+	private final EncoderBackend.Callback mCodecCallback = new EncoderBackend.Callback() {
+		@Override
+		public void onInputBufferAvailable(final int index) {
+			mInputIndices.offer(index);
+		}
+
+		@Override
+		public void onOutputBufferAvailable(final int index, final MediaCodec.BufferInfo info) {
+			final EncoderBackend codec = mCodec;
+			final MediaMuxerWrapper muxer = mWeakMuxer.get();
+			final boolean eos = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+			try {
+				if ((muxer != null) && mIsCapturing) {
+					writeEncodedData(muxer, codec.getOutputBuffer(index), info);
+				}
+				codec.releaseOutputBuffer(index);
+			} catch (final Exception e) {
+				Log.w(TAG, "onOutputBufferAvailable:", e);
+			}
+			if (eos) {
+				synchronized (mSync) {
+					mIsCapturing = false;
+					mSync.notifyAll();
+				}
+				// let EncoderScheduler finish stopping
+				wakeupEncoder();
+			}
+		}
+
+		@Override
+		public void onOutputFormatChanged(final MediaFormat format) {
+			if (DEBUG) Log.v(TAG, "onOutputFormatChanged:" + format);
+			final MediaMuxerWrapper muxer = mWeakMuxer.get();
+			if (muxer != null) {
+				startMuxer(muxer, format);
+			}
+		}
+
+		@Override
+		public void onError(final Exception e) {
+			Log.e(TAG, "onError:", e);
+		}
+	};
+
+	/**
+	 * wait until Callback receives EOS, only used in callback mode
+	 */
+	private void waitEOS() {
+		final long limit = System.currentTimeMillis() + 1000;
+		synchronized (mSync) {
+			while (mIsCapturing) {
+				final long remain = limit - System.currentTimeMillis();
+				if (remain <= 0) {
+					Log.w(TAG, "waitEOS:timeout");
+					break;
+				}
+				try {
+					mSync.wait(remain);
+				} catch (final InterruptedException e) {
+					break;
+				}
+			}
+		}
+	}
+
 	/*package*/ void startRecording() {
    	if (DEBUG) Log.v(TAG, "startRecording");
 		synchronized (mSync) {
@@ -186,6 +650,7 @@ public abstract class MediaEncoder implements Runnable {
 			mRequestStop = false;
 			mSync.notifyAll();
 		}
+		wakeupEncoder();
 	}
 
    /**
@@ -202,6 +667,7 @@ public abstract class MediaEncoder implements Runnable {
 	        // We can not know when the encoding and writing finish.
 	        // so we return immediately after request to avoid delay of caller thread
 		}
+		wakeupEncoder();
 	}
 
 //********************************************************************************
@@ -217,15 +683,27 @@ public abstract class MediaEncoder implements Runnable {
 			Log.e(TAG, "failed onStopped", e);
 		}
 		mIsCapturing = false;
-        if (mMediaCodec != null) {
+        if (mCodec != null) {
+			final EncoderBackend.Factory factory;
+			synchronized (mSync) {
+				factory = mBackendFactory;
+			}
 			try {
-	            mMediaCodec.stop();
-	            mMediaCodec.release();
-	            mMediaCodec = null;
+	            mCodec.stop();
+	            if (factory instanceof EncoderPool) {
+	            	((EncoderPool)factory).recycle(mCodec);
+	            } else {
+	            	mCodec.release();
+	            }
+	            mCodec = null;
 			} catch (final Exception e) {
 				Log.e(TAG, "failed releasing MediaCodec", e);
 			}
         }
+        mInputIndices.clear();
+		if (mMetrics.isEnabled()) {
+			Log.i(TAG, (mIsCallbackMode ? "callback" : "polling") + " mode, " + mMetrics);
+		}
         if (mMuxerStarted) {
        		final MediaMuxerWrapper muxer = mWeakMuxer != null ? mWeakMuxer.get() : null;
        		if (muxer != null) {
@@ -239,27 +717,150 @@ public abstract class MediaEncoder implements Runnable {
         mBufferInfo = null;
     }
 
-    protected void signalEndOfInputStream() {
+    /**
+     * send EOS to the codec
+     * @param maxWaitNs maximum waiting time for input buffer, 0 means never wait,
+     * negative value means waiting while capturing
+     * @return false if the codec had no free input buffer within maxWaitNs, should retry later
+     */
+    protected boolean signalEndOfInputStream(final long maxWaitNs) {
 		if (DEBUG) Log.d(TAG, "sending EOS to encoder");
         // signalEndOfInputStream is only avairable for video encoding with surface
         // and equivalent sending a empty buffer with BUFFER_FLAG_END_OF_STREAM flag.
-//		mMediaCodec.signalEndOfInputStream();	// API >= 18
-        encode(null, 0, getPTSUs());
+//		mCodec.signalEndOfInputStream();	// API >= 18
+		if (maxWaitNs < 0) {
+			encode(null, 0, getPTSUs());
+			return true;
+		}
+		if (!mIsCapturing) return true;
+    	// pending frames are older, so they should be passed to the codec first
+    	while (!mPendingFrames.isEmpty()) {
+    		final PendingFrame frame = mPendingFrames.peekFirst();
+    		if (!queueInputFrame(frame.buffer, frame.length, frame.presentationTimeUs, maxWaitNs)) {
+    			return !mIsCapturing;
+    		}
+    		mFreeFrames.addLast(mPendingFrames.removeFirst());
+    	}
+		return queueInputFrame(null, 0, getPTSUs(), maxWaitNs) || !mIsCapturing;
 	}
 
     /**
-     * Method to set byte array to the MediaCodec encoder
+     * Method to set byte array to the MediaCodec encoder.
+     * This should be called from single thread(e.g. audio capturing thread) except EOS.
+     * With LATEST_WINS/BOUNDED policy this never waits, frames that the codec can not accept now
+     * are copied into the pending queue and passed to the codec by following calls(including EOS).
      * @param buffer
      * @param length　length of byte array, zero means EOS.
      * @param presentationTimeUs
      */
     protected void encode(final ByteBuffer buffer, final int length, final long presentationTimeUs) {
     	if (!mIsCapturing) return;
-        final ByteBuffer[] inputBuffers = mMediaCodec.getInputBuffers();
+    	// EOS should never be dropped
+    	final BackpressurePolicy policy = length > 0 ? mBackpressure : null;
+    	if ((policy != null) && (policy.getMode() != BackpressurePolicy.MODE_BLOCK)) {
+    		enqueueFrame(buffer, length, presentationTimeUs, policy);
+    		return;
+    	}
+    	// pending frames are older, so they should be passed to the codec first
+    	while (!mPendingFrames.isEmpty()) {
+    		final PendingFrame frame = mPendingFrames.removeFirst();
+    		if (!queueInputFrame(frame.buffer, frame.length, frame.presentationTimeUs, -1)) {
+    			onFramesDropped(1 + mPendingFrames.size());
+    			mPendingFrames.clear();
+    			break;
+    		}
+    		mFreeFrames.addLast(frame);
+    	}
+    	if (!queueInputFrame(buffer, length, presentationTimeUs,
+    		policy != null ? policy.getDeadlineNs() : -1) && (length > 0)) {
+    		// codec is behind or encoder stopped while waiting for input buffer, the frame is discarded
+    		onFramesDropped(1);
+    	}
+    }
+
+    /**
+     * pass the frame to the codec without waiting, or keep it in the pending queue
+     * until the codec has free input buffer
+     * @param buffer
+     * @param length
+     * @param presentationTimeUs
+     * @param policy MODE_LATEST_WINS or MODE_BOUNDED
+     */
+    private void enqueueFrame(final ByteBuffer buffer, final int length, final long presentationTimeUs,
+    	final BackpressurePolicy policy) {
+
+    	while (!mPendingFrames.isEmpty()) {
+    		final PendingFrame frame = mPendingFrames.peekFirst();
+    		if (!queueInputFrame(frame.buffer, frame.length, frame.presentationTimeUs, 0)) break;
+    		mFreeFrames.addLast(mPendingFrames.removeFirst());
+    	}
+    	if (mPendingFrames.isEmpty() && queueInputFrame(buffer, length, presentationTimeUs, 0)) {
+    		return;
+    	}
+    	if (!mIsCapturing) {
+    		onFramesDropped(1);
+    		return;
+    	}
+    	if (mPendingFrames.size() >= policy.getCapacity()) {
+    		if (policy.getMode() == BackpressurePolicy.MODE_BOUNDED) {
+    			// the queue is full, the incoming frame is discarded
+    			onFramesDropped(1);
+    			return;
+    		}
+    		// newer frame wins, the oldest pending frame is discarded
+    		mFreeFrames.addLast(mPendingFrames.removeFirst());
+    		onFramesDropped(1);
+    	}
+    	PendingFrame frame = mFreeFrames.pollFirst();
+    	if ((frame == null) || (frame.buffer.capacity() < buffer.remaining())) {
+    		frame = new PendingFrame(buffer.remaining());
+    	}
+    	frame.buffer.clear();
+    	frame.buffer.put(buffer);
+    	frame.buffer.flip();
+    	frame.length = length;
+    	frame.presentationTimeUs = presentationTimeUs;
+    	mPendingFrames.addLast(frame);
+    }
+
+    /**
+     * pass the frame to the codec only when it has free input buffer now,
+     * this should be called from #feedInput. BackpressurePolicy is not applied,
+     * the caller keeps the frame and passes it again later when this returned false.
+     * @param buffer
+     * @param length length of byte array
+     * @param presentationTimeUs
+     * @return true if the frame was queued, false if the codec has no free input buffer
+     * or EOS was already sent
+     */
+    protected boolean tryEncode(final ByteBuffer buffer, final int length, final long presentationTimeUs) {
+    	if (!mIsCapturing || mIsEOS) return false;
+    	return queueInputFrame(buffer, length, presentationTimeUs, 0);
+    }
+
+    /**
+     * queue the frame into input buffer of the codec
+     * @param buffer
+     * @param length　length of byte array, zero means EOS.
+     * @param presentationTimeUs
+     * @param maxWaitNs maximum waiting time for input buffer, 0 means never wait,
+     * negative value means waiting while capturing
+     * @return true if the frame was queued
+     */
+    private boolean queueInputFrame(final ByteBuffer buffer, final int length, final long presentationTimeUs,
+    	final long maxWaitNs) {
+
+    	final boolean sampling = mMetrics.isEnabled();
+    	final long startNs = sampling || (maxWaitNs >= 0) ? System.nanoTime() : 0;
+    	final long deadlineNs = startNs + maxWaitNs;
+    	long timeoutUs = maxWaitNs >= 0 ? Math.min(maxWaitNs / 1000L, TIMEOUT_USEC) : TIMEOUT_USEC;
         while (mIsCapturing) {
-	        final int inputBufferIndex = mMediaCodec.dequeueInputBuffer(TIMEOUT_USEC);
+	        final int inputBufferIndex = dequeueInputBuffer(timeoutUs);
 	        if (inputBufferIndex >= 0) {
-	            final ByteBuffer inputBuffer = inputBuffers[inputBufferIndex];
+	        	if (sampling) {
+	        		mMetrics.recordInputWait((System.nanoTime() - startNs) / 1000L);
+	        	}
+	            final ByteBuffer inputBuffer = mCodec.getInputBuffer(inputBufferIndex);
 	            inputBuffer.clear();
 	            if (buffer != null) {
 	            	inputBuffer.put(buffer);
@@ -269,105 +870,134 @@ public abstract class MediaEncoder implements Runnable {
 	            	// send EOS
 	            	mIsEOS = true;
 	            	if (DEBUG) Log.i(TAG, "send BUFFER_FLAG_END_OF_STREAM");
-	            	mMediaCodec.queueInputBuffer(inputBufferIndex, 0, 0,
+	            	mCodec.queueInputBuffer(inputBufferIndex, 0, 0,
 	            		presentationTimeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-		            break;
 	            } else {
-	            	mMediaCodec.queueInputBuffer(inputBufferIndex, 0, length,
+	            	mCodec.queueInputBuffer(inputBufferIndex, 0, length,
 	            		presentationTimeUs, 0);
 	            }
-	            break;
+	            return true;
 	        } else if (inputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
 	        	// wait for MediaCodec encoder is ready to encode
-	        	// nothing to do here because MediaCodec#dequeueInputBuffer(TIMEOUT_USEC)
+	        	// EncoderBackend#dequeueInputBuffer(TIMEOUT_USEC)
 	        	// will wait for maximum TIMEOUT_USEC(10msec) on each call
+	        	if (maxWaitNs >= 0) {
+	        		final long remainUs = (deadlineNs - System.nanoTime()) / 1000L;
+	        		if (remainUs <= 0) {
+	        			return false;
+	        		}
+	        		timeoutUs = Math.min(remainUs, TIMEOUT_USEC);
+	        	}
 	        }
         }
+        return false;
+    }
+
+    /**
+     * copy of the frame that is waiting for free input buffer
+     */
+    private static final class PendingFrame {
+    	private final ByteBuffer buffer;
+    	private int length;
+    	private long presentationTimeUs;
+
+    	private PendingFrame(final int capacity) {
+    		buffer = ByteBuffer.allocateDirect(capacity);
+    	}
+    }
+
+    /**
+     * get index of input buffer
+     * @param timeoutUs maximum timeout duration, 0 means returning immediately
+     * @return negative value if no input buffer is available now
+     */
+    private int dequeueInputBuffer(final long timeoutUs) {
+    	if (mIsCallbackMode) {
+    		try {
+    			final Integer index = mInputIndices.poll(timeoutUs, TimeUnit.MICROSECONDS);
+    			return index != null ? index : MediaCodec.INFO_TRY_AGAIN_LATER;
+    		} catch (final InterruptedException e) {
+    			return MediaCodec.INFO_TRY_AGAIN_LATER;
+    		}
+    	}
+    	return mCodec.dequeueInputBuffer(timeoutUs);
     }
 
     /**
      * drain encoded data and write them to muxer
      */
     protected void drain() {
-    	if (mMediaCodec == null) return;
-        ByteBuffer[] encoderOutputBuffers = mMediaCodec.getOutputBuffers();
+    	drain(TIMEOUT_USEC);
+    }
+
+    /**
+     * drain encoded data and write them to muxer
+     * @param timeoutUs timeout of each dequeueOutputBuffer,
+     * if this is 0, returns immediately when no output is available
+     * @return true if any data was written
+     */
+    private boolean drain(final long timeoutUs) {
+    	if (mCodec == null) return false;
+    	boolean written = false;
         int encoderStatus, count = 0;
+        final boolean sampling = mMetrics.isEnabled();
+        long startNs = 0;
         final MediaMuxerWrapper muxer = mWeakMuxer.get();
         if (muxer == null) {
 //        	throw new NullPointerException("muxer is unexpectedly null");
         	Log.w(TAG, "muxer is unexpectedly null");
-        	return;
+        	return false;
         }
 LOOP:	while (mIsCapturing) {
 			// get encoded data with maximum timeout duration of TIMEOUT_USEC(=10[msec])
-            encoderStatus = mMediaCodec.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
+        	if (sampling) startNs = System.nanoTime();
+            encoderStatus = mCodec.dequeueOutputBuffer(mBufferInfo, timeoutUs);
             if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
+            	// never wait on EncoderScheduler, even if EOS was sent
+            	if (timeoutUs <= 0)
+            		break LOOP;		// out of while
                 // wait 5 counts(=TIMEOUT_USEC x 5 = 50msec) until data/EOS come
                 if (!mIsEOS) {
+                	// keep the codec busy while waiting
+                	feedInput();
                 	if (++count > 5)
                 		break LOOP;		// out of while
                 }
             } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
             	if (DEBUG) Log.v(TAG, "INFO_OUTPUT_BUFFERS_CHANGED");
                 // this shoud not come when encoding
-                encoderOutputBuffers = mMediaCodec.getOutputBuffers();
+                // and EncoderBackend#getOutputBuffer takes care of it
             } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
             	if (DEBUG) Log.v(TAG, "INFO_OUTPUT_FORMAT_CHANGED");
             	// this status indicate the output format of codec is changed
                 // this should come only once before actual encoded data
             	// but this status never come on Android4.3 or less
             	// and in that case, you should treat when MediaCodec.BUFFER_FLAG_CODEC_CONFIG come.
-                if (mMuxerStarted) {	// second time request is error
-                    throw new RuntimeException("format changed twice");
-                }
 				// get output format from codec and pass them to muxer
 				// getOutputFormat should be called after INFO_OUTPUT_FORMAT_CHANGED otherwise crash.
-                final MediaFormat format = mMediaCodec.getOutputFormat(); // API >= 16
-               	mTrackIndex = muxer.addTrack(format);
-               	mMuxerStarted = true;
-               	if (!muxer.start()) {
-               		// we should wait until muxer is ready
-               		synchronized (muxer) {
-	               		while (!muxer.isStarted())
-						try {
-							muxer.wait(100);
-						} catch (final InterruptedException e) {
-							break LOOP;
-						}
-               		}
-               	}
+                final MediaFormat format = mCodec.getOutputFormat(); // API >= 16
+                if (!startMuxer(muxer, format)) {
+                	break LOOP;
+                }
             } else if (encoderStatus < 0) {
             	// unexpected status
             	if (DEBUG) Log.w(TAG, "drain:unexpected result from encoder#dequeueOutputBuffer: " + encoderStatus);
             } else {
-                final ByteBuffer encodedData = encoderOutputBuffers[encoderStatus];
+            	if (sampling) {
+            		mMetrics.recordOutputWait((System.nanoTime() - startNs) / 1000L);
+            	}
+                final ByteBuffer encodedData = mCodec.getOutputBuffer(encoderStatus);
                 if (encodedData == null) {
                 	// this never should come...may be a MediaCodec internal error
                     throw new RuntimeException("encoderOutputBuffer " + encoderStatus + " was null");
                 }
-                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                	// You shoud set output format to muxer here when you target Android4.3 or less
-                	// but MediaCodec#getOutputFormat can not call here(because INFO_OUTPUT_FORMAT_CHANGED don't come yet)
-                	// therefor we should expand and prepare output format from buffer data.
-                	// This sample is for API>=18(>=Android 4.3), just ignore this flag here
-					if (DEBUG) Log.d(TAG, "drain:BUFFER_FLAG_CODEC_CONFIG");
-					mBufferInfo.size = 0;
-                }
-
-                if (mBufferInfo.size != 0) {
+                if (writeEncodedData(muxer, encodedData, mBufferInfo)) {
                 	// encoded data is ready, clear waiting counter
             		count = 0;
-                    if (!mMuxerStarted) {
-                    	// muxer is not ready...this will prrograming failure.
-                        throw new RuntimeException("drain:muxer hasn't started");
-                    }
-                    // write encoded data to muxer(need to adjust presentationTimeUs.
-                   	mBufferInfo.presentationTimeUs = getPTSUs();
-                   	muxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
-					prevOutputPTSUs = mBufferInfo.presentationTimeUs;
+            		written = true;
                 }
                 // return buffer to encoder
-                mMediaCodec.releaseOutputBuffer(encoderStatus, false);
+                mCodec.releaseOutputBuffer(encoderStatus);
                 if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
                 	// when EOS come.
                		mIsCapturing = false;
@@ -375,6 +1005,81 @@ LOOP:	while (mIsCapturing) {
                 }
             }
         }
+        return written;
+    }
+
+    /**
+     * add track to muxer and start it, this is called on encoder thread
+     * or on callback thread when callback mode
+     * @param muxer
+     * @param format output format of codec
+     * @return false if interrupted while waiting for muxer
+     * or muxer is not ready yet when running on EncoderScheduler
+     */
+    private boolean startMuxer(final MediaMuxerWrapper muxer, final MediaFormat format) {
+        if (mMuxerStarted) {	// second time request is error
+            throw new RuntimeException("format changed twice");
+        }
+       	mTrackIndex = muxer.addTrack(format);
+       	mMuxerStarted = true;
+       	if (!muxer.start()) {
+       		if (mScheduledTask != null) {
+       			// #runScheduled will retry later, blocking here may dead lock the workers
+       			return false;
+       		}
+       		// we should wait until muxer is ready
+       		synchronized (muxer) {
+           		while (!muxer.isStarted())
+				try {
+					muxer.wait(100);
+				} catch (final InterruptedException e) {
+					return false;
+				}
+       		}
+       	}
+       	return true;
+    }
+
+    /**
+     * write encoded data to muxer, this is called on encoder thread
+     * or on callback thread when callback mode
+     * @param muxer
+     * @param encodedData
+     * @param info
+     * @return true if actual data was written
+     */
+    private boolean writeEncodedData(final MediaMuxerWrapper muxer,
+    	final ByteBuffer encodedData, final MediaCodec.BufferInfo info) {
+
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+        	// You shoud set output format to muxer here when you target Android4.3 or less
+        	// but MediaCodec#getOutputFormat can not call here(because INFO_OUTPUT_FORMAT_CHANGED don't come yet)
+        	// therefor we should expand and prepare output format from buffer data.
+        	// This sample is for API>=18(>=Android 4.3), just ignore this flag here
+			if (DEBUG) Log.d(TAG, "drain:BUFFER_FLAG_CODEC_CONFIG");
+			info.size = 0;
+        }
+        if (info.size == 0) {
+        	return false;
+        }
+        if (!mMuxerStarted) {
+        	// muxer is not ready...this will prrograming failure.
+            throw new RuntimeException("drain:muxer hasn't started");
+        }
+        // presentationTimeUs from codec is the capture time of the frame on MediaClock
+        final long captureUs = info.presentationTimeUs;
+        // presentationTimeUs should be monotonic otherwise muxer fail to write
+        if (info.presentationTimeUs < prevOutputPTSUs) {
+        	info.presentationTimeUs = prevOutputPTSUs;
+        }
+       	muxer.writeSampleData(mTrackIndex, encodedData, info);
+       	if (mMetrics.isEnabled()) {
+       		mMetrics.recordWritten(mClock.nowUs() - captureUs, info.size);
+       	} else {
+       		mMetrics.recordWritten(info.size);
+       	}
+		prevOutputPTSUs = info.presentationTimeUs;
+		return true;
     }
 
     /**
@@ -382,15 +1087,16 @@ LOOP:	while (mIsCapturing) {
      */
 	private long prevOutputPTSUs = 0;
 	/**
-	 * get next encoding presentationTimeUs
+	 * get current presentationTimeUs on MediaClock,
+	 * this is only for the frame that has no capture time(e.g. EOS)
 	 * @return
 	 */
     protected long getPTSUs() {
-		long result = System.nanoTime() / 1000L;
+		long result = mClock.nowUs();
 		// presentationTimeUs should be monotonic
 		// otherwise muxer fail to write
 		if (result < prevOutputPTSUs)
-			result = (prevOutputPTSUs - result) + result;
+			result = prevOutputPTSUs;
 		return result;
     }
 
@@ -0,0 +1,74 @@
+package com.serenegiant.encoder;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: MediaMuxerBackend.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+
+/**
+ * MuxerBackend implementation that wraps android.media.MediaMuxer
+ */
+public class MediaMuxerBackend implements MuxerBackend {
+
+	public static final Factory FACTORY = new Factory() {
+		@Override
+		public MuxerBackend createMuxer(final String outputPath) throws IOException {
+			return new MediaMuxerBackend(outputPath);
+		}
+	};
+
+	private final MediaMuxer mMediaMuxer;	// API >= 18
+
+	public MediaMuxerBackend(final String outputPath) throws IOException {
+		mMediaMuxer = new MediaMuxer(outputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+	}
+
+	@Override
+	public int addTrack(final MediaFormat format) {
+		return mMediaMuxer.addTrack(format);
+	}
+
+	@Override
+	public void start() {
+		mMediaMuxer.start();
+	}
+
+	@Override
+	public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+		mMediaMuxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
+	}
+
+	@Override
+	public void stop() {
+		mMediaMuxer.stop();
+	}
+
+	@Override
+	public void release() {
+		mMediaMuxer.release();
+	}
+}
@@ -31,39 +31,144 @@ import java.util.Locale;
 
 import android.media.MediaCodec;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
 import android.os.Environment;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.serenegiant.muxer.FastStart;
+import com.serenegiant.muxer.PreallocatedFileWriter;
+
 public class MediaMuxerWrapper {
 	private static final boolean DEBUG = false;	// TODO set false on release
 	private static final String TAG = "MediaMuxerWrapper";
 
 	private static final String DIR_NAME = "AVRecSample";
+
+	private static final FastStart.Callback FAST_START_CALLBACK = new FastStart.Callback() {
+		@Override
+		public void onFinished(final String path, final boolean rewritten, final IOException error) {
+			if (error != null) {
+				Log.w(TAG, "failed to rewrite as fast-start:" + path, error);
+			} else if (DEBUG) Log.v(TAG, "fast-start:" + path + ",rewritten=" + rewritten);
+		}
+	};
+
     private static final SimpleDateFormat mDateTimeFormat = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss", Locale.US);
 
 	private String mOutputPath;
-	private final MediaMuxer mMediaMuxer;	// API >= 18
+	private final MuxerBackend mMediaMuxer;
 	private int mEncoderCount, mStatredCount;
 	private boolean mIsStarted;
 	private MediaEncoder mVideoEncoder, mAudioEncoder;
+	/**
+	 * latency/throughput counters, only updated while enabled
+	 */
+	private final EncoderMetrics mMetrics = new EncoderMetrics(TAG);
+	/**
+	 * shared clock for audio and video
+	 */
+	private final MediaClock mClock = new MediaClock();
+	/**
+	 * optional shared scheduler for encoders, null means each encoder has its own thread
+	 */
+	private EncoderScheduler mScheduler;
+	/**
+	 * time when #prepare was called, to measure start-to-first-sample latency
+	 */
+	private long mPrepareStartNs;
+	private boolean mFirstSampleWritten;
+	/**
+	 * maximum number of samples waiting for AsyncSampleWriter, 0 means writing on encoder thread
+	 */
+	private int mMaxPendingSamples;
+	/**
+	 * rewrite output file as fast-start after stopped
+	 */
+	private volatile boolean mFastStart;
+	/**
+	 * writer stage while muxer is running with asynchronous writing
+	 */
+	private volatile AsyncSampleWriter mWriter;
+	/**
+	 * reorder window to write samples of audio and video in presentation time order,
+	 * 0 means samples are written in arrival order
+	 */
+	private long mInterleaveDelayUs;
+	private int mInterleaveMaxBytes;
+	/**
+	 * reorder stage in front of mMediaMuxer while muxer is running with interleaving
+	 * or metrics enabled, null otherwise
+	 */
+	private volatile InterleavingMuxerBackend mInterleaver;
+	/**
+	 * mMediaMuxer or mInterleaver, samples are written to this while muxer is running
+	 */
+	private MuxerBackend mOutput;
 
 	/**
 	 * Constructor
 	 * @param ext extension of output file
 	 * @throws IOException
 	 */
-	public MediaMuxerWrapper(String ext) throws IOException {
+	public MediaMuxerWrapper(final String ext) throws IOException {
+		this(createOutputPath(ext), MediaMuxerBackend.FACTORY);
+	}
+
+	/**
+	 * Constructor
+	 * @param ext extension of output file
+	 * @param fragmentDurationMs positive value writes fragmented MP4 with FragmentedMp4Backend
+	 * and flushes a fragment every fragmentDurationMs, so memory usage is constant
+	 * and completed fragments survive crash. 0 means android.media.MediaMuxer.
+	 * Output file is preallocated every PreallocatedFileWriter.DEFAULT_EXTENT_SIZE bytes.
+	 * @throws IOException
+	 */
+	public MediaMuxerWrapper(final String ext, final long fragmentDurationMs) throws IOException {
+		this(createOutputPath(ext), fragmentDurationMs > 0
+			? FragmentedMp4Backend.factory(fragmentDurationMs, PreallocatedFileWriter.DEFAULT_EXTENT_SIZE, false)
+			: MediaMuxerBackend.FACTORY);
+	}
+
+	/**
+	 * Constructor
+	 * @param outputPath path of output file
+	 * @param factory factory to create container writer for the output file,
+	 * e.g. TsMuxerBackend.FACTORY for MPEG-TS(use ".ts" as extension)
+	 * or FanOutMuxerBackend#factory to write to several sinks at once
+	 * @throws IOException
+	 */
+	public MediaMuxerWrapper(final String outputPath, final MuxerBackend.Factory factory) throws IOException {
+		mOutputPath = outputPath;
+		mMediaMuxer = factory.createMuxer(outputPath);
+		mEncoderCount = mStatredCount = 0;
+		mIsStarted = false;
+	}
+
+	/**
+	 * generate path of output file in the capturing directory
+	 * @param ext extension of output file
+	 * @return
+	 */
+	public static String createOutputPath(String ext) {
 		if (TextUtils.isEmpty(ext)) ext = ".mp4";
 		try {
-			mOutputPath = getCaptureFile(Environment.DIRECTORY_MOVIES, ext).toString();
+			return getCaptureFile(Environment.DIRECTORY_MOVIES, ext).toString();
 		} catch (final NullPointerException e) {
 			throw new RuntimeException("This app has no permission of writing external storage");
 		}
-		mMediaMuxer = new MediaMuxer(mOutputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-		mEncoderCount = mStatredCount = 0;
-		mIsStarted = false;
+	}
+
+	/**
+	 * start writing to the output file when this muxer was created with PreRollMuxerBackend,
+	 * buffered history of encoded samples is written first and then live samples follow.
+	 * @return false if this muxer does not buffer samples
+	 */
+	public boolean triggerOutput() {
+		if (mMediaMuxer instanceof PreRollMuxerBackend) {
+			((PreRollMuxerBackend)mMediaMuxer).trigger();
+			return true;
+		}
+		return false;
 	}
 
 	public String getOutputPath() {
@@ -71,6 +176,7 @@ public class MediaMuxerWrapper {
 	}
 
 	public void prepare() throws IOException {
+		mPrepareStartNs = System.nanoTime();
 		if (mVideoEncoder != null)
 			mVideoEncoder.prepare();
 		if (mAudioEncoder != null)
@@ -78,6 +184,7 @@ public class MediaMuxerWrapper {
 	}
 
 	public void startRecording() {
+		mClock.start();
 		if (mVideoEncoder != null)
 			mVideoEncoder.startRecording();
 		if (mAudioEncoder != null)
@@ -93,6 +200,117 @@ public class MediaMuxerWrapper {
 		mAudioEncoder = null;
 	}
 
+	/**
+	 * enable/disable sampling of metrics of this muxer and assigned encoders.
+	 * this should be called after adding encoders
+	 * @param enabled
+	 */
+	public void setMetricsEnabled(final boolean enabled) {
+		mMetrics.setEnabled(enabled);
+		if (mVideoEncoder != null)
+			mVideoEncoder.setMetricsEnabled(enabled);
+		if (mAudioEncoder != null)
+			mAudioEncoder.setMetricsEnabled(enabled);
+	}
+
+	/**
+	 * total time spent in writing samples to the storage, this is counted even if
+	 * metrics are disabled and can be called from any thread without allocation
+	 * @return [usec]
+	 */
+	public long getWriteTimeUs() {
+		return mMetrics.getWriteTimeUs();
+	}
+
+	/**
+	 * number of samples that could not be written, this is counted even if metrics are disabled
+	 * @return
+	 */
+	public long getDroppedSamples() {
+		return mMetrics.getFramesDropped();
+	}
+
+	/**
+	 * get latency/throughput metrics of this muxer, this can be called from any thread
+	 * @return
+	 */
+	public EncoderMetrics.Snapshot getMetrics() {
+		return mMetrics.snapshot();
+	}
+
+	/**
+	 * run drain work of encoders on the scheduler instead of private thread of each encoder.
+	 * this should be called before creating encoders and the scheduler can be shared
+	 * with other MediaMuxerWrapper instances. caller should release the scheduler.
+	 * @param scheduler null means private thread of each encoder(default)
+	 */
+	public void setScheduler(final EncoderScheduler scheduler) {
+		if ((mVideoEncoder != null) || (mAudioEncoder != null))
+			throw new IllegalStateException("encoder already added");
+		mScheduler = scheduler;
+	}
+
+	public EncoderScheduler getScheduler() {
+		return mScheduler;
+	}
+
+	/**
+	 * write samples on private writer thread instead of encoder threads.
+	 * encoders copy encoded data into pooled buffers and return codec buffers immediately,
+	 * so slow storage does not block draining of codecs and encoders do not contend on this muxer.
+	 * this should be called before #startRecording
+	 * @param maxPendingSamples maximum number of samples waiting for writing,
+	 * encoders block when this is reached. 0 means writing on encoder thread(default)
+	 */
+	public synchronized void setAsyncWrite(final int maxPendingSamples) {
+		if (mIsStarted)
+			throw new IllegalStateException("muxer already started");
+		mMaxPendingSamples = Math.max(0, maxPendingSamples);
+	}
+
+	/**
+	 * write samples of audio and video in presentation time order instead of arrival order,
+	 * so that the output does not have long runs of one track. Each sample waits until
+	 * the other track has a sample that is not older than it, for maxDelayMs at most.
+	 * this should be called before #startRecording
+	 * @param maxDelayMs maximum reordering window, 0 disables reordering(default)
+	 * @param maxBytes maximum size of samples that are waiting for reordering
+	 */
+	public synchronized void setInterleave(final long maxDelayMs, final int maxBytes) {
+		if (mIsStarted)
+			throw new IllegalStateException("muxer already started");
+		mInterleaveDelayUs = Math.max(0, maxDelayMs) * 1000L;
+		mInterleaveMaxBytes = Math.max(0, maxBytes);
+	}
+
+	/**
+	 * distance of presentation time between each written sample and the last written sample
+	 * of the other track, this is available only when interleaving is enabled
+	 * @return null if not available
+	 */
+	public LatencyRecorder.Snapshot getInterleaveDistance() {
+		final InterleavingMuxerBackend interleaver = mInterleaver;
+		return interleaver != null ? interleaver.getInterleaveDistance() : null;
+	}
+
+	/**
+	 * rewrite output file as fast-start(moov ahead of mdat) on background thread
+	 * after recording stopped. This has no effect on segmented recording,
+	 * fragmented MP4 that is already fast-start and MPEG-TS(TsMuxerBackend).
+	 * @param enable
+	 */
+	public void setFastStart(final boolean enable) {
+		mFastStart = enable;
+	}
+
+	/**
+	 * get shared clock of this recording
+	 * @return
+	 */
+	public MediaClock getClock() {
+		return mClock;
+	}
+
 	public synchronized boolean isStarted() {
 		return mIsStarted;
 	}
@@ -104,16 +322,15 @@ public class MediaMuxerWrapper {
 	 * @param encoder instance of MediaVideoEncoder or MediaAudioEncoder
 	 */
 	/*package*/ void addEncoder(final MediaEncoder encoder) {
-		if (encoder instanceof MediaVideoEncoder) {
+		if (encoder.isAudioEncoder()) {
+			if (mAudioEncoder != null)
+				throw new IllegalArgumentException("Audio encoder already added.");
+			mAudioEncoder = encoder;
+		} else {
 			if (mVideoEncoder != null)
 				throw new IllegalArgumentException("Video encoder already added.");
 			mVideoEncoder = encoder;
-		} else if (encoder instanceof MediaAudioEncoder) {
-			if (mAudioEncoder != null)
-				throw new IllegalArgumentException("Video encoder already added.");
-			mAudioEncoder = encoder;
-		} else
-			throw new IllegalArgumentException("unsupported encoder");
+		}
 		mEncoderCount = (mVideoEncoder != null ? 1 : 0) + (mAudioEncoder != null ? 1 : 0);
 	}
 
@@ -125,7 +342,34 @@ public class MediaMuxerWrapper {
 		if (DEBUG) Log.v(TAG,  "start:");
 		mStatredCount++;
 		if ((mEncoderCount > 0) && (mStatredCount == mEncoderCount)) {
-			mMediaMuxer.start();
+			if ((mMediaMuxer instanceof SegmentedMuxerBackend) && (mVideoEncoder != null)) {
+				// segment is switched at key frame, so ask video encoder for it
+				final MediaEncoder videoEncoder = mVideoEncoder;
+				((SegmentedMuxerBackend)mMediaMuxer).setSyncFrameRequester(new Runnable() {
+					@Override
+					public void run() {
+						videoEncoder.requestSyncFrame();
+					}
+				});
+			}
+			if (mInterleaveDelayUs > 0) {
+				mInterleaver = new InterleavingMuxerBackend(mMediaMuxer, mEncoderCount,
+					mInterleaveDelayUs, mInterleaveMaxBytes);
+				mOutput = mInterleaver;
+			} else {
+				mOutput = mMediaMuxer;
+			}
+			try {
+				mOutput.start();
+			} catch (final IOException e) {
+				throw new RuntimeException("failed to start muxer", e);
+			}
+			if (mMaxPendingSamples > 0) {
+				final AsyncSampleWriter writer
+					= new AsyncSampleWriter(mOutput, mMetrics, mMaxPendingSamples, mPrepareStartNs);
+				writer.start();
+				mWriter = writer;
+			}
 			mIsStarted = true;
 			notifyAll();
 			if (DEBUG) Log.v(TAG,  "MediaMuxer started:");
@@ -140,9 +384,37 @@ public class MediaMuxerWrapper {
 		if (DEBUG) Log.v(TAG,  "stop:mStatredCount=" + mStatredCount);
 		mStatredCount--;
 		if ((mEncoderCount > 0) && (mStatredCount <= 0)) {
-			mMediaMuxer.stop();
-			mMediaMuxer.release();
+			final AsyncSampleWriter writer = mWriter;
+			mWriter = null;
+			if (writer != null) {
+				// write all pending samples before finishing the container
+				writer.close();
+			}
+			final MuxerBackend output = mOutput != null ? mOutput : mMediaMuxer;
+			try {
+				// queued samples of interleaver are written here
+				output.stop();
+			} catch (final IOException e) {
+				Log.e(TAG, "failed to stop muxer", e);
+			}
+			output.release();
 			mIsStarted = false;
+			if (mFastStart && !(mMediaMuxer instanceof TsMuxerBackend) && new File(mOutputPath).isFile()) {
+				FastStart.processAsync(mOutputPath, FAST_START_CALLBACK);
+			}
+			if (mMetrics.isEnabled()) {
+				Log.i(TAG, mMetrics.toString());
+				Log.i(TAG, mClock.toString());
+				if ((mMediaMuxer instanceof SegmentedMuxerBackend)
+					|| (mMediaMuxer instanceof PreRollMuxerBackend)
+					|| (mMediaMuxer instanceof TsMuxerBackend)
+					|| (mMediaMuxer instanceof FanOutMuxerBackend)) {
+					Log.i(TAG, mMediaMuxer.toString());
+				}
+				if (mInterleaver != null) {
+					Log.i(TAG, mInterleaver.toString());
+				}
+			}
 			if (DEBUG) Log.v(TAG,  "MediaMuxer stopped:");
 		}
 	}
@@ -166,9 +438,55 @@ public class MediaMuxerWrapper {
 	 * @param byteBuf
 	 * @param bufferInfo
 	 */
-	/*package*/ synchronized void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
-		if (mStatredCount > 0)
-			mMediaMuxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
+	/*package*/ void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+		final AsyncSampleWriter writer = mWriter;
+		if (writer != null) {
+			// this never takes the lock of this muxer
+			writer.write(trackIndex, byteBuf, bufferInfo);
+			return;
+		}
+		if (!mMetrics.isEnabled()) {
+			synchronized (this) {
+				mMetrics.recordFrameIn();
+				if (mStatredCount > 0) {
+					// write time is always counted because BitrateController uses it as storage speed
+					final long startNs = System.nanoTime();
+					internalWriteSampleData(trackIndex, byteBuf, bufferInfo);
+					mMetrics.recordWriteTime((System.nanoTime() - startNs) / 1000L);
+					mMetrics.recordWritten(bufferInfo.size);
+				} else {
+					mMetrics.recordDropped();
+				}
+			}
+			return;
+		}
+		final long requestNs = System.nanoTime();
+		synchronized (this) {
+			// metrics are updated only while holding the lock so that they have single writer
+			final long startNs = System.nanoTime();
+			mMetrics.recordFrameIn();
+			mMetrics.recordInputWait((startNs - requestNs) / 1000L);
+			if (mStatredCount > 0) {
+				internalWriteSampleData(trackIndex, byteBuf, bufferInfo);
+				final long endNs = System.nanoTime();
+				mMetrics.recordWriteTime((endNs - startNs) / 1000L);
+				mMetrics.recordWritten((endNs - startNs) / 1000L, bufferInfo.size);
+				if (!mFirstSampleWritten) {
+					mFirstSampleWritten = true;
+					mMetrics.recordStartLatency((endNs - mPrepareStartNs) / 1000L);
+				}
+			} else {
+				mMetrics.recordDropped();
+			}
+		}
+	}
+
+	private void internalWriteSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+		try {
+			mOutput.writeSampleData(trackIndex, byteBuf, bufferInfo);
+		} catch (final IOException e) {
+			throw new RuntimeException("failed to write sample data", e);
+		}
 	}
 
 //**********************************************************************
@@ -180,7 +498,7 @@ public class MediaMuxerWrapper {
      * @return return null when this app has no writing permission to external storage.
      */
     public static final File getCaptureFile(final String type, final String ext) {
-		final File dir = new File(Environment.getExternalStoragePublicDirectory(type), DIR_NAME);
+		final File dir = getCaptureDir(type);
 		Log.d(TAG, "path=" + dir.toString());
 		dir.mkdirs();
         if (dir.canWrite()) {
@@ -189,6 +507,15 @@ public class MediaMuxerWrapper {
     	return null;
     }
 
+    /**
+     * get directory of output files
+     * @param type Environment.DIRECTORY_MOVIES / Environment.DIRECTORY_DCIM etc.
+     * @return
+     */
+    public static final File getCaptureDir(final String type) {
+		return new File(Environment.getExternalStoragePublicDirectory(type), DIR_NAME);
+    }
+
     /**
      * get current date and time as String
      * @return
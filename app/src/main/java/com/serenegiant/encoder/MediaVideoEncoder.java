@@ -24,7 +24,6 @@ package com.serenegiant.encoder;
 
 import java.io.IOException;
 
-import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaCodecList;
 import android.media.MediaFormat;
@@ -38,7 +37,7 @@ public class MediaVideoEncoder extends MediaEncoder {
 	private static final boolean DEBUG = false;	// TODO set false on release
 	private static final String TAG = "MediaVideoEncoder";
 
-	private static final String MIME_TYPE = "video/avc";
+	public static final String MIME_TYPE = "video/avc";
 	// parameters for recording
     private static final int FRAME_RATE = 25;
     private static final float BPP = 0.25f;
@@ -47,35 +46,269 @@ public class MediaVideoEncoder extends MediaEncoder {
     private final int mHeight;
     private RenderHandler mRenderHandler;
     private Surface mSurface;
+    /**
+     * mSurface is released by the codec backend(persistent input Surface of pooled codec)
+     */
+    private boolean mSurfaceOwnedByCodec;
+    private BitrateController mBitrateController;
+    /**
+     * fixed bitrate, 0 means calculated from the size
+     */
+    private int mBitrate;
+    /**
+     * encoders of other resolutions that are fed by the render thread of this encoder
+     */
+    private final Object mRenditionSync = new Object();
+    private volatile MediaVideoEncoder[] mRenditions = new MediaVideoEncoder[0];
+    /**
+     * encoder whose render thread draws to this encoder, and the output slot on it
+     */
+    private volatile MediaVideoEncoder mRenditionOwner;
+    private int mRenditionSlot = -1;
 
 	public MediaVideoEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener, final int width, final int height) {
+		this(muxer, listener, width, height, false);
+	}
+
+	/**
+	 * @param muxer
+	 * @param listener
+	 * @param width
+	 * @param height
+	 * @param isRendition true if this encoder is fed by the render thread of another encoder
+	 * via #addRendition, its own render thread is not created
+	 */
+	public MediaVideoEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener,
+		final int width, final int height, final boolean isRendition) {
+
 		super(muxer, listener);
 		if (DEBUG) Log.i(TAG, "MediaVideoEncoder: ");
 		mWidth = width;
 		mHeight = height;
-		mRenderHandler = RenderHandler.createHandler(TAG);
+		mRenderHandler = isRendition ? null : RenderHandler.createHandler(TAG);
+		// render thread should not replay stale frames when the encoder falls behind
+		setBackpressurePolicy(BackpressurePolicy.LATEST_WINS);
+	}
+
+	/**
+	 * this also limits pending draw requests of the render thread
+	 * @param policy null means unlimited, default is BackpressurePolicy#LATEST_WINS
+	 */
+	@Override
+	public void setBackpressurePolicy(final BackpressurePolicy policy) {
+		super.setBackpressurePolicy(policy);
+		final RenderHandler handler = mRenderHandler;
+		if (handler == null) return;
+		if (policy == null) {
+			handler.setBackpressure(0, 0);
+		} else if (policy.getMode() == BackpressurePolicy.MODE_BLOCK) {
+			handler.setBackpressure(1, policy.getDeadlineNs());
+		} else {
+			handler.setBackpressure(policy.getCapacity(), 0);
+		}
 	}
 
 	public boolean frameAvailableSoon(final float[] tex_matrix) {
-		boolean result;
-		if (result = super.frameAvailableSoon())
-			mRenderHandler.draw(tex_matrix);
-		return result;
+		return frameAvailableSoon(tex_matrix, null, 0);
 	}
 
 	public boolean frameAvailableSoon(final float[] tex_matrix, final float[] mvp_matrix) {
+		return frameAvailableSoon(tex_matrix, mvp_matrix, 0);
+	}
+
+	/**
+	 * @param tex_matrix
+	 * @param mvp_matrix
+	 * @param timestampNs capture time of the frame(SurfaceTexture#getTimestamp),
+	 * 0 means current time
+	 * @return
+	 */
+	public boolean frameAvailableSoon(final float[] tex_matrix, final float[] mvp_matrix, final long timestampNs) {
 		boolean result;
-		if (result = super.frameAvailableSoon())
-			mRenderHandler.draw(tex_matrix, mvp_matrix);
+		final RenderHandler handler = mRenderHandler;
+		if ((handler != null) && (result = super.frameAvailableSoon())) {
+			// presentation time of the input Surface is passed to codec as is
+			final long ptsUs = mClock.videoPresentationTimeUs(timestampNs);
+			final MediaVideoEncoder[] renditions = mRenditions;
+			for (final MediaVideoEncoder rendition: renditions) {
+				// renditions are drawn by the same draw request with their own presentation time
+				if (rendition.requestRenditionFrame()) {
+					handler.requestOutput(rendition.mRenditionSlot,
+						rendition.mClock.videoPresentationTimeUs(timestampNs) * 1000L);
+				}
+			}
+			final int dropped = handler.draw(tex_matrix, mvp_matrix, ptsUs * 1000L);
+			if (dropped > 0) {
+				onFramesDropped(dropped);
+			}
+			if (mBitrateController != null) {
+				updateBitrate();
+			}
+		} else {
+			result = false;
+		}
 		return result;
 	}
 
 	@Override
 	public boolean frameAvailableSoon() {
-		boolean result;
-		if (result = super.frameAvailableSoon())
-			mRenderHandler.draw(null);
-		return result;
+		return frameAvailableSoon(null, null, 0);
+	}
+
+	/**
+	 * notify this rendition encoder that the owner's render thread will draw next frame
+	 * @return
+	 */
+	private boolean requestRenditionFrame() {
+		return super.frameAvailableSoon();
+	}
+
+	/**
+	 * fixed bitrate of this encoder, this should be called before #prepare
+	 * @param bitrate [bps], 0 means calculated from the size(default)
+	 */
+	public void setBitrate(final int bitrate) {
+		mBitrate = Math.max(0, bitrate);
+	}
+
+	/**
+	 * feed another encoder(e.g. lower resolution for live streaming) from the render thread
+	 * of this encoder, so that the camera texture is drawn to both input Surfaces with the same
+	 * EGL context by one draw request instead of running another render thread.
+	 * Both encoders should be prepared. The rendition receives frames only while this encoder
+	 * is capturing, so this encoder should be stopped after the renditions.
+	 * The rendition should be created with isRendition=true not to start unused render thread.
+	 * @param rendition
+	 * @return false if no free output slot
+	 */
+	public boolean addRendition(final MediaVideoEncoder rendition) {
+		if ((rendition == this) || (rendition.mSurface == null))
+			throw new IllegalArgumentException("rendition should be another prepared encoder");
+		final RenderHandler ownHandler;
+		synchronized (mRenditionSync) {
+			final RenderHandler handler = mRenderHandler;
+			if ((handler == null) || (rendition.mRenditionOwner != null)) return false;
+			final int slot = handler.addSurface(rendition.mSurface);
+			if (slot < 0) return false;
+			rendition.mRenditionOwner = this;
+			rendition.mRenditionSlot = slot;
+			// render thread of the rendition is not used anymore
+			ownHandler = rendition.mRenderHandler;
+			rendition.mRenderHandler = null;
+			final MediaVideoEncoder[] renditions = new MediaVideoEncoder[mRenditions.length + 1];
+			System.arraycopy(mRenditions, 0, renditions, 0, mRenditions.length);
+			renditions[mRenditions.length] = rendition;
+			mRenditions = renditions;
+		}
+		if (ownHandler != null) {
+			ownHandler.release();
+		}
+		return true;
+	}
+
+	/**
+	 * stop feeding the rendition, this waits until the render thread releases
+	 * EGL surface of the rendition
+	 * @param rendition
+	 */
+	public void removeRendition(final MediaVideoEncoder rendition) {
+		final RenderHandler handler;
+		final int slot;
+		synchronized (mRenditionSync) {
+			if (rendition.mRenditionOwner != this) return;
+			final MediaVideoEncoder[] renditions = new MediaVideoEncoder[mRenditions.length - 1];
+			int n = 0;
+			for (final MediaVideoEncoder r: mRenditions) {
+				if (r != rendition) renditions[n++] = r;
+			}
+			mRenditions = renditions;
+			handler = mRenderHandler;
+			slot = rendition.mRenditionSlot;
+			rendition.mRenditionOwner = null;
+			rendition.mRenditionSlot = -1;
+		}
+		// wait for the render thread without holding the lock,
+		// the render thread may be waiting for it(e.g. #getRenderCost)
+		if (handler != null) {
+			handler.removeSurface(slot);
+		}
+	}
+
+	/**
+	 * measure time until GPU finishes drawing of each output of the render thread,
+	 * this calls glFinish for each output, so use this only for measurement
+	 * @param enable
+	 */
+	public void setRenderGpuTiming(final boolean enable) {
+		final RenderHandler handler = mRenderHandler;
+		if (handler != null) {
+			handler.setGpuTiming(enable);
+		}
+	}
+
+	/**
+	 * CPU time of the render thread to draw one frame to the input Surface of this encoder,
+	 * this is cost of this rendition if this encoder is fed by another encoder
+	 * @return null if not available
+	 */
+	public LatencyRecorder.Snapshot getRenderCpuCost() {
+		return getRenderCost(false);
+	}
+
+	/**
+	 * time until GPU finished drawing to the input Surface of this encoder, see #setRenderGpuTiming
+	 * @return null if not available
+	 */
+	public LatencyRecorder.Snapshot getRenderGpuCost() {
+		return getRenderCost(true);
+	}
+
+	private LatencyRecorder.Snapshot getRenderCost(final boolean gpu) {
+		synchronized (mRenditionSync) {
+			final MediaVideoEncoder owner = mRenditionOwner;
+			final RenderHandler handler = owner != null ? owner.mRenderHandler : mRenderHandler;
+			if (handler == null) return null;
+			final int output = owner != null ? mRenditionSlot + 1 : 0;
+			return gpu ? handler.getGpuCost(output) : handler.getCpuCost(output);
+		}
+	}
+
+	/**
+	 * adjust bitrate while recording, this should be called before #prepare.
+	 * The controller uses counters of the metrics and time spent in writing(storage speed)
+	 * that are always counted, so this works without enabling metrics.
+	 * @param controller null means fixed bitrate(default)
+	 */
+	public void setBitrateController(final BitrateController controller) {
+		mBitrateController = controller;
+	}
+
+	/**
+	 * evaluate metrics and change bitrate of the codec if required
+	 */
+	private void updateBitrate() {
+		final MediaMuxerWrapper muxer = mWeakMuxer.get();
+		final EncoderBackend codec = mCodec;
+		if ((muxer == null) || (codec == null)) return;
+		final long nowNs = System.nanoTime();
+		// taking snapshots allocates, so do it only once per interval
+		if (!mBitrateController.isUpdateDue(nowNs)) return;
+		final int bitrate = mBitrateController.update(nowNs, getMetrics(),
+			muxer.getDroppedSamples(), muxer.getWriteTimeUs());
+		if (bitrate > 0) {
+			if (DEBUG) Log.v(TAG, "updateBitrate:" + mBitrateController);
+			try {
+				codec.setVideoBitrate(bitrate);
+			} catch (final IllegalStateException e) {
+				// codec is already released
+				if (DEBUG) Log.w(TAG, "updateBitrate:", e);
+			}
+		}
+	}
+
+	@Override
+	/*package*/ boolean isAudioEncoder() {
+		return false;
 	}
 
 	@Override
@@ -84,26 +317,34 @@ public class MediaVideoEncoder extends MediaEncoder {
         mTrackIndex = -1;
         mMuxerStarted = mIsEOS = false;
 
-        final MediaCodecInfo videoCodecInfo = selectVideoCodec(MIME_TYPE);
-        if (videoCodecInfo == null) {
+        final CodecCapabilityCache.Entry videoCodec = CodecCapabilityCache.get(MIME_TYPE, VIDEO_CODEC_LOADER);
+        if (videoCodec == null) {
             Log.e(TAG, "Unable to find an appropriate codec for " + MIME_TYPE);
             return;
         }
-		if (DEBUG) Log.i(TAG, "selected codec: " + videoCodecInfo.getName());
+		if (DEBUG) Log.i(TAG, "selected codec: " + videoCodec);
 
         final MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, mWidth, mHeight);
         format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);	// API >= 18
-        format.setInteger(MediaFormat.KEY_BIT_RATE, calcBitRate());
+        int bitrate = videoCodec.clampBitrate(mBitrate > 0 ? mBitrate : calcBitRate());
+        if (mBitrateController != null) {
+        	bitrate = mBitrateController.start(bitrate);
+        }
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
         format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
         format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 10);
 		if (DEBUG) Log.i(TAG, "format: " + format);
 
-        mMediaCodec = MediaCodec.createEncoderByType(MIME_TYPE);
-        mMediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        // get Surface for encoder input
-        // this method only can call between #configure and #start
-        mSurface = mMediaCodec.createInputSurface();	// API >= 18
-        mMediaCodec.start();
+        mCodec = createBackend(MIME_TYPE, MediaCodecBackend.FACTORY);
+        configureCodec(format);
+        if (mCodec instanceof MediaCodecBackend) {
+	        // get Surface for encoder input
+	        // this method only can call between #configure and #start
+	        final MediaCodecBackend backend = (MediaCodecBackend)mCodec;
+	        mSurface = backend.createInputSurface();	// API >= 18
+	        mSurfaceOwnedByCodec = backend.isInputSurfaceOwner();
+        }
+        mCodec.start();
         if (DEBUG) Log.i(TAG, "prepare finishing");
         if (mListener != null) {
         	try {
@@ -115,19 +356,48 @@ public class MediaVideoEncoder extends MediaEncoder {
 	}
 
 	public void setEglContext(final EGLContext shared_context, final int tex_id) {
-		mRenderHandler.setEglContext(shared_context, tex_id, mSurface, true);
+		final RenderHandler handler = mRenderHandler;
+		if (handler != null) {
+			handler.setEglContext(shared_context, tex_id, mSurface, true);
+		}
 	}
 
 	@Override
     protected void release() {
 		if (DEBUG) Log.i(TAG, "release:");
+		if (mBitrateController != null) {
+			Log.i(TAG, mBitrateController.toString());
+		}
+		final MediaVideoEncoder owner;
+		synchronized (mRenditionSync) {
+			owner = mRenditionOwner;
+		}
+		if ((owner != null) || (mRenditions.length > 0)) {
+			Log.i(TAG, String.format("%dx%d render cost cpu:%s", mWidth, mHeight, getRenderCpuCost()));
+		}
+		if (owner != null) {
+			// EGL surface should be released before the Surface
+			owner.removeRendition(this);
+		}
 		if (mSurface != null) {
-			mSurface.release();
+			if (!mSurfaceOwnedByCodec) {
+				mSurface.release();
+			}
 			mSurface = null;
 		}
-		if (mRenderHandler != null) {
-			mRenderHandler.release();
+		final RenderHandler handler;
+		synchronized (mRenditionSync) {
+			handler = mRenderHandler;
 			mRenderHandler = null;
+			// output EGL surfaces of the renditions are released with the render thread
+			for (final MediaVideoEncoder rendition: mRenditions) {
+				rendition.mRenditionOwner = null;
+				rendition.mRenditionSlot = -1;
+			}
+			mRenditions = new MediaVideoEncoder[0];
+		}
+		if (handler != null) {
+			handler.release();
 		}
 		super.release();
 	}
@@ -138,6 +408,19 @@ public class MediaVideoEncoder extends MediaEncoder {
 		return bitrate;
 	}
 
+	/**
+	 * walk MediaCodecList only when CodecCapabilityCache does not have the result
+	 */
+	private static final CodecCapabilityCache.Loader VIDEO_CODEC_LOADER = new CodecCapabilityCache.Loader() {
+		@Override
+		public CodecCapabilityCache.Entry load(final String mimeType) {
+			final MediaCodecInfo codecInfo = selectVideoCodec(mimeType);
+			return codecInfo != null
+				? CodecCapabilityCache.Entry.create(codecInfo, mimeType, selectColorFormat(codecInfo, mimeType))
+				: null;
+		}
+	};
+
     /**
      * select the first codec that match a specific MIME type
      * @param mimeType
@@ -222,10 +505,11 @@ public class MediaVideoEncoder extends MediaEncoder {
     }
 
     @Override
-    protected void signalEndOfInputStream() {
+    protected boolean signalEndOfInputStream(final long maxWaitNs) {
 		if (DEBUG) Log.d(TAG, "sending EOS to encoder");
-		mMediaCodec.signalEndOfInputStream();	// API >= 18
+		mCodec.signalEndOfInputStream();	// API >= 18
 		mIsEOS = true;
+		return true;
 	}
 
 }
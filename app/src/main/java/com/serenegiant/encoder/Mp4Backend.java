@@ -0,0 +1,85 @@
+package com.serenegiant.encoder;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: Mp4Backend.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import com.serenegiant.muxer.Mp4Writer;
+
+/**
+ * MuxerBackend implementation that writes progressive MP4 with Mp4Writer
+ * instead of android.media.MediaMuxer. With journal, unfinished file can be
+ * recovered with com.serenegiant.muxer.Mp4Recovery after crash.
+ */
+public class Mp4Backend implements MuxerBackend {
+
+	/**
+	 * create factory of Mp4Backend
+	 * @param useJournal write sample table into journal file for crash recovery
+	 * @return
+	 */
+	public static Factory factory(final boolean useJournal) {
+		return new Factory() {
+			@Override
+			public MuxerBackend createMuxer(final String outputPath) throws IOException {
+				return new Mp4Backend(outputPath, useJournal);
+			}
+		};
+	}
+
+	private final Mp4Writer mWriter;
+
+	public Mp4Backend(final String outputPath, final boolean useJournal) throws IOException {
+		mWriter = new Mp4Writer(outputPath, useJournal);
+	}
+
+	@Override
+	public int addTrack(final MediaFormat format) {
+		return mWriter.addTrack(FragmentedMp4Backend.toTrackFormat(format));
+	}
+
+	@Override
+	public void start() throws IOException {
+		mWriter.start();
+	}
+
+	@Override
+	public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) throws IOException {
+		mWriter.writeSampleData(trackIndex, byteBuf, bufferInfo.offset, bufferInfo.size,
+			bufferInfo.presentationTimeUs, (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+	}
+
+	@Override
+	public void stop() throws IOException {
+		mWriter.stop();
+	}
+
+	@Override
+	public void release() {
+		mWriter.release();
+	}
+}
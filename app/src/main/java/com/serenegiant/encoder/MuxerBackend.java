@@ -0,0 +1,56 @@
+package com.serenegiant.encoder;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: MuxerBackend.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+/**
+ * Abstraction of the container writer that MediaMuxerWrapper uses.
+ * Semantics of each method are same as android.media.MediaMuxer.
+ */
+public interface MuxerBackend {
+	/**
+	 * factory to create container writer for specific output file
+	 */
+	public interface Factory {
+		public MuxerBackend createMuxer(final String outputPath) throws IOException;
+	}
+
+	/**
+	 * @param format output format of encoder
+	 * @return track index
+	 */
+	public int addTrack(final MediaFormat format);
+
+	public void start() throws IOException;
+
+	public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) throws IOException;
+
+	public void stop() throws IOException;
+
+	public void release();
+}
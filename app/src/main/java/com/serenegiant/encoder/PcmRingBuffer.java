@@ -0,0 +1,210 @@
+package com.serenegiant.encoder;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: PcmRingBuffer.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free single-producer/single-consumer ring of fixed size PCM frames
+ * between audio capturing thread and encoder thread(or EncoderScheduler).
+ * Frames are stored in one direct buffer that is allocated on creation,
+ * producer and consumer get a view of the slot, fill/consume it in place and publish it,
+ * so this never allocates and never blocks either side.
+ * When the ring is full, the new frame is dropped and counted as overrun
+ * (the capturing thread should keep reading the mic, otherwise AudioRecord overruns).
+ * The producer should wake up the consumer after #commitWrite(e.g. MediaEncoder#frameAvailableSoon).
+ * #beginWrite/#commitWrite should be called only on one producer thread and
+ * #poll/#release only on one consumer thread at a time. Counters can be read from any thread.
+ */
+public final class PcmRingBuffer {
+	private final int mFrameBytes;
+	private final int mCapacity;
+	private final int mMask;
+	private final ByteBuffer mData;
+	/**
+	 * view of each slot, producer and consumer never access same slot at the same time
+	 */
+	private final ByteBuffer[] mSlots;
+	private final int[] mSizes;
+	private final long[] mPtsUs;
+	/**
+	 * sequence number of next frame to write, only producer updates this
+	 */
+	private final AtomicLong mHead = new AtomicLong();
+	/**
+	 * sequence number of next frame to read, only consumer updates this
+	 */
+	private final AtomicLong mTail = new AtomicLong();
+	// counters, single writer, so lazySet is enough
+	private final AtomicLong mOverruns = new AtomicLong();
+	private final AtomicLong mMaxFill = new AtomicLong();
+	private volatile boolean mClosed;
+	// size and presentation time of the frame that #poll returned
+	private int mSize;
+	private long mPresentationTimeUs;
+
+	/**
+	 * @param frameBytes maximum size of one frame
+	 * @param frames number of frames, rounded up to power of 2
+	 */
+	public PcmRingBuffer(final int frameBytes, final int frames) {
+		if ((frameBytes <= 0) || (frames <= 0)) throw new IllegalArgumentException();
+		mFrameBytes = frameBytes;
+		mCapacity = frames > 1 ? Integer.highestOneBit(frames - 1) << 1 : 1;
+		mMask = mCapacity - 1;
+		mData = ByteBuffer.allocateDirect(frameBytes * mCapacity);
+		mSlots = new ByteBuffer[mCapacity];
+		for (int i = 0; i < mCapacity; i++) {
+			mData.limit((i + 1) * frameBytes).position(i * frameBytes);
+			mSlots[i] = mData.slice();
+		}
+		mSizes = new int[mCapacity];
+		mPtsUs = new long[mCapacity];
+	}
+
+	public int getCapacity() {
+		return mCapacity;
+	}
+
+	public int getFrameBytes() {
+		return mFrameBytes;
+	}
+
+	/**
+	 * number of frames that were dropped because the ring was full
+	 * @return
+	 */
+	public long getOverruns() {
+		return mOverruns.get();
+	}
+
+	/**
+	 * maximum number of frames that were waiting for the consumer
+	 * @return
+	 */
+	public long getMaxFill() {
+		return mMaxFill.get();
+	}
+
+	/**
+	 * number of frames that are waiting for the consumer
+	 * @return
+	 */
+	public int size() {
+		return (int)(mHead.get() - mTail.get());
+	}
+
+//--------------------------------------------------------------------------------
+// producer
+	/**
+	 * get cleared slot to fill the next frame
+	 * @return null if the ring is full, the frame should be dropped
+	 */
+	public ByteBuffer beginWrite() {
+		final long head = mHead.get();
+		if (head - mTail.get() >= mCapacity) {
+			mOverruns.lazySet(mOverruns.get() + 1);
+			return null;
+		}
+		final ByteBuffer slot = mSlots[(int)head & mMask];
+		slot.clear();
+		return slot;
+	}
+
+	/**
+	 * publish the slot that #beginWrite returned
+	 * @param size size of the frame
+	 * @param presentationTimeUs
+	 */
+	public void commitWrite(final int size, final long presentationTimeUs) {
+		final long head = mHead.get();
+		final int ix = (int)head & mMask;
+		mSizes[ix] = size;
+		mPtsUs[ix] = presentationTimeUs;
+		// volatile store publishes slot data and metadata before the new head
+		mHead.set(head + 1);
+		final long fill = head + 1 - mTail.get();
+		if (fill > mMaxFill.get()) {
+			mMaxFill.lazySet(fill);
+		}
+	}
+
+	/**
+	 * notify the consumer that no more frame comes, frames in the ring can be still read
+	 */
+	public void close() {
+		mClosed = true;
+	}
+
+//--------------------------------------------------------------------------------
+// consumer
+	/**
+	 * get the oldest frame without waiting.
+	 * The frame stays in the ring until #release is called,
+	 * so same frame is returned again if #release is not called.
+	 * @return view of the frame(position=0, limit=size of the frame), null if the ring is empty
+	 */
+	public ByteBuffer poll() {
+		final long tail = mTail.get();
+		if (mHead.get() == tail) return null;
+		final int ix = (int)tail & mMask;
+		mSize = mSizes[ix];
+		mPresentationTimeUs = mPtsUs[ix];
+		final ByteBuffer slot = mSlots[ix];
+		slot.limit(mSize).position(0);
+		return slot;
+	}
+
+	/**
+	 * size of the frame that #poll returned
+	 * @return
+	 */
+	public int getSize() {
+		return mSize;
+	}
+
+	/**
+	 * presentation time of the frame that #poll returned
+	 * @return
+	 */
+	public long getPresentationTimeUs() {
+		return mPresentationTimeUs;
+	}
+
+	/**
+	 * return the slot of the frame that #poll returned to the producer
+	 */
+	public void release() {
+		mTail.lazySet(mTail.get() + 1);
+	}
+
+	/**
+	 * whether #close was called,
+	 * frames committed before #close are visible after this returned true
+	 * @return
+	 */
+	public boolean isClosed() {
+		return mClosed;
+	}
+}
@@ -0,0 +1,381 @@
+package com.serenegiant.encoder;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: PreRollMuxerBackend.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+/**
+ * MuxerBackend that keeps encoded samples of last N seconds in bounded off-heap ring buffer
+ * until #trigger is called, so that encoders can run before recording is requested.
+ * The ring is indexed by video key frame and old samples are evicted per GOP,
+ * so buffered history always starts with key frame(audio only recording can start at any sample).
+ * When triggered, output file is created and the history is written to it
+ * followed by live samples. Nothing is written if this is stopped without trigger.
+ * Memory usage is fixed to maxBytes of sample data and index arrays that are allocated on creation.
+ * Except #trigger, methods should be called on the thread that writes samples
+ * (MediaMuxerWrapper serializes them).
+ */
+public class PreRollMuxerBackend implements MuxerBackend {
+	private static final boolean DEBUG = false;	// TODO set false on release
+	private static final String TAG = "PreRollMuxerBackend";
+
+	/**
+	 * expected maximum number of samples per second(60fps video and AAC frames)
+	 * that is used to decide the size of sample index
+	 */
+	private static final int MAX_SAMPLES_PER_SECOND = 128;
+
+	/**
+	 * create factory of PreRollMuxerBackend
+	 * @param outputFactory factory of container writer of the output file, e.g. MediaMuxerBackend.FACTORY
+	 * @param durationMs duration of history that is kept, actual history can be longer by one GOP
+	 * @param maxBytes maximum size of buffered samples
+	 * @return
+	 */
+	public static Factory factory(final Factory outputFactory, final long durationMs, final int maxBytes) {
+		return new Factory() {
+			@Override
+			public MuxerBackend createMuxer(final String outputPath) {
+				return new PreRollMuxerBackend(outputPath, outputFactory, durationMs, maxBytes);
+			}
+		};
+	}
+
+	private final String mOutputPath;
+	private final Factory mOutputFactory;
+	private final long mDurationUs;
+	private final List<MediaFormat> mFormats = new ArrayList<MediaFormat>();
+	private final MediaCodec.BufferInfo mFlushInfo = new MediaCodec.BufferInfo();
+	private int mVideoTrack = -1;
+	private volatile boolean mRequestTrigger;
+	private MuxerBackend mOutput;
+	private int[] mTrackMap;
+	/**
+	 * sample data, samples are stored contiguously and wrap around at the end
+	 */
+	private final ByteBuffer mData;
+	private final ByteBuffer mView;
+	/**
+	 * sample index, sample of sequence number seq is at seq % mMaxSamples
+	 */
+	private final int mMaxSamples;
+	private final int[] mTracks;
+	private final int[] mOffsets;
+	private final int[] mSizes;
+	private final int[] mFlags;
+	private final long[] mPtsUs;
+	private long mHead, mTail;
+	private int mWritePos;
+	private int mBytes;
+	/**
+	 * sequence numbers of buffered key frames, key frame of sequence number k is at k % mMaxSamples
+	 */
+	private final long[] mKeyFrames;
+	private long mKeyHead, mKeyTail;
+	/**
+	 * true while buffer is empty and samples are discarded until next key frame
+	 */
+	private boolean mWaitKeyFrame = true;
+	private volatile long mBufferedDurationUs;
+	private volatile int mBufferedBytes;
+	private volatile long mEvictedSamples;
+
+	public PreRollMuxerBackend(final String outputPath, final Factory outputFactory,
+		final long durationMs, final int maxBytes) {
+
+		mOutputPath = outputPath;
+		mOutputFactory = outputFactory;
+		mDurationUs = Math.max(0, durationMs) * 1000L;
+		mData = ByteBuffer.allocateDirect(maxBytes);
+		mView = mData.duplicate();
+		mMaxSamples = (int)Math.min(Integer.MAX_VALUE / 2,
+			(Math.max(0, durationMs) / 1000 + 2) * MAX_SAMPLES_PER_SECOND);
+		mTracks = new int[mMaxSamples];
+		mOffsets = new int[mMaxSamples];
+		mSizes = new int[mMaxSamples];
+		mFlags = new int[mMaxSamples];
+		mPtsUs = new long[mMaxSamples];
+		mKeyFrames = new long[mMaxSamples];
+	}
+
+	/**
+	 * start writing to the output file, buffered history is written first.
+	 * Actual writing starts on the thread that writes next sample(or stops this backend).
+	 * This can be called from any thread.
+	 */
+	public void trigger() {
+		if (DEBUG) Log.v(TAG, "trigger:");
+		mRequestTrigger = true;
+	}
+
+	/**
+	 * whether #trigger was called
+	 * @return
+	 */
+	public boolean isTriggered() {
+		return mRequestTrigger;
+	}
+
+	/**
+	 * duration of buffered history[usec], 0 after triggered
+	 * @return
+	 */
+	public long getBufferedDurationUs() {
+		return mBufferedDurationUs;
+	}
+
+	/**
+	 * size of buffered history, 0 after triggered
+	 * @return
+	 */
+	public int getBufferedBytes() {
+		return mBufferedBytes;
+	}
+
+	/**
+	 * number of samples that were evicted from the buffer(or could not be buffered)
+	 * @return
+	 */
+	public long getEvictedSamples() {
+		return mEvictedSamples;
+	}
+
+	@Override
+	public int addTrack(final MediaFormat format) {
+		if (mTrackMap != null) throw new IllegalStateException("already started");
+		final String mime = format.getString(MediaFormat.KEY_MIME);
+		if ((mime != null) && mime.startsWith("video/")) {
+			mVideoTrack = mFormats.size();
+		}
+		mFormats.add(format);
+		return mFormats.size() - 1;
+	}
+
+	@Override
+	public void start() throws IOException {
+		mTrackMap = new int[mFormats.size()];
+	}
+
+	@Override
+	public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) throws IOException {
+		if ((mOutput == null) && mRequestTrigger) {
+			openOutput();
+		}
+		if (mOutput != null) {
+			mOutput.writeSampleData(mTrackMap[trackIndex], byteBuf, bufferInfo);
+		} else {
+			append(trackIndex, byteBuf, bufferInfo);
+		}
+	}
+
+	@Override
+	public void stop() throws IOException {
+		if ((mOutput == null) && mRequestTrigger) {
+			openOutput();
+		}
+		if (mOutput != null) {
+			mOutput.stop();
+		}
+		clear();
+	}
+
+	@Override
+	public void release() {
+		if (mOutput != null) {
+			mOutput.release();
+			mOutput = null;
+		}
+		clear();
+	}
+
+	@Override
+	public String toString() {
+		return "buffered=" + mBufferedDurationUs + "[usec](" + mBufferedBytes + " bytes),evicted=" + mEvictedSamples;
+	}
+
+//--------------------------------------------------------------------------------
+	private boolean isSyncPoint(final int trackIndex, final int flags) {
+		return (mVideoTrack < 0)
+			|| ((trackIndex == mVideoTrack) && ((flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0));
+	}
+
+	/**
+	 * add sample to the ring buffer, old GOPs are evicted if there is no enough space
+	 * or they are older than mDurationUs
+	 */
+	private void append(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+		final int size = bufferInfo.size;
+		final boolean isSyncPoint = isSyncPoint(trackIndex, bufferInfo.flags);
+		if (mWaitKeyFrame && !isSyncPoint) {
+			mEvictedSamples++;
+			return;
+		}
+		int offset;
+		for (;;) {
+			offset = (mTail - mHead < mMaxSamples) ? allocate(size) : -1;
+			if (offset >= 0) break;
+			if (!evictGop()) {
+				// this sample is larger than whole buffer
+				mEvictedSamples++;
+				mWaitKeyFrame = true;
+				updateStats();
+				return;
+			}
+			if (mHead == mTail) {
+				// evicted whole buffer, the sample can be stored only if it is sync point
+				mWaitKeyFrame = !isSyncPoint;
+				if (mWaitKeyFrame) {
+					mEvictedSamples++;
+					updateStats();
+					return;
+				}
+			}
+		}
+		mWaitKeyFrame = false;
+		byteBuf.limit(bufferInfo.offset + size);
+		byteBuf.position(bufferInfo.offset);
+		mView.limit(offset + size);
+		mView.position(offset);
+		mView.put(byteBuf);
+		final int ix = (int)(mTail % mMaxSamples);
+		mTracks[ix] = trackIndex;
+		mOffsets[ix] = offset;
+		mSizes[ix] = size;
+		mFlags[ix] = bufferInfo.flags;
+		mPtsUs[ix] = bufferInfo.presentationTimeUs;
+		if (isSyncPoint) {
+			mKeyFrames[(int)(mKeyTail++ % mMaxSamples)] = mTail;
+		}
+		mTail++;
+		mWritePos = offset + size;
+		mBytes += size;
+		// evict GOPs that are not necessary to keep mDurationUs of history
+		while ((mKeyTail - mKeyHead >= 2)
+			&& (mPtsUs[(int)(mKeyFrames[(int)((mKeyHead + 1) % mMaxSamples)] % mMaxSamples)]
+				<= bufferInfo.presentationTimeUs - mDurationUs)) {
+
+			evictGop();
+		}
+		updateStats();
+	}
+
+	/**
+	 * find space for sample
+	 * @param size
+	 * @return offset in mData, -1 if there is no enough space
+	 */
+	private int allocate(final int size) {
+		final int capacity = mData.capacity();
+		if (mHead == mTail) {
+			return size <= capacity ? 0 : -1;
+		}
+		final int headPos = mOffsets[(int)(mHead % mMaxSamples)];
+		if (mWritePos > headPos) {
+			if (size <= capacity - mWritePos) {
+				return mWritePos;
+			}
+			return size <= headPos ? 0 : -1;
+		} else if (mWritePos < headPos) {
+			return size <= headPos - mWritePos ? mWritePos : -1;
+		}
+		// buffer is full
+		return -1;
+	}
+
+	/**
+	 * evict oldest GOP(samples until next key frame)
+	 * @return false if buffer was already empty
+	 */
+	private boolean evictGop() {
+		if (mHead == mTail) return false;
+		final long end;
+		if (mKeyTail - mKeyHead >= 2) {
+			end = mKeyFrames[(int)((mKeyHead + 1) % mMaxSamples)];
+		} else {
+			end = mTail;
+		}
+		mEvictedSamples += end - mHead;
+		for (long seq = mHead; seq < end; seq++) {
+			mBytes -= mSizes[(int)(seq % mMaxSamples)];
+		}
+		mHead = end;
+		if (mKeyHead < mKeyTail) {
+			mKeyHead++;
+		}
+		if (mHead == mTail) {
+			mKeyHead = mKeyTail;
+			mWritePos = 0;
+		}
+		return true;
+	}
+
+	private void updateStats() {
+		if (mHead == mTail) {
+			mBufferedDurationUs = 0;
+		} else {
+			final int last = (int)((mTail - 1) % mMaxSamples);
+			mBufferedDurationUs = mPtsUs[last] - mPtsUs[(int)(mHead % mMaxSamples)];
+		}
+		mBufferedBytes = mBytes;
+	}
+
+	private void clear() {
+		mHead = mTail = 0;
+		mKeyHead = mKeyTail = 0;
+		mWritePos = 0;
+		mBytes = 0;
+		mWaitKeyFrame = true;
+		updateStats();
+	}
+
+	/**
+	 * create output file and write buffered history to it
+	 * @throws IOException
+	 */
+	private void openOutput() throws IOException {
+		if (DEBUG) Log.v(TAG, "openOutput:" + toString());
+		final MuxerBackend output = mOutputFactory.createMuxer(mOutputPath);
+		final int n = mFormats.size();
+		for (int i = 0; i < n; i++) {
+			mTrackMap[i] = output.addTrack(mFormats.get(i));
+		}
+		output.start();
+		mOutput = output;
+		for (long seq = mHead; seq < mTail; seq++) {
+			final int ix = (int)(seq % mMaxSamples);
+			final int offset = mOffsets[ix];
+			mView.limit(offset + mSizes[ix]);
+			mView.position(offset);
+			mFlushInfo.set(offset, mSizes[ix], mPtsUs[ix], mFlags[ix]);
+			output.writeSampleData(mTrackMap[mTracks[ix]], mView, mFlushInfo);
+		}
+		clear();
+	}
+}
@@ -0,0 +1,327 @@
+package com.serenegiant.encoder;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: SegmentedMuxerBackend.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+/**
+ * MuxerBackend that splits recording into multiple files by duration and/or size
+ * without stopping encoders.
+ * When the limit is reached, video encoder is requested to generate key frame
+ * and output is switched to next file at that key frame, so no sample is dropped
+ * and each segment starts with key frame. Audio only recording switches at any sample.
+ * Previous segment is finished on private thread because MediaMuxer#stop may take long time.
+ * Segments keep presentation time of the recording, file name of each segment is
+ * the output path with "_000", "_001"... suffix.
+ */
+public class SegmentedMuxerBackend implements MuxerBackend {
+	private static final boolean DEBUG = false;	// TODO set false on release
+	private static final String TAG = "SegmentedMuxerBackend";
+
+	/**
+	 * listener to get notified of segments
+	 */
+	public interface SegmentListener {
+		/**
+		 * called on the thread that writes samples when new segment is ready
+		 * @param index
+		 * @param path
+		 * @param openLatencyUs time to create/start container writer of the segment
+		 */
+		public void onSegmentOpened(int index, String path, long openLatencyUs);
+		/**
+		 * called on private closing thread(or the thread that stops recording for the last segment)
+		 * @param index
+		 * @param path
+		 * @param closeLatencyUs time to stop/release container writer of the segment
+		 * @param bytes size of samples in the segment
+		 */
+		public void onSegmentClosed(int index, String path, long closeLatencyUs, long bytes);
+	}
+
+	/**
+	 * create factory of SegmentedMuxerBackend
+	 * @param segmentFactory factory of container writer of each segment, e.g. MediaMuxerBackend.FACTORY
+	 * @param maxDurationMs maximum duration of each segment, 0 means no limit
+	 * @param maxBytes maximum size of samples in each segment, 0 means no limit.
+	 * this is soft limit because segment can be switched only at key frame
+	 * @param listener nullable
+	 * @return
+	 */
+	public static Factory factory(final Factory segmentFactory,
+		final long maxDurationMs, final long maxBytes, final SegmentListener listener) {
+
+		return new Factory() {
+			@Override
+			public MuxerBackend createMuxer(final String outputPath) throws IOException {
+				return new SegmentedMuxerBackend(outputPath, segmentFactory, maxDurationMs, maxBytes, listener);
+			}
+		};
+	}
+
+	/**
+	 * get path of specific segment
+	 * @param outputPath
+	 * @param index
+	 * @return
+	 */
+	public static String getSegmentPath(final String outputPath, final int index) {
+		final int dot = outputPath.lastIndexOf('.');
+		final int sep = outputPath.lastIndexOf('/');
+		final String suffix = String.format(Locale.US, "_%03d", index);
+		return dot > sep
+			? outputPath.substring(0, dot) + suffix + outputPath.substring(dot)
+			: outputPath + suffix;
+	}
+
+	private final String mOutputPath;
+	private final Factory mSegmentFactory;
+	private final long mMaxDurationUs;
+	private final long mMaxBytes;
+	private final SegmentListener mListener;
+	private final List<MediaFormat> mFormats = new ArrayList<MediaFormat>();
+	private final LatencyRecorder mOpenLatency = new LatencyRecorder();
+	/**
+	 * close latency is recorded on closing threads, so this is guarded by itself
+	 */
+	private final LatencyRecorder mCloseLatency = new LatencyRecorder();
+	private volatile Runnable mSyncFrameRequester;
+	private int mVideoTrack = -1;
+	private MuxerBackend mCurrent;
+	private int[] mTrackMap;
+	private int mSegmentIndex = -1;
+	private long mSegmentStartUs = -1;
+	private long mSegmentBytes;
+	private boolean mRolloverRequested;
+	/**
+	 * thread that is closing previous segment, each closing thread waits for previous one
+	 */
+	private Thread mCloser;
+
+	public SegmentedMuxerBackend(final String outputPath, final Factory segmentFactory,
+		final long maxDurationMs, final long maxBytes, final SegmentListener listener) {
+
+		mOutputPath = outputPath;
+		mSegmentFactory = segmentFactory;
+		mMaxDurationUs = Math.max(0, maxDurationMs) * 1000L;
+		mMaxBytes = Math.max(0, maxBytes);
+		mListener = listener;
+	}
+
+	/**
+	 * set the method to request key frame to video encoder, MediaMuxerWrapper sets this
+	 * @param requester
+	 */
+	public void setSyncFrameRequester(final Runnable requester) {
+		mSyncFrameRequester = requester;
+	}
+
+	@Override
+	public int addTrack(final MediaFormat format) {
+		if (mCurrent != null) throw new IllegalStateException("already started");
+		final String mime = format.getString(MediaFormat.KEY_MIME);
+		if ((mime != null) && mime.startsWith("video/")) {
+			mVideoTrack = mFormats.size();
+		}
+		mFormats.add(format);
+		return mFormats.size() - 1;
+	}
+
+	@Override
+	public void start() throws IOException {
+		mTrackMap = new int[mFormats.size()];
+		openSegment();
+	}
+
+	@Override
+	public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) throws IOException {
+		final long ptsUs = bufferInfo.presentationTimeUs;
+		if (mSegmentStartUs < 0) {
+			mSegmentStartUs = ptsUs;
+		}
+		if (((mMaxDurationUs > 0) && (ptsUs - mSegmentStartUs >= mMaxDurationUs))
+			|| ((mMaxBytes > 0) && (mSegmentBytes + bufferInfo.size > mMaxBytes))) {
+
+			if ((mVideoTrack < 0) || ((trackIndex == mVideoTrack)
+				&& ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0))) {
+				rollover();
+				mSegmentStartUs = ptsUs;
+			} else if (!mRolloverRequested) {
+				// keep writing to current segment until key frame comes
+				mRolloverRequested = true;
+				final Runnable requester = mSyncFrameRequester;
+				if (requester != null) {
+					requester.run();
+				}
+			}
+		}
+		mCurrent.writeSampleData(mTrackMap[trackIndex], byteBuf, bufferInfo);
+		mSegmentBytes += bufferInfo.size;
+	}
+
+	@Override
+	public void stop() throws IOException {
+		final MuxerBackend current = mCurrent;
+		mCurrent = null;
+		if (current != null) {
+			closeSegment(current, mSegmentIndex, mSegmentBytes);
+		}
+		joinCloser();
+		if (DEBUG) Log.v(TAG, "stop:" + this);
+	}
+
+	@Override
+	public void release() {
+		final MuxerBackend current = mCurrent;
+		mCurrent = null;
+		if (current != null) {
+			current.release();
+		}
+		joinCloser();
+	}
+
+	/**
+	 * number of segments that were opened
+	 * @return
+	 */
+	public int getSegmentCount() {
+		return mSegmentIndex + 1;
+	}
+
+	/**
+	 * latency to create and start container writer of each segment[usec]
+	 * @return
+	 */
+	public LatencyRecorder.Snapshot getOpenLatency() {
+		return mOpenLatency.snapshot();
+	}
+
+	/**
+	 * latency to stop and release container writer of each segment[usec]
+	 * @return
+	 */
+	public LatencyRecorder.Snapshot getCloseLatency() {
+		synchronized (mCloseLatency) {
+			return mCloseLatency.snapshot();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "segments=" + getSegmentCount() + ",open{" + getOpenLatency() + "},close{" + getCloseLatency() + "}";
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * create container writer of next segment and add all tracks
+	 * @throws IOException
+	 */
+	private void openSegment() throws IOException {
+		final long startNs = System.nanoTime();
+		final int index = mSegmentIndex + 1;
+		final String path = getSegmentPath(mOutputPath, index);
+		final MuxerBackend muxer = mSegmentFactory.createMuxer(path);
+		final int n = mFormats.size();
+		for (int i = 0; i < n; i++) {
+			mTrackMap[i] = muxer.addTrack(mFormats.get(i));
+		}
+		muxer.start();
+		mCurrent = muxer;
+		mSegmentIndex = index;
+		mSegmentBytes = 0;
+		mRolloverRequested = false;
+		final long latencyUs = (System.nanoTime() - startNs) / 1000L;
+		mOpenLatency.record(latencyUs);
+		if (DEBUG) Log.v(TAG, "openSegment:" + path + ",latency=" + latencyUs);
+		if (mListener != null) {
+			mListener.onSegmentOpened(index, path, latencyUs);
+		}
+	}
+
+	/**
+	 * switch to next segment, current segment is finished on private thread
+	 * @throws IOException
+	 */
+	private void rollover() throws IOException {
+		final MuxerBackend prev = mCurrent;
+		final int prevIndex = mSegmentIndex;
+		final long prevBytes = mSegmentBytes;
+		final Thread prevCloser = mCloser;
+		mCloser = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				if (prevCloser != null) {
+					try {
+						prevCloser.join();
+					} catch (final InterruptedException e) {
+						// ignore
+					}
+				}
+				try {
+					closeSegment(prev, prevIndex, prevBytes);
+				} catch (final Exception e) {
+					Log.e(TAG, "failed to close segment " + prevIndex, e);
+				}
+			}
+		}, "SegmentCloser");
+		mCloser.start();
+		openSegment();
+	}
+
+	private void closeSegment(final MuxerBackend muxer, final int index, final long bytes) throws IOException {
+		final long startNs = System.nanoTime();
+		try {
+			muxer.stop();
+		} finally {
+			muxer.release();
+		}
+		final long latencyUs = (System.nanoTime() - startNs) / 1000L;
+		synchronized (mCloseLatency) {
+			mCloseLatency.record(latencyUs);
+		}
+		if (DEBUG) Log.v(TAG, "closeSegment:" + index + ",latency=" + latencyUs);
+		if (mListener != null) {
+			mListener.onSegmentClosed(index, getSegmentPath(mOutputPath, index), latencyUs, bytes);
+		}
+	}
+
+	private void joinCloser() {
+		final Thread closer = mCloser;
+		mCloser = null;
+		if (closer != null) {
+			try {
+				closer.join();
+			} catch (final InterruptedException e) {
+				// ignore
+			}
+		}
+	}
+}
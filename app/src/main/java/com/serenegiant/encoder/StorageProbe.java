@@ -0,0 +1,328 @@
+package com.serenegiant.encoder;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: StorageProbe.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * Pre-flight check of the storage before recording.
+ * #probe measures sequential write throughput(including fsync) of the output directory
+ * by writing a small temporary file, and the result is cached per volume(mount point)
+ * for CACHE_DURATION_MS. #plan checks that the storage can sustain the bitrates
+ * of the recording with headroom, lowers the video bitrate when it can not,
+ * and estimates remaining recording time from the free space.
+ * Probing takes up to PROBE_TIMEOUT_MS, so call it on private thread
+ * (e.g. when the app is resumed) so that starting recording finds cached result.
+ */
+public final class StorageProbe {
+	private static final boolean DEBUG = false;	// TODO set false on release
+	private static final String TAG = "StorageProbe";
+
+	private static final int PROBE_BYTES = 8 * 1024 * 1024;
+	private static final int PROBE_CHUNK_BYTES = 256 * 1024;
+	/**
+	 * probing stops after this even if PROBE_BYTES are not written(slow storage)
+	 */
+	private static final long PROBE_TIMEOUT_MS = 2000;
+	private static final long CACHE_DURATION_MS = 10 * 60 * 1000L;
+	/**
+	 * storage should be faster than required write rate by this factor, the probe measures
+	 * short burst and encoders write in bursts of key frames while other apps also write
+	 */
+	private static final float THROUGHPUT_HEADROOM = 2.0f;
+	/**
+	 * overhead of the container(moov, sample headers), fraction of the bitrates
+	 */
+	private static final float CONTAINER_OVERHEAD = 0.02f;
+	/**
+	 * free space that is not used for recording
+	 */
+	private static final long RESERVED_BYTES = 32 * 1024 * 1024L;
+	/**
+	 * recording shorter than this is refused
+	 */
+	private static final long MIN_RECORDING_SEC = 10;
+
+	/**
+	 * result of probing
+	 */
+	public static final class Result {
+		/**
+		 * mount point or directory that the result is for
+		 */
+		public final String volume;
+		/**
+		 * sequential write throughput[bytes/sec], 0 if it could not be measured
+		 */
+		public final long writeBytesPerSec;
+		/**
+		 * usable space when probed[bytes]
+		 */
+		public final long usableBytes;
+		/**
+		 * System.currentTimeMillis when probed
+		 */
+		public final long timeMs;
+
+		/*package*/ Result(final String volume, final long writeBytesPerSec, final long usableBytes, final long timeMs) {
+			this.volume = volume;
+			this.writeBytesPerSec = writeBytesPerSec;
+			this.usableBytes = usableBytes;
+			this.timeMs = timeMs;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.US, "Result{%s,write=%.1f[MB/s],usable=%d[MB]}",
+				volume, writeBytesPerSec / 1048576f, usableBytes / 1048576);
+		}
+	}
+
+	/**
+	 * recording spec that the storage can sustain
+	 */
+	public static final class Plan {
+		/**
+		 * false if the recording should be refused, see #reason
+		 */
+		public final boolean accepted;
+		/**
+		 * true if videoBitrate was lowered from requested one
+		 */
+		public final boolean downgraded;
+		public final int videoBitrate;
+		public final int audioBitrate;
+		/**
+		 * expected recording time until the storage becomes full[sec]
+		 */
+		public final long remainingSec;
+		public final String reason;
+
+		private Plan(final boolean accepted, final boolean downgraded,
+			final int videoBitrate, final int audioBitrate, final long remainingSec, final String reason) {
+
+			this.accepted = accepted;
+			this.downgraded = downgraded;
+			this.videoBitrate = videoBitrate;
+			this.audioBitrate = audioBitrate;
+			this.remainingSec = remainingSec;
+			this.reason = reason;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.US, "Plan{%s,video=%d,audio=%d,remaining=%d:%02d:%02d%s}",
+				accepted ? (downgraded ? "downgraded" : "accepted") : "refused",
+				videoBitrate, audioBitrate,
+				remainingSec / 3600, (remainingSec / 60) % 60, remainingSec % 60,
+				reason != null ? "," + reason : "");
+		}
+	}
+
+	private static final Object sSync = new Object();
+	private static final Map<String, Result> sResults = new HashMap<String, Result>();
+
+	private StorageProbe() {
+		// never instantiate
+	}
+
+	/**
+	 * get cached result of the volume of specific directory without writing anything,
+	 * this can be called on UI thread. Free space is updated even if the throughput is cached.
+	 * @param dir
+	 * @return null if not probed yet or the result was expired
+	 */
+	public static Result peek(final File dir) {
+		final String volume = getVolume(dir);
+		final Result cached;
+		synchronized (sSync) {
+			cached = sResults.get(volume);
+		}
+		if ((cached != null) && (System.currentTimeMillis() - cached.timeMs < CACHE_DURATION_MS)) {
+			return new Result(cached.volume, cached.writeBytesPerSec, dir.getUsableSpace(), cached.timeMs);
+		}
+		return null;
+	}
+
+	/**
+	 * get cached result or measure write throughput of specific directory.
+	 * Free space is updated even if the throughput is cached.
+	 * This blocks up to PROBE_TIMEOUT_MS, never call this on UI thread.
+	 * @param dir output directory, this is created if it does not exist
+	 * @return
+	 */
+	public static Result probe(final File dir) {
+		final Result cached = peek(dir);
+		if (cached != null) {
+			return cached;
+		}
+		final String volume = getVolume(dir);
+		dir.mkdirs();
+		long throughput = 0;
+		if (dir.canWrite() && (dir.getUsableSpace() > PROBE_BYTES * 4L)) {
+			try {
+				throughput = measure(dir);
+			} catch (final IOException e) {
+				Log.w(TAG, "failed to probe " + dir, e);
+			}
+		}
+		final Result result = new Result(volume, throughput, dir.getUsableSpace(), System.currentTimeMillis());
+		if (DEBUG) Log.v(TAG, "probe:" + result);
+		if (throughput > 0) {
+			synchronized (sSync) {
+				sResults.put(volume, result);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * discard cached results, e.g. when storage was mounted/unmounted
+	 */
+	public static void clear() {
+		synchronized (sSync) {
+			sResults.clear();
+		}
+	}
+
+	/**
+	 * decide bitrates of the recording that the storage can sustain
+	 * @param result result of #probe
+	 * @param videoBitrate requested(maximum) video bitrate[bps], 0 if no video
+	 * @param minVideoBitrate lowest video bitrate that is acceptable[bps]
+	 * @param audioBitrate audio bitrate[bps], 0 if no audio
+	 * @return
+	 */
+	public static Plan plan(final Result result, final int videoBitrate, final int minVideoBitrate, final int audioBitrate) {
+		if (result.writeBytesPerSec <= 0) {
+			return new Plan(false, false, videoBitrate, audioBitrate, 0, "storage is not writable or full");
+		}
+		// bitrate that the storage can sustain with headroom
+		final long sustainable = (long)(result.writeBytesPerSec * 8 / THROUGHPUT_HEADROOM / (1 + CONTAINER_OVERHEAD));
+		int bitrate = videoBitrate;
+		boolean downgraded = false;
+		if ((long)videoBitrate + audioBitrate > sustainable) {
+			final long available = sustainable - audioBitrate;
+			if ((videoBitrate > 0) && (available >= minVideoBitrate)) {
+				bitrate = (int)Math.min(videoBitrate, available);
+				downgraded = true;
+			} else {
+				return new Plan(false, false, videoBitrate, audioBitrate, 0,
+					String.format(Locale.US, "storage is too slow(%.1f[MB/s])", result.writeBytesPerSec / 1048576f));
+			}
+		}
+		final long bytesPerSec = (long)(((long)bitrate + audioBitrate) * (1 + CONTAINER_OVERHEAD) / 8);
+		final long remainingSec = bytesPerSec > 0
+			? Math.max(0, result.usableBytes - RESERVED_BYTES) / bytesPerSec : 0;
+		if (remainingSec < MIN_RECORDING_SEC) {
+			return new Plan(false, downgraded, bitrate, audioBitrate, remainingSec, "storage is full");
+		}
+		return new Plan(true, downgraded, bitrate, audioBitrate, remainingSec, null);
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * write temporary file and fsync it
+	 * @param dir
+	 * @return write throughput[bytes/sec]
+	 * @throws IOException
+	 */
+	private static long measure(final File dir) throws IOException {
+		final File file = File.createTempFile("probe", ".tmp", dir);
+		try {
+			final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				final FileChannel channel = raf.getChannel();
+				final ByteBuffer buf = ByteBuffer.allocateDirect(PROBE_CHUNK_BYTES);
+				// not compressible data so that compressing file systems do not fake the result
+				long seed = System.nanoTime();
+				while (buf.remaining() >= 8) {
+					seed = seed * 6364136223846793005L + 1442695040888963407L;
+					buf.putLong(seed);
+				}
+				final long startNs = System.nanoTime();
+				final long limitNs = startNs + PROBE_TIMEOUT_MS * 1000000L;
+				long written = 0;
+				while ((written < PROBE_BYTES) && (System.nanoTime() < limitNs)) {
+					buf.clear();
+					while (buf.hasRemaining()) {
+						written += channel.write(buf);
+					}
+				}
+				channel.force(false);
+				final long elapsedNs = Math.max(1, System.nanoTime() - startNs);
+				return written * 1000000000L / elapsedNs;
+			} finally {
+				raf.close();
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * find mount point of the directory from /proc/self/mounts
+	 * @param dir
+	 * @return mount point, or the directory itself if it is unknown
+	 */
+	private static String getVolume(final File dir) {
+		String path;
+		try {
+			path = dir.getCanonicalPath();
+		} catch (final IOException e) {
+			path = dir.getAbsolutePath();
+		}
+		String volume = null;
+		try {
+			final BufferedReader in = new BufferedReader(new FileReader("/proc/self/mounts"));
+			try {
+				for (String line = in.readLine(); line != null; line = in.readLine()) {
+					final String[] fields = line.split(" ");
+					if (fields.length < 2) continue;
+					final String mountPoint = fields[1];
+					if ((path.equals(mountPoint) || path.startsWith(mountPoint.endsWith("/") ? mountPoint : mountPoint + "/"))
+						&& ((volume == null) || (mountPoint.length() > volume.length()))) {
+
+						volume = mountPoint;
+					}
+				}
+			} finally {
+				in.close();
+			}
+		} catch (final IOException e) {
+			// not Linux or not readable
+		}
+		return volume != null ? volume : path;
+	}
+}
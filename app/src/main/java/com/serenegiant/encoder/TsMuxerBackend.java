@@ -0,0 +1,104 @@
+package com.serenegiant.encoder;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: TsMuxerBackend.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import com.serenegiant.muxer.TsWriter;
+
+/**
+ * MuxerBackend implementation that writes MPEG-2 transport stream with TsWriter
+ * instead of MP4, for live pipelines. Output can be read while writing.
+ */
+public class TsMuxerBackend implements MuxerBackend {
+
+	/**
+	 * write transport stream to the output file
+	 */
+	public static final Factory FACTORY = new Factory() {
+		@Override
+		public MuxerBackend createMuxer(final String outputPath) throws IOException {
+			return new TsMuxerBackend(new TsWriter(outputPath));
+		}
+	};
+
+	/**
+	 * create factory that writes transport stream to specific channel(e.g. socket)
+	 * instead of the output file. The channel is not closed by the muxer.
+	 * @param channel
+	 * @return
+	 */
+	public static Factory factory(final WritableByteChannel channel) {
+		return new Factory() {
+			@Override
+			public MuxerBackend createMuxer(final String outputPath) throws IOException {
+				return new TsMuxerBackend(new TsWriter(channel));
+			}
+		};
+	}
+
+	private final TsWriter mWriter;
+
+	public TsMuxerBackend(final TsWriter writer) {
+		mWriter = writer;
+	}
+
+	@Override
+	public int addTrack(final MediaFormat format) {
+		return mWriter.addTrack(FragmentedMp4Backend.toTrackFormat(format));
+	}
+
+	@Override
+	public void start() throws IOException {
+		mWriter.start();
+	}
+
+	@Override
+	public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) throws IOException {
+		mWriter.writeSampleData(trackIndex, byteBuf, bufferInfo.offset, bufferInfo.size,
+			bufferInfo.presentationTimeUs, (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+	}
+
+	@Override
+	public void stop() throws IOException {
+		mWriter.stop();
+	}
+
+	@Override
+	public void release() {
+		mWriter.release();
+	}
+
+	@Override
+	public String toString() {
+		return "TsMuxerBackend{packets=" + mWriter.getPacketCount()
+			+ ",bytes=" + mWriter.getBytesWritten()
+			+ ",pcr=" + mWriter.getPcrCount()
+			+ ",maxPcrIntervalUs=" + mWriter.getMaxPcrIntervalUs() + "}";
+	}
+}
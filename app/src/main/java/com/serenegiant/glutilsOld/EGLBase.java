@@ -28,6 +28,7 @@ import android.opengl.EGL14;
 import android.opengl.EGLConfig;
 import android.opengl.EGLContext;
 import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
 import android.opengl.EGLSurface;
 import android.os.Build;
 import android.util.Log;
@@ -82,6 +83,14 @@ public class EGLBase {	// API >= 17
 			mEgl.swap(mEglSurface);
 		}
 
+		/**
+		 * set presentation time of the frame that will be swapped next
+		 * @param presentationTimeNs
+		 */
+		public void setPresentationTime(final long presentationTimeNs) {
+			mEgl.setPresentationTime(mEglSurface, presentationTimeNs);
+		}
+
 		public EGLContext getContext() {
 			return mEgl.getContext();
 		}
@@ -216,6 +225,12 @@ public class EGLBase {	// API >= 17
         return EGL14.EGL_SUCCESS;
     }
 
+	private void setPresentationTime(final EGLSurface surface, final long presentationTimeNs) {
+		if (!EGLExt.eglPresentationTimeANDROID(mEglDisplay, surface, presentationTimeNs)) {	// API >= 18
+			if (DEBUG) Log.w(TAG, "setPresentationTime:err=" + EGL14.eglGetError());
+		}
+	}
+
     private EGLContext createContext(final EGLContext shared_context) {
 //		if (DEBUG) Log.v(TAG, "createContext:");
 
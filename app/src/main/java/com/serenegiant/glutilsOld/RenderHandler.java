@@ -31,12 +31,26 @@ import android.util.Log;
 import android.view.Surface;
 import android.view.SurfaceHolder;
 
+import com.serenegiant.encoder.LatencyRecorder;
+
 /**
- * Helper class to draw texture to whole view on private thread
+ * Helper class to draw texture to whole view on private thread.
+ * Additional output Surfaces(e.g. input Surfaces of encoders of other resolutions)
+ * can be added with #addSurface, then every draw request renders the same texture
+ * to all of them with the single EGL context of this handler.
  */
 public final class RenderHandler implements Runnable {
 	private static final boolean DEBUG = false;	// TODO set false on release
 	private static final String TAG = "RenderHandler";
+	/**
+	 * maximum number of additional output Surfaces
+	 */
+	public static final int MAX_OUTPUTS = 4;
+	/**
+	 * presentation time value to use the time of swapping buffers,
+	 * 0 is a valid presentation time(e.g. the first frame of the recording)
+	 */
+	public static final long PTS_UNSET = -1;
 
 	private final Object mSync = new Object();
     private EGLContext mShard_context;
@@ -44,14 +58,44 @@ public final class RenderHandler implements Runnable {
     private Object mSurface;
 	private int mTexId = -1;
 	private float[] mMatrix = new float[32];
+	private long mPresentationTimeNs = PTS_UNSET;
 
 	private boolean mRequestSetEglContext;
 	private boolean mRequestRelease;
 	private int mRequestDraw;
+	/**
+	 * maximum number of pending draw requests, 0 means unlimited
+	 */
+	private int mMaxPendingDraws;
+	/**
+	 * maximum waiting time of #draw for the render thread when pending requests are full
+	 */
+	private long mBlockTimeoutNs;
+	private long mDroppedFrames;
+	/**
+	 * additional output Surfaces that are requested, null means empty slot
+	 */
+	private final Object[] mOutputSurfaces = new Object[MAX_OUTPUTS];
+	/**
+	 * whether each additional output should be drawn by next draw request and its presentation time
+	 */
+	private final boolean[] mOutputRequested = new boolean[MAX_OUTPUTS];
+	private final long[] mOutputPresentationTimeNs = new long[MAX_OUTPUTS];
+	private boolean mGpuTiming;
+	/**
+	 * cost of each output, index 0 is the main Surface and i + 1 is additional output i.
+	 * cpu: time to issue drawing and swapping, gpu: time until GPU finished drawing(#setGpuTiming)
+	 */
+	private final LatencyRecorder[] mCpuCost = new LatencyRecorder[MAX_OUTPUTS + 1];
+	private final LatencyRecorder[] mGpuCost = new LatencyRecorder[MAX_OUTPUTS + 1];
 
 	public static final RenderHandler createHandler(final String name) {
 		if (DEBUG) Log.v(TAG, "createHandler:");
 		final RenderHandler handler = new RenderHandler();
+		for (int i = 0; i <= MAX_OUTPUTS; i++) {
+			handler.mCpuCost[i] = new LatencyRecorder();
+			handler.mGpuCost[i] = new LatencyRecorder();
+		}
 		synchronized (handler.mSync) {
 			new Thread(handler, !TextUtils.isEmpty(name) ? name : TAG).start();
 			try {
@@ -83,6 +127,121 @@ public final class RenderHandler implements Runnable {
 		}
 	}
 
+	/**
+	 * limit pending draw requests so that the render thread does not replay stale frames
+	 * when the consumer(e.g. encoder) falls behind.
+	 * When pending requests are full, #draw waits for the render thread at most blockTimeoutNs
+	 * and then newer frame replaces the pending one and one frame is counted as dropped.
+	 * @param maxPendingDraws 0 means unlimited(default)
+	 * @param blockTimeoutNs 0 means never wait
+	 */
+	public final void setBackpressure(final int maxPendingDraws, final long blockTimeoutNs) {
+		synchronized (mSync) {
+			mMaxPendingDraws = Math.max(0, maxPendingDraws);
+			mBlockTimeoutNs = Math.max(0, blockTimeoutNs);
+		}
+	}
+
+	/**
+	 * number of frames that were dropped by #setBackpressure
+	 * @return
+	 */
+	public final long getDroppedFrames() {
+		synchronized (mSync) {
+			return mDroppedFrames;
+		}
+	}
+
+	/**
+	 * add output Surface that the texture is drawn to with the main Surface,
+	 * this can be called before #setEglContext
+	 * @param surface Surface, SurfaceTexture or SurfaceHolder
+	 * @return slot of the output, -1 if no free slot
+	 */
+	public final int addSurface(final Object surface) {
+		if (!(surface instanceof Surface) && !(surface instanceof SurfaceTexture) && !(surface instanceof SurfaceHolder))
+			throw new RuntimeException("unsupported window type:" + surface);
+		synchronized (mSync) {
+			if (mRequestRelease) return -1;
+			for (int i = 0; i < MAX_OUTPUTS; i++) {
+				// the slot is not free until the render thread releases EGL surface of removed output
+				if ((mOutputSurfaces[i] == null) && (mOutputBound[i] == null)) {
+					mOutputSurfaces[i] = surface;
+					mOutputRequested[i] = false;
+					mCpuCost[i + 1].reset();
+					mGpuCost[i + 1].reset();
+					mSync.notifyAll();
+					return i;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * remove output Surface and wait until the render thread releases its EGL surface,
+	 * so that the caller can release the Surface after this returns
+	 * @param slot return value of #addSurface
+	 */
+	public final void removeSurface(final int slot) {
+		if ((slot < 0) || (slot >= MAX_OUTPUTS)) return;
+		synchronized (mSync) {
+			mOutputSurfaces[slot] = null;
+			mOutputRequested[slot] = false;
+			mSync.notifyAll();
+			while (!mRequestRelease && (mOutputs[slot] != null)) {
+				try {
+					mSync.wait();
+				} catch (final InterruptedException e) {
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * draw the additional output by next draw request
+	 * @param slot return value of #addSurface
+	 * @param presentationTimeNs presentation time of the frame that is passed to the Surface consumer,
+	 * PTS_UNSET means the time of swapping buffers
+	 */
+	public final void requestOutput(final int slot, final long presentationTimeNs) {
+		if ((slot < 0) || (slot >= MAX_OUTPUTS)) return;
+		synchronized (mSync) {
+			mOutputRequested[slot] = mOutputSurfaces[slot] != null;
+			mOutputPresentationTimeNs[slot] = presentationTimeNs;
+		}
+	}
+
+	/**
+	 * measure time until GPU finishes drawing of each output.
+	 * This calls glFinish after drawing each output, so use this only for measurement.
+	 * @param enable
+	 */
+	public final void setGpuTiming(final boolean enable) {
+		synchronized (mSync) {
+			mGpuTiming = enable;
+		}
+	}
+
+	/**
+	 * cost of drawing to each output on the render thread
+	 * @param output 0 is the main Surface, slot + 1 is the additional output
+	 * @return
+	 */
+	public final LatencyRecorder.Snapshot getCpuCost(final int output) {
+		return mCpuCost[output].snapshot();
+	}
+
+	/**
+	 * time until GPU finished drawing to each output, only available with #setGpuTiming
+	 * @param output 0 is the main Surface, slot + 1 is the additional output
+	 * @return
+	 */
+	public final LatencyRecorder.Snapshot getGpuCost(final int output) {
+		return mGpuCost[output].snapshot();
+	}
+
 	public final void draw() {
 		draw(mTexId, mMatrix, null);
 	}
@@ -104,9 +263,48 @@ public final class RenderHandler implements Runnable {
 	}
 
 	public final void draw(final int tex_id, final float[] tex_matrix, final float[] mvp_matrix) {
+		draw(tex_id, tex_matrix, mvp_matrix, PTS_UNSET);
+	}
+
+	public final int draw(final float[] tex_matrix, final float[] mvp_matrix, final long presentationTimeNs) {
+		return draw(mTexId, tex_matrix, mvp_matrix, presentationTimeNs);
+	}
+
+	/**
+	 * @param tex_id
+	 * @param tex_matrix
+	 * @param mvp_matrix
+	 * @param presentationTimeNs presentation time of the frame that is passed to the Surface consumer,
+	 * PTS_UNSET means the time of swapping buffers
+	 * @return number of frames dropped by this request, 0 or 1
+	 */
+	public final int draw(final int tex_id, final float[] tex_matrix, final float[] mvp_matrix, final long presentationTimeNs) {
+		int dropped = 0;
 		synchronized (mSync) {
-			if (mRequestRelease) return;
+			if (mRequestRelease) return 0;
+			if ((mMaxPendingDraws > 0) && (mRequestDraw >= mMaxPendingDraws)) {
+				if (mBlockTimeoutNs > 0) {
+					final long limit = System.nanoTime() + mBlockTimeoutNs;
+					while (!mRequestRelease && (mRequestDraw >= mMaxPendingDraws)) {
+						final long remain = limit - System.nanoTime();
+						if (remain <= 0) break;
+						try {
+							mSync.wait(remain / 1000000L, (int)(remain % 1000000L));
+						} catch (final InterruptedException e) {
+							break;
+						}
+					}
+					if (mRequestRelease) return 0;
+				}
+				if (mRequestDraw >= mMaxPendingDraws) {
+					// all pending requests draw the latest texture image anyway,
+					// so update the pending one with newer matrix/timestamp instead of adding
+					dropped = 1;
+					mDroppedFrames++;
+				}
+			}
 			mTexId = tex_id;
+			mPresentationTimeNs = presentationTimeNs;
 			if ((tex_matrix != null) && (tex_matrix.length >= 16)) {
 				System.arraycopy(tex_matrix, 0, mMatrix, 0, 16);
 			} else {
@@ -117,13 +315,16 @@ public final class RenderHandler implements Runnable {
 			} else {
 				Matrix.setIdentityM(mMatrix, 16);
 			}
-			mRequestDraw++;
+			if (dropped == 0) {
+				mRequestDraw++;
+			}
 			mSync.notifyAll();
 /*			try {
 				mSync.wait();
 			} catch (final InterruptedException e) {
 			} */
 		}
+		return dropped;
 	}
 
 	public boolean isValid() {
@@ -150,6 +351,12 @@ public final class RenderHandler implements Runnable {
 	private EGLBase mEgl;
 	private EGLBase.EglSurface mInputSurface;
 	private GLDrawer2D mDrawer;
+	/**
+	 * EGL surfaces of additional outputs and Surfaces that they were created for,
+	 * these are modified only on the render thread while holding mSync
+	 */
+	private final EGLBase.EglSurface[] mOutputs = new EGLBase.EglSurface[MAX_OUTPUTS];
+	private final Object[] mOutputBound = new Object[MAX_OUTPUTS];
 
 	@Override
 	public final void run() {
@@ -160,6 +367,10 @@ public final class RenderHandler implements Runnable {
 			mSync.notifyAll();
 		}
         boolean localRequestDraw;
+        boolean localGpuTiming = false;
+        long localPresentationTimeNs = PTS_UNSET;
+        final boolean[] localRequested = new boolean[MAX_OUTPUTS];
+        final long[] localPresentationTimes = new long[MAX_OUTPUTS];
         for (;;) {
         	synchronized (mSync) {
         		if (mRequestRelease) break;
@@ -167,21 +378,33 @@ public final class RenderHandler implements Runnable {
 	        		mRequestSetEglContext = false;
 	        		internalPrepare();
 	        	}
+	        	updateOutputs();
 	        	localRequestDraw = mRequestDraw > 0;
 	        	if (localRequestDraw) {
 	        		mRequestDraw--;
-//					mSync.notifyAll();
+	        		localPresentationTimeNs = mPresentationTimeNs;
+	        		localGpuTiming = mGpuTiming;
+	        		for (int i = 0; i < MAX_OUTPUTS; i++) {
+	        			localRequested[i] = mOutputRequested[i];
+	        			localPresentationTimes[i] = mOutputPresentationTimeNs[i];
+	        			mOutputRequested[i] = false;
+	        		}
+	        		if (mBlockTimeoutNs > 0) {
+	        			// wake up #draw that is waiting for free slot
+	        			mSync.notifyAll();
+	        		}
 				}
         	}
         	if (localRequestDraw) {
         		if ((mEgl != null) && mTexId >= 0) {
-            		mInputSurface.makeCurrent();
-					// clear screen with yellow color so that you can see rendering rectangle
-					GLES20.glClearColor(1.0f, 1.0f, 0.0f, 1.0f);
-					GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
 					mDrawer.setMatrix(mMatrix, 16);
-            		mDrawer.draw(mTexId, mMatrix);
-            		mInputSurface.swap();
+        			drawOutput(mInputSurface, localPresentationTimeNs, 0, localGpuTiming);
+        			// same texture image is drawn to all outputs with the same EGL context
+        			for (int i = 0; i < MAX_OUTPUTS; i++) {
+        				if (localRequested[i] && (mOutputs[i] != null)) {
+        					drawOutput(mOutputs[i], localPresentationTimes[i], i + 1, localGpuTiming);
+        				}
+        			}
         		}
         	} else {
         		synchronized(mSync) {
@@ -201,6 +424,70 @@ public final class RenderHandler implements Runnable {
 		if (DEBUG) Log.i(TAG, "RenderHandler thread finished:");
 	}
 
+	/**
+	 * create/release EGL surfaces of additional outputs as requested, this should be called
+	 * on the render thread while holding mSync
+	 */
+	private final void updateOutputs() {
+		boolean changed = false;
+		for (int i = 0; i < MAX_OUTPUTS; i++) {
+			final Object surface = mEgl != null ? mOutputSurfaces[i] : null;
+			if (mOutputBound[i] != surface) {
+				if (mOutputs[i] != null) {
+					mOutputs[i].release();
+					mOutputs[i] = null;
+				}
+				mOutputBound[i] = null;
+				if (surface != null) {
+					try {
+						mOutputs[i] = mEgl.createFromSurface(surface);
+						mOutputBound[i] = surface;
+					} catch (final RuntimeException e) {
+						Log.w(TAG, "failed to create output surface", e);
+						mOutputSurfaces[i] = null;
+					}
+				}
+				changed = true;
+			}
+		}
+		if (changed) {
+			mSync.notifyAll();
+		}
+	}
+
+	/**
+	 * draw the texture to one output and measure the cost
+	 * @param surface
+	 * @param presentationTimeNs
+	 * @param output index of cost recorders
+	 * @param gpuTiming
+	 */
+	private final void drawOutput(final EGLBase.EglSurface surface, final long presentationTimeNs,
+		final int output, final boolean gpuTiming) {
+
+		final long startNs = System.nanoTime();
+		surface.makeCurrent();
+		// viewport is not changed by makeCurrent, outputs may have different sizes
+		GLES20.glViewport(0, 0, surface.getWidth(), surface.getHeight());
+		// clear screen with yellow color so that you can see rendering rectangle
+		GLES20.glClearColor(1.0f, 1.0f, 0.0f, 1.0f);
+		GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+		mDrawer.draw(mTexId, mMatrix);
+		long gpuNs = 0;
+		if (gpuTiming) {
+			final long issuedNs = System.nanoTime();
+			GLES20.glFinish();
+			final long finishedNs = System.nanoTime();
+			gpuNs = finishedNs - issuedNs;
+			mGpuCost[output].record((finishedNs - startNs) / 1000L);
+		}
+		if (presentationTimeNs >= 0) {
+			surface.setPresentationTime(presentationTimeNs);
+		}
+		surface.swap();
+		mCpuCost[output].record((System.nanoTime() - startNs - gpuNs) / 1000L);
+	}
+
 	private final void internalPrepare() {
 		if (DEBUG) Log.i(TAG, "internalPrepare:");
 		internalRelease();
@@ -216,6 +503,13 @@ public final class RenderHandler implements Runnable {
 
 	private final void internalRelease() {
 		if (DEBUG) Log.i(TAG, "internalRelease:");
+		for (int i = 0; i < MAX_OUTPUTS; i++) {
+			if (mOutputs[i] != null) {
+				mOutputs[i].release();
+				mOutputs[i] = null;
+			}
+			mOutputBound[i] = null;
+		}
 		if (mInputSurface != null) {
 			mInputSurface.release();
 			mInputSurface = null;
@@ -0,0 +1,284 @@
+package com.serenegiant.muxer;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: FastStart.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Post-processor that rewrites MP4 file as fast-start, i.e. moves moov ahead of mdat
+ * so that progressive playback and thumbnail extraction do not need to seek to the end.
+ * Chunk offsets in stco are shifted by the size of moov, stco is converted to co64
+ * if shifted offsets do not fit in 32 bits.
+ * Media data is copied with FileChannel#transferTo into temporary file in the same directory
+ * that replaces the original file at the end, so only moov is loaded on memory.
+ * Files that already have moov ahead of mdat(including fragmented MP4) are not changed.
+ */
+public final class FastStart {
+	private static final String TEMP_SUFFIX = ".faststart";
+
+	/**
+	 * callback of #processAsync
+	 */
+	public interface Callback {
+		/**
+		 * called on private thread when processing finished
+		 * @param path
+		 * @param rewritten true if the file was rewritten, false if it was already fast-start
+		 * @param error null if succeeded, the file is not changed on error
+		 */
+		public void onFinished(final String path, final boolean rewritten, final IOException error);
+	}
+
+	private static ExecutorService sExecutor;
+
+	private FastStart() {
+		// never be instantiated
+	}
+
+	/**
+	 * process the file on shared background thread
+	 * @param path
+	 * @param callback nullable
+	 */
+	public static void processAsync(final String path, final Callback callback) {
+		getExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				boolean rewritten = false;
+				IOException error = null;
+				try {
+					rewritten = process(path);
+				} catch (final IOException e) {
+					error = e;
+				}
+				if (callback != null) {
+					callback.onFinished(path, rewritten, error);
+				}
+			}
+		});
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+		if (sExecutor == null) {
+			sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable r) {
+					final Thread thread = new Thread(r, "FastStart");
+					thread.setDaemon(true);
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				}
+			});
+		}
+		return sExecutor;
+	}
+
+	/**
+	 * rewrite the file as fast-start on the caller thread
+	 * @param path
+	 * @return true if the file was rewritten, false if it was already fast-start
+	 * @throws IOException the file is broken or failed to write, the file is not changed
+	 */
+	public static boolean process(final String path) throws IOException {
+		final File file = new File(path);
+		final File temp = new File(path + TEMP_SUFFIX);
+		final RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			final FileChannel src = in.getChannel();
+			final long length = src.size();
+			final ByteBuffer header = ByteBuffer.allocate(Mp4Box.HEADER_SIZE + 8);
+			long mdatPos = -1, moovPos = -1, moovSize = 0;
+			long pos = 0;
+			while (pos + Mp4Box.HEADER_SIZE <= length) {
+				header.clear();
+				header.limit((int)Math.min(header.capacity(), length - pos));
+				readFully(src, header, pos);
+				if ((header.getInt(0) == 1) && (header.limit() < Mp4Box.HEADER_SIZE + 8)) {
+					throw new IOException("broken box at " + pos);
+				}
+				long size = Mp4Box.size(header, 0);
+				if (size == 0) {
+					size = length - pos;
+				}
+				if ((size < Mp4Box.headerSize(header, 0)) || (pos + size > length)) {
+					throw new IOException("broken box at " + pos);
+				}
+				final int type = Mp4Box.type(header, 0);
+				if ((type == Mp4Box.MDAT) && (mdatPos < 0)) {
+					mdatPos = pos;
+				} else if (type == Mp4Box.MOOV) {
+					moovPos = pos;
+					moovSize = size;
+				}
+				pos += size;
+			}
+			if (moovPos < 0) throw new IOException("no moov");
+			if ((mdatPos < 0) || (moovPos < mdatPos)) {
+				// already fast-start
+				return false;
+			}
+			if (moovSize > Integer.MAX_VALUE / 2) throw new IOException("too large moov");
+			final ByteBuffer moov = ByteBuffer.allocate((int)moovSize);
+			readFully(src, moov, moovPos);
+			// moov is inserted before mdat, so data between them moves by the size of new moov
+			ByteBuffer patched = patch(moov, mdatPos, moovPos, moovSize, moovSize, false);
+			if (patched == null) {
+				// co64 makes moov larger, so calculate again with the converted size
+				final int converted = patch(moov, mdatPos, moovPos, moovSize, moovSize, true).limit();
+				patched = patch(moov, mdatPos, moovPos, moovSize, converted, true);
+			}
+			final RandomAccessFile out = new RandomAccessFile(temp, "rw");
+			try {
+				out.setLength(0);
+				final FileChannel dst = out.getChannel();
+				transferFully(src, 0, mdatPos, dst);
+				while (patched.hasRemaining()) {
+					dst.write(patched);
+				}
+				transferFully(src, mdatPos, moovPos - mdatPos, dst);
+				transferFully(src, moovPos + moovSize, length - moovPos - moovSize, dst);
+				dst.force(false);
+			} finally {
+				out.close();
+			}
+		} catch (final IOException e) {
+			temp.delete();
+			throw e;
+		} finally {
+			in.close();
+		}
+		if (!temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException("failed to replace " + path);
+		}
+		return true;
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * copy moov with shifting chunk offsets
+	 * @param moov
+	 * @param mdatPos insert position of moov
+	 * @param moovPos original position of moov
+	 * @param moovSize original size of moov
+	 * @param newMoovSize size of moov after patching
+	 * @param useCo64 convert stco to co64
+	 * @return patched moov ready to write, null if useCo64 is false and some offset exceeds 32 bits
+	 */
+	private static ByteBuffer patch(final ByteBuffer moov, final long mdatPos,
+		final long moovPos, final long moovSize, final long newMoovSize, final boolean useCo64) {
+
+		final ByteBuffer dst = ByteBuffer.allocate(moov.capacity() * (useCo64 ? 2 : 1));
+		if (!copyBox(moov, 0, dst, mdatPos, moovPos, moovSize, newMoovSize, useCo64)) {
+			return null;
+		}
+		dst.flip();
+		return dst;
+	}
+
+	private static boolean copyBox(final ByteBuffer src, final int pos, final ByteBuffer dst,
+		final long mdatPos, final long moovPos, final long moovSize, final long newMoovSize,
+		final boolean useCo64) {
+
+		final int type = Mp4Box.type(src, pos);
+		final int headerSize = Mp4Box.headerSize(src, pos);
+		final int end = (int)(pos + Mp4Box.size(src, pos));
+		if ((type == Mp4Box.MOOV) || (type == Mp4Box.TRAK) || (type == Mp4Box.MDIA)
+			|| (type == Mp4Box.MINF) || (type == Mp4Box.STBL)) {
+
+			// container, size may change
+			final int start = Mp4Box.begin(dst, type);
+			int child = pos + headerSize;
+			while (child + Mp4Box.HEADER_SIZE <= end) {
+				if (!copyBox(src, child, dst, mdatPos, moovPos, moovSize, newMoovSize, useCo64)) {
+					return false;
+				}
+				child += (int)Mp4Box.size(src, child);
+			}
+			Mp4Box.end(dst, start);
+		} else if ((type == Mp4Box.STCO) || (type == Mp4Box.CO64)) {
+			final int count = src.getInt(pos + 12);
+			final boolean is64 = type == Mp4Box.CO64;
+			final boolean write64 = is64 || useCo64;
+			final int start = Mp4Box.beginFull(dst, write64 ? Mp4Box.CO64 : Mp4Box.STCO, 0, 0);
+			dst.putInt(count);
+			for (int i = 0; i < count; i++) {
+				final long offset = shift(is64 ? src.getLong(pos + 16 + i * 8)
+					: (src.getInt(pos + 16 + i * 4) & 0xffffffffL), mdatPos, moovPos, moovSize, newMoovSize);
+				if (write64) {
+					dst.putLong(offset);
+				} else if (offset > 0xffffffffL) {
+					return false;
+				} else {
+					dst.putInt((int)offset);
+				}
+			}
+			Mp4Box.end(dst, start);
+		} else {
+			final ByteBuffer b = src.duplicate();
+			b.limit(end).position(pos);
+			dst.put(b);
+		}
+		return true;
+	}
+
+	private static long shift(final long offset, final long mdatPos,
+		final long moovPos, final long moovSize, final long newMoovSize) {
+
+		if (offset < mdatPos) {
+			return offset;
+		} else if (offset < moovPos) {
+			return offset + newMoovSize;
+		} else {
+			// after original moov
+			return offset + newMoovSize - moovSize;
+		}
+	}
+
+	private static void readFully(final FileChannel channel, final ByteBuffer buf, final long pos) throws IOException {
+		long p = pos;
+		while (buf.hasRemaining()) {
+			final int n = channel.read(buf, p);
+			if (n < 0) throw new IOException("unexpected end of file");
+			p += n;
+		}
+	}
+
+	private static void transferFully(final FileChannel src, final long pos, final long count,
+		final FileChannel dst) throws IOException {
+
+		long done = 0;
+		while (done < count) {
+			final long n = src.transferTo(pos + done, count - done, dst);
+			if (n <= 0) throw new IOException("failed to transfer");
+			done += n;
+		}
+	}
+}
@@ -0,0 +1,447 @@
+package com.serenegiant.muxer;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: FragmentedMp4Writer.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming fragmented MP4(ISO/IEC 14496-12 moof/mdat) writer in pure Java.
+ * ftyp and moov(without samples) are written at #start, then samples are buffered and written
+ * as one fragment every fragment duration. Each fragment of video track starts with key frame.
+ * Unlike android.media.MediaMuxer this does not keep sample table of whole recording,
+ * so memory usage does not grow with duration of recording and all fragments that were
+ * written before the process crashed are still playable.
+ * Only H.264(AVC) video and AAC audio are supported. Annex-B start codes of AVC samples
+ * are converted to 4 bytes length prefix.
+ * This is not thread safe, caller should serialize calls.
+ */
+public final class FragmentedMp4Writer {
+	private static final int INITIAL_SAMPLE_CAPACITY = 64;
+	private static final int INITIAL_DATA_CAPACITY = 256 * 1024;
+	/**
+	 * sample_depends_on=2(does not depend on others)
+	 */
+	private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+	/**
+	 * sample_depends_on=1(depends on others), sample_is_non_sync_sample=1
+	 */
+	private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+	/**
+	 * default-base-is-moof
+	 */
+	private static final int TFHD_FLAGS = 0x020000;
+	/**
+	 * data-offset, sample-duration, sample-size and sample-flags present
+	 */
+	private static final int TRUN_FLAGS = 0x000701;
+
+	/**
+	 * samples of current fragment of one track
+	 */
+	private static final class Track {
+		private final int mTrackId;
+		private final TrackFormat mFormat;
+		private final int mTimescale;
+		private final boolean mIsAvc;
+		private ByteBuffer mData;
+		private int mCount;
+		private int[] mSizes = new int[INITIAL_SAMPLE_CAPACITY];
+		private long[] mTimes = new long[INITIAL_SAMPLE_CAPACITY];
+		private int[] mFlags = new int[INITIAL_SAMPLE_CAPACITY];
+		private long mLastDuration;
+		/**
+		 * position of data_offset field of trun in the header buffer while writing fragment
+		 */
+		private int mDataOffsetPos;
+
+		private Track(final int trackId, final TrackFormat format) {
+			mTrackId = trackId;
+			mFormat = format;
+			mIsAvc = TrackFormat.MIME_AVC.equals(format.mimeType);
+			mTimescale = MoovWriter.timescale(format);
+			mLastDuration = MoovWriter.defaultSampleDuration(format);
+			mData = ByteBuffer.allocateDirect(INITIAL_DATA_CAPACITY);
+		}
+
+		private void ensureSampleCapacity() {
+			if (mCount >= mSizes.length) {
+				final int n = mSizes.length * 2;
+				final int[] sizes = new int[n];
+				final long[] times = new long[n];
+				final int[] flags = new int[n];
+				System.arraycopy(mSizes, 0, sizes, 0, mCount);
+				System.arraycopy(mTimes, 0, times, 0, mCount);
+				System.arraycopy(mFlags, 0, flags, 0, mCount);
+				mSizes = sizes;
+				mTimes = times;
+				mFlags = flags;
+			}
+		}
+
+		private void ensureDataCapacity(final int size) {
+			if (mData.remaining() < size) {
+				final ByteBuffer data = ByteBuffer.allocateDirect(
+					Math.max(mData.capacity() * 2, mData.position() + size));
+				mData.flip();
+				data.put(mData);
+				mData = data;
+			}
+		}
+
+		/**
+		 * duration of i-th sample in the fragment
+		 * @param i
+		 * @param nextTime decode time of the sample after the last one, -1 if unknown
+		 * @return
+		 */
+		private long duration(final int i, final long nextTime) {
+			if (i + 1 < mCount) {
+				return mTimes[i + 1] - mTimes[i];
+			}
+			return nextTime >= 0 ? nextTime - mTimes[i] : mLastDuration;
+		}
+	}
+
+	private final String mOutputPath;
+	private final long mFragmentDurationUs;
+	private final List<Track> mTracks = new ArrayList<Track>();
+	private WritableByteChannel mChannel;
+	private ByteBuffer mHeader = ByteBuffer.allocate(4096);
+	private boolean mHasVideo;
+	private boolean mStarted;
+	private long mFragmentStartUs = -1;
+	private int mSequenceNumber;
+	private long mBytesWritten;
+
+	/**
+	 * @param outputPath
+	 * @param fragmentDurationUs minimum duration of each fragment,
+	 * fragment is written at next key frame after this duration
+	 * @throws IOException
+	 */
+	public FragmentedMp4Writer(final String outputPath, final long fragmentDurationUs) throws IOException {
+		this(outputPath, fragmentDurationUs, 0, false, null);
+	}
+
+	/**
+	 * @param outputPath
+	 * @param fragmentDurationUs minimum duration of each fragment,
+	 * fragment is written at next key frame after this duration
+	 * @param extentSize positive value writes through PreallocatedFileWriter
+	 * that allocates the file every extentSize bytes, 0 means plain FileChannel.
+	 * If the process crashes, preallocated file has zero filled tail after the last fragment.
+	 * @param useMmap write through memory mapped window of PreallocatedFileWriter
+	 * @param allocator allocator for PreallocatedFileWriter, nullable
+	 * @throws IOException
+	 */
+	public FragmentedMp4Writer(final String outputPath, final long fragmentDurationUs,
+		final int extentSize, final boolean useMmap,
+		final PreallocatedFileWriter.Allocator allocator) throws IOException {
+
+		if (fragmentDurationUs <= 0) throw new IllegalArgumentException("fragmentDurationUs should be positive");
+		mOutputPath = outputPath;
+		mFragmentDurationUs = fragmentDurationUs;
+		if (extentSize > 0) {
+			mChannel = new PreallocatedFileWriter(outputPath, extentSize, useMmap, allocator);
+		} else {
+			final RandomAccessFile file = new RandomAccessFile(outputPath, "rw");
+			file.setLength(0);
+			mChannel = file.getChannel();
+		}
+	}
+
+	public String getOutputPath() {
+		return mOutputPath;
+	}
+
+	/**
+	 * @param format
+	 * @return track index
+	 */
+	public int addTrack(final TrackFormat format) {
+		if (mStarted) throw new IllegalStateException("already started");
+		if (!TrackFormat.MIME_AVC.equals(format.mimeType) && !TrackFormat.MIME_AAC.equals(format.mimeType))
+			throw new IllegalArgumentException("unsupported mime type:" + format.mimeType);
+		mTracks.add(new Track(mTracks.size() + 1, format));
+		mHasVideo |= format.isVideo;
+		return mTracks.size() - 1;
+	}
+
+	/**
+	 * write ftyp and moov
+	 * @throws IOException
+	 */
+	public void start() throws IOException {
+		if (mStarted) throw new IllegalStateException("already started");
+		if (mTracks.isEmpty()) throw new IllegalStateException("no track");
+		int csdSize = 0;
+		for (final Track track: mTracks) {
+			csdSize += (track.mFormat.csd0 != null ? track.mFormat.csd0.length : 0)
+				+ (track.mFormat.csd1 != null ? track.mFormat.csd1.length : 0);
+		}
+		final ByteBuffer buf = ensureHeader(1024 * (mTracks.size() + 1) + csdSize);
+		writeFtyp(buf);
+		writeMoov(buf);
+		buf.flip();
+		writeFully(buf);
+		mStarted = true;
+	}
+
+	/**
+	 * @param trackIndex
+	 * @param buf encoded data
+	 * @param offset
+	 * @param size
+	 * @param presentationTimeUs
+	 * @param isKeyFrame
+	 * @throws IOException
+	 */
+	public void writeSampleData(final int trackIndex, final ByteBuffer buf, final int offset, final int size,
+		final long presentationTimeUs, final boolean isKeyFrame) throws IOException {
+
+		if (!mStarted) throw new IllegalStateException("not started");
+		final Track track = mTracks.get(trackIndex);
+		long time = Math.max(0, presentationTimeUs) * track.mTimescale / 1000000L;
+		if ((track.mCount > 0) && (time <= track.mTimes[track.mCount - 1])) {
+			// durations should be positive
+			time = track.mTimes[track.mCount - 1] + 1;
+		}
+		if (mFragmentStartUs < 0) {
+			mFragmentStartUs = presentationTimeUs;
+		} else if ((presentationTimeUs - mFragmentStartUs >= mFragmentDurationUs)
+			&& (!mHasVideo || (track.mFormat.isVideo && isKeyFrame))) {
+			// this sample starts next fragment
+			writeFragment(track, time);
+			mFragmentStartUs = presentationTimeUs;
+		}
+		track.ensureSampleCapacity();
+		final int start = track.mData.position();
+		if (track.mIsAvc) {
+			track.ensureDataCapacity(size + size / 3 + 4);
+			MoovWriter.appendAvc(track.mData, buf, offset, size);
+		} else {
+			track.ensureDataCapacity(size);
+			final int limit = buf.limit();
+			final int position = buf.position();
+			buf.limit(offset + size).position(offset);
+			track.mData.put(buf);
+			buf.limit(limit).position(position);
+		}
+		final int n = track.mCount++;
+		track.mSizes[n] = track.mData.position() - start;
+		track.mTimes[n] = time;
+		track.mFlags[n] = !track.mFormat.isVideo || isKeyFrame ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC;
+	}
+
+	/**
+	 * write remaining samples as the last fragment
+	 * @throws IOException
+	 */
+	public void stop() throws IOException {
+		if (!mStarted) return;
+		mStarted = false;
+		writeFragment(null, -1);
+		if (mChannel instanceof PreallocatedFileWriter) {
+			((PreallocatedFileWriter)mChannel).force();
+		} else {
+			((FileChannel)mChannel).force(false);
+		}
+	}
+
+	/**
+	 * close the file, preallocated file is truncated to written size
+	 */
+	public void release() {
+		mStarted = false;
+		if (mChannel != null) {
+			try {
+				mChannel.close();
+			} catch (final IOException e) {
+				// ignore
+			}
+			mChannel = null;
+		}
+	}
+
+	public int getFragmentCount() {
+		return mSequenceNumber;
+	}
+
+	public long getBytesWritten() {
+		return mBytesWritten;
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * write buffered samples as one fragment(moof + mdat).
+	 * the last sample of each track except nextTrack is kept for next fragment
+	 * because its duration is not known yet, unless this is the last fragment.
+	 * @param nextTrack track that the next sample belongs to, null means the last fragment
+	 * @param nextTime decode time of the next sample of nextTrack
+	 * @throws IOException
+	 */
+	private void writeFragment(final Track nextTrack, final long nextTime) throws IOException {
+		final boolean last = nextTrack == null;
+		final int numTracks = mTracks.size();
+		int totalSamples = 0;
+		for (int i = 0; i < numTracks; i++) {
+			totalSamples += mTracks.get(i).mCount;
+		}
+		if (totalSamples == 0) return;
+		final ByteBuffer buf = ensureHeader(256 + numTracks * 128 + totalSamples * 12);
+		final int moof = Mp4Box.begin(buf, Mp4Box.MOOF);
+		final int mfhd = Mp4Box.beginFull(buf, Mp4Box.MFHD, 0, 0);
+		buf.putInt(++mSequenceNumber);
+		Mp4Box.end(buf, mfhd);
+		long mdatSize = Mp4Box.HEADER_SIZE;
+		for (int i = 0; i < numTracks; i++) {
+			final Track track = mTracks.get(i);
+			final int n = numSamplesToWrite(track, last, nextTrack);
+			if (n <= 0) continue;
+			final int traf = Mp4Box.begin(buf, Mp4Box.TRAF);
+			final int tfhd = Mp4Box.beginFull(buf, Mp4Box.TFHD, 0, TFHD_FLAGS);
+			buf.putInt(track.mTrackId);
+			Mp4Box.end(buf, tfhd);
+			final int tfdt = Mp4Box.beginFull(buf, Mp4Box.TFDT, 1, 0);
+			buf.putLong(track.mTimes[0]);
+			Mp4Box.end(buf, tfdt);
+			final int trun = Mp4Box.beginFull(buf, Mp4Box.TRUN, 0, TRUN_FLAGS);
+			buf.putInt(n);
+			track.mDataOffsetPos = buf.position();
+			buf.putInt(0);
+			for (int j = 0; j < n; j++) {
+				final long duration = track.duration(j, track == nextTrack ? nextTime : -1);
+				buf.putInt((int)duration);
+				buf.putInt(track.mSizes[j]);
+				buf.putInt(track.mFlags[j]);
+				if ((j + 1 < track.mCount) || (track == nextTrack)) {
+					track.mLastDuration = duration;
+				}
+				mdatSize += track.mSizes[j];
+			}
+			Mp4Box.end(buf, trun);
+			Mp4Box.end(buf, traf);
+		}
+		Mp4Box.end(buf, moof);
+		// patch data_offset, offset from start of moof to the first sample of each track
+		long dataOffset = buf.position() - moof + Mp4Box.HEADER_SIZE;
+		for (int i = 0; i < numTracks; i++) {
+			final Track track = mTracks.get(i);
+			final int n = numSamplesToWrite(track, last, nextTrack);
+			if (n <= 0) continue;
+			buf.putInt(track.mDataOffsetPos, (int)dataOffset);
+			dataOffset += dataSize(track, n);
+		}
+		buf.putInt((int)mdatSize);
+		buf.putInt(Mp4Box.MDAT);
+		buf.flip();
+		writeFully(buf);
+		for (int i = 0; i < numTracks; i++) {
+			final Track track = mTracks.get(i);
+			final int n = numSamplesToWrite(track, last, nextTrack);
+			if (n <= 0) continue;
+			final ByteBuffer data = track.mData;
+			final int end = data.position();
+			final int size = dataSize(track, n);
+			data.position(0).limit(size);
+			writeFully(data);
+			// move samples that were not written to the head of buffer
+			data.limit(end).position(size);
+			data.compact();
+			final int remain = track.mCount - n;
+			System.arraycopy(track.mSizes, n, track.mSizes, 0, remain);
+			System.arraycopy(track.mTimes, n, track.mTimes, 0, remain);
+			System.arraycopy(track.mFlags, n, track.mFlags, 0, remain);
+			track.mCount = remain;
+		}
+	}
+
+	private static int numSamplesToWrite(final Track track, final boolean last, final Track nextTrack) {
+		return last || (track == nextTrack) ? track.mCount : track.mCount - 1;
+	}
+
+	private static int dataSize(final Track track, final int n) {
+		int size = 0;
+		for (int i = 0; i < n; i++) {
+			size += track.mSizes[i];
+		}
+		return size;
+	}
+
+	private void writeFully(final ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			mBytesWritten += mChannel.write(buf);
+		}
+	}
+
+	/**
+	 * get cleared header buffer that has at least specific capacity
+	 * @param capacity
+	 * @return
+	 */
+	private ByteBuffer ensureHeader(final int capacity) {
+		if (mHeader.capacity() < capacity) {
+			mHeader = ByteBuffer.allocate(Math.max(capacity, mHeader.capacity() * 2));
+		}
+		mHeader.clear();
+		return mHeader;
+	}
+
+//--------------------------------------------------------------------------------
+	private void writeFtyp(final ByteBuffer buf) {
+		final int ftyp = Mp4Box.begin(buf, Mp4Box.FTYP);
+		buf.putInt(Mp4Box.fourcc("iso5"));
+		buf.putInt(512);
+		buf.putInt(Mp4Box.fourcc("iso5"));
+		buf.putInt(Mp4Box.fourcc("iso6"));
+		buf.putInt(Mp4Box.fourcc("mp41"));
+		Mp4Box.end(buf, ftyp);
+	}
+
+	private void writeMoov(final ByteBuffer buf) throws IOException {
+		final int moov = Mp4Box.begin(buf, Mp4Box.MOOV);
+		// duration is unknown for fragmented file
+		MoovWriter.writeMvhd(buf, 0, mTracks.size() + 1);
+		for (final Track track: mTracks) {
+			MoovWriter.writeTrak(buf, track.mTrackId, track.mFormat, track.mTimescale, null, 0);
+		}
+		final int mvex = Mp4Box.begin(buf, Mp4Box.MVEX);
+		for (final Track track: mTracks) {
+			final int trex = Mp4Box.beginFull(buf, Mp4Box.TREX, 0, 0);
+			buf.putInt(track.mTrackId);
+			buf.putInt(1);	// default_sample_description_index
+			buf.putInt(0);	// default_sample_duration
+			buf.putInt(0);	// default_sample_size
+			buf.putInt(0);	// default_sample_flags
+			Mp4Box.end(buf, trex);
+		}
+		Mp4Box.end(buf, mvex);
+		Mp4Box.end(buf, moov);
+	}
+}
@@ -0,0 +1,398 @@
+package com.serenegiant.muxer;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: MoovWriter.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Helper to write moov and sample entries that are common to fragmented and non-fragmented MP4,
+ * and to convert AVC samples.
+ */
+/*package*/ final class MoovWriter {
+	static final int MOVIE_TIMESCALE = 1000;
+	static final int VIDEO_TIMESCALE = 90000;
+	static final int DEFAULT_VIDEO_FRAME_RATE = 30;
+	static final int AAC_SAMPLES_PER_FRAME = 1024;
+	private static final int[] MATRIX = {0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000};
+
+	private MoovWriter() {
+		// never be instantiated
+	}
+
+	/**
+	 * timescale of the track, 90kHz for video and sampling rate for audio
+	 * @param format
+	 * @return
+	 */
+	static int timescale(final TrackFormat format) {
+		if (format.isVideo) {
+			return VIDEO_TIMESCALE;
+		}
+		return format.sampleRate > 0 ? format.sampleRate : 44100;
+	}
+
+	/**
+	 * duration of a sample that is used when it can not be calculated from next sample
+	 * @param format
+	 * @return
+	 */
+	static long defaultSampleDuration(final TrackFormat format) {
+		return format.isVideo ? VIDEO_TIMESCALE / DEFAULT_VIDEO_FRAME_RATE : AAC_SAMPLES_PER_FRAME;
+	}
+
+	/**
+	 * write mvhd
+	 * @param buf
+	 * @param durationMs 0 for fragmented file
+	 * @param nextTrackId
+	 */
+	static void writeMvhd(final ByteBuffer buf, final long durationMs, final int nextTrackId) {
+		final int mvhd = Mp4Box.beginFull(buf, Mp4Box.MVHD, 0, 0);
+		buf.putInt(0);	// creation_time
+		buf.putInt(0);	// modification_time
+		buf.putInt(MOVIE_TIMESCALE);
+		buf.putInt((int)durationMs);	// duration
+		buf.putInt(0x00010000);	// rate 1.0
+		buf.putShort((short)0x0100);	// volume 1.0
+		buf.putShort((short)0);
+		buf.putLong(0);
+		putMatrix(buf);
+		for (int i = 0; i < 6; i++) {
+			buf.putInt(0);	// pre_defined
+		}
+		buf.putInt(nextTrackId);	// next_track_ID
+		Mp4Box.end(buf, mvhd);
+	}
+
+	/**
+	 * write trak
+	 * @param buf
+	 * @param trackId
+	 * @param format
+	 * @param timescale
+	 * @param table null for fragmented file(samples are in fragments)
+	 * @param startUs start time of the movie, track that starts later has empty edit
+	 */
+	static void writeTrak(final ByteBuffer buf, final int trackId, final TrackFormat format,
+		final int timescale, final SampleTable table, final long startUs) throws IOException {
+
+		final long duration = table != null ? table.getDuration() : 0;
+		final long delayUs = table != null ? Math.max(0, table.getStartUs() - startUs) : 0;
+		final int trak = Mp4Box.begin(buf, Mp4Box.TRAK);
+		final int tkhd = Mp4Box.beginFull(buf, Mp4Box.TKHD, 0, 0x000003);	// enabled, in movie
+		buf.putInt(0);	// creation_time
+		buf.putInt(0);	// modification_time
+		buf.putInt(trackId);
+		buf.putInt(0);
+		buf.putInt((int)(delayUs * MOVIE_TIMESCALE / 1000000L + duration * MOVIE_TIMESCALE / timescale));	// duration
+		buf.putLong(0);
+		buf.putShort((short)0);	// layer
+		buf.putShort((short)0);	// alternate_group
+		buf.putShort((short)(format.isVideo ? 0 : 0x0100));	// volume
+		buf.putShort((short)0);
+		putMatrix(buf);
+		buf.putInt(format.width << 16);
+		buf.putInt(format.height << 16);
+		Mp4Box.end(buf, tkhd);
+		if (delayUs > 0) {
+			// play the track after empty edit so that tracks keep synchronized
+			final int edts = Mp4Box.begin(buf, Mp4Box.EDTS);
+			final int elst = Mp4Box.beginFull(buf, Mp4Box.ELST, 0, 0);
+			buf.putInt(2);
+			buf.putInt((int)(delayUs * MOVIE_TIMESCALE / 1000000L));	// segment_duration
+			buf.putInt(-1);	// media_time, empty edit
+			buf.putInt(0x00010000);	// media_rate 1.0
+			buf.putInt((int)(duration * MOVIE_TIMESCALE / timescale));
+			buf.putInt(0);
+			buf.putInt(0x00010000);
+			Mp4Box.end(buf, elst);
+			Mp4Box.end(buf, edts);
+		}
+
+		final int mdia = Mp4Box.begin(buf, Mp4Box.MDIA);
+		final int mdhd = Mp4Box.beginFull(buf, Mp4Box.MDHD, 0, 0);
+		buf.putInt(0);	// creation_time
+		buf.putInt(0);	// modification_time
+		buf.putInt(timescale);
+		buf.putInt((int)duration);
+		buf.putShort((short)0x55c4);	// language "und"
+		buf.putShort((short)0);
+		Mp4Box.end(buf, mdhd);
+		final int hdlr = Mp4Box.beginFull(buf, Mp4Box.HDLR, 0, 0);
+		buf.putInt(0);
+		buf.putInt(Mp4Box.fourcc(format.isVideo ? "vide" : "soun"));
+		buf.putInt(0);
+		buf.putInt(0);
+		buf.putInt(0);
+		final String name = format.isVideo ? "VideoHandler" : "SoundHandler";
+		for (int i = 0; i < name.length(); i++) {
+			buf.put((byte)name.charAt(i));
+		}
+		buf.put((byte)0);
+		Mp4Box.end(buf, hdlr);
+
+		final int minf = Mp4Box.begin(buf, Mp4Box.MINF);
+		if (format.isVideo) {
+			final int vmhd = Mp4Box.beginFull(buf, Mp4Box.VMHD, 0, 1);
+			buf.putLong(0);	// graphicsmode, opcolor
+			Mp4Box.end(buf, vmhd);
+		} else {
+			final int smhd = Mp4Box.beginFull(buf, Mp4Box.SMHD, 0, 0);
+			buf.putInt(0);	// balance
+			Mp4Box.end(buf, smhd);
+		}
+		final int dinf = Mp4Box.begin(buf, Mp4Box.DINF);
+		final int dref = Mp4Box.beginFull(buf, Mp4Box.DREF, 0, 0);
+		buf.putInt(1);
+		final int url = Mp4Box.beginFull(buf, Mp4Box.URL, 0, 1);	// data is in this file
+		Mp4Box.end(buf, url);
+		Mp4Box.end(buf, dref);
+		Mp4Box.end(buf, dinf);
+
+		final int stbl = Mp4Box.begin(buf, Mp4Box.STBL);
+		final int stsd = Mp4Box.beginFull(buf, Mp4Box.STSD, 0, 0);
+		buf.putInt(1);
+		if (format.isVideo) {
+			writeAvc1(buf, format);
+		} else {
+			writeMp4a(buf, format);
+		}
+		Mp4Box.end(buf, stsd);
+		if (table != null) {
+			table.write(buf);
+		} else {
+			writeEmptySampleTable(buf);
+		}
+		Mp4Box.end(buf, stbl);
+		Mp4Box.end(buf, minf);
+		Mp4Box.end(buf, mdia);
+		Mp4Box.end(buf, trak);
+	}
+
+	/**
+	 * samples are in fragments, so sample tables are empty
+	 * @param buf
+	 */
+	private static void writeEmptySampleTable(final ByteBuffer buf) {
+		final int stts = Mp4Box.beginFull(buf, Mp4Box.STTS, 0, 0);
+		buf.putInt(0);
+		Mp4Box.end(buf, stts);
+		final int stsc = Mp4Box.beginFull(buf, Mp4Box.STSC, 0, 0);
+		buf.putInt(0);
+		Mp4Box.end(buf, stsc);
+		final int stsz = Mp4Box.beginFull(buf, Mp4Box.STSZ, 0, 0);
+		buf.putInt(0);
+		buf.putInt(0);
+		Mp4Box.end(buf, stsz);
+		final int stco = Mp4Box.beginFull(buf, Mp4Box.STCO, 0, 0);
+		buf.putInt(0);
+		Mp4Box.end(buf, stco);
+	}
+
+	private static void writeAvc1(final ByteBuffer buf, final TrackFormat format) {
+		final int avc1 = Mp4Box.begin(buf, Mp4Box.AVC1);
+		buf.putInt(0);
+		buf.putShort((short)0);	// reserved
+		buf.putShort((short)1);	// data_reference_index
+		buf.putShort((short)0);
+		buf.putShort((short)0);
+		buf.putInt(0);
+		buf.putInt(0);
+		buf.putInt(0);	// pre_defined
+		buf.putShort((short)format.width);
+		buf.putShort((short)format.height);
+		buf.putInt(0x00480000);	// horizresolution 72dpi
+		buf.putInt(0x00480000);	// vertresolution 72dpi
+		buf.putInt(0);
+		buf.putShort((short)1);	// frame_count
+		for (int i = 0; i < 32; i++) {
+			buf.put((byte)0);	// compressorname
+		}
+		buf.putShort((short)0x0018);	// depth
+		buf.putShort((short)-1);	// pre_defined
+		// AVCDecoderConfigurationRecord from SPS/PPS in csd-0 and csd-1
+		final int avcC = Mp4Box.begin(buf, Mp4Box.AVCC);
+		final int header = buf.position();
+		buf.put((byte)1);	// configurationVersion
+		buf.put((byte)66);	// AVCProfileIndication, updated with SPS
+		buf.put((byte)0);	// profile_compatibility
+		buf.put((byte)31);	// AVCLevelIndication
+		buf.put((byte)0xff);	// lengthSizeMinusOne = 3
+		final int numSpsPos = buf.position();
+		buf.put((byte)0xe0);
+		int numSps = 0;
+		numSps += putParameterSets(buf, format.csd0, 7, header);
+		numSps += putParameterSets(buf, format.csd1, 7, header);
+		buf.put(numSpsPos, (byte)(0xe0 | numSps));
+		final int numPpsPos = buf.position();
+		buf.put((byte)0);
+		int numPps = 0;
+		numPps += putParameterSets(buf, format.csd0, 8, header);
+		numPps += putParameterSets(buf, format.csd1, 8, header);
+		buf.put(numPpsPos, (byte)numPps);
+		Mp4Box.end(buf, avcC);
+		Mp4Box.end(buf, avc1);
+	}
+
+	/**
+	 * write parameter sets of specific NAL unit type in Annex-B csd with 16 bits length prefix
+	 * @param buf
+	 * @param csd
+	 * @param nalType 7(SPS) or 8(PPS)
+	 * @param header position of AVCDecoderConfigurationRecord to update profile/level with SPS
+	 * @return number of parameter sets written
+	 */
+	private static int putParameterSets(final ByteBuffer buf, final byte[] csd, final int nalType, final int header) {
+		if (csd == null) return 0;
+		final ByteBuffer src = ByteBuffer.wrap(csd);
+		final int end = csd.length;
+		int count = 0;
+		int nal = skipStartCode(src, 0, end);
+		while (nal < end) {
+			int nalEnd = end;
+			for (int i = nal; i + 2 < end; i++) {
+				if ((csd[i] == 0) && (csd[i + 1] == 0) && (csd[i + 2] == 1)) {
+					nalEnd = (i > nal) && (csd[i - 1] == 0) ? i - 1 : i;
+					break;
+				}
+			}
+			if ((nalEnd > nal) && ((csd[nal] & 0x1f) == nalType)) {
+				if ((nalType == 7) && (nalEnd - nal >= 4)) {
+					buf.put(header + 1, csd[nal + 1]);	// profile_idc
+					buf.put(header + 2, csd[nal + 2]);	// constraint flags
+					buf.put(header + 3, csd[nal + 3]);	// level_idc
+				}
+				buf.putShort((short)(nalEnd - nal));
+				buf.put(csd, nal, nalEnd - nal);
+				count++;
+			}
+			if (nalEnd == end) break;
+			nal = skipStartCode(src, nalEnd, end);
+		}
+		return count;
+	}
+
+	private static void writeMp4a(final ByteBuffer buf, final TrackFormat format) {
+		final int mp4a = Mp4Box.begin(buf, Mp4Box.MP4A);
+		buf.putInt(0);
+		buf.putShort((short)0);	// reserved
+		buf.putShort((short)1);	// data_reference_index
+		buf.putLong(0);
+		buf.putShort((short)format.channelCount);
+		buf.putShort((short)16);	// samplesize
+		buf.putInt(0);
+		buf.putInt(format.sampleRate << 16);
+		final byte[] asc = format.csd0 != null ? format.csd0 : new byte[0];
+		final int esds = Mp4Box.beginFull(buf, Mp4Box.ESDS, 0, 0);
+		// ES_Descriptor
+		buf.put((byte)0x03);
+		buf.put((byte)(3 + 15 + asc.length + 2 + 3));
+		buf.putShort((short)0);	// ES_ID
+		buf.put((byte)0);	// flags
+		// DecoderConfigDescriptor
+		buf.put((byte)0x04);
+		buf.put((byte)(13 + 2 + asc.length));
+		buf.put((byte)0x40);	// objectTypeIndication: MPEG-4 audio
+		buf.put((byte)0x15);	// streamType: audio
+		buf.put((byte)0);	// bufferSizeDB(24 bits)
+		buf.putShort((short)0);
+		buf.putInt(format.bitrate);	// maxBitrate
+		buf.putInt(format.bitrate);	// avgBitrate
+		// DecoderSpecificInfo
+		buf.put((byte)0x05);
+		buf.put((byte)asc.length);
+		buf.put(asc);
+		// SLConfigDescriptor
+		buf.put((byte)0x06);
+		buf.put((byte)1);
+		buf.put((byte)0x02);
+		Mp4Box.end(buf, esds);
+		Mp4Box.end(buf, mp4a);
+	}
+
+	static void putMatrix(final ByteBuffer buf) {
+		for (final int v: MATRIX) {
+			buf.putInt(v);
+		}
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * copy AVC sample with converting Annex-B start codes to 4 bytes length prefix
+	 * @param dst
+	 * @param src
+	 * @param offset
+	 * @param size
+	 */
+	static void appendAvc(final ByteBuffer dst, final ByteBuffer src, final int offset, final int size) {
+		final int end = offset + size;
+		int nal = skipStartCode(src, offset, end);
+		if (nal == offset) {
+			// no start code, treat whole data as one NAL unit
+			dst.putInt(size);
+			copy(dst, src, offset, end);
+			return;
+		}
+		while (nal < end) {
+			int next = nal;
+			int nalEnd = end;
+			for ( ; next + 2 < end; next++) {
+				if ((src.get(next) == 0) && (src.get(next + 1) == 0) && (src.get(next + 2) == 1)) {
+					nalEnd = next;
+					// 4 bytes start code
+					if ((nalEnd > nal) && (src.get(nalEnd - 1) == 0)) nalEnd--;
+					break;
+				}
+			}
+			if (nalEnd > nal) {
+				dst.putInt(nalEnd - nal);
+				copy(dst, src, nal, nalEnd);
+			}
+			if (nalEnd == end) break;
+			nal = skipStartCode(src, nalEnd, end);
+		}
+	}
+
+	/**
+	 * @param src
+	 * @param pos
+	 * @param end
+	 * @return position after start code, same as pos if there is no start code
+	 */
+	static int skipStartCode(final ByteBuffer src, final int pos, final int end) {
+		if ((pos + 3 <= end) && (src.get(pos) == 0) && (src.get(pos + 1) == 0)) {
+			if (src.get(pos + 2) == 1) return pos + 3;
+			if ((pos + 4 <= end) && (src.get(pos + 2) == 0) && (src.get(pos + 3) == 1)) return pos + 4;
+		}
+		return pos;
+	}
+
+	private static void copy(final ByteBuffer dst, final ByteBuffer src, final int start, final int end) {
+		final int limit = src.limit();
+		final int position = src.position();
+		src.limit(end).position(start);
+		dst.put(src);
+		src.limit(limit).position(position);
+	}
+}
@@ -0,0 +1,198 @@
+package com.serenegiant.muxer;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: Mp4Box.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Helper to write/read ISO base media file format(MP4) boxes on ByteBuffer.
+ * Reading methods use absolute positions of the buffer and do not change its position.
+ */
+public final class Mp4Box {
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	public static final int FTYP = fourcc("ftyp");
+	public static final int MOOV = fourcc("moov");
+	public static final int MVHD = fourcc("mvhd");
+	public static final int TRAK = fourcc("trak");
+	public static final int TKHD = fourcc("tkhd");
+	public static final int EDTS = fourcc("edts");
+	public static final int ELST = fourcc("elst");
+	public static final int MDIA = fourcc("mdia");
+	public static final int MDHD = fourcc("mdhd");
+	public static final int HDLR = fourcc("hdlr");
+	public static final int MINF = fourcc("minf");
+	public static final int VMHD = fourcc("vmhd");
+	public static final int SMHD = fourcc("smhd");
+	public static final int DINF = fourcc("dinf");
+	public static final int DREF = fourcc("dref");
+	public static final int URL = fourcc("url ");
+	public static final int STBL = fourcc("stbl");
+	public static final int STSD = fourcc("stsd");
+	public static final int STTS = fourcc("stts");
+	public static final int STSS = fourcc("stss");
+	public static final int STSC = fourcc("stsc");
+	public static final int STSZ = fourcc("stsz");
+	public static final int STCO = fourcc("stco");
+	public static final int CO64 = fourcc("co64");
+	public static final int AVC1 = fourcc("avc1");
+	public static final int AVCC = fourcc("avcC");
+	public static final int MP4A = fourcc("mp4a");
+	public static final int ESDS = fourcc("esds");
+	public static final int MVEX = fourcc("mvex");
+	public static final int TREX = fourcc("trex");
+	public static final int MOOF = fourcc("moof");
+	public static final int MFHD = fourcc("mfhd");
+	public static final int TRAF = fourcc("traf");
+	public static final int TFHD = fourcc("tfhd");
+	public static final int TFDT = fourcc("tfdt");
+	public static final int TRUN = fourcc("trun");
+	public static final int MDAT = fourcc("mdat");
+	public static final int FREE = fourcc("free");
+
+	/**
+	 * size of box header without largesize
+	 */
+	public static final int HEADER_SIZE = 8;
+
+	private Mp4Box() {
+		// never be instantiated
+	}
+
+	public static int fourcc(final String type) {
+		final byte[] b = type.getBytes(ASCII);
+		return ((b[0] & 0xff) << 24) | ((b[1] & 0xff) << 16) | ((b[2] & 0xff) << 8) | (b[3] & 0xff);
+	}
+
+	public static String toString(final int type) {
+		return new String(new byte[] {
+			(byte)(type >>> 24), (byte)(type >>> 16), (byte)(type >>> 8), (byte)type }, ASCII);
+	}
+
+	/**
+	 * start writing box, size is written by #end
+	 * @param buf
+	 * @param type
+	 * @return start position of the box
+	 */
+	public static int begin(final ByteBuffer buf, final int type) {
+		final int start = buf.position();
+		buf.putInt(0);
+		buf.putInt(type);
+		return start;
+	}
+
+	/**
+	 * start writing full box, size is written by #end
+	 * @param buf
+	 * @param type
+	 * @param version
+	 * @param flags
+	 * @return start position of the box
+	 */
+	public static int beginFull(final ByteBuffer buf, final int type, final int version, final int flags) {
+		final int start = begin(buf, type);
+		buf.putInt((version << 24) | (flags & 0xffffff));
+		return start;
+	}
+
+	/**
+	 * write size of the box that was started by #begin or #beginFull
+	 * @param buf
+	 * @param start
+	 */
+	public static void end(final ByteBuffer buf, final int start) {
+		buf.putInt(start, buf.position() - start);
+	}
+
+	/**
+	 * get size of the box at the position including header, largesize is supported
+	 * @param buf
+	 * @param pos
+	 * @return 0 means the box extends to the end of file
+	 */
+	public static long size(final ByteBuffer buf, final int pos) {
+		final long size = buf.getInt(pos) & 0xffffffffL;
+		return size == 1 ? buf.getLong(pos + HEADER_SIZE) : size;
+	}
+
+	public static int type(final ByteBuffer buf, final int pos) {
+		return buf.getInt(pos + 4);
+	}
+
+	/**
+	 * get header size of the box at the position
+	 * @param buf
+	 * @param pos
+	 * @return 8 or 16(largesize)
+	 */
+	public static int headerSize(final ByteBuffer buf, final int pos) {
+		return buf.getInt(pos) == 1 ? HEADER_SIZE + 8 : HEADER_SIZE;
+	}
+
+	/**
+	 * find first child box of specific type
+	 * @param buf
+	 * @param start start position of children
+	 * @param end end position of children
+	 * @param type
+	 * @return position of the box, -1 if not found or the boxes are broken
+	 */
+	public static int find(final ByteBuffer buf, final int start, final int end, final int type) {
+		int pos = start;
+		while (pos + HEADER_SIZE <= end) {
+			final long size = size(buf, pos);
+			final long boxEnd = size == 0 ? end : pos + size;
+			if (((size != 0) && (size < HEADER_SIZE)) || (boxEnd > end)) {
+				return -1;
+			}
+			if (type(buf, pos) == type) {
+				return pos;
+			}
+			pos = (int)boxEnd;
+		}
+		return -1;
+	}
+
+	/**
+	 * find nested box by path, e.g. findPath(buf, 0, limit, MOOV, TRAK, MDIA)
+	 * @param buf
+	 * @param start
+	 * @param end
+	 * @param path
+	 * @return position of the last box of path, -1 if not found
+	 */
+	public static int findPath(final ByteBuffer buf, final int start, final int end, final int... path) {
+		int pos = -1;
+		int childStart = start;
+		int childEnd = end;
+		for (final int type: path) {
+			pos = find(buf, childStart, childEnd, type);
+			if (pos < 0) return -1;
+			childEnd = (int)(pos + size(buf, pos));
+			childStart = pos + headerSize(buf, pos);
+		}
+		return pos;
+	}
+}
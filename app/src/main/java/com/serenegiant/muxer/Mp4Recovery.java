@@ -0,0 +1,171 @@
+package com.serenegiant.muxer;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: Mp4Recovery.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rebuild moov of MP4 file that was written by Mp4Writer with journal
+ * when the process died before Mp4Writer#stop.
+ * Samples that are recorded in the journal and fully written in mdat are recovered,
+ * the file is truncated after the last recovered sample and moov is appended.
+ * This runs on plain JVM, e.g.
+ * java -cp classes com.serenegiant.muxer.Mp4Recovery file.mp4...
+ */
+public final class Mp4Recovery {
+
+	private Mp4Recovery() {
+		// never be instantiated
+	}
+
+	/**
+	 * whether the output file has journal, i.e. the recording was not finished
+	 * @param path path of MP4 file
+	 * @return
+	 */
+	public static boolean needsRecovery(final String path) {
+		return new File(Mp4Writer.getJournalPath(path)).isFile();
+	}
+
+	/**
+	 * rebuild moov of the file from its journal, and delete the journal
+	 * @param path path of MP4 file
+	 * @return number of recovered samples
+	 * @throws IOException no journal, broken journal or failed to write
+	 */
+	public static int recover(final String path) throws IOException {
+		final File journal = new File(Mp4Writer.getJournalPath(path));
+		if (!journal.isFile()) throw new IOException("no journal:" + journal);
+		if (!new File(path).isFile()) throw new IOException("no such file:" + path);
+		final List<TrackFormat> formats = new ArrayList<TrackFormat>();
+		final RandomAccessFile file = new RandomAccessFile(path, "rw");
+		try {
+			final FileChannel channel = file.getChannel();
+			final long length = channel.size();
+			final DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(journal), 64 * 1024));
+			SampleTable[] tables = null;
+			final long mdatPos;
+			long mdatEnd;
+			int count = 0;
+			try {
+				mdatPos = SampleJournal.readHeader(in, formats);
+				mdatEnd = mdatPos + Mp4Writer.MDAT_HEADER_SIZE;
+				if (mdatEnd > length) throw new IOException("no mdat:" + path);
+				tables = new SampleTable[formats.size()];
+				for (int i = 0; i < tables.length; i++) {
+					tables[i] = new SampleTable(formats.get(i), journal.getAbsoluteFile().getParentFile());
+				}
+				for (;;) {
+					final int track;
+					final int flags;
+					final int size;
+					final long offset;
+					final long presentationTimeUs;
+					try {
+						track = in.readUnsignedByte();
+						flags = in.readUnsignedByte();
+						in.readShort();
+						size = in.readInt();
+						offset = in.readLong();
+						presentationTimeUs = in.readLong();
+					} catch (final EOFException e) {
+						// end of journal, or truncated record
+						break;
+					}
+					if ((track >= tables.length) || (size < 0)
+						|| (offset < mdatEnd) || (offset + size > length)) {
+						// broken record, or sample data was not written
+						break;
+					}
+					tables[track].add(offset, size, presentationTimeUs, (flags & SampleJournal.FLAG_SYNC) != 0);
+					mdatEnd = offset + size;
+					count++;
+				}
+				Mp4Writer.finish(channel, mdatPos, mdatEnd,
+					formats.toArray(new TrackFormat[formats.size()]), tables);
+			} finally {
+				in.close();
+				if (tables != null) {
+					for (final SampleTable table: tables) {
+						if (table != null) table.close();
+					}
+				}
+			}
+			journal.delete();
+			return count;
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * recover all unfinished MP4 files in specific directory
+	 * @param dir
+	 * @return number of recovered files
+	 */
+	public static int recoverAll(final File dir) {
+		int result = 0;
+		final File[] files = dir.listFiles();
+		if (files == null) return 0;
+		for (final File file: files) {
+			final String name = file.getPath();
+			if (name.endsWith(".mp4") && needsRecovery(name)) {
+				try {
+					recover(name);
+					result++;
+				} catch (final IOException e) {
+					System.err.println("failed to recover " + name + ":" + e);
+				}
+			}
+		}
+		return result;
+	}
+
+	public static void main(final String[] args) {
+		if (args.length == 0) {
+			System.err.println("usage: Mp4Recovery file.mp4...");
+			System.exit(2);
+		}
+		int failed = 0;
+		for (final String path: args) {
+			try {
+				final int n = recover(path);
+				System.out.println(path + ": recovered " + n + " samples");
+			} catch (final IOException e) {
+				System.err.println(path + ": " + e.getMessage());
+				failed++;
+			}
+		}
+		System.exit(failed > 0 ? 1 : 0);
+	}
+}
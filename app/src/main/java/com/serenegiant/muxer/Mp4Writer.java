@@ -0,0 +1,327 @@
+package com.serenegiant.muxer;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: Mp4Writer.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Progressive(non-fragmented) MP4 writer in pure Java.
+ * ftyp and mdat header are written at #start, samples are appended to mdat
+ * and moov is written after mdat at #stop like android.media.MediaMuxer.
+ * Unlike MediaMuxer, position of each sample in the file is known, so with journal enabled
+ * offset, size, presentation time and flags of samples are recorded into sidecar journal
+ * file(#getJournalPath) and Mp4Recovery can rebuild moov if the process died before #stop.
+ * Only H.264(AVC) video and AAC audio are supported. Annex-B start codes of AVC samples
+ * are converted to 4 bytes length prefix.
+ * Sample tables are spilled to temporary files next to the output file while recording
+ * and moov is written through memory mapping of the file, so java heap usage stays flat
+ * even for recordings of many hours.
+ * This is not thread safe, caller should serialize calls.
+ */
+public final class Mp4Writer {
+	private static final int INITIAL_DATA_CAPACITY = 256 * 1024;
+	/**
+	 * size of mdat header with 64 bit largesize
+	 */
+	/*package*/ static final int MDAT_HEADER_SIZE = 16;
+
+	private final String mOutputPath;
+	private final boolean mUseJournal;
+	private final List<TrackFormat> mFormats = new ArrayList<TrackFormat>();
+	private final List<SampleTable> mTables = new ArrayList<SampleTable>();
+	private FileChannel mChannel;
+	private SampleJournal mJournal;
+	private ByteBuffer mData;
+	private boolean mStarted;
+	private long mMdatPos;
+	private long mPosition;
+	private int mSampleCount;
+
+	/**
+	 * @param outputPath
+	 * @param useJournal record sample table into the journal file so that
+	 * Mp4Recovery can rebuild moov after crash
+	 * @throws IOException
+	 */
+	public Mp4Writer(final String outputPath, final boolean useJournal) throws IOException {
+		mOutputPath = outputPath;
+		mUseJournal = useJournal;
+		final RandomAccessFile file = new RandomAccessFile(outputPath, "rw");
+		file.setLength(0);
+		mChannel = file.getChannel();
+	}
+
+	public String getOutputPath() {
+		return mOutputPath;
+	}
+
+	/**
+	 * path of the journal file of specific output file
+	 * @param outputPath
+	 * @return
+	 */
+	public static String getJournalPath(final String outputPath) {
+		return outputPath + ".journal";
+	}
+
+	/**
+	 * @param format
+	 * @return track index
+	 */
+	public int addTrack(final TrackFormat format) {
+		if (mStarted) throw new IllegalStateException("already started");
+		if (!TrackFormat.MIME_AVC.equals(format.mimeType) && !TrackFormat.MIME_AAC.equals(format.mimeType))
+			throw new IllegalArgumentException("unsupported mime type:" + format.mimeType);
+		if (mFormats.size() >= SampleJournal.MAX_TRACKS)
+			throw new IllegalArgumentException("too many tracks");
+		mFormats.add(format);
+		mTables.add(new SampleTable(format, new File(mOutputPath).getAbsoluteFile().getParentFile()));
+		return mFormats.size() - 1;
+	}
+
+	/**
+	 * write ftyp and header of mdat, and create journal if enabled
+	 * @throws IOException
+	 */
+	public void start() throws IOException {
+		if (mStarted) throw new IllegalStateException("already started");
+		if (mFormats.isEmpty()) throw new IllegalStateException("no track");
+		final ByteBuffer buf = ByteBuffer.allocate(64);
+		final int ftyp = Mp4Box.begin(buf, Mp4Box.FTYP);
+		buf.putInt(Mp4Box.fourcc("isom"));
+		buf.putInt(512);
+		buf.putInt(Mp4Box.fourcc("isom"));
+		buf.putInt(Mp4Box.fourcc("iso2"));
+		buf.putInt(Mp4Box.fourcc("avc1"));
+		buf.putInt(Mp4Box.fourcc("mp41"));
+		Mp4Box.end(buf, ftyp);
+		mMdatPos = buf.position();
+		buf.putInt(1);	// size is in largesize
+		buf.putInt(Mp4Box.MDAT);
+		buf.putLong(0);	// largesize, patched at #stop
+		buf.flip();
+		writeFully(mChannel, buf);
+		mPosition = mMdatPos + MDAT_HEADER_SIZE;
+		if (mUseJournal) {
+			mJournal = new SampleJournal(getJournalPath(mOutputPath), mMdatPos, mFormats);
+		}
+		mStarted = true;
+	}
+
+	/**
+	 * @param trackIndex
+	 * @param buf encoded data
+	 * @param offset
+	 * @param size
+	 * @param presentationTimeUs
+	 * @param isKeyFrame
+	 * @throws IOException
+	 */
+	public void writeSampleData(final int trackIndex, final ByteBuffer buf, final int offset, final int size,
+		final long presentationTimeUs, final boolean isKeyFrame) throws IOException {
+
+		if (!mStarted) throw new IllegalStateException("not started");
+		final TrackFormat format = mFormats.get(trackIndex);
+		final int written;
+		if (TrackFormat.MIME_AVC.equals(format.mimeType)) {
+			final ByteBuffer data = ensureData(size + size / 3 + 4);
+			MoovWriter.appendAvc(data, buf, offset, size);
+			data.flip();
+			written = data.remaining();
+			writeFully(mChannel, data);
+		} else {
+			final int limit = buf.limit();
+			final int position = buf.position();
+			buf.limit(offset + size).position(offset);
+			try {
+				writeFully(mChannel, buf);
+			} finally {
+				buf.limit(limit).position(position);
+			}
+			written = size;
+		}
+		final boolean isSync = !format.isVideo || isKeyFrame;
+		mTables.get(trackIndex).add(mPosition, written, presentationTimeUs, isSync);
+		if (mJournal != null) {
+			// record after the sample data so that journal never refers unwritten data
+			mJournal.append(trackIndex, mPosition, written, presentationTimeUs, isSync);
+		}
+		mPosition += written;
+		mSampleCount++;
+	}
+
+	/**
+	 * patch size of mdat and write moov, then delete the journal
+	 * @throws IOException
+	 */
+	public void stop() throws IOException {
+		if (!mStarted) return;
+		mStarted = false;
+		try {
+			finish(mChannel, mMdatPos, mPosition,
+				mFormats.toArray(new TrackFormat[mFormats.size()]),
+				mTables.toArray(new SampleTable[mTables.size()]));
+		} finally {
+			closeTables();
+		}
+		if (mJournal != null) {
+			mJournal.close();
+			mJournal = null;
+			new File(getJournalPath(mOutputPath)).delete();
+		}
+	}
+
+	/**
+	 * close the file. If #stop was not called, the journal is kept for Mp4Recovery
+	 */
+	public void release() {
+		mStarted = false;
+		closeTables();
+		if (mJournal != null) {
+			mJournal.close();
+			mJournal = null;
+		}
+		if (mChannel != null) {
+			try {
+				mChannel.close();
+			} catch (final IOException e) {
+				// ignore
+			}
+			mChannel = null;
+		}
+	}
+
+	public int getSampleCount() {
+		return mSampleCount;
+	}
+
+	/**
+	 * size of sample tables on java heap
+	 * @return
+	 */
+	public long getSampleTableMemoryBytes() {
+		long result = 0;
+		for (final SampleTable table: mTables) {
+			result += table.getMemoryBytes();
+		}
+		return result;
+	}
+
+	public long getBytesWritten() {
+		return mPosition;
+	}
+
+	/**
+	 * number of write requests to the journal file
+	 * @return
+	 */
+	public int getJournalWriteCount() {
+		return mJournal != null ? mJournal.getWriteCount() : 0;
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * truncate the file at the end of mdat, patch size of mdat and append moov
+	 * @param channel
+	 * @param mdatPos position of mdat header with largesize
+	 * @param mdatEnd end of the last sample
+	 * @param formats
+	 * @param tables
+	 * @throws IOException
+	 */
+	/*package*/ static void finish(final FileChannel channel, final long mdatPos, final long mdatEnd,
+		final TrackFormat[] formats, final SampleTable[] tables) throws IOException {
+
+		channel.truncate(mdatEnd);
+		final ByteBuffer size = ByteBuffer.allocate(8);
+		size.putLong(mdatEnd - mdatPos).flip();
+		while (size.hasRemaining()) {
+			channel.write(size, mdatPos + 8 + size.position());
+		}
+		long capacity = 1024;
+		long startUs = Long.MAX_VALUE;
+		long durationMs = 0;
+		for (int i = 0; i < formats.length; i++) {
+			capacity += 1024 + tables[i].getMaxBoxSize()
+				+ (formats[i].csd0 != null ? formats[i].csd0.length : 0)
+				+ (formats[i].csd1 != null ? formats[i].csd1.length : 0);
+			if (tables[i].getStartUs() >= 0) {
+				startUs = Math.min(startUs, tables[i].getStartUs());
+			}
+		}
+		if (startUs == Long.MAX_VALUE) {
+			startUs = 0;
+		}
+		for (int i = 0; i < formats.length; i++) {
+			final long delayUs = Math.max(0, tables[i].getStartUs() - startUs);
+			durationMs = Math.max(durationMs, delayUs / 1000L
+				+ tables[i].getDuration() * 1000L / tables[i].getTimescale());
+		}
+		if (capacity > Integer.MAX_VALUE) throw new IOException("too many samples");
+		// write moov directly to the file instead of allocating buffer for whole sample tables
+		final MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, mdatEnd, capacity);
+		final int moov = Mp4Box.begin(buf, Mp4Box.MOOV);
+		MoovWriter.writeMvhd(buf, durationMs, formats.length + 1);
+		for (int i = 0; i < formats.length; i++) {
+			MoovWriter.writeTrak(buf, i + 1, formats[i], tables[i].getTimescale(), tables[i], startUs);
+		}
+		Mp4Box.end(buf, moov);
+		buf.force();
+		// remove unused part of the mapped region
+		channel.truncate(mdatEnd + buf.position());
+		channel.force(false);
+	}
+
+	private void closeTables() {
+		for (final SampleTable table: mTables) {
+			table.close();
+		}
+	}
+
+	private static void writeFully(final FileChannel channel, final ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			channel.write(buf);
+		}
+	}
+
+	/**
+	 * get cleared buffer for converted sample that has at least specific capacity
+	 * @param capacity
+	 * @return
+	 */
+	private ByteBuffer ensureData(final int capacity) {
+		if ((mData == null) || (mData.capacity() < capacity)) {
+			mData = ByteBuffer.allocateDirect(Math.max(capacity,
+				mData != null ? mData.capacity() * 2 : INITIAL_DATA_CAPACITY));
+		}
+		mData.clear();
+		return mData;
+	}
+}
@@ -0,0 +1,190 @@
+package com.serenegiant.muxer;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: PreallocatedFileWriter.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Sequential file writer that allocates the file in large extents ahead of writing
+ * so that block allocation of file system does not happen on every write.
+ * Data is copied into memory mapped window of current extent(useMmap=true)
+ * or written with positional FileChannel#write into the extent.
+ * File is truncated to the written size on #close.
+ * This is not thread safe, caller should serialize calls.
+ */
+public final class PreallocatedFileWriter implements WritableByteChannel {
+	public static final int DEFAULT_EXTENT_SIZE = 8 * 1024 * 1024;
+
+	/**
+	 * allocate storage of the file
+	 */
+	public interface Allocator {
+		/**
+		 * allocate [offset, offset + length) of the file, file size should become at least offset + length
+		 * @param file
+		 * @param offset
+		 * @param length
+		 * @throws IOException
+		 */
+		public void allocate(final RandomAccessFile file, final long offset, final long length) throws IOException;
+	}
+
+	/**
+	 * allocator that only extends file size with RandomAccessFile#setLength,
+	 * most file systems make sparse file and allocate blocks on writing back
+	 */
+	public static final Allocator SET_LENGTH = new Allocator() {
+		@Override
+		public void allocate(final RandomAccessFile file, final long offset, final long length) throws IOException {
+			file.setLength(offset + length);
+		}
+	};
+
+	private final RandomAccessFile mFile;
+	private final FileChannel mChannel;
+	private final int mExtentSize;
+	private final boolean mUseMmap;
+	private final Allocator mAllocator;
+	private MappedByteBuffer mWindow;
+	private long mWindowStart;
+	private long mPosition;
+	private long mAllocated;
+	private int mExtentCount;
+	private boolean mIsOpen = true;
+
+	/**
+	 * @param outputPath
+	 * @param extentSize size of each allocation, also size of the mapped window
+	 * @param useMmap true: write through memory mapped window, false: write with FileChannel
+	 * @param allocator nullable, SET_LENGTH is used if null
+	 * @throws IOException
+	 */
+	public PreallocatedFileWriter(final String outputPath, final int extentSize,
+		final boolean useMmap, final Allocator allocator) throws IOException {
+
+		if (extentSize <= 0) throw new IllegalArgumentException("extentSize should be positive");
+		mExtentSize = extentSize;
+		mUseMmap = useMmap;
+		mAllocator = allocator != null ? allocator : SET_LENGTH;
+		mFile = new RandomAccessFile(outputPath, "rw");
+		mFile.setLength(0);
+		mChannel = mFile.getChannel();
+	}
+
+	@Override
+	public int write(final ByteBuffer src) throws IOException {
+		if (!mIsOpen) throw new ClosedChannelException();
+		final int result = src.remaining();
+		final int limit = src.limit();
+		while (src.hasRemaining()) {
+			if (mPosition >= mAllocated) {
+				allocateExtent();
+			}
+			final int len = (int)Math.min(src.remaining(), mAllocated - mPosition);
+			src.limit(src.position() + len);
+			if (mUseMmap) {
+				mWindow.position((int)(mPosition - mWindowStart));
+				mWindow.put(src);
+			} else {
+				while (src.hasRemaining()) {
+					mChannel.write(src, mPosition + len - src.remaining());
+				}
+			}
+			src.limit(limit);
+			mPosition += len;
+		}
+		return result;
+	}
+
+	/**
+	 * flush written data to storage
+	 * @throws IOException
+	 */
+	public void force() throws IOException {
+		if (!mIsOpen) throw new ClosedChannelException();
+		if (mWindow != null) {
+			mWindow.force();
+		}
+		mChannel.force(false);
+	}
+
+	/**
+	 * size of written data
+	 * @return
+	 */
+	public long position() {
+		return mPosition;
+	}
+
+	/**
+	 * number of extents that were allocated
+	 * @return
+	 */
+	public int getExtentCount() {
+		return mExtentCount;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return mIsOpen;
+	}
+
+	/**
+	 * truncate the file to written size and close it
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException {
+		if (!mIsOpen) return;
+		mIsOpen = false;
+		try {
+			if (mWindow != null) {
+				mWindow.force();
+				// mapping is released by GC, truncating mapped file is no problem on Linux
+				mWindow = null;
+			}
+			mFile.setLength(mPosition);
+		} finally {
+			mFile.close();
+		}
+	}
+
+//--------------------------------------------------------------------------------
+	private void allocateExtent() throws IOException {
+		final long start = mAllocated;
+		mAllocator.allocate(mFile, start, mExtentSize);
+		mAllocated = start + mExtentSize;
+		mExtentCount++;
+		if (mUseMmap) {
+			// previous window is written back by the kernel and unmapped by GC
+			mWindow = mChannel.map(FileChannel.MapMode.READ_WRITE, start, mExtentSize);
+			mWindowStart = start;
+		}
+	}
+}
@@ -0,0 +1,265 @@
+package com.serenegiant.muxer;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: SampleIndex.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only list of (long, int) entries in primitive arrays for sample tables.
+ * Entries are stored in blocks of BLOCK_ENTRIES entries. When spill directory is given,
+ * a block is written to a temporary file when it becomes full and the same arrays are
+ * reused for the next block, so memory usage does not grow with the recording length.
+ * Without spill directory, full blocks are kept in memory.
+ * Entries are read back sequentially with #rewind and #next, spilled blocks first.
+ * The last entry is always in memory and can be updated with #setLastInt.
+ * This is not thread safe.
+ */
+/*package*/ final class SampleIndex {
+	/**
+	 * number of entries per block, about 192KB of arrays
+	 */
+	static final int BLOCK_ENTRIES = 16384;
+	private static final int ENTRY_SIZE = 12;
+
+	private final File mSpillDir;
+	private long[] mLongs = new long[BLOCK_ENTRIES];
+	private int[] mInts = new int[BLOCK_ENTRIES];
+	/**
+	 * number of entries in mLongs/mInts
+	 */
+	private int mSize;
+	private long mCount;
+	// full blocks that are kept in memory without spill directory
+	private final List<long[]> mLongBlocks = new ArrayList<long[]>();
+	private final List<int[]> mIntBlocks = new ArrayList<int[]>();
+	// spill file
+	private File mSpillFile;
+	private FileChannel mSpill;
+	private ByteBuffer mIOBuffer;
+	private long mSpilledEntries;
+	private long[] mSpillLongs;
+	private int[] mSpillInts;
+	// reading position
+	private long mReadIndex;
+	private long mReadSpillPos;
+	private int mReadBlock;
+	private long[] mReadLongs;
+	private int[] mReadInts;
+	private int mReadPos, mReadSize;
+	private long mLong;
+	private int mInt;
+
+	/**
+	 * @param spillDir directory to create temporary file, null keeps all entries in memory
+	 */
+	SampleIndex(final File spillDir) {
+		mSpillDir = spillDir;
+	}
+
+	long getCount() {
+		return mCount;
+	}
+
+	/**
+	 * number of entries that were moved to the spill file
+	 * @return
+	 */
+	long getSpilledCount() {
+		return mSpilledEntries;
+	}
+
+	/**
+	 * size of arrays on java heap
+	 * @return
+	 */
+	long getMemoryBytes() {
+		return (long)(mLongBlocks.size() + (mSpillLongs != null ? 2 : 1)) * BLOCK_ENTRIES * ENTRY_SIZE;
+	}
+
+	void add(final long l, final int i) throws IOException {
+		if (mSize >= BLOCK_ENTRIES) {
+			flushBlock();
+		}
+		mLongs[mSize] = l;
+		mInts[mSize] = i;
+		mSize++;
+		mCount++;
+	}
+
+	long getLastLong() {
+		return mLongs[mSize - 1];
+	}
+
+	int getLastInt() {
+		return mInts[mSize - 1];
+	}
+
+	void setLastInt(final int i) {
+		mInts[mSize - 1] = i;
+	}
+
+	/**
+	 * start reading entries from the first one
+	 * @throws IOException
+	 */
+	void rewind() throws IOException {
+		mReadIndex = 0;
+		mReadSpillPos = 0;
+		mReadBlock = 0;
+		mReadPos = mReadSize = 0;
+	}
+
+	/**
+	 * read next entry, use #getLong and #getInt to get its values
+	 * @return false if no more entry
+	 * @throws IOException
+	 */
+	boolean next() throws IOException {
+		if (mReadIndex >= mCount) return false;
+		if (mReadPos >= mReadSize) {
+			loadBlock();
+		}
+		mLong = mReadLongs[mReadPos];
+		mInt = mReadInts[mReadPos];
+		mReadPos++;
+		mReadIndex++;
+		return true;
+	}
+
+	long getLong() {
+		return mLong;
+	}
+
+	int getInt() {
+		return mInt;
+	}
+
+	/**
+	 * delete the spill file and release memory
+	 */
+	void close() {
+		if (mSpill != null) {
+			try {
+				mSpill.close();
+			} catch (final IOException e) {
+				// ignore
+			}
+			mSpill = null;
+		}
+		if (mSpillFile != null) {
+			mSpillFile.delete();
+			mSpillFile = null;
+		}
+		mLongBlocks.clear();
+		mIntBlocks.clear();
+		mIOBuffer = null;
+		mSpillLongs = null;
+		mSpillInts = null;
+		mReadLongs = null;
+		mReadInts = null;
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * move full block to the spill file(or keep in memory) and start new block
+	 * @throws IOException
+	 */
+	private void flushBlock() throws IOException {
+		if (mSpillDir == null) {
+			mLongBlocks.add(mLongs);
+			mIntBlocks.add(mInts);
+			mLongs = new long[BLOCK_ENTRIES];
+			mInts = new int[BLOCK_ENTRIES];
+			mSize = 0;
+			return;
+		}
+		if (mSpill == null) {
+			mSpillFile = File.createTempFile("index", ".tmp", mSpillDir);
+			mSpillFile.deleteOnExit();
+			mSpill = new RandomAccessFile(mSpillFile, "rw").getChannel();
+		}
+		final ByteBuffer buf = ioBuffer();
+		buf.asLongBuffer().put(mLongs, 0, mSize);
+		buf.position(mSize * 8);
+		buf.asIntBuffer().put(mInts, 0, mSize);
+		buf.position(0).limit(mSize * ENTRY_SIZE);
+		while (buf.hasRemaining()) {
+			mSpill.write(buf);
+		}
+		mSpilledEntries += mSize;
+		mSize = 0;
+	}
+
+	/**
+	 * load next block to read
+	 * @throws IOException
+	 */
+	private void loadBlock() throws IOException {
+		mReadPos = 0;
+		if (mReadIndex < mSpilledEntries) {
+			// all spilled blocks are full
+			if (mSpillLongs == null) {
+				mSpillLongs = new long[BLOCK_ENTRIES];
+				mSpillInts = new int[BLOCK_ENTRIES];
+			}
+			mReadLongs = mSpillLongs;
+			mReadInts = mSpillInts;
+			final ByteBuffer buf = ioBuffer();
+			buf.limit(BLOCK_ENTRIES * ENTRY_SIZE);
+			while (buf.hasRemaining()) {
+				if (mSpill.read(buf, mReadSpillPos + buf.position()) < 0)
+					throw new IOException("spill file is truncated");
+			}
+			buf.position(0);
+			buf.asLongBuffer().get(mReadLongs, 0, BLOCK_ENTRIES);
+			buf.position(BLOCK_ENTRIES * 8);
+			buf.asIntBuffer().get(mReadInts, 0, BLOCK_ENTRIES);
+			mReadSpillPos += BLOCK_ENTRIES * ENTRY_SIZE;
+			mReadSize = BLOCK_ENTRIES;
+		} else if (mReadBlock < mLongBlocks.size()) {
+			mReadLongs = mLongBlocks.get(mReadBlock);
+			mReadInts = mIntBlocks.get(mReadBlock);
+			mReadBlock++;
+			mReadSize = BLOCK_ENTRIES;
+		} else {
+			// current block
+			mReadLongs = mLongs;
+			mReadInts = mInts;
+			mReadSize = mSize;
+		}
+	}
+
+	private ByteBuffer ioBuffer() {
+		if (mIOBuffer == null) {
+			mIOBuffer = ByteBuffer.allocateDirect(BLOCK_ENTRIES * ENTRY_SIZE);
+		}
+		mIOBuffer.clear();
+		return mIOBuffer;
+	}
+}
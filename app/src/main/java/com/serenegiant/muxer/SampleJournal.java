@@ -0,0 +1,217 @@
+package com.serenegiant.muxer;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: SampleJournal.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Append-only sidecar journal of sample table of Mp4Writer.
+ * Header has position of mdat and formats(including codec specific data) of all tracks,
+ * then fixed size records of samples follow. Records are buffered and written
+ * in batches of BATCH_RECORDS records or every FLUSH_INTERVAL_US of presentation time,
+ * so the journal costs one write call per batch and the journal is not fsync'ed
+ * (crash of the process does not lose data that was already written to the page cache).
+ * Truncated record at the tail(e.g. crash while writing) is ignored by the reader.
+ */
+/*package*/ final class SampleJournal {
+	/**
+	 * "AVRJ"
+	 */
+	static final int MAGIC = 0x4156524a;
+	static final int VERSION = 1;
+	static final int MAX_TRACKS = 127;
+	/**
+	 * track(1), flags(1), reserved(2), size(4), offset(8), presentation time(8)
+	 */
+	static final int RECORD_SIZE = 24;
+	static final int FLAG_SYNC = 0x01;
+	private static final int BATCH_RECORDS = 256;
+	/**
+	 * maximum duration of samples that are kept in the buffer
+	 */
+	private static final long FLUSH_INTERVAL_US = 500000L;
+
+	private final FileChannel mChannel;
+	private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(BATCH_RECORDS * RECORD_SIZE);
+	private long mFirstPtsUs = -1;
+	private int mWriteCount;
+
+	/**
+	 * create journal file and write header
+	 * @param path
+	 * @param mdatPos
+	 * @param formats
+	 * @throws IOException
+	 */
+	SampleJournal(final String path, final long mdatPos, final List<TrackFormat> formats) throws IOException {
+		final RandomAccessFile file = new RandomAccessFile(path, "rw");
+		file.setLength(0);
+		mChannel = file.getChannel();
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(mdatPos);
+		out.writeInt(formats.size());
+		for (final TrackFormat format: formats) {
+			out.writeUTF(format.mimeType);
+			out.writeBoolean(format.isVideo);
+			out.writeInt(format.width);
+			out.writeInt(format.height);
+			out.writeInt(format.sampleRate);
+			out.writeInt(format.channelCount);
+			out.writeInt(format.bitrate);
+			writeBytes(out, format.csd0);
+			writeBytes(out, format.csd1);
+		}
+		out.flush();
+		final ByteBuffer header = ByteBuffer.wrap(bytes.toByteArray());
+		while (header.hasRemaining()) {
+			mChannel.write(header);
+		}
+		// header should be on the storage before any sample refers it
+		mChannel.force(false);
+	}
+
+	/**
+	 * @param track
+	 * @param offset
+	 * @param size
+	 * @param presentationTimeUs
+	 * @param isSync
+	 * @throws IOException
+	 */
+	void append(final int track, final long offset, final int size,
+		final long presentationTimeUs, final boolean isSync) throws IOException {
+
+		mBuffer.put((byte)track);
+		mBuffer.put((byte)(isSync ? FLAG_SYNC : 0));
+		mBuffer.putShort((short)0);
+		mBuffer.putInt(size);
+		mBuffer.putLong(offset);
+		mBuffer.putLong(presentationTimeUs);
+		if (mFirstPtsUs < 0) {
+			mFirstPtsUs = presentationTimeUs;
+		}
+		if (!mBuffer.hasRemaining() || (presentationTimeUs - mFirstPtsUs >= FLUSH_INTERVAL_US)) {
+			flush();
+		}
+	}
+
+	/**
+	 * write buffered records
+	 * @throws IOException
+	 */
+	void flush() throws IOException {
+		if (mBuffer.position() > 0) {
+			mBuffer.flip();
+			while (mBuffer.hasRemaining()) {
+				mChannel.write(mBuffer);
+			}
+			mBuffer.clear();
+			mWriteCount++;
+		}
+		mFirstPtsUs = -1;
+	}
+
+	/**
+	 * flush buffered records and close the journal file
+	 */
+	void close() {
+		try {
+			flush();
+		} catch (final IOException e) {
+			// ignore
+		}
+		try {
+			mChannel.close();
+		} catch (final IOException e) {
+			// ignore
+		}
+	}
+
+	int getWriteCount() {
+		return mWriteCount;
+	}
+
+	private static void writeBytes(final DataOutputStream out, final byte[] bytes) throws IOException {
+		if (bytes != null) {
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		} else {
+			out.writeInt(-1);
+		}
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * read header of journal
+	 * @param in
+	 * @param formats formats of tracks are added to this list
+	 * @return position of mdat
+	 * @throws IOException broken or unsupported journal
+	 */
+	static long readHeader(final DataInputStream in, final List<TrackFormat> formats) throws IOException {
+		if (in.readInt() != MAGIC) throw new IOException("not a journal file");
+		final int version = in.readInt();
+		if (version != VERSION) throw new IOException("unsupported journal version:" + version);
+		final long mdatPos = in.readLong();
+		final int n = in.readInt();
+		if ((n <= 0) || (n > MAX_TRACKS)) throw new IOException("invalid number of tracks:" + n);
+		for (int i = 0; i < n; i++) {
+			final String mimeType = in.readUTF();
+			final boolean isVideo = in.readBoolean();
+			final int width = in.readInt();
+			final int height = in.readInt();
+			final int sampleRate = in.readInt();
+			final int channelCount = in.readInt();
+			final int bitrate = in.readInt();
+			final byte[] csd0 = readBytes(in);
+			final byte[] csd1 = readBytes(in);
+			formats.add(isVideo
+				? TrackFormat.video(mimeType, width, height, bitrate, wrap(csd0), wrap(csd1))
+				: TrackFormat.audio(mimeType, sampleRate, channelCount, bitrate, wrap(csd0)));
+		}
+		return mdatPos;
+	}
+
+	private static byte[] readBytes(final DataInputStream in) throws IOException {
+		final int n = in.readInt();
+		if (n < 0) return null;
+		if (n > 1024 * 1024) throw new IOException("invalid codec specific data size:" + n);
+		final byte[] bytes = new byte[n];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	private static ByteBuffer wrap(final byte[] bytes) {
+		return bytes != null ? ByteBuffer.wrap(bytes) : null;
+	}
+}
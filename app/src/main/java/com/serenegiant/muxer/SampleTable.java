@@ -0,0 +1,258 @@
+package com.serenegiant.muxer;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: SampleTable.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Sample table(stts, stss, stsc, stsz and stco/co64) of one track of non-fragmented MP4.
+ * Samples that are consecutive in the file are grouped into one chunk.
+ * Samples and chunks are kept in SampleIndex(primitive arrays), older entries are spilled
+ * to temporary files in the spill directory and read back sequentially by #write,
+ * so java heap usage does not grow with the recording length.
+ * #close should be called to delete the temporary files.
+ */
+/*package*/ final class SampleTable {
+	/**
+	 * size and sync flag are packed into int entry of sample index
+	 */
+	private static final int SYNC_BIT = 0x80000000;
+
+	private final boolean mIsVideo;
+	private final int mTimescale;
+	private final long mDefaultDuration;
+	/**
+	 * decode time in timescale and size(with SYNC_BIT) of samples
+	 */
+	private final SampleIndex mSamples;
+	/**
+	 * file offset and number of samples of chunks
+	 */
+	private final SampleIndex mChunks;
+	private int mCount;
+	private int mSyncCount;
+	private int mChunkCount;
+	private long mLastTime, mPrevTime;
+	private long mLastChunkOffset;
+	private long mNextOffset = -1;
+	private long mStartUs = -1;
+
+	/**
+	 * @param format
+	 * @param spillDir directory for temporary files of the table, null keeps the table in memory
+	 */
+	SampleTable(final TrackFormat format, final File spillDir) {
+		mIsVideo = format.isVideo;
+		mTimescale = MoovWriter.timescale(format);
+		mDefaultDuration = MoovWriter.defaultSampleDuration(format);
+		mSamples = new SampleIndex(spillDir);
+		mChunks = new SampleIndex(spillDir);
+	}
+
+	int getTimescale() {
+		return mTimescale;
+	}
+
+	int getCount() {
+		return mCount;
+	}
+
+	/**
+	 * presentation time of the first sample[usec], -1 if no sample
+	 * @return
+	 */
+	long getStartUs() {
+		return mStartUs;
+	}
+
+	/**
+	 * size of sample index on java heap
+	 * @return
+	 */
+	long getMemoryBytes() {
+		return mSamples.getMemoryBytes() + mChunks.getMemoryBytes();
+	}
+
+	/**
+	 * @param offset position of the sample in the file
+	 * @param size
+	 * @param presentationTimeUs
+	 * @param isSync
+	 * @throws IOException failed to write to the spill file
+	 */
+	void add(final long offset, final int size, final long presentationTimeUs, final boolean isSync) throws IOException {
+		if (mStartUs < 0) {
+			mStartUs = Math.max(0, presentationTimeUs);
+		}
+		// decode time starts from the first sample, durations should be positive
+		long time = (Math.max(0, presentationTimeUs) - mStartUs) * mTimescale / 1000000L;
+		if ((mCount > 0) && (time <= mLastTime)) {
+			time = mLastTime + 1;
+		}
+		mSamples.add(time, isSync ? (size | SYNC_BIT) : size);
+		mPrevTime = mLastTime;
+		mLastTime = time;
+		mCount++;
+		if (isSync) {
+			mSyncCount++;
+		}
+		if ((mChunkCount > 0) && (offset == mNextOffset)) {
+			mChunks.setLastInt(mChunks.getLastInt() + 1);
+		} else {
+			mChunks.add(offset, 1);
+			mChunkCount++;
+			mLastChunkOffset = offset;
+		}
+		mNextOffset = offset + size;
+	}
+
+	/**
+	 * duration of the last sample in timescale, same as previous one
+	 * @return
+	 */
+	private long lastDuration() {
+		return mCount >= 2 ? mLastTime - mPrevTime : mDefaultDuration;
+	}
+
+	/**
+	 * duration of the track in timescale
+	 * @return
+	 */
+	long getDuration() {
+		return mCount > 0 ? mLastTime + lastDuration() : 0;
+	}
+
+	/**
+	 * maximum size of boxes that #write writes
+	 * @return
+	 */
+	long getMaxBoxSize() {
+		return 256 + mCount * 16L + mChunkCount * 20L;
+	}
+
+	/**
+	 * write stts, stss, stsc, stsz and stco or co64
+	 * @param buf
+	 * @throws IOException failed to read the spill file
+	 */
+	void write(final ByteBuffer buf) throws IOException {
+		// stts, run length of durations
+		final int stts = Mp4Box.beginFull(buf, Mp4Box.STTS, 0, 0);
+		final int sttsCountPos = buf.position();
+		buf.putInt(0);
+		int entries = 0;
+		if (mCount > 0) {
+			mSamples.rewind();
+			mSamples.next();
+			long prev = mSamples.getLong();
+			long runDuration = -1;
+			int n = 0;
+			for (int i = 1; i <= mCount; i++) {
+				final long duration;
+				if (i < mCount) {
+					mSamples.next();
+					duration = mSamples.getLong() - prev;
+					prev = mSamples.getLong();
+				} else {
+					duration = lastDuration();
+				}
+				if (duration == runDuration) {
+					n++;
+				} else {
+					if (n > 0) {
+						buf.putInt(n);
+						buf.putInt((int)runDuration);
+						entries++;
+					}
+					runDuration = duration;
+					n = 1;
+				}
+			}
+			buf.putInt(n);
+			buf.putInt((int)runDuration);
+			entries++;
+		}
+		buf.putInt(sttsCountPos, entries);
+		Mp4Box.end(buf, stts);
+		if (mIsVideo && (mSyncCount < mCount)) {
+			// all samples are sync samples if there is no stss
+			final int stss = Mp4Box.beginFull(buf, Mp4Box.STSS, 0, 0);
+			buf.putInt(mSyncCount);
+			mSamples.rewind();
+			for (int i = 1; mSamples.next(); i++) {
+				if ((mSamples.getInt() & SYNC_BIT) != 0) {
+					buf.putInt(i);
+				}
+			}
+			Mp4Box.end(buf, stss);
+		}
+		// stsc, run length of number of samples per chunk
+		final int stsc = Mp4Box.beginFull(buf, Mp4Box.STSC, 0, 0);
+		final int stscCountPos = buf.position();
+		buf.putInt(0);
+		entries = 0;
+		mChunks.rewind();
+		for (int i = 1, prev = -1; mChunks.next(); i++) {
+			final int samples = mChunks.getInt();
+			if (samples != prev) {
+				buf.putInt(i);	// first_chunk
+				buf.putInt(samples);
+				buf.putInt(1);	// sample_description_index
+				entries++;
+				prev = samples;
+			}
+		}
+		buf.putInt(stscCountPos, entries);
+		Mp4Box.end(buf, stsc);
+		final int stsz = Mp4Box.beginFull(buf, Mp4Box.STSZ, 0, 0);
+		buf.putInt(0);	// sample_size, sizes are in the table
+		buf.putInt(mCount);
+		mSamples.rewind();
+		while (mSamples.next()) {
+			buf.putInt(mSamples.getInt() & ~SYNC_BIT);
+		}
+		Mp4Box.end(buf, stsz);
+		final boolean use64 = (mChunkCount > 0) && (mLastChunkOffset > 0xffffffffL);
+		final int stco = Mp4Box.beginFull(buf, use64 ? Mp4Box.CO64 : Mp4Box.STCO, 0, 0);
+		buf.putInt(mChunkCount);
+		mChunks.rewind();
+		while (mChunks.next()) {
+			if (use64) {
+				buf.putLong(mChunks.getLong());
+			} else {
+				buf.putInt((int)mChunks.getLong());
+			}
+		}
+		Mp4Box.end(buf, stco);
+	}
+
+	/**
+	 * delete temporary files of the table
+	 */
+	void close() {
+		mSamples.close();
+		mChunks.close();
+	}
+}
@@ -0,0 +1,108 @@
+package com.serenegiant.muxer;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: TrackFormat.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pure-Java description of one track for container writers in this package,
+ * equivalent of android.media.MediaFormat of encoder output.
+ */
+public final class TrackFormat {
+	public static final String MIME_AVC = "video/avc";
+	public static final String MIME_AAC = "audio/mp4a-latm";
+
+	public final String mimeType;
+	public final boolean isVideo;
+	public final int width;
+	public final int height;
+	public final int sampleRate;
+	public final int channelCount;
+	public final int bitrate;
+	/**
+	 * codec specific data, csd-0 and csd-1 of MediaFormat.
+	 * AVC: SPS and PPS with start code, AAC: AudioSpecificConfig
+	 */
+	public final byte[] csd0;
+	public final byte[] csd1;
+
+	/**
+	 * @param mimeType only MIME_AVC is supported by FragmentedMp4Writer
+	 * @param width
+	 * @param height
+	 * @param bitrate 0 if unknown
+	 * @param csd0 SPS(may contain PPS too)
+	 * @param csd1 PPS, nullable
+	 * @return
+	 */
+	public static TrackFormat video(final String mimeType, final int width, final int height,
+		final int bitrate, final ByteBuffer csd0, final ByteBuffer csd1) {
+
+		return new TrackFormat(mimeType, true, width, height, 0, 0, bitrate, toArray(csd0), toArray(csd1));
+	}
+
+	/**
+	 * @param mimeType only MIME_AAC is supported by FragmentedMp4Writer
+	 * @param sampleRate
+	 * @param channelCount
+	 * @param bitrate 0 if unknown
+	 * @param csd0 AudioSpecificConfig
+	 * @return
+	 */
+	public static TrackFormat audio(final String mimeType, final int sampleRate, final int channelCount,
+		final int bitrate, final ByteBuffer csd0) {
+
+		return new TrackFormat(mimeType, false, 0, 0, sampleRate, channelCount, bitrate, toArray(csd0), null);
+	}
+
+	private TrackFormat(final String mimeType, final boolean isVideo,
+		final int width, final int height, final int sampleRate, final int channelCount,
+		final int bitrate, final byte[] csd0, final byte[] csd1) {
+
+		this.mimeType = mimeType;
+		this.isVideo = isVideo;
+		this.width = width;
+		this.height = height;
+		this.sampleRate = sampleRate;
+		this.channelCount = channelCount;
+		this.bitrate = bitrate;
+		this.csd0 = csd0;
+		this.csd1 = csd1;
+	}
+
+	private static byte[] toArray(final ByteBuffer buf) {
+		if (buf == null) return null;
+		final ByteBuffer b = buf.duplicate();
+		b.rewind();
+		final byte[] result = new byte[b.remaining()];
+		b.get(result);
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return isVideo
+			? mimeType + "(" + width + "x" + height + ")"
+			: mimeType + "(" + sampleRate + "Hz," + channelCount + "ch)";
+	}
+}
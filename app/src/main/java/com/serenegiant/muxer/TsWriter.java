@@ -0,0 +1,592 @@
+package com.serenegiant.muxer;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: TsWriter.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * MPEG-2 transport stream(ISO/IEC 13818-1) writer in pure Java for live pipelines.
+ * Each sample is written as one PES packet. H.264(AVC) samples are written as Annex-B
+ * with access unit delimiter and SPS/PPS before each key frame, AAC samples are written
+ * with ADTS header. PAT/PMT are repeated before each key frame and every PSI_INTERVAL_US,
+ * PCR is written at least every PCR_INTERVAL_US of presentation time on the PCR PID
+ * (first elementary stream, video if exists).
+ * Packets are built in one reusable buffer and written to the channel in batches,
+ * so this does not allocate memory for each packet/sample.
+ * TS is append-only, so everything that was written is playable even if the process crashed
+ * and the output can be read while writing.
+ * This is not thread safe, caller should serialize calls.
+ */
+public final class TsWriter {
+	public static final int PACKET_SIZE = 188;
+	private static final int PAYLOAD_SIZE = PACKET_SIZE - 4;
+	private static final int SYNC_BYTE = 0x47;
+	private static final int PID_PAT = 0x0000;
+	private static final int PID_PMT = 0x1000;
+	private static final int PID_FIRST_STREAM = 0x0100;
+	private static final int STREAM_TYPE_H264 = 0x1b;
+	private static final int STREAM_TYPE_AAC_ADTS = 0x0f;
+	private static final int STREAM_ID_VIDEO = 0xe0;
+	private static final int STREAM_ID_AUDIO = 0xc0;
+	private static final int NAL_TYPE_SPS = 7;
+	private static final int NAL_TYPE_AUD = 9;
+	private static final byte[] AUD = {0, 0, 0, 1, 0x09, (byte)0xf0};
+	/**
+	 * PES header with PTS
+	 */
+	private static final int PES_HEADER_SIZE = 14;
+	private static final int ADTS_HEADER_SIZE = 7;
+	/**
+	 * maximum interval of PCR, ISO/IEC 13818-1 requires 100ms, DVB recommends 40ms
+	 */
+	public static final long PCR_INTERVAL_US = 40000L;
+	/**
+	 * maximum interval of PAT/PMT
+	 */
+	public static final long PSI_INTERVAL_US = 100000L;
+	/**
+	 * PTS/DTS are ahead of PCR by this value so that decoder can buffer samples
+	 */
+	private static final long PTS_DELAY_US = 200000L;
+	/**
+	 * PCR gap that is longer than this is not filled with PCR only packets(e.g. pause)
+	 */
+	private static final long MAX_PCR_FILL_US = 1000000L;
+	/**
+	 * maximum duration of packets that are kept in the buffer
+	 */
+	private static final long FLUSH_INTERVAL_US = 100000L;
+	/**
+	 * about 64KB
+	 */
+	private static final int BUFFER_PACKETS = 348;
+	private static final long TIMESTAMP_MASK = 0x1ffffffffL;
+	private static final int[] ADTS_SAMPLE_RATES = {
+		96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350,
+	};
+	private static final int[] CRC_TABLE = new int[256];
+	static {
+		for (int i = 0; i < 256; i++) {
+			int crc = i << 24;
+			for (int j = 0; j < 8; j++) {
+				crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04c11db7 : crc << 1;
+			}
+			CRC_TABLE[i] = crc;
+		}
+	}
+
+	/**
+	 * elementary stream
+	 */
+	private static final class Track {
+		private final int mPid;
+		private final TrackFormat mFormat;
+		private final int mStreamType;
+		private final int mStreamId;
+		/**
+		 * PES header and headers of elementary stream that are written before sample data
+		 */
+		private final byte[] mPrefix;
+		/**
+		 * parameters of ADTS header, 0 for video
+		 */
+		private final int mAdtsProfile, mAdtsSampleRateIndex, mAdtsChannels;
+		private int mContinuityCounter = 0x0f;
+
+		private Track(final int pid, final TrackFormat format) {
+			mPid = pid;
+			mFormat = format;
+			final int csdSize = (format.csd0 != null ? format.csd0.length : 0)
+				+ (format.csd1 != null ? format.csd1.length : 0);
+			if (format.isVideo) {
+				mStreamType = STREAM_TYPE_H264;
+				mStreamId = STREAM_ID_VIDEO;
+				mPrefix = new byte[PES_HEADER_SIZE + AUD.length + csdSize];
+				mAdtsProfile = mAdtsSampleRateIndex = mAdtsChannels = 0;
+			} else {
+				mStreamType = STREAM_TYPE_AAC_ADTS;
+				mStreamId = STREAM_ID_AUDIO;
+				mPrefix = new byte[PES_HEADER_SIZE + ADTS_HEADER_SIZE];
+				if ((format.csd0 != null) && (format.csd0.length >= 2)) {
+					// AudioSpecificConfig
+					final int objectType = (format.csd0[0] & 0xff) >> 3;
+					mAdtsProfile = Math.max(0, Math.min(3, objectType - 1));
+					mAdtsSampleRateIndex = ((format.csd0[0] & 0x07) << 1) | ((format.csd0[1] & 0x80) >> 7);
+					mAdtsChannels = (format.csd0[1] & 0x78) >> 3;
+				} else {
+					mAdtsProfile = 1;	// AAC-LC
+					mAdtsSampleRateIndex = sampleRateIndex(format.sampleRate);
+					mAdtsChannels = format.channelCount;
+				}
+			}
+		}
+
+		private int nextContinuityCounter() {
+			mContinuityCounter = (mContinuityCounter + 1) & 0x0f;
+			return mContinuityCounter;
+		}
+	}
+
+	private final WritableByteChannel mChannel;
+	private final boolean mOwnChannel;
+	private final List<Track> mTracks = new ArrayList<Track>();
+	private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(BUFFER_PACKETS * PACKET_SIZE);
+	private final byte[] mPat = new byte[PACKET_SIZE];
+	private final byte[] mPmt = new byte[PACKET_SIZE];
+	private int mPatContinuityCounter = 0x0f;
+	private int mPmtContinuityCounter = 0x0f;
+	private Track mPcrTrack;
+	private boolean mStarted;
+	private long mLastPsiUs, mLastPcrUs, mLastFlushUs;
+	private long mMaxPcrIntervalUs;
+	private long mPacketCount;
+	private long mPcrCount;
+	private long mBytesWritten;
+
+	/**
+	 * write to file
+	 * @param outputPath
+	 * @throws IOException
+	 */
+	public TsWriter(final String outputPath) throws IOException {
+		this(new FileOutputStream(outputPath).getChannel(), true);
+	}
+
+	/**
+	 * write to channel, e.g. socket or pipe. The channel is not closed by #release
+	 * @param channel
+	 */
+	public TsWriter(final WritableByteChannel channel) {
+		this(channel, false);
+	}
+
+	private TsWriter(final WritableByteChannel channel, final boolean ownChannel) {
+		mChannel = channel;
+		mOwnChannel = ownChannel;
+	}
+
+	/**
+	 * @param format
+	 * @return track index
+	 */
+	public int addTrack(final TrackFormat format) {
+		if (mStarted) throw new IllegalStateException("already started");
+		if (!TrackFormat.MIME_AVC.equals(format.mimeType) && !TrackFormat.MIME_AAC.equals(format.mimeType))
+			throw new IllegalArgumentException("unsupported mime type:" + format.mimeType);
+		if (mTracks.size() >= 8) throw new IllegalArgumentException("too many tracks");
+		final Track track = new Track(PID_FIRST_STREAM + mTracks.size(), format);
+		mTracks.add(track);
+		if ((mPcrTrack == null) || (format.isVideo && !mPcrTrack.mFormat.isVideo)) {
+			mPcrTrack = track;
+		}
+		return mTracks.size() - 1;
+	}
+
+	/**
+	 * build PAT/PMT
+	 */
+	public void start() {
+		if (mStarted) throw new IllegalStateException("already started");
+		if (mTracks.isEmpty()) throw new IllegalStateException("no track");
+		buildPat();
+		buildPmt();
+		mLastPsiUs = mLastPcrUs = mLastFlushUs = Long.MIN_VALUE;
+		mStarted = true;
+	}
+
+	/**
+	 * @param trackIndex
+	 * @param buf encoded data, Annex-B for AVC, raw or ADTS for AAC
+	 * @param offset
+	 * @param size
+	 * @param presentationTimeUs
+	 * @param isKeyFrame
+	 * @throws IOException
+	 */
+	public void writeSampleData(final int trackIndex, final ByteBuffer buf, final int offset, final int size,
+		final long presentationTimeUs, final boolean isKeyFrame) throws IOException {
+
+		if (!mStarted) throw new IllegalStateException("not started");
+		final Track track = mTracks.get(trackIndex);
+		final boolean randomAccess = track.mFormat.isVideo ? isKeyFrame : !mPcrTrack.mFormat.isVideo;
+		if ((mLastPsiUs == Long.MIN_VALUE) || (track.mFormat.isVideo && isKeyFrame)
+			|| (presentationTimeUs - mLastPsiUs >= PSI_INTERVAL_US)) {
+			writePsi();
+			mLastPsiUs = presentationTimeUs;
+		}
+		boolean withPcr = false;
+		if ((mLastPcrUs == Long.MIN_VALUE) || (presentationTimeUs - mLastPcrUs >= PCR_INTERVAL_US)) {
+			if (mLastPcrUs != Long.MIN_VALUE) {
+				if (presentationTimeUs - mLastPcrUs <= MAX_PCR_FILL_US) {
+					// keep PCR interval even if samples are sparse
+					while (presentationTimeUs - mLastPcrUs > PCR_INTERVAL_US) {
+						writePcrPacket(mLastPcrUs + PCR_INTERVAL_US);
+					}
+				}
+			}
+			if (track == mPcrTrack) {
+				withPcr = true;
+			} else {
+				writePcrPacket(presentationTimeUs);
+			}
+		}
+		writePes(track, buf, offset, size, presentationTimeUs, isKeyFrame, randomAccess, withPcr);
+		if (withPcr) {
+			updatePcr(presentationTimeUs);
+		}
+		if ((mLastFlushUs == Long.MIN_VALUE) || (presentationTimeUs - mLastFlushUs >= FLUSH_INTERVAL_US)) {
+			flush();
+			mLastFlushUs = presentationTimeUs;
+		}
+	}
+
+	/**
+	 * write buffered packets to the channel
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		if (mBuffer.position() > 0) {
+			mBuffer.flip();
+			while (mBuffer.hasRemaining()) {
+				mBytesWritten += mChannel.write(mBuffer);
+			}
+			mBuffer.clear();
+		}
+	}
+
+	/**
+	 * write buffered packets
+	 * @throws IOException
+	 */
+	public void stop() throws IOException {
+		if (!mStarted) return;
+		mStarted = false;
+		flush();
+	}
+
+	/**
+	 * close the output file if this writer opened it
+	 */
+	public void release() {
+		mStarted = false;
+		if (mOwnChannel) {
+			try {
+				mChannel.close();
+			} catch (final IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	public long getPacketCount() {
+		return mPacketCount;
+	}
+
+	public long getPcrCount() {
+		return mPcrCount;
+	}
+
+	/**
+	 * maximum interval of PCR in presentation time
+	 * @return
+	 */
+	public long getMaxPcrIntervalUs() {
+		return mMaxPcrIntervalUs;
+	}
+
+	public long getBytesWritten() {
+		return mBytesWritten;
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * write one sample as PES packet
+	 * @param track
+	 * @param buf
+	 * @param offset
+	 * @param size
+	 * @param presentationTimeUs
+	 * @param isKeyFrame
+	 * @param randomAccess set random_access_indicator
+	 * @param withPcr write PCR in the first packet
+	 * @throws IOException
+	 */
+	private void writePes(final Track track, final ByteBuffer buf, final int offset, final int size,
+		final long presentationTimeUs, final boolean isKeyFrame,
+		final boolean randomAccess, final boolean withPcr) throws IOException {
+
+		final byte[] prefix = track.mPrefix;
+		int n = PES_HEADER_SIZE;
+		if (track.mFormat.isVideo) {
+			final int nal = MoovWriter.skipStartCode(buf, offset, offset + size);
+			final int nalType = nal < offset + size ? buf.get(nal) & 0x1f : 0;
+			if (nalType != NAL_TYPE_AUD) {
+				System.arraycopy(AUD, 0, prefix, n, AUD.length);
+				n += AUD.length;
+			}
+			if (isKeyFrame && (nalType != NAL_TYPE_SPS)) {
+				// decoder can start from any key frame
+				n = append(prefix, n, track.mFormat.csd0);
+				n = append(prefix, n, track.mFormat.csd1);
+			}
+		} else if ((size < 2) || ((buf.get(offset) & 0xff) != 0xff) || ((buf.get(offset + 1) & 0xf0) != 0xf0)) {
+			// no ADTS header
+			final int frameLength = ADTS_HEADER_SIZE + size;
+			prefix[n++] = (byte)0xff;
+			prefix[n++] = (byte)0xf1;	// MPEG-4, no CRC
+			prefix[n++] = (byte)((track.mAdtsProfile << 6) | (track.mAdtsSampleRateIndex << 2) | (track.mAdtsChannels >> 2));
+			prefix[n++] = (byte)(((track.mAdtsChannels & 0x03) << 6) | (frameLength >> 11));
+			prefix[n++] = (byte)(frameLength >> 3);
+			prefix[n++] = (byte)(((frameLength & 0x07) << 5) | 0x1f);
+			prefix[n++] = (byte)0xfc;
+		}
+		// PES header
+		final int pesLength = n - 6 + size;
+		prefix[0] = 0;
+		prefix[1] = 0;
+		prefix[2] = 1;
+		prefix[3] = (byte)track.mStreamId;
+		if (track.mFormat.isVideo || (pesLength > 0xffff)) {
+			// unbounded, only allowed for video
+			prefix[4] = prefix[5] = 0;
+		} else {
+			prefix[4] = (byte)(pesLength >> 8);
+			prefix[5] = (byte)pesLength;
+		}
+		prefix[6] = (byte)0x84;	// data_alignment_indicator
+		prefix[7] = (byte)0x80;	// PTS only
+		prefix[8] = 5;
+		final long pts = toTimestamp(presentationTimeUs + PTS_DELAY_US);
+		prefix[9] = (byte)(0x21 | ((pts >> 29) & 0x0e));
+		prefix[10] = (byte)(pts >> 22);
+		prefix[11] = (byte)(((pts >> 14) & 0xfe) | 0x01);
+		prefix[12] = (byte)(pts >> 7);
+		prefix[13] = (byte)(((pts << 1) & 0xfe) | 0x01);
+
+		// packetize prefix and sample data
+		final int total = n + size;
+		final int limit = buf.limit();
+		final int position = buf.position();
+		try {
+			int done = 0;
+			boolean first = true;
+			while (done < total) {
+				if (mBuffer.remaining() < PACKET_SIZE) {
+					flush();
+				}
+				final int remain = total - done;
+				boolean hasAdaptation = false;
+				int flags = 0;
+				int adaptationLength = 0;	// bytes after adaptation_field_length
+				if (first && (randomAccess || withPcr)) {
+					hasAdaptation = true;
+					flags = (randomAccess ? 0x40 : 0) | (withPcr ? 0x10 : 0);
+					adaptationLength = 1 + (withPcr ? 6 : 0);
+				}
+				int stuffing = 0;
+				final int space = PAYLOAD_SIZE - (hasAdaptation ? 1 + adaptationLength : 0);
+				if (remain < space) {
+					stuffing = space - remain;
+					if (!hasAdaptation) {
+						hasAdaptation = true;
+						if (stuffing >= 2) {
+							// flags byte and stuffing bytes
+							adaptationLength = 1;
+							stuffing -= 2;
+						} else {
+							// adaptation_field_length only
+							stuffing = 0;
+						}
+					}
+				}
+				final int payload = Math.min(remain, space);
+				mBuffer.put((byte)SYNC_BYTE);
+				mBuffer.put((byte)((first ? 0x40 : 0) | (track.mPid >> 8)));
+				mBuffer.put((byte)track.mPid);
+				mBuffer.put((byte)((hasAdaptation ? 0x30 : 0x10) | track.nextContinuityCounter()));
+				if (hasAdaptation) {
+					mBuffer.put((byte)(adaptationLength + stuffing));
+					if (adaptationLength > 0) {
+						mBuffer.put((byte)flags);
+						if ((flags & 0x10) != 0) {
+							putPcr(presentationTimeUs);
+						}
+						for (int i = 0; i < stuffing; i++) {
+							mBuffer.put((byte)0xff);
+						}
+					}
+				}
+				int copied = 0;
+				if (done < n) {
+					copied = Math.min(payload, n - done);
+					mBuffer.put(prefix, done, copied);
+				}
+				if (copied < payload) {
+					final int start = offset + done + copied - n;
+					buf.limit(start + payload - copied).position(start);
+					mBuffer.put(buf);
+					buf.limit(limit);
+				}
+				done += payload;
+				first = false;
+				mPacketCount++;
+			}
+		} finally {
+			buf.limit(limit).position(position);
+		}
+	}
+
+	/**
+	 * write packet that has only adaptation field with PCR on PCR PID
+	 * @param pcrUs
+	 * @throws IOException
+	 */
+	private void writePcrPacket(final long pcrUs) throws IOException {
+		if (mBuffer.remaining() < PACKET_SIZE) {
+			flush();
+		}
+		final Track track = mPcrTrack;
+		mBuffer.put((byte)SYNC_BYTE);
+		mBuffer.put((byte)(track.mPid >> 8));
+		mBuffer.put((byte)track.mPid);
+		// continuity_counter is not incremented for packet without payload
+		mBuffer.put((byte)(0x20 | track.mContinuityCounter));
+		mBuffer.put((byte)(PAYLOAD_SIZE - 1));
+		mBuffer.put((byte)0x10);
+		putPcr(pcrUs);
+		for (int i = 0; i < PAYLOAD_SIZE - 8; i++) {
+			mBuffer.put((byte)0xff);
+		}
+		mPacketCount++;
+		updatePcr(pcrUs);
+	}
+
+	private void putPcr(final long pcrUs) {
+		final long base = toTimestamp(pcrUs);
+		final int ext = (int)Math.floorMod(pcrUs * 27, 300L);
+		mBuffer.put((byte)(base >> 25));
+		mBuffer.put((byte)(base >> 17));
+		mBuffer.put((byte)(base >> 9));
+		mBuffer.put((byte)(base >> 1));
+		mBuffer.put((byte)(((base & 1) << 7) | 0x7e | (ext >> 8)));
+		mBuffer.put((byte)ext);
+	}
+
+	private void updatePcr(final long pcrUs) {
+		if (mLastPcrUs != Long.MIN_VALUE) {
+			mMaxPcrIntervalUs = Math.max(mMaxPcrIntervalUs, pcrUs - mLastPcrUs);
+		}
+		mLastPcrUs = pcrUs;
+		mPcrCount++;
+	}
+
+	private void writePsi() throws IOException {
+		if (mBuffer.remaining() < PACKET_SIZE * 2) {
+			flush();
+		}
+		mPatContinuityCounter = (mPatContinuityCounter + 1) & 0x0f;
+		mPat[3] = (byte)(0x10 | mPatContinuityCounter);
+		mBuffer.put(mPat);
+		mPmtContinuityCounter = (mPmtContinuityCounter + 1) & 0x0f;
+		mPmt[3] = (byte)(0x10 | mPmtContinuityCounter);
+		mBuffer.put(mPmt);
+		mPacketCount += 2;
+	}
+
+	private void buildPat() {
+		final ByteBuffer buf = ByteBuffer.wrap(mPat);
+		buf.put((byte)SYNC_BYTE).put((byte)(0x40 | (PID_PAT >> 8))).put((byte)PID_PAT).put((byte)0x10);
+		buf.put((byte)0);	// pointer_field
+		final int section = buf.position();
+		buf.put((byte)0x00);	// table_id
+		buf.putShort((short)(0xb000 | 13));	// section_length
+		buf.putShort((short)1);	// transport_stream_id
+		buf.put((byte)0xc1);	// version 0, current_next_indicator
+		buf.put((byte)0).put((byte)0);	// section_number, last_section_number
+		buf.putShort((short)1);	// program_number
+		buf.putShort((short)(0xe000 | PID_PMT));
+		buf.putInt(crc32(mPat, section, buf.position()));
+		while (buf.hasRemaining()) {
+			buf.put((byte)0xff);
+		}
+	}
+
+	private void buildPmt() {
+		final ByteBuffer buf = ByteBuffer.wrap(mPmt);
+		buf.put((byte)SYNC_BYTE).put((byte)(0x40 | (PID_PMT >> 8))).put((byte)PID_PMT).put((byte)0x10);
+		buf.put((byte)0);	// pointer_field
+		final int section = buf.position();
+		buf.put((byte)0x02);	// table_id
+		buf.putShort((short)(0xb000 | (13 + 5 * mTracks.size())));	// section_length
+		buf.putShort((short)1);	// program_number
+		buf.put((byte)0xc1);	// version 0, current_next_indicator
+		buf.put((byte)0).put((byte)0);	// section_number, last_section_number
+		buf.putShort((short)(0xe000 | mPcrTrack.mPid));
+		buf.putShort((short)0xf000);	// program_info_length
+		for (final Track track: mTracks) {
+			buf.put((byte)track.mStreamType);
+			buf.putShort((short)(0xe000 | track.mPid));
+			buf.putShort((short)0xf000);	// ES_info_length
+		}
+		buf.putInt(crc32(mPmt, section, buf.position()));
+		while (buf.hasRemaining()) {
+			buf.put((byte)0xff);
+		}
+	}
+
+	/**
+	 * CRC32 of PSI section(MPEG-2)
+	 */
+	private static int crc32(final byte[] data, final int start, final int end) {
+		int crc = 0xffffffff;
+		for (int i = start; i < end; i++) {
+			crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ data[i]) & 0xff];
+		}
+		return crc;
+	}
+
+	/**
+	 * convert to 33 bits 90kHz timestamp
+	 */
+	private static long toTimestamp(final long timeUs) {
+		return (timeUs * 9 / 100) & TIMESTAMP_MASK;
+	}
+
+	private static int append(final byte[] dst, final int pos, final byte[] src) {
+		if (src == null) return pos;
+		System.arraycopy(src, 0, dst, pos, src.length);
+		return pos + src.length;
+	}
+
+	private static int sampleRateIndex(final int sampleRate) {
+		for (int i = 0; i < ADTS_SAMPLE_RATES.length; i++) {
+			if (ADTS_SAMPLE_RATES[i] == sampleRate) return i;
+		}
+		return 4;	// 44100Hz
+	}
+}
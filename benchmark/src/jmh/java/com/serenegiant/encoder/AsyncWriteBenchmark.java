@@ -0,0 +1,183 @@
+package com.serenegiant.encoder;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: AsyncWriteBenchmark.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Audio and video encoders share one muxer whose storage stalls periodically.
+ * Each producer thread feeds one frame every FRAME_INTERVAL_NS like capturing thread does.
+ * With writing on encoder thread(maxPendingSamples=0), a stall blocks draining of codec,
+ * so video codec runs out of input buffers and drops frames and audio capturing thread is blocked.
+ * With MediaMuxerWrapper#setAsyncWrite, codec buffers are returned while storage stalls.
+ * Score is achieved frame rate of each producer, videoDropped counts frames that video codec
+ * dropped and audioLate counts audio frames that blocked longer than one frame interval.
+ */
+@State(Scope.Group)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class AsyncWriteBenchmark {
+	private static final long FRAME_INTERVAL_NS = 2000000L;	// 2[msec]
+	private static final long TIMEOUT_MS = 5000;
+
+	/**
+	 * MediaMuxerWrapper#setAsyncWrite, 0 means writing on encoder thread
+	 */
+	@Param({"0", "64"})
+	public int maxPendingSamples;
+
+	/**
+	 * every stallInterval-th write stalls
+	 */
+	@Param({"50"})
+	public int stallInterval;
+
+	/**
+	 * duration of each stall of storage[usec]
+	 */
+	@Param({"30000"})
+	public long stallUs;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Counters {
+		public long videoDropped;
+		public long audioLate;
+
+		private long mNextNs;
+		private long mDroppedBase = -1;
+
+		@Setup(Level.Iteration)
+		public void setup() {
+			videoDropped = audioLate = 0;
+			mDroppedBase = -1;
+			mNextNs = System.nanoTime();
+		}
+
+		/**
+		 * wait until next frame time like capturing thread
+		 */
+		private void pace() {
+			mNextNs += FRAME_INTERVAL_NS;
+			final long remain = mNextNs - System.nanoTime();
+			if (remain > 0) {
+				LockSupport.parkNanos(remain);
+			} else if (remain < -FRAME_INTERVAL_NS) {
+				// do not try to catch up after blocked
+				mNextNs = System.nanoTime();
+			}
+		}
+	}
+
+	private MediaMuxerWrapper mMuxer;
+	private BenchMuxer mBenchMuxer;
+	private BenchEncoder mVideoEncoder;
+	private BenchEncoder mAudioEncoder;
+	private ByteBuffer mPcm;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		final File output = File.createTempFile("bench", ".mp4");
+		output.deleteOnExit();
+		mBenchMuxer = new BenchMuxer();
+		mBenchMuxer.setWriteStall(stallInterval, stallUs);
+		mMuxer = new MediaMuxerWrapper(output.getAbsolutePath(), new MuxerBackend.Factory() {
+			@Override
+			public MuxerBackend createMuxer(final String outputPath) {
+				return mBenchMuxer;
+			}
+		});
+		mVideoEncoder = BenchEncoder.create(mMuxer, false,
+			FakeEncoderBackend.factory(32 * 1024, 0, 25), MediaEncoder.DRAIN_MODE_POLLING);
+		mAudioEncoder = BenchEncoder.create(mMuxer, true,
+			FakeEncoderBackend.factory(256, 0, 1), MediaEncoder.DRAIN_MODE_POLLING);
+		mPcm = ByteBuffer.allocateDirect(BenchEncoder.AUDIO_INPUT_SIZE);
+		mMuxer.setAsyncWrite(maxPendingSamples);
+		mMuxer.setMetricsEnabled(true);
+		mMuxer.prepare();
+		mMuxer.startRecording();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		System.out.println();
+		System.out.println(mVideoEncoder.getMetrics());
+		System.out.println(mAudioEncoder.getMetrics());
+		System.out.println(mMuxer.getMetrics());
+		mMuxer.stopRecording();
+		final long limit = System.currentTimeMillis() + TIMEOUT_MS;
+		while (!mBenchMuxer.isStopped() && (System.currentTimeMillis() < limit)) {
+			Thread.yield();
+		}
+	}
+
+	@Benchmark
+	@Group("av")
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public boolean video(final Counters counters) {
+		counters.pace();
+		final boolean result = mVideoEncoder.feed(null, 0);
+		final long dropped = ((FakeEncoderBackend)mVideoEncoder.mCodec).getDroppedFrames();
+		if (counters.mDroppedBase < 0) {
+			counters.mDroppedBase = dropped;
+		}
+		counters.videoDropped = dropped - counters.mDroppedBase;
+		return result;
+	}
+
+	@Benchmark
+	@Group("av")
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public boolean audio(final Counters counters) {
+		counters.pace();
+		final long startNs = System.nanoTime();
+		final boolean result = mAudioEncoder.feed(mPcm, BenchEncoder.AUDIO_INPUT_SIZE);
+		if (System.nanoTime() - startNs > FRAME_INTERVAL_NS) {
+			counters.audioLate++;
+		}
+		return result;
+	}
+}
@@ -0,0 +1,146 @@
+package com.serenegiant.encoder;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: BackpressureBenchmark.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Overload benchmark of MediaEncoder#encode with BackpressurePolicy.
+ * Producer feeds audio frames as fast as possible into the stand-in codec
+ * that can encode only 4 frames per codecLatencyUs, so the encoder is always behind.
+ * Score is the rate of frames that the producer(capturing thread) could offer,
+ * lower score means the producer was blocked longer. Counters show rate of dropped and written frames.
+ * Capture-to-mux latency of each policy is printed at the end of each trial.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class BackpressureBenchmark {
+	private static final long TIMEOUT_MS = 5000;
+
+	/**
+	 * none: wait while capturing(default of audio), latest: BackpressurePolicy#LATEST_WINS,
+	 * bounded: BackpressurePolicy#bounded(4), block: BackpressurePolicy#block(5)
+	 */
+	@Param({"none", "latest", "bounded", "block"})
+	public String policy;
+
+	/**
+	 * latency of fake codec[usec]
+	 */
+	@Param({"10000"})
+	public long codecLatencyUs;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Counters {
+		public long dropped;
+		public long written;
+
+		private long mDroppedBase;
+		private long mWrittenBase;
+
+		@Setup(Level.Iteration)
+		public void setup(final BackpressureBenchmark bench) {
+			final EncoderMetrics.Snapshot snapshot = bench.mEncoder.getMetrics();
+			mDroppedBase = snapshot.framesDropped;
+			mWrittenBase = bench.mBenchMuxer.getSampleCount();
+			dropped = written = 0;
+		}
+
+		private void update(final BackpressureBenchmark bench) {
+			dropped = bench.mEncoder.getMetrics().framesDropped - mDroppedBase;
+			written = bench.mBenchMuxer.getSampleCount() - mWrittenBase;
+		}
+	}
+
+	private MediaMuxerWrapper mMuxer;
+	private BenchMuxer mBenchMuxer;
+	private BenchEncoder mEncoder;
+	private ByteBuffer mPcm;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		final File output = File.createTempFile("bench", ".mp4");
+		output.deleteOnExit();
+		mBenchMuxer = new BenchMuxer();
+		mMuxer = new MediaMuxerWrapper(output.getAbsolutePath(), new MuxerBackend.Factory() {
+			@Override
+			public MuxerBackend createMuxer(final String outputPath) {
+				return mBenchMuxer;
+			}
+		});
+		mEncoder = BenchEncoder.create(mMuxer, true,
+			FakeEncoderBackend.factory(256, codecLatencyUs, 1), MediaEncoder.DRAIN_MODE_POLLING);
+		if ("latest".equals(policy)) {
+			mEncoder.setBackpressurePolicy(BackpressurePolicy.LATEST_WINS);
+		} else if ("bounded".equals(policy)) {
+			mEncoder.setBackpressurePolicy(BackpressurePolicy.bounded(4));
+		} else if ("block".equals(policy)) {
+			mEncoder.setBackpressurePolicy(BackpressurePolicy.block(5));
+		}
+		mPcm = ByteBuffer.allocateDirect(BenchEncoder.AUDIO_INPUT_SIZE);
+		mMuxer.setMetricsEnabled(true);
+		mMuxer.prepare();
+		mMuxer.startRecording();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		System.out.println();
+		System.out.println(policy + ":" + mEncoder.getMetrics());
+		mMuxer.stopRecording();
+		final long limit = System.currentTimeMillis() + TIMEOUT_MS;
+		while (!mBenchMuxer.isStopped() && (System.currentTimeMillis() < limit)) {
+			Thread.yield();
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public boolean feed(final Counters counters) {
+		final boolean result = mEncoder.feed(mPcm, BenchEncoder.AUDIO_INPUT_SIZE);
+		counters.update(this);
+		return result;
+	}
+}
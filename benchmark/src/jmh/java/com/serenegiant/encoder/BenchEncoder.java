@@ -0,0 +1,149 @@
+package com.serenegiant.encoder;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: BenchEncoder.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import android.media.MediaFormat;
+
+/**
+ * Stand-in of MediaVideoEncoder/MediaAudioEncoder for JVM benchmark.
+ * This runs the same encode/drain path of MediaEncoder but the codec is
+ * FakeEncoderBackend and video frames are fed with FakeEncoderBackend#renderFrame
+ * instead of drawing into input Surface.
+ */
+public abstract class BenchEncoder extends MediaEncoder {
+	public static final String VIDEO_MIME_TYPE = "video/avc";
+	public static final String AUDIO_MIME_TYPE = "audio/mp4a-latm";
+	public static final int AUDIO_INPUT_SIZE = 1024;	// same as MediaAudioEncoder.SAMPLES_PER_FRAME
+
+	private static final MediaEncoderListener LISTENER = new MediaEncoderListener() {
+		@Override
+		public void onPrepared(final MediaEncoder encoder) {
+		}
+
+		@Override
+		public void onStopped(final MediaEncoder encoder) {
+		}
+	};
+
+	/**
+	 * create stand-in encoder and add it to the muxer
+	 * @param muxer
+	 * @param isAudio
+	 * @param factory
+	 * @param drainMode MediaEncoder#DRAIN_MODE_POLLING or MediaEncoder#DRAIN_MODE_CALLBACK
+	 * @return
+	 */
+	public static BenchEncoder create(final MediaMuxerWrapper muxer, final boolean isAudio,
+		final EncoderBackend.Factory factory, final int drainMode) {
+
+		final BenchEncoder encoder = isAudio ? new Audio(muxer) : new Video(muxer);
+		encoder.setBackendFactory(factory);
+		encoder.setDrainMode(drainMode);
+		return encoder;
+	}
+
+	// MediaEncoder's constructor calls #isAudioEncoder, so it should not depend on any field
+	private static final class Video extends BenchEncoder {
+		private Video(final MediaMuxerWrapper muxer) {
+			super(muxer);
+		}
+
+		@Override
+		/*package*/ boolean isAudioEncoder() {
+			return false;
+		}
+	}
+
+	private static final class Audio extends BenchEncoder {
+		private Audio(final MediaMuxerWrapper muxer) {
+			super(muxer);
+		}
+
+		@Override
+		/*package*/ boolean isAudioEncoder() {
+			return true;
+		}
+	}
+
+	private BenchEncoder(final MediaMuxerWrapper muxer) {
+		super(muxer, LISTENER);
+	}
+
+	@Override
+	/*package*/ void prepare() throws IOException {
+		mTrackIndex = -1;
+		mMuxerStarted = mIsEOS = false;
+		final MediaFormat format = createFormat(isAudioEncoder());
+		mCodec = createBackend(isAudioEncoder() ? AUDIO_MIME_TYPE : VIDEO_MIME_TYPE, null);
+		configureCodec(format);
+		mCodec.start();
+		mListener.onPrepared(this);
+	}
+
+	/**
+	 * create input format of the encoder
+	 * @param isAudio
+	 * @return
+	 */
+	public static MediaFormat createFormat(final boolean isAudio) {
+		final MediaFormat format;
+		if (isAudio) {
+			format = MediaFormat.createAudioFormat(AUDIO_MIME_TYPE, 44100, 1);
+			format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, AUDIO_INPUT_SIZE);
+		} else {
+			format = MediaFormat.createVideoFormat(VIDEO_MIME_TYPE, 1280, 720);
+		}
+		return format;
+	}
+
+	/**
+	 * feed one frame
+	 * @param pcm audio data, ignored for video
+	 * @param length length of audio data
+	 * @return false if encoder is not capturing
+	 */
+	public boolean feed(final ByteBuffer pcm, final int length) {
+		if (isAudioEncoder()) {
+			pcm.clear();
+			pcm.limit(length);
+			encode(pcm, length, getPTSUs());
+		} else {
+			((FakeEncoderBackend)mCodec).renderFrame(getPTSUs());
+		}
+		return frameAvailableSoon();
+	}
+
+	@Override
+	protected boolean signalEndOfInputStream(final long maxWaitNs) {
+		if (isAudioEncoder()) {
+			return super.signalEndOfInputStream(maxWaitNs);
+		}
+		// emulate Surface input of MediaVideoEncoder
+		mCodec.signalEndOfInputStream();
+		mIsEOS = true;
+		return true;
+	}
+}
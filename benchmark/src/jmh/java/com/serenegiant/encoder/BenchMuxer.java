@@ -0,0 +1,110 @@
+package com.serenegiant.encoder;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: BenchMuxer.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+/**
+ * Stand-in container writer for JVM benchmark that only counts samples and bytes.
+ * This can emulate periodic stall of slow storage.
+ */
+public class BenchMuxer implements MuxerBackend {
+
+	private int mTrackCount;
+	private volatile long mSampleCount;
+	private volatile long mBytes;
+	private volatile boolean mIsStopped;
+	private int mStallInterval;
+	private long mStallNs;
+
+	/**
+	 * emulate slow storage, this should be called before starting recording
+	 * @param interval every interval-th write stalls, 0 means never
+	 * @param stallUs duration of each stall[usec]
+	 */
+	public void setWriteStall(final int interval, final long stallUs) {
+		mStallInterval = interval;
+		mStallNs = stallUs * 1000L;
+	}
+
+	public long getSampleCount() {
+		return mSampleCount;
+	}
+
+	public long getBytes() {
+		return mBytes;
+	}
+
+	public boolean isStopped() {
+		return mIsStopped;
+	}
+
+	/**
+	 * wait until the specific number of samples are written
+	 * @param count
+	 * @param timeoutMs
+	 * @return false if timeout
+	 */
+	public boolean awaitSamples(final long count, final long timeoutMs) {
+		final long limit = System.nanoTime() + timeoutMs * 1000000L;
+		while (mSampleCount < count) {
+			if (System.nanoTime() - limit > 0) {
+				return false;
+			}
+			Thread.yield();
+		}
+		return true;
+	}
+
+	@Override
+	public int addTrack(final MediaFormat format) {
+		return mTrackCount++;
+	}
+
+	@Override
+	public void start() {
+	}
+
+	@Override
+	public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+		// this is called under the lock of MediaMuxerWrapper or on the writer thread
+		if ((mStallInterval > 0) && ((mSampleCount + 1) % mStallInterval == 0)) {
+			LockSupport.parkNanos(mStallNs);
+		}
+		mBytes += bufferInfo.size;
+		mSampleCount++;
+	}
+
+	@Override
+	public void stop() {
+		mIsStopped = true;
+	}
+
+	@Override
+	public void release() {
+	}
+}
@@ -0,0 +1,130 @@
+package com.serenegiant.encoder;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: CodecCapabilityCacheBenchmark.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of CodecCapabilityCache#get on each MediaVideoEncoder#prepare.
+ * "hit" finds the entry in memory, "miss" clears the cache and loads the entry again
+ * (and saves the file when persistent), "reload" parses the file again
+ * like the first #get after the app started(same as "hit" when not persistent).
+ * The loader creates Entry directly, so "miss" does not include walking MediaCodecList
+ * that the cache avoids on the device.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class CodecCapabilityCacheBenchmark {
+	private static final String MIME_TYPE = "video/avc";
+	private static final int PROFILE_LEVELS = 16;
+
+	@Param({"hit", "miss", "reload"})
+	public String mode;
+
+	/**
+	 * whether the cache is saved to the file
+	 */
+	@Param({"false", "true"})
+	public boolean persistent;
+
+	private File mCacheDir;
+	private CodecCapabilityCache.Loader mLoader;
+	private long mLoads;
+	private long mOps;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		if (persistent) {
+			mCacheDir = File.createTempFile("codec", "");
+			mCacheDir.delete();
+			mCacheDir.mkdirs();
+		}
+		final int[] profiles = new int[PROFILE_LEVELS];
+		final int[] levels = new int[PROFILE_LEVELS];
+		for (int i = 0; i < PROFILE_LEVELS; i++) {
+			profiles[i] = 1 << (i / 4);
+			levels[i] = 1 << i;
+		}
+		mLoader = new CodecCapabilityCache.Loader() {
+			@Override
+			public CodecCapabilityCache.Entry load(final String mimeType) {
+				mLoads++;
+				return new CodecCapabilityCache.Entry(mimeType, "OMX.bench.avc.encoder",
+					0x7f000789, profiles, levels, 64000, 40000000);
+			}
+		};
+		CodecCapabilityCache.setCacheDir(mCacheDir);
+		CodecCapabilityCache.clear();
+		CodecCapabilityCache.get(MIME_TYPE, mLoader);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		CodecCapabilityCache.clear();
+		CodecCapabilityCache.setCacheDir(null);
+		if (mCacheDir != null) {
+			mCacheDir.delete();
+		}
+		final long expected = "miss".equals(mode) ? mOps + 1 : 1;
+		System.out.println("\nops=" + mOps + ",loads=" + mLoads);
+		if (mLoads != expected) {
+			throw new IllegalStateException("unexpected loads:" + mLoads + ", expected " + expected);
+		}
+	}
+
+	@Benchmark
+	public CodecCapabilityCache.Entry get() {
+		mOps++;
+		if ("miss".equals(mode)) {
+			CodecCapabilityCache.clear();
+		} else if ("reload".equals(mode)) {
+			CodecCapabilityCache.setCacheDir(null);
+			CodecCapabilityCache.setCacheDir(mCacheDir);
+		}
+		final CodecCapabilityCache.Entry entry = CodecCapabilityCache.get(MIME_TYPE, mLoader);
+		if (entry == null) {
+			throw new IllegalStateException("no entry");
+		}
+		return entry;
+	}
+}
@@ -0,0 +1,143 @@
+package com.serenegiant.encoder;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: EncoderPipelineBenchmark.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end benchmark of MediaEncoder#encode -> codec -> MediaEncoder#drain
+ * -> MediaMuxerWrapper#writeSampleData for video and audio path with stand-in codec/muxer.
+ * Each operation feeds one frame and waits until it is written to the muxer,
+ * so Throughput shows samples/sec and SampleTime shows per-sample latency percentiles.
+ * Run with gc profiler(default in build.gradle) to see allocation rate.
+ * metrics=true/false shows the overhead of EncoderMetrics sampling.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EncoderPipelineBenchmark {
+	private static final int VIDEO_SAMPLE_SIZE = 32 * 1024;
+	private static final int VIDEO_KEY_FRAME_INTERVAL = 25;
+	private static final int AUDIO_SAMPLE_SIZE = 256;
+	private static final long TIMEOUT_MS = 5000;
+
+	@Param({"video", "audio"})
+	public String path;
+
+	/**
+	 * MediaEncoder#DRAIN_MODE_POLLING or MediaEncoder#DRAIN_MODE_CALLBACK
+	 */
+	@Param({"0", "1"})
+	public int drainMode;
+
+	/**
+	 * latency of fake codec[usec]
+	 */
+	@Param({"0"})
+	public long codecLatencyUs;
+
+	/**
+	 * enable EncoderMetrics sampling on the encoder and muxer
+	 */
+	@Param({"false", "true"})
+	public boolean metrics;
+
+	private MediaMuxerWrapper mMuxer;
+	private BenchMuxer mBenchMuxer;
+	private BenchEncoder mEncoder;
+	private ByteBuffer mPcm;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		final boolean isAudio = "audio".equals(path);
+		final File output = File.createTempFile("bench", ".mp4");
+		output.deleteOnExit();
+		mBenchMuxer = new BenchMuxer();
+		mMuxer = new MediaMuxerWrapper(output.getAbsolutePath(), new MuxerBackend.Factory() {
+			@Override
+			public MuxerBackend createMuxer(final String outputPath) {
+				return mBenchMuxer;
+			}
+		});
+		mEncoder = BenchEncoder.create(mMuxer, isAudio,
+			isAudio ? FakeEncoderBackend.factory(AUDIO_SAMPLE_SIZE, codecLatencyUs, 1)
+				: FakeEncoderBackend.factory(VIDEO_SAMPLE_SIZE, codecLatencyUs, VIDEO_KEY_FRAME_INTERVAL),
+			drainMode);
+		mPcm = ByteBuffer.allocateDirect(BenchEncoder.AUDIO_INPUT_SIZE);
+		mMuxer.setMetricsEnabled(metrics);
+		mMuxer.prepare();
+		mMuxer.startRecording();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		mMuxer.stopRecording();
+		final long limit = System.currentTimeMillis() + TIMEOUT_MS;
+		while (!mBenchMuxer.isStopped() && (System.currentTimeMillis() < limit)) {
+			Thread.yield();
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public long samplesPerSecond() {
+		return encodeToMux();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public long sampleLatency() {
+		return encodeToMux();
+	}
+
+	private long encodeToMux() {
+		final long target = mBenchMuxer.getSampleCount() + 1;
+		if (!mEncoder.feed(mPcm, BenchEncoder.AUDIO_INPUT_SIZE)) {
+			throw new IllegalStateException("encoder is not capturing");
+		}
+		if (!mBenchMuxer.awaitSamples(target, TIMEOUT_MS)) {
+			throw new IllegalStateException("sample was not written to muxer");
+		}
+		return target;
+	}
+}
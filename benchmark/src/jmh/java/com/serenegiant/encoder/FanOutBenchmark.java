@@ -0,0 +1,255 @@
+package com.serenegiant.encoder;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: FanOutBenchmark.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import com.serenegiant.muxer.Mp4Writer;
+
+/**
+ * FanOutMuxerBackend delivers samples to a local MP4 file(Mp4Backend, lossless)
+ * and MPEG-TS over a local socket(TsMuxerBackend, bounded queue) at once.
+ * The peer of the socket is a reader thread that reads as fast as possible(fast),
+ * at limited rate(slow) or closes the connection after a while(closed).
+ * Score is the rate of video frames that the producer can write, which should not
+ * depend on the socket. socketDropped is the number of samples that the socket sink dropped.
+ * After each iteration, all samples should be in the file and socket sink should
+ * be detached only when the peer closed the connection.
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class FanOutBenchmark {
+	private static final long VIDEO_FRAME_US = 33333;
+	private static final long AUDIO_FRAME_US = 23220;
+	private static final int KEY_FRAME_INTERVAL = 30;
+	private static final int VIDEO_SAMPLE_SIZE = 16384;
+	private static final int AUDIO_SAMPLE_SIZE = 256;
+	private static final int SLOW_READ_BYTES_PER_SEC = 1024 * 1024;
+	private static final long CLOSE_AFTER_MS = 300;
+	private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte)0xc0, 0x1e, (byte)0xda, 0x02, (byte)0x80, (byte)0xbf};
+	private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte)0xce, 0x3c, (byte)0x80};
+	private static final byte[] ASC = {0x12, 0x08};
+
+	/**
+	 * none: file only, fast/slow/closed: behavior of socket peer
+	 */
+	@Param({"none", "fast", "slow", "closed"})
+	public String socket;
+
+	@Param({"32"})
+	public int socketQueue;
+
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class Counters {
+		public long socketDropped;
+	}
+
+	private File mOutput;
+	private FanOutMuxerBackend mMuxer;
+	private ServerSocketChannel mServer;
+	private SocketChannel mClient;
+	private Thread mReader;
+	private volatile boolean mReaderRunning;
+	private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+	private ByteBuffer mVideoKey, mVideo, mAudio;
+	private long mVideoPtsUs, mAudioPtsUs;
+	private int mFrames;
+	private long mSamples;
+
+	@Setup(Level.Trial)
+	public void setupTrial() {
+		mVideoKey = createVideoSample(true);
+		mVideo = createVideoSample(false);
+		mAudio = ByteBuffer.allocateDirect(AUDIO_SAMPLE_SIZE);
+	}
+
+	@Setup(Level.Iteration)
+	public void setup() throws IOException {
+		mOutput = File.createTempFile("bench", ".mp4");
+		mOutput.deleteOnExit();
+		mMuxer = new FanOutMuxerBackend();
+		mMuxer.addSink(new Mp4Backend(mOutput.getAbsolutePath(), false), null);
+		if (!"none".equals(socket)) {
+			mServer = ServerSocketChannel.open();
+			mServer.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			mClient = SocketChannel.open(mServer.getLocalAddress());
+			startReader(mServer.accept());
+			mMuxer.addSink(TsMuxerBackend.factory(mClient).createMuxer(null),
+				BackpressurePolicy.bounded(socketQueue));
+		}
+		final MediaFormat video = MediaFormat.createVideoFormat("video/avc", 1280, 720);
+		video.setByteBuffer("csd-0", ByteBuffer.wrap(SPS));
+		video.setByteBuffer("csd-1", ByteBuffer.wrap(PPS));
+		final MediaFormat audio = MediaFormat.createAudioFormat("audio/mp4a-latm", 44100, 1);
+		audio.setByteBuffer("csd-0", ByteBuffer.wrap(ASC));
+		mMuxer.addTrack(video);
+		mMuxer.addTrack(audio);
+		mMuxer.start();
+		mVideoPtsUs = mAudioPtsUs = 0;
+		mFrames = 0;
+		mSamples = 0;
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() throws IOException {
+		try {
+			mMuxer.stop();
+			mMuxer.release();
+			if (mMuxer.getWrittenSamples(0) != mSamples) {
+				throw new IllegalStateException("file sink wrote " + mMuxer.getWrittenSamples(0) + "/" + mSamples);
+			}
+			if ((mMuxer.getSinkCount() > 1) && (mMuxer.isDetached(1) != "closed".equals(socket))) {
+				throw new IllegalStateException("unexpected state of socket sink:" + mMuxer);
+			}
+			System.out.println("\n" + mMuxer);
+		} finally {
+			mReaderRunning = false;
+			if (mClient != null) {
+				mClient.close();
+				mClient = null;
+			}
+			if (mReader != null) {
+				try {
+					mReader.join();
+				} catch (final InterruptedException e) {
+					// ignore
+				}
+				mReader = null;
+			}
+			if (mServer != null) {
+				mServer.close();
+				mServer = null;
+			}
+			new File(Mp4Writer.getJournalPath(mOutput.getAbsolutePath())).delete();
+			mOutput.delete();
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public int writeFrame(final Counters counters) throws IOException {
+		final boolean isKeyFrame = (mFrames++ % KEY_FRAME_INTERVAL) == 0;
+		final ByteBuffer video = isKeyFrame ? mVideoKey : mVideo;
+		mInfo.set(0, video.limit(), mVideoPtsUs, isKeyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+		mMuxer.writeSampleData(0, video, mInfo);
+		mVideoPtsUs += VIDEO_FRAME_US;
+		mSamples++;
+		while (mAudioPtsUs < mVideoPtsUs) {
+			mInfo.set(0, AUDIO_SAMPLE_SIZE, mAudioPtsUs, 0);
+			mMuxer.writeSampleData(1, mAudio, mInfo);
+			mAudioPtsUs += AUDIO_FRAME_US;
+			mSamples++;
+		}
+		if (mMuxer.getSinkCount() > 1) {
+			counters.socketDropped = mMuxer.getDroppedSamples(1);
+		}
+		return mFrames;
+	}
+
+	/**
+	 * peer of the socket sink
+	 * @param channel
+	 */
+	private void startReader(final SocketChannel channel) {
+		mReaderRunning = true;
+		mReader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				final ByteBuffer buf = ByteBuffer.allocateDirect(64 * 1024);
+				final long startNs = System.nanoTime();
+				long bytes = 0;
+				try {
+					while (mReaderRunning) {
+						final long elapsedNs = System.nanoTime() - startNs;
+						if ("closed".equals(socket) && (elapsedNs > CLOSE_AFTER_MS * 1000000L)) {
+							break;
+						}
+						if ("slow".equals(socket)) {
+							final long allowed = elapsedNs * SLOW_READ_BYTES_PER_SEC / 1000000000L;
+							if (bytes > allowed) {
+								Thread.sleep(1);
+								continue;
+							}
+							buf.limit(4096);
+						}
+						final int n = channel.read(buf);
+						if (n < 0) break;
+						bytes += n;
+						buf.clear();
+					}
+				} catch (final IOException e) {
+					// closed
+				} catch (final InterruptedException e) {
+					// ignore
+				} finally {
+					try {
+						channel.close();
+					} catch (final IOException e) {
+						// ignore
+					}
+				}
+			}
+		}, "SocketReader");
+		mReader.start();
+	}
+
+	private static ByteBuffer createVideoSample(final boolean isKeyFrame) {
+		final ByteBuffer buf = ByteBuffer.allocateDirect(VIDEO_SAMPLE_SIZE);
+		buf.put((byte)0).put((byte)0).put((byte)0).put((byte)1);
+		buf.put((byte)(isKeyFrame ? 0x65 : 0x41));
+		while (buf.hasRemaining()) {
+			buf.put((byte)0x55);
+		}
+		buf.flip();
+		return buf;
+	}
+}
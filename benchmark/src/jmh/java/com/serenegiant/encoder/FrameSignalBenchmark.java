@@ -0,0 +1,120 @@
+package com.serenegiant.encoder;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: FrameSignalBenchmark.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Contention benchmark of MediaEncoder#frameAvailableSoon.
+ * Video producer(GL thread in the app) and audio producer(AudioThread) signal
+ * their own encoder at the same time while both encoder threads are draining.
+ * "signal" group measures only signalling, "feed" group also feeds frames into the codec.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FrameSignalBenchmark {
+	private MediaMuxerWrapper mMuxer;
+	private BenchMuxer mBenchMuxer;
+	private BenchEncoder mVideoEncoder;
+	private BenchEncoder mAudioEncoder;
+	private ByteBuffer mPcm;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		final File output = File.createTempFile("bench", ".mp4");
+		output.deleteOnExit();
+		mBenchMuxer = new BenchMuxer();
+		mMuxer = new MediaMuxerWrapper(output.getAbsolutePath(), new MuxerBackend.Factory() {
+			@Override
+			public MuxerBackend createMuxer(final String outputPath) {
+				return mBenchMuxer;
+			}
+		});
+		mVideoEncoder = BenchEncoder.create(mMuxer, false,
+			FakeEncoderBackend.factory(32 * 1024, 0, 25), MediaEncoder.DRAIN_MODE_POLLING);
+		mAudioEncoder = BenchEncoder.create(mMuxer, true,
+			FakeEncoderBackend.factory(256, 0, 1), MediaEncoder.DRAIN_MODE_POLLING);
+		mPcm = ByteBuffer.allocateDirect(BenchEncoder.AUDIO_INPUT_SIZE);
+		mMuxer.prepare();
+		mMuxer.startRecording();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		mMuxer.stopRecording();
+		final long limit = System.currentTimeMillis() + 5000;
+		while (!mBenchMuxer.isStopped() && (System.currentTimeMillis() < limit)) {
+			Thread.yield();
+		}
+	}
+
+	@Benchmark
+	@Group("signal")
+	@GroupThreads(1)
+	public boolean signalVideo() {
+		return mVideoEncoder.frameAvailableSoon();
+	}
+
+	@Benchmark
+	@Group("signal")
+	@GroupThreads(1)
+	public boolean signalAudio() {
+		return mAudioEncoder.frameAvailableSoon();
+	}
+
+	@Benchmark
+	@Group("feed")
+	@GroupThreads(1)
+	public boolean feedVideo() {
+		return mVideoEncoder.feed(null, 0);
+	}
+
+	@Benchmark
+	@Group("feed")
+	@GroupThreads(1)
+	public boolean feedAudio() {
+		return mAudioEncoder.feed(mPcm, BenchEncoder.AUDIO_INPUT_SIZE);
+	}
+}
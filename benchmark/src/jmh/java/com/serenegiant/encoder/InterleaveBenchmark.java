@@ -0,0 +1,185 @@
+package com.serenegiant.encoder;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: InterleaveBenchmark.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+/**
+ * Cost and achieved interleave of InterleavingMuxerBackend.
+ * Samples arrive in bursts of one track as if drain threads of audio and video encoders
+ * were scheduled alternately every burstMs, each operation delivers one burst of both tracks.
+ * maxDelayMs=0 writes samples in arrival order to compare the interleave distance.
+ * After each iteration the statistics are printed and, when the reordering window is larger
+ * than the burst, it is verified that the output is in global presentation time order.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class InterleaveBenchmark {
+	private static final long VIDEO_FRAME_US = 33333;
+	private static final long AUDIO_FRAME_US = 23220;
+	private static final int AUDIO_SAMPLE_SIZE = 256;
+	private static final int MAX_BYTES = 4 * 1024 * 1024;
+
+	/**
+	 * reordering window[msec], 0 means no reordering
+	 */
+	@Param({"0", "500"})
+	public long maxDelayMs;
+
+	/**
+	 * duration of samples of one track that arrive consecutively[msec]
+	 */
+	@Param({"200"})
+	public long burstMs;
+
+	@Param({"16384"})
+	public int videoSampleSize;
+
+	private InterleavingMuxerBackend mInterleaver;
+	private Output mOutput;
+	private int mVideoTrack, mAudioTrack;
+	private ByteBuffer mVideo, mAudio;
+	private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+	private long mVideoPtsUs, mAudioPtsUs;
+
+	/**
+	 * output backend that checks the order of written samples
+	 */
+	private static class Output implements MuxerBackend {
+		private int mTrackCount;
+		private long mSamples;
+		private long mLastPtsUs = -1;
+		private long mReordered;
+
+		@Override
+		public int addTrack(final MediaFormat format) {
+			return mTrackCount++;
+		}
+
+		@Override
+		public void start() {
+		}
+
+		@Override
+		public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+			if (byteBuf.get(bufferInfo.offset + bufferInfo.size - 1) != (byte)trackIndex) {
+				throw new IllegalStateException("corrupted sample data on track " + trackIndex);
+			}
+			if (bufferInfo.presentationTimeUs < mLastPtsUs) {
+				mReordered++;
+			} else {
+				mLastPtsUs = bufferInfo.presentationTimeUs;
+			}
+			mSamples++;
+		}
+
+		@Override
+		public void stop() {
+		}
+
+		@Override
+		public void release() {
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setupTrial() {
+		mVideo = createSample(videoSampleSize, 0);
+		mAudio = createSample(AUDIO_SAMPLE_SIZE, 1);
+	}
+
+	@Setup(Level.Iteration)
+	public void setup() throws IOException {
+		mOutput = new Output();
+		mInterleaver = new InterleavingMuxerBackend(mOutput, 0, maxDelayMs * 1000L, MAX_BYTES);
+		mVideoTrack = mInterleaver.addTrack(BenchEncoder.createFormat(false));
+		mAudioTrack = mInterleaver.addTrack(BenchEncoder.createFormat(true));
+		mInterleaver.start();
+		mVideoPtsUs = mAudioPtsUs = 0;
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() throws IOException {
+		mInterleaver.stop();
+		mInterleaver.release();
+		System.out.println();
+		System.out.println(mInterleaver + ",samples=" + mOutput.mSamples + ",reordered=" + mOutput.mReordered);
+		if ((maxDelayMs > burstMs) && (mOutput.mReordered != 0)) {
+			throw new IllegalStateException("samples are not in presentation time order");
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public long writeBurst() throws IOException {
+		final long endUs = mVideoPtsUs + burstMs * 1000L;
+		while (mVideoPtsUs < endUs) {
+			mInfo.set(0, videoSampleSize, mVideoPtsUs, 0);
+			mInterleaver.writeSampleData(mVideoTrack, mVideo, mInfo);
+			mVideoPtsUs += VIDEO_FRAME_US;
+		}
+		while (mAudioPtsUs < endUs) {
+			mInfo.set(0, AUDIO_SAMPLE_SIZE, mAudioPtsUs, 0);
+			mInterleaver.writeSampleData(mAudioTrack, mAudio, mInfo);
+			mAudioPtsUs += AUDIO_FRAME_US;
+		}
+		return mVideoPtsUs;
+	}
+
+	/**
+	 * @param size
+	 * @param marker last byte of the sample to check data is not corrupted
+	 * @return
+	 */
+	private static ByteBuffer createSample(final int size, final int marker) {
+		final ByteBuffer buf = ByteBuffer.allocateDirect(size);
+		while (buf.hasRemaining()) {
+			buf.put((byte)0x55);
+		}
+		buf.put(size - 1, (byte)marker);
+		buf.flip();
+		return buf;
+	}
+}
@@ -0,0 +1,202 @@
+package com.serenegiant.encoder;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: PcmRingBenchmark.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Capture stalls of the audio capturing thread while the encoder has hiccups.
+ * Each operation captures one PCM frame: it waits until the next frame period
+ * (like AudioRecord#read) and hands the frame off to the encoder, so the operation time
+ * is the frame period unless the hand off stalls the capture.
+ * The fake encoder takes encodeUs per frame and stalls hiccupMs every hiccupInterval frames
+ * (like dequeueInputBuffer waiting for the codec).
+ * mode:
+ * direct: the capturing thread calls the encoder(previous MediaAudioEncoder)
+ * ring: frames are passed through PcmRingBuffer to the encoder thread, the capture wakes it up
+ * and it polls the ring like MediaEncoder#feedInput(MediaAudioEncoder)
+ * Frame period is 1ms instead of 11.6ms of 44.1kHz so that iterations have enough frames.
+ * After each iteration the number of stalls(capture later than 5 frame periods),
+ * overruns of the ring are printed, and it is verified that the encoder received
+ * the frames in order without loss when the ring is large enough for the hiccup.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 1, time = 1)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class PcmRingBenchmark {
+	private static final int FRAME_BYTES = 1024;
+	private static final long FRAME_PERIOD_NS = 1000000L;
+	private static final int RING_FRAMES = 64;
+	/**
+	 * capture later than this from the frame period is counted as stall,
+	 * this is larger than timer jitter of parking
+	 */
+	private static final long STALL_NS = FRAME_PERIOD_NS * 5;
+
+	@Param({"direct", "ring"})
+	public String mode;
+
+	@Param({"100"})
+	public long encodeUs;
+
+	@Param({"20"})
+	public long hiccupMs;
+
+	@Param({"200"})
+	public int hiccupInterval;
+
+	private PcmRingBuffer mRing;
+	private Thread mEncoderThread;
+	private ByteBuffer mCapture;
+	private long mNextFrameNs;
+	private int mSequence;
+	private long mStalls;
+	// accessed only by the encoder(the capturing thread in direct mode)
+	private int mEncoded;
+	private int mExpected;
+	private volatile long mLost;
+
+	@Setup(Level.Iteration)
+	public void setup() {
+		mCapture = ByteBuffer.allocateDirect(FRAME_BYTES);
+		mSequence = 0;
+		mStalls = 0;
+		mEncoded = mExpected = 0;
+		mLost = 0;
+		mNextFrameNs = System.nanoTime() + FRAME_PERIOD_NS;
+		if ("ring".equals(mode)) {
+			final PcmRingBuffer ring = mRing = new PcmRingBuffer(FRAME_BYTES, RING_FRAMES);
+			mEncoderThread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for ( ; ; ) {
+						final boolean closed = ring.isClosed();
+						final ByteBuffer buf = ring.poll();
+						if (buf == null) {
+							// like MediaAudioEncoder, frames left in the ring are encoded after close
+							if (closed) break;
+							// wait for next frame like MediaEncoder waiting for frameAvailableSoon
+							LockSupport.park(this);
+							continue;
+						}
+						encode(buf, ring.getSize());
+						ring.release();
+					}
+				}
+			}, "PcmRingBenchmark");
+			mEncoderThread.start();
+		}
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() throws InterruptedException {
+		final StringBuilder sb = new StringBuilder();
+		sb.append("frames=").append(mSequence).append(",stalls=").append(mStalls);
+		if (mRing != null) {
+			mRing.close();
+			LockSupport.unpark(mEncoderThread);
+			mEncoderThread.join();
+			sb.append(",overruns=").append(mRing.getOverruns())
+				.append(",maxFill=").append(mRing.getMaxFill());
+		}
+		sb.append(",encoded=").append(mEncoded).append(",lost=").append(mLost);
+		System.out.println();
+		System.out.println(sb);
+		if ((mRing != null) && (hiccupMs * 1000000L < FRAME_PERIOD_NS * (RING_FRAMES - 4))
+			&& ((mRing.getOverruns() != 0) || (mLost != 0))) {
+
+			throw new IllegalStateException("frames were lost while the ring should absorb the hiccup");
+		}
+		if ((mRing != null) && (mEncoded + mRing.getOverruns() != mSequence)) {
+			throw new IllegalStateException("frames left in the ring were not encoded after close");
+		}
+		mRing = null;
+		mEncoderThread = null;
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public int captureFrame() {
+		// wait for the next frame like AudioRecord#read
+		long now = System.nanoTime();
+		while (now < mNextFrameNs) {
+			LockSupport.parkNanos(mNextFrameNs - now);
+			now = System.nanoTime();
+		}
+		if (now - mNextFrameNs > STALL_NS) {
+			// previous hand off took too long, the mic was not read in time
+			mStalls++;
+			mNextFrameNs = now;
+		}
+		mNextFrameNs += FRAME_PERIOD_NS;
+		final int seq = mSequence++;
+		if (mRing != null) {
+			final ByteBuffer buf = mRing.beginWrite();
+			if (buf != null) {
+				buf.putInt(0, seq);
+				mRing.commitWrite(FRAME_BYTES, seq);
+				LockSupport.unpark(mEncoderThread);
+			}
+		} else {
+			mCapture.clear();
+			mCapture.putInt(0, seq);
+			encode(mCapture, FRAME_BYTES);
+		}
+		return seq;
+	}
+
+	/**
+	 * fake encoder, copying is omitted and it just takes time
+	 */
+	private void encode(final ByteBuffer buf, final int size) {
+		final int seq = buf.getInt(0);
+		if (seq != mExpected) {
+			mLost += seq - mExpected;
+		}
+		mExpected = seq + 1;
+		final long waitNs = ((++mEncoded % hiccupInterval) == 0)
+			? hiccupMs * 1000000L : encodeUs * 1000L;
+		final long end = System.nanoTime() + waitNs;
+		for (long now = System.nanoTime(); now < end; now = System.nanoTime()) {
+			LockSupport.parkNanos(end - now);
+		}
+	}
+}
@@ -0,0 +1,207 @@
+package com.serenegiant.encoder;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: PreRollBenchmark.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+/**
+ * Throughput and allocation of buffering encoded samples by PreRollMuxerBackend.
+ * Each operation buffers one 30fps video frame and its share of 44.1kHz AAC frames.
+ * Run with gc profiler to see that buffering does not allocate.
+ * maxBytes=1MB is smaller than durationMs of samples, so GOPs are evicted by memory budget.
+ * After each iteration the backend is triggered and it is verified that flushed history
+ * starts with video key frame, its presentation time is monotonic on each track
+ * and its size is within the budget.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class PreRollBenchmark {
+	private static final long VIDEO_FRAME_US = 33333;
+	private static final long AUDIO_FRAME_US = 23220;
+	private static final int KEY_FRAME_INTERVAL = 30;
+	private static final int AUDIO_SAMPLE_SIZE = 256;
+
+	/**
+	 * duration of history[msec]
+	 */
+	@Param({"5000"})
+	public long durationMs;
+
+	/**
+	 * memory budget of the ring buffer
+	 */
+	@Param({"1048576", "16777216"})
+	public int maxBytes;
+
+	@Param({"16384"})
+	public int videoSampleSize;
+
+	private PreRollMuxerBackend mPreRoll;
+	private Output mOutput;
+	private int mVideoTrack, mAudioTrack;
+	private ByteBuffer mVideo, mAudio;
+	private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+	private long mVideoPtsUs, mAudioPtsUs;
+	private int mFrames;
+
+	/**
+	 * output backend that checks flushed samples
+	 */
+	private static class Output implements MuxerBackend {
+		private int mTrackCount;
+		private long mSamples;
+		private long mBytes;
+		private long mFirstPtsUs = -1, mLastPtsUs;
+		private final long[] mPrevPtsUs = {-1, -1};
+
+		@Override
+		public int addTrack(final MediaFormat format) {
+			return mTrackCount++;
+		}
+
+		@Override
+		public void start() {
+		}
+
+		@Override
+		public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+			if ((mSamples == 0)
+				&& ((trackIndex != 0) || ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) == 0))) {
+				throw new IllegalStateException("history does not start with video key frame");
+			}
+			if (bufferInfo.presentationTimeUs <= mPrevPtsUs[trackIndex]) {
+				throw new IllegalStateException("presentation time is not monotonic on track " + trackIndex);
+			}
+			if (byteBuf.get(bufferInfo.offset + bufferInfo.size - 1) != (byte)trackIndex) {
+				throw new IllegalStateException("corrupted sample data on track " + trackIndex);
+			}
+			mPrevPtsUs[trackIndex] = bufferInfo.presentationTimeUs;
+			if (mFirstPtsUs < 0) {
+				mFirstPtsUs = bufferInfo.presentationTimeUs;
+			}
+			mLastPtsUs = bufferInfo.presentationTimeUs;
+			mSamples++;
+			mBytes += bufferInfo.size;
+		}
+
+		@Override
+		public void stop() {
+		}
+
+		@Override
+		public void release() {
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setupTrial() {
+		mVideo = createSample(videoSampleSize, 0);
+		mAudio = createSample(AUDIO_SAMPLE_SIZE, 1);
+	}
+
+	@Setup(Level.Iteration)
+	public void setup() throws IOException {
+		mOutput = new Output();
+		mPreRoll = new PreRollMuxerBackend("unused", new MuxerBackend.Factory() {
+			@Override
+			public MuxerBackend createMuxer(final String outputPath) {
+				return mOutput;
+			}
+		}, durationMs, maxBytes);
+		mVideoTrack = mPreRoll.addTrack(BenchEncoder.createFormat(false));
+		mAudioTrack = mPreRoll.addTrack(BenchEncoder.createFormat(true));
+		mPreRoll.start();
+		mVideoPtsUs = mAudioPtsUs = 0;
+		mFrames = 0;
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() throws IOException {
+		final long bufferedUs = mPreRoll.getBufferedDurationUs();
+		final int bufferedBytes = mPreRoll.getBufferedBytes();
+		mPreRoll.trigger();
+		mPreRoll.stop();
+		mPreRoll.release();
+		System.out.println();
+		System.out.println("history=" + (mOutput.mLastPtsUs - mOutput.mFirstPtsUs) + "[usec]("
+			+ mOutput.mBytes + " bytes," + mOutput.mSamples + " samples),evicted=" + mPreRoll.getEvictedSamples());
+		if ((mOutput.mBytes != bufferedBytes) || (mOutput.mBytes > maxBytes)) {
+			throw new IllegalStateException("unexpected history size " + mOutput.mBytes + "/" + bufferedBytes);
+		}
+		if (mOutput.mLastPtsUs - mOutput.mFirstPtsUs != bufferedUs) {
+			throw new IllegalStateException("unexpected history duration");
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public int writeFrame() throws IOException {
+		mInfo.set(0, videoSampleSize, mVideoPtsUs,
+			(mFrames++ % KEY_FRAME_INTERVAL) == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+		mPreRoll.writeSampleData(mVideoTrack, mVideo, mInfo);
+		mVideoPtsUs += VIDEO_FRAME_US;
+		while (mAudioPtsUs < mVideoPtsUs) {
+			mInfo.set(0, AUDIO_SAMPLE_SIZE, mAudioPtsUs, 0);
+			mPreRoll.writeSampleData(mAudioTrack, mAudio, mInfo);
+			mAudioPtsUs += AUDIO_FRAME_US;
+		}
+		return mFrames;
+	}
+
+	/**
+	 * @param size
+	 * @param marker last byte of the sample to check data is not corrupted
+	 * @return
+	 */
+	private static ByteBuffer createSample(final int size, final int marker) {
+		final ByteBuffer buf = ByteBuffer.allocateDirect(size);
+		while (buf.hasRemaining()) {
+			buf.put((byte)0x55);
+		}
+		buf.put(size - 1, (byte)marker);
+		buf.flip();
+		return buf;
+	}
+}
@@ -0,0 +1,171 @@
+package com.serenegiant.encoder;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: SchedulerBenchmark.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Scaling of concurrent recordings with private encoder threads vs EncoderScheduler.
+ * Each session is one MediaMuxerWrapper with video and audio encoder.
+ * Each operation feeds one video frame and one audio buffer to every session
+ * and waits until all of them are written to the muxers.
+ * The number of live threads is reported as auxiliary counter "liveThreads".
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SchedulerBenchmark {
+	private static final int VIDEO_SAMPLE_SIZE = 32 * 1024;
+	private static final int AUDIO_SAMPLE_SIZE = 256;
+	private static final long TIMEOUT_MS = 5000;
+
+	@Param({"1", "4", "16"})
+	public int sessions;
+
+	/**
+	 * number of worker threads of EncoderScheduler, 0 means private thread for each encoder
+	 */
+	@Param({"0", "2"})
+	public int poolThreads;
+
+	/**
+	 * MediaEncoder#DRAIN_MODE_POLLING or MediaEncoder#DRAIN_MODE_CALLBACK
+	 */
+	@Param({"0"})
+	public int drainMode;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Threads {
+		public long liveThreads;
+	}
+
+	private EncoderScheduler mScheduler;
+	private MediaMuxerWrapper[] mMuxers;
+	private BenchMuxer[] mBenchMuxers;
+	private BenchEncoder[] mVideoEncoders;
+	private BenchEncoder[] mAudioEncoders;
+	private long[] mTargets;
+	private ByteBuffer mPcm;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		mScheduler = poolThreads > 0 ? new EncoderScheduler("bench", poolThreads) : null;
+		mMuxers = new MediaMuxerWrapper[sessions];
+		mBenchMuxers = new BenchMuxer[sessions];
+		mVideoEncoders = new BenchEncoder[sessions];
+		mAudioEncoders = new BenchEncoder[sessions];
+		mTargets = new long[sessions];
+		mPcm = ByteBuffer.allocateDirect(BenchEncoder.AUDIO_INPUT_SIZE);
+		for (int i = 0; i < sessions; i++) {
+			final File output = File.createTempFile("bench", ".mp4");
+			output.deleteOnExit();
+			final BenchMuxer benchMuxer = mBenchMuxers[i] = new BenchMuxer();
+			mMuxers[i] = new MediaMuxerWrapper(output.getAbsolutePath(), new MuxerBackend.Factory() {
+				@Override
+				public MuxerBackend createMuxer(final String outputPath) {
+					return benchMuxer;
+				}
+			});
+			mMuxers[i].setScheduler(mScheduler);
+			mVideoEncoders[i] = BenchEncoder.create(mMuxers[i], false,
+				FakeEncoderBackend.factory(VIDEO_SAMPLE_SIZE, 0, 25), drainMode);
+			mAudioEncoders[i] = BenchEncoder.create(mMuxers[i], true,
+				FakeEncoderBackend.factory(AUDIO_SAMPLE_SIZE, 0, 1), drainMode);
+			mMuxers[i].prepare();
+			mMuxers[i].startRecording();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		for (int i = 0; i < sessions; i++) {
+			mMuxers[i].stopRecording();
+		}
+		final long limit = System.currentTimeMillis() + TIMEOUT_MS;
+		for (int i = 0; i < sessions; i++) {
+			while (!mBenchMuxers[i].isStopped() && (System.currentTimeMillis() < limit)) {
+				Thread.yield();
+			}
+		}
+		if (mScheduler != null) {
+			System.out.println("\nqueue latency:" + mScheduler.getQueueLatency());
+			mScheduler.release();
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public long feedAllSessions(final Threads threads) {
+		final long result = feedAndWait();
+		threads.liveThreads = Thread.activeCount();
+		return result;
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public long feedAllSessionsLatency() {
+		return feedAndWait();
+	}
+
+	private long feedAndWait() {
+		for (int i = 0; i < sessions; i++) {
+			// one sample for each of video and audio
+			mTargets[i] = mBenchMuxers[i].getSampleCount() + 2;
+			if (!mVideoEncoders[i].feed(mPcm, BenchEncoder.AUDIO_INPUT_SIZE)
+				|| !mAudioEncoders[i].feed(mPcm, BenchEncoder.AUDIO_INPUT_SIZE)) {
+
+				throw new IllegalStateException("encoder is not capturing");
+			}
+		}
+		long result = 0;
+		for (int i = 0; i < sessions; i++) {
+			if (!mBenchMuxers[i].awaitSamples(mTargets[i], TIMEOUT_MS)) {
+				throw new IllegalStateException("sample was not written to muxer");
+			}
+			result += mTargets[i];
+		}
+		return result;
+	}
+}
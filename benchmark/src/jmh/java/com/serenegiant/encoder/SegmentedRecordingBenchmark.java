@@ -0,0 +1,263 @@
+package com.serenegiant.encoder;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: SegmentedRecordingBenchmark.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.serenegiant.muxer.Mp4Box;
+
+/**
+ * Audio and video encoders record into rolling segments of fragmented MP4 by SegmentedMuxerBackend.
+ * Key frame interval of the video codec is much longer than the segment duration,
+ * so every segment boundary depends on MediaEncoder#requestSyncFrame.
+ * Each producer thread feeds one frame every FRAME_INTERVAL_NS like capturing thread does.
+ * Score is achieved frame rate of each producer, videoLate/audioLate count frames
+ * that blocked longer than one frame interval(e.g. while switching the output file).
+ * After recording, every segment is parsed back and it is verified that each segment
+ * starts with video key frame and the total number of samples equals to the number of samples
+ * that were passed to the muxer, i.e. no sample was lost at rollover.
+ * Open/close latency of segments is printed.
+ */
+@State(Scope.Group)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class SegmentedRecordingBenchmark {
+	private static final long FRAME_INTERVAL_NS = 2000000L;	// 2[msec]
+	private static final long TIMEOUT_MS = 5000;
+	private static final int KEY_FRAME_INTERVAL = 100000;
+	private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+
+	/**
+	 * maximum duration of each segment[msec]
+	 */
+	@Param({"500"})
+	public long segmentDurationMs;
+
+	/**
+	 * duration of fragment in each segment[msec]
+	 */
+	@Param({"100"})
+	public long fragmentDurationMs;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Counters {
+		public long videoLate;
+		public long audioLate;
+
+		private long mNextNs;
+
+		@Setup(Level.Iteration)
+		public void setup() {
+			videoLate = audioLate = 0;
+			mNextNs = System.nanoTime();
+		}
+
+		/**
+		 * wait until next frame time like capturing thread
+		 */
+		private void pace() {
+			mNextNs += FRAME_INTERVAL_NS;
+			final long remain = mNextNs - System.nanoTime();
+			if (remain > 0) {
+				LockSupport.parkNanos(remain);
+			} else if (remain < -FRAME_INTERVAL_NS) {
+				// do not try to catch up after blocked
+				mNextNs = System.nanoTime();
+			}
+		}
+	}
+
+	private File mOutput;
+	private MediaMuxerWrapper mMuxer;
+	private SegmentedMuxerBackend mSegmented;
+	private BenchEncoder mVideoEncoder;
+	private BenchEncoder mAudioEncoder;
+	private ByteBuffer mPcm;
+	private final AtomicInteger mClosed = new AtomicInteger();
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		mOutput = File.createTempFile("bench", ".mp4");
+		mOutput.delete();
+		final MuxerBackend.Factory factory = SegmentedMuxerBackend.factory(
+			FragmentedMp4Backend.factory(fragmentDurationMs), segmentDurationMs, 0,
+			new SegmentedMuxerBackend.SegmentListener() {
+				@Override
+				public void onSegmentOpened(final int index, final String path, final long openLatencyUs) {
+					new File(path).deleteOnExit();
+				}
+
+				@Override
+				public void onSegmentClosed(final int index, final String path, final long closeLatencyUs, final long bytes) {
+					mClosed.incrementAndGet();
+				}
+			});
+		mMuxer = new MediaMuxerWrapper(mOutput.getAbsolutePath(), new MuxerBackend.Factory() {
+			@Override
+			public MuxerBackend createMuxer(final String outputPath) throws IOException {
+				mSegmented = (SegmentedMuxerBackend)factory.createMuxer(outputPath);
+				return mSegmented;
+			}
+		});
+		mVideoEncoder = BenchEncoder.create(mMuxer, false,
+			FakeEncoderBackend.factory(32 * 1024, 0, KEY_FRAME_INTERVAL), MediaEncoder.DRAIN_MODE_POLLING);
+		mAudioEncoder = BenchEncoder.create(mMuxer, true,
+			FakeEncoderBackend.factory(256, 0, 1), MediaEncoder.DRAIN_MODE_POLLING);
+		mPcm = ByteBuffer.allocateDirect(BenchEncoder.AUDIO_INPUT_SIZE);
+		mMuxer.setMetricsEnabled(true);
+		mMuxer.prepare();
+		mMuxer.startRecording();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		mMuxer.stopRecording();
+		final long limit = System.currentTimeMillis() + TIMEOUT_MS;
+		while (((mSegmented.getSegmentCount() == 0) || (mClosed.get() < mSegmented.getSegmentCount()))
+			&& (System.currentTimeMillis() < limit)) {
+
+			Thread.yield();
+		}
+		System.out.println();
+		System.out.println(mMuxer.getMetrics());
+		System.out.println(mSegmented);
+		verify(mMuxer.getMetrics().samplesWritten);
+	}
+
+	@Benchmark
+	@Group("av")
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public boolean video(final Counters counters) {
+		counters.pace();
+		final long startNs = System.nanoTime();
+		final boolean result = mVideoEncoder.feed(null, 0);
+		if (System.nanoTime() - startNs > FRAME_INTERVAL_NS) {
+			counters.videoLate++;
+		}
+		return result;
+	}
+
+	@Benchmark
+	@Group("av")
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public boolean audio(final Counters counters) {
+		counters.pace();
+		final long startNs = System.nanoTime();
+		final boolean result = mAudioEncoder.feed(mPcm, BenchEncoder.AUDIO_INPUT_SIZE);
+		if (System.nanoTime() - startNs > FRAME_INTERVAL_NS) {
+			counters.audioLate++;
+		}
+		return result;
+	}
+
+	/**
+	 * parse all segments and check them
+	 * @param expected number of samples that were written into the muxer
+	 * @throws IOException
+	 */
+	private void verify(final long expected) throws IOException {
+		final String path = mOutput.getAbsolutePath();
+		final int n = mSegmented.getSegmentCount();
+		long total = 0;
+		for (int i = 0; i < n; i++) {
+			final File segment = new File(SegmentedMuxerBackend.getSegmentPath(path, i));
+			try {
+				total += verifySegment(segment);
+			} finally {
+				segment.delete();
+			}
+		}
+		if (total != expected) {
+			throw new IllegalStateException("sample count mismatch: " + total + "/" + expected);
+		}
+		System.out.println("segments=" + n + ",samples=" + total);
+	}
+
+	/**
+	 * @param segment
+	 * @return number of samples in the segment
+	 * @throws IOException
+	 */
+	private static long verifySegment(final File segment) throws IOException {
+		final RandomAccessFile file = new RandomAccessFile(segment, "r");
+		try {
+			final FileChannel channel = file.getChannel();
+			final ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			final int end = buf.limit();
+			long samples = 0;
+			boolean firstVideo = true;
+			int pos = 0;
+			while (pos + Mp4Box.HEADER_SIZE <= end) {
+				final int next = (int)(pos + Mp4Box.size(buf, pos));
+				if (Mp4Box.type(buf, pos) == Mp4Box.MOOF) {
+					for (int traf = Mp4Box.find(buf, pos + Mp4Box.HEADER_SIZE, next, Mp4Box.TRAF); traf >= 0;
+						traf = Mp4Box.find(buf, traf + (int)Mp4Box.size(buf, traf), next, Mp4Box.TRAF)) {
+
+						final int trafEnd = traf + (int)Mp4Box.size(buf, traf);
+						final int trackId = buf.getInt(Mp4Box.find(buf, traf + Mp4Box.HEADER_SIZE, trafEnd, Mp4Box.TFHD) + 12);
+						final int trun = Mp4Box.find(buf, traf + Mp4Box.HEADER_SIZE, trafEnd, Mp4Box.TRUN);
+						final int count = buf.getInt(trun + 12);
+						if ((trackId == 1) && firstVideo) {
+							if ((count > 0) && (buf.getInt(trun + 28) != SAMPLE_FLAGS_SYNC)) {
+								throw new IllegalStateException(segment + " does not start with key frame");
+							}
+							firstVideo = false;
+						}
+						samples += count;
+					}
+				}
+				pos = next;
+			}
+			return samples;
+		} finally {
+			file.close();
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package com.serenegiant.encoder;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: StartLatencyBenchmark.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.media.MediaFormat;
+
+/**
+ * Start-to-first-sample latency of one recording with and without EncoderPool.
+ * Each operation runs MediaMuxerWrapper#prepare and #startRecording, feeds one frame
+ * to each of video and audio encoder and waits until both samples are written.
+ * Cost of creating/configuring codec is emulated with sleep because FakeEncoderBackend
+ * itself is cheap, so the absolute values depend on createLatencyMs/configureLatencyMs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 20)
+@Fork(1)
+public class StartLatencyBenchmark {
+	private static final int VIDEO_SAMPLE_SIZE = 32 * 1024;
+	private static final int AUDIO_SAMPLE_SIZE = 256;
+	private static final long TIMEOUT_MS = 5000;
+
+	@Param({"false", "true"})
+	public boolean pooled;
+
+	/**
+	 * emulated time of MediaCodec#createEncoderByType[msec]
+	 */
+	@Param({"30"})
+	public long createLatencyMs;
+
+	/**
+	 * emulated time of MediaCodec#configure[msec]
+	 */
+	@Param({"20"})
+	public long configureLatencyMs;
+
+	private EncoderBackend.Factory mFactory;
+	private EncoderPool mPool;
+	private MediaMuxerWrapper mMuxer;
+	private BenchMuxer mBenchMuxer;
+	private BenchEncoder mVideoEncoder;
+	private BenchEncoder mAudioEncoder;
+	private ByteBuffer mPcm;
+
+	@Setup(Level.Trial)
+	public void setupTrial() throws IOException {
+		final EncoderBackend.Factory factory = new EncoderBackend.Factory() {
+			@Override
+			public EncoderBackend createEncoder(final String mimeType) throws IOException {
+				sleep(createLatencyMs);
+				final boolean isAudio = BenchEncoder.AUDIO_MIME_TYPE.equals(mimeType);
+				return new FakeEncoderBackend(mimeType, isAudio ? AUDIO_SAMPLE_SIZE : VIDEO_SAMPLE_SIZE, 0) {
+					@Override
+					public void configure(final MediaFormat format, final Callback callback) throws IOException {
+						sleep(configureLatencyMs);
+						super.configure(format, callback);
+					}
+				};
+			}
+		};
+		if (pooled) {
+			mFactory = mPool = new EncoderPool(factory, 1);
+			mPool.prewarm(BenchEncoder.VIDEO_MIME_TYPE, BenchEncoder.createFormat(false), 1);
+			mPool.prewarm(BenchEncoder.AUDIO_MIME_TYPE, BenchEncoder.createFormat(true), 1);
+		} else {
+			mFactory = factory;
+		}
+		mPcm = ByteBuffer.allocateDirect(BenchEncoder.AUDIO_INPUT_SIZE);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDownTrial() {
+		if (mPool != null) {
+			System.out.println("\n" + mPool);
+			mPool.release();
+		}
+	}
+
+	@Setup(Level.Invocation)
+	public void setup() throws IOException {
+		final File output = File.createTempFile("bench", ".mp4");
+		output.deleteOnExit();
+		final BenchMuxer benchMuxer = mBenchMuxer = new BenchMuxer();
+		mMuxer = new MediaMuxerWrapper(output.getAbsolutePath(), new MuxerBackend.Factory() {
+			@Override
+			public MuxerBackend createMuxer(final String outputPath) {
+				return benchMuxer;
+			}
+		});
+		mVideoEncoder = BenchEncoder.create(mMuxer, false, mFactory, MediaEncoder.DRAIN_MODE_POLLING);
+		mAudioEncoder = BenchEncoder.create(mMuxer, true, mFactory, MediaEncoder.DRAIN_MODE_POLLING);
+	}
+
+	@TearDown(Level.Invocation)
+	public void tearDown() {
+		mMuxer.stopRecording();
+		// codecs are returned to the pool before the muxer stops
+		final long limit = System.currentTimeMillis() + TIMEOUT_MS;
+		while (!mBenchMuxer.isStopped() && (System.currentTimeMillis() < limit)) {
+			Thread.yield();
+		}
+	}
+
+	@Benchmark
+	public long startToFirstSample() throws IOException {
+		mMuxer.prepare();
+		mMuxer.startRecording();
+		if (!mVideoEncoder.feed(mPcm, BenchEncoder.AUDIO_INPUT_SIZE)
+			|| !mAudioEncoder.feed(mPcm, BenchEncoder.AUDIO_INPUT_SIZE)) {
+
+			throw new IllegalStateException("encoder is not capturing");
+		}
+		if (!mBenchMuxer.awaitSamples(2, TIMEOUT_MS)) {
+			throw new IllegalStateException("sample was not written to muxer");
+		}
+		return mBenchMuxer.getSampleCount();
+	}
+
+	private static void sleep(final long ms) {
+		try {
+			Thread.sleep(ms);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
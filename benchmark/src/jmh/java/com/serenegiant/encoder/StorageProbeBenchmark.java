@@ -0,0 +1,137 @@
+package com.serenegiant.encoder;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: StorageProbeBenchmark.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the pre-flight check that runs on UI thread when recording starts.
+ * The temporary directory is probed once in setup, then
+ * "peek" gets the cached result(finding the volume from /proc/self/mounts and free space),
+ * "plan" only decides the bitrates and "peekAndPlan" does both like CameraFragment.
+ * "plan" uses fixed result of SD card like storage(STORAGE_BYTES_PER_SEC)
+ * so that the requested video bitrate is accepted, downgraded or refused
+ * regardless of the storage that runs the benchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class StorageProbeBenchmark {
+	private static final long STORAGE_BYTES_PER_SEC = 10 * 1024 * 1024L;
+	private static final long STORAGE_USABLE_BYTES = 4 * 1024 * 1024 * 1024L;
+	private static final int AUDIO_BITRATE = 64000;
+
+	/**
+	 * requested video bitrate[Mbps], half of it is acceptable.
+	 * 8 is accepted, 50 is downgraded and 200 is refused with STORAGE_BYTES_PER_SEC
+	 */
+	@Param({"8", "50", "200"})
+	public int videoMbps;
+
+	private File mDir;
+	private StorageProbe.Result mResult;
+	private int mVideoBitrate;
+	private int mMinVideoBitrate;
+	private long mAccepted;
+	private long mDowngraded;
+	private long mRefused;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		mDir = File.createTempFile("probe", "");
+		mDir.delete();
+		mDir.mkdirs();
+		StorageProbe.clear();
+		final StorageProbe.Result probed = StorageProbe.probe(mDir);
+		if (probed.writeBytesPerSec <= 0) {
+			throw new IllegalStateException("failed to probe " + mDir);
+		}
+		System.out.println("\n" + probed);
+		mResult = new StorageProbe.Result(probed.volume, STORAGE_BYTES_PER_SEC,
+			STORAGE_USABLE_BYTES, System.currentTimeMillis());
+		mVideoBitrate = videoMbps * 1000000;
+		mMinVideoBitrate = mVideoBitrate / 2;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		StorageProbe.clear();
+		mDir.delete();
+		System.out.println("\naccepted=" + mAccepted + ",downgraded=" + mDowngraded + ",refused=" + mRefused);
+		final long expected = videoMbps <= 8 ? mAccepted
+			: (videoMbps <= 50 ? mDowngraded : mRefused);
+		if (expected != mAccepted + mDowngraded + mRefused) {
+			throw new IllegalStateException("unexpected plan for " + videoMbps + "Mbps");
+		}
+	}
+
+	@Benchmark
+	public StorageProbe.Result peek() {
+		final StorageProbe.Result result = StorageProbe.peek(mDir);
+		if (result == null) {
+			throw new IllegalStateException("cached result expired");
+		}
+		return result;
+	}
+
+	@Benchmark
+	public StorageProbe.Plan plan() {
+		return count(StorageProbe.plan(mResult, mVideoBitrate, mMinVideoBitrate, AUDIO_BITRATE));
+	}
+
+	@Benchmark
+	public StorageProbe.Plan peekAndPlan() {
+		peek();
+		return plan();
+	}
+
+	private StorageProbe.Plan count(final StorageProbe.Plan plan) {
+		if (!plan.accepted) {
+			mRefused++;
+		} else if (plan.downgraded) {
+			mDowngraded++;
+		} else {
+			mAccepted++;
+		}
+		return plan;
+	}
+}
@@ -0,0 +1,200 @@
+package com.serenegiant.muxer;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: FastStartBenchmark.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to rewrite MP4 file(ftyp, mdat, moov like android.media.MediaMuxer writes) as fast-start.
+ * Each iteration creates new file whose mdat has a chunk every CHUNK_SIZE bytes
+ * and each chunk starts with its index. After rewriting, it is verified that moov is ahead of mdat
+ * and every chunk offset in stco/co64 points to the chunk with the same index.
+ * Use -Djava.io.tmpdir to run on the storage you care about.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class FastStartBenchmark {
+	private static final int CHUNK_SIZE = 1024 * 1024;
+	private static final int STSZ = Mp4Box.fourcc("stsz");
+
+	/**
+	 * size of media data[MB]
+	 */
+	@Param({"256", "1024"})
+	public int mdatMb;
+
+	private File mOutput;
+
+	@Setup(Level.Iteration)
+	public void setup() throws IOException {
+		mOutput = File.createTempFile("bench", ".mp4");
+		mOutput.deleteOnExit();
+		createFile(mOutput, (long)mdatMb * 1024 * 1024);
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() throws IOException {
+		try {
+			verify(mOutput);
+		} finally {
+			mOutput.delete();
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public boolean process() throws IOException {
+		return FastStart.process(mOutput.getAbsolutePath());
+	}
+
+	/**
+	 * create non fast-start file
+	 * @param file
+	 * @param mdatSize
+	 * @throws IOException
+	 */
+	public static void createFile(final File file, final long mdatSize) throws IOException {
+		final int chunks = (int)(mdatSize / CHUNK_SIZE);
+		final ByteBuffer buf = ByteBuffer.allocate(1024 + chunks * 8);
+		final int ftyp = Mp4Box.begin(buf, Mp4Box.FTYP);
+		buf.putInt(Mp4Box.fourcc("isom")).putInt(0).putInt(Mp4Box.fourcc("isom"));
+		Mp4Box.end(buf, ftyp);
+		final long mdatPos = buf.position();
+		final boolean large = mdatSize + 16 > 0xffffffffL;
+		if (large) {
+			buf.putInt(1).putInt(Mp4Box.MDAT).putLong(mdatSize + 16);
+		} else {
+			buf.putInt((int)(mdatSize + 8)).putInt(Mp4Box.MDAT);
+		}
+		final long dataPos = buf.position();
+		final RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try {
+			out.setLength(0);
+			final FileChannel channel = out.getChannel();
+			buf.flip();
+			channel.write(buf, 0);
+			// write index of each chunk, the rest is zero
+			final ByteBuffer index = ByteBuffer.allocate(4);
+			for (int i = 0; i < chunks; i++) {
+				index.clear();
+				index.putInt(0, i);
+				channel.write(index, dataPos + (long)i * CHUNK_SIZE);
+			}
+			final long moovPos = dataPos + mdatSize;
+			buf.clear();
+			final int moov = Mp4Box.begin(buf, Mp4Box.MOOV);
+			final int trak = Mp4Box.begin(buf, Mp4Box.TRAK);
+			final int mdia = Mp4Box.begin(buf, Mp4Box.MDIA);
+			final int minf = Mp4Box.begin(buf, Mp4Box.MINF);
+			final int stbl = Mp4Box.begin(buf, Mp4Box.STBL);
+			final int stsz = Mp4Box.beginFull(buf, STSZ, 0, 0);
+			buf.putInt(CHUNK_SIZE).putInt(chunks);
+			Mp4Box.end(buf, stsz);
+			final int stco = Mp4Box.beginFull(buf, large ? Mp4Box.CO64 : Mp4Box.STCO, 0, 0);
+			buf.putInt(chunks);
+			for (int i = 0; i < chunks; i++) {
+				if (large) {
+					buf.putLong(dataPos + (long)i * CHUNK_SIZE);
+				} else {
+					buf.putInt((int)(dataPos + (long)i * CHUNK_SIZE));
+				}
+			}
+			Mp4Box.end(buf, stco);
+			Mp4Box.end(buf, stbl);
+			Mp4Box.end(buf, minf);
+			Mp4Box.end(buf, mdia);
+			Mp4Box.end(buf, trak);
+			Mp4Box.end(buf, moov);
+			buf.flip();
+			channel.write(buf, moovPos);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * check rewritten file
+	 * @param file
+	 * @throws IOException
+	 */
+	public static void verify(final File file) throws IOException {
+		final RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			final FileChannel channel = in.getChannel();
+			final ByteBuffer header = ByteBuffer.allocate(Mp4Box.HEADER_SIZE);
+			long pos = 0;
+			long moovPos = -1, moovSize = 0;
+			for (int i = 0; i < 2; i++) {
+				header.clear();
+				channel.read(header, pos);
+				if (Mp4Box.type(header, 0) == Mp4Box.MOOV) {
+					moovPos = pos;
+					moovSize = Mp4Box.size(header, 0);
+				}
+				pos += Mp4Box.size(header, 0);
+			}
+			if (moovPos < 0) throw new IllegalStateException("moov is not ahead of mdat");
+			final ByteBuffer moov = channel.map(FileChannel.MapMode.READ_ONLY, moovPos, moovSize);
+			final int end = (int)moovSize;
+			int stco = Mp4Box.findPath(moov, 0, end, Mp4Box.MOOV, Mp4Box.TRAK, Mp4Box.MDIA, Mp4Box.MINF, Mp4Box.STBL, Mp4Box.STCO);
+			final boolean is64 = stco < 0;
+			if (is64) {
+				stco = Mp4Box.findPath(moov, 0, end, Mp4Box.MOOV, Mp4Box.TRAK, Mp4Box.MDIA, Mp4Box.MINF, Mp4Box.STBL, Mp4Box.CO64);
+			}
+			final int count = moov.getInt(stco + 12);
+			final ByteBuffer index = ByteBuffer.allocate(4);
+			for (int i = 0; i < count; i++) {
+				final long offset = is64 ? moov.getLong(stco + 16 + i * 8) : (moov.getInt(stco + 16 + i * 4) & 0xffffffffL);
+				index.clear();
+				channel.read(index, offset);
+				if (index.getInt(0) != i) {
+					throw new IllegalStateException("chunk offset " + i + " is wrong");
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+}
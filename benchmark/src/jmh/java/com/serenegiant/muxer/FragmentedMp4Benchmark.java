@@ -0,0 +1,195 @@
+package com.serenegiant.muxer;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: FragmentedMp4Benchmark.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput and allocation of FragmentedMp4Writer.
+ * Each operation writes one 30fps video frame(Annex-B) and its share of 44.1kHz AAC frames.
+ * Run with gc profiler to see that allocation does not grow with number of fragments.
+ * After each iteration the output is parsed back and the number of samples,
+ * key frame at head of each video fragment and continuity of decode time are verified.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class FragmentedMp4Benchmark {
+	private static final long VIDEO_FRAME_US = 33333;
+	private static final long AUDIO_FRAME_US = 23220;
+	private static final int KEY_FRAME_INTERVAL = 30;
+	private static final int AUDIO_SAMPLE_SIZE = 256;
+	private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+	private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte)0xc0, 0x1e, (byte)0xda, 0x02, (byte)0x80, (byte)0xbf};
+	private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte)0xce, 0x3c, (byte)0x80};
+	private static final byte[] ASC = {0x12, 0x08};
+
+	/**
+	 * minimum duration of each fragment[msec]
+	 */
+	@Param({"1000"})
+	public long fragmentDurationMs;
+
+	@Param({"16384"})
+	public int videoSampleSize;
+
+	private File mOutput;
+	private FragmentedMp4Writer mWriter;
+	private int mVideoTrack, mAudioTrack;
+	private ByteBuffer mVideoKey, mVideo, mAudio;
+	private long mVideoPtsUs, mAudioPtsUs;
+	private int mFrames;
+	private long mVideoSamples, mAudioSamples;
+
+	@Setup(Level.Trial)
+	public void setupTrial() {
+		mVideoKey = createVideoSample(true);
+		mVideo = createVideoSample(false);
+		mAudio = ByteBuffer.allocateDirect(AUDIO_SAMPLE_SIZE);
+	}
+
+	@Setup(Level.Iteration)
+	public void setup() throws IOException {
+		mOutput = File.createTempFile("bench", ".mp4");
+		mOutput.deleteOnExit();
+		mWriter = new FragmentedMp4Writer(mOutput.getAbsolutePath(), fragmentDurationMs * 1000L);
+		mVideoTrack = mWriter.addTrack(TrackFormat.video(TrackFormat.MIME_AVC, 1280, 720, 4000000,
+			ByteBuffer.wrap(SPS), ByteBuffer.wrap(PPS)));
+		mAudioTrack = mWriter.addTrack(TrackFormat.audio(TrackFormat.MIME_AAC, 44100, 1, 64000,
+			ByteBuffer.wrap(ASC)));
+		mWriter.start();
+		mVideoPtsUs = mAudioPtsUs = 0;
+		mFrames = 0;
+		mVideoSamples = mAudioSamples = 0;
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() throws IOException {
+		mWriter.stop();
+		mWriter.release();
+		try {
+			verify();
+		} finally {
+			mOutput.delete();
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public int writeFrame() throws IOException {
+		final ByteBuffer video = (mFrames++ % KEY_FRAME_INTERVAL) == 0 ? mVideoKey : mVideo;
+		mWriter.writeSampleData(mVideoTrack, video, 0, video.limit(), mVideoPtsUs, video == mVideoKey);
+		mVideoPtsUs += VIDEO_FRAME_US;
+		mVideoSamples++;
+		while (mAudioPtsUs < mVideoPtsUs) {
+			mWriter.writeSampleData(mAudioTrack, mAudio, 0, AUDIO_SAMPLE_SIZE, mAudioPtsUs, false);
+			mAudioPtsUs += AUDIO_FRAME_US;
+			mAudioSamples++;
+		}
+		return mFrames;
+	}
+
+	private ByteBuffer createVideoSample(final boolean isKeyFrame) {
+		final ByteBuffer buf = ByteBuffer.allocateDirect(videoSampleSize);
+		buf.put((byte)0).put((byte)0).put((byte)0).put((byte)1);
+		buf.put((byte)(isKeyFrame ? 0x65 : 0x41));
+		while (buf.hasRemaining()) {
+			buf.put((byte)0x55);
+		}
+		buf.flip();
+		return buf;
+	}
+
+	/**
+	 * parse output and check it
+	 * @throws IOException
+	 */
+	private void verify() throws IOException {
+		final RandomAccessFile file = new RandomAccessFile(mOutput, "r");
+		try {
+			final FileChannel channel = file.getChannel();
+			final ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			final int end = buf.limit();
+			if (Mp4Box.findPath(buf, 0, end, Mp4Box.MOOV, Mp4Box.MVEX, Mp4Box.TREX) < 0) {
+				throw new IllegalStateException("no moov/mvex");
+			}
+			final long[] samples = new long[3];
+			final long[] nextDecodeTime = {-1, -1, -1};
+			int pos = 0;
+			while (pos + Mp4Box.HEADER_SIZE <= end) {
+				final int next = (int)(pos + Mp4Box.size(buf, pos));
+				if (Mp4Box.type(buf, pos) == Mp4Box.MOOF) {
+					for (int traf = Mp4Box.find(buf, pos + Mp4Box.HEADER_SIZE, next, Mp4Box.TRAF); traf >= 0;
+						traf = Mp4Box.find(buf, traf + (int)Mp4Box.size(buf, traf), next, Mp4Box.TRAF)) {
+
+						final int trafEnd = traf + (int)Mp4Box.size(buf, traf);
+						final int trackId = buf.getInt(Mp4Box.find(buf, traf + Mp4Box.HEADER_SIZE, trafEnd, Mp4Box.TFHD) + 12);
+						final long decodeTime = buf.getLong(Mp4Box.find(buf, traf + Mp4Box.HEADER_SIZE, trafEnd, Mp4Box.TFDT) + 12);
+						final int trun = Mp4Box.find(buf, traf + Mp4Box.HEADER_SIZE, trafEnd, Mp4Box.TRUN);
+						final int count = buf.getInt(trun + 12);
+						if ((nextDecodeTime[trackId] >= 0) && (nextDecodeTime[trackId] != decodeTime)) {
+							throw new IllegalStateException("gap of decode time on track " + trackId);
+						}
+						if ((trackId == 1) && (buf.getInt(trun + 28) != SAMPLE_FLAGS_SYNC)) {
+							throw new IllegalStateException("video fragment does not start with key frame");
+						}
+						long duration = 0;
+						for (int i = 0; i < count; i++) {
+							duration += buf.getInt(trun + 20 + i * 12);
+						}
+						nextDecodeTime[trackId] = decodeTime + duration;
+						samples[trackId] += count;
+					}
+				}
+				pos = next;
+			}
+			if ((samples[1] != mVideoSamples) || (samples[2] != mAudioSamples)) {
+				throw new IllegalStateException("sample count mismatch: video=" + samples[1] + "/" + mVideoSamples
+					+ ", audio=" + samples[2] + "/" + mAudioSamples);
+			}
+		} finally {
+			file.close();
+		}
+	}
+}
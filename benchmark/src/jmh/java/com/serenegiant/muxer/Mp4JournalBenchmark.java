@@ -0,0 +1,231 @@
+package com.serenegiant.muxer;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: Mp4JournalBenchmark.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Overhead of the recording journal of Mp4Writer and crash recovery with Mp4Recovery.
+ * Each operation writes one 30fps video frame(Annex-B) and its share of 44.1kHz AAC frames.
+ * mode:
+ * plain: Mp4Writer without journal
+ * journal: Mp4Writer with journal
+ * crash: same as journal, but the writer is released without #stop at the end of
+ * each iteration(like the process died) and moov is rebuilt by Mp4Recovery.
+ * After each iteration the output is parsed back and the number of samples in moov,
+ * position and size of each sample in mdat are verified.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class Mp4JournalBenchmark {
+	private static final long VIDEO_FRAME_US = 33333;
+	private static final long AUDIO_FRAME_US = 23220;
+	private static final int KEY_FRAME_INTERVAL = 30;
+	private static final int AUDIO_SAMPLE_SIZE = 256;
+	private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte)0xc0, 0x1e, (byte)0xda, 0x02, (byte)0x80, (byte)0xbf};
+	private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte)0xce, 0x3c, (byte)0x80};
+	private static final byte[] ASC = {0x12, 0x08};
+
+	@Param({"plain", "journal", "crash"})
+	public String mode;
+
+	@Param({"16384"})
+	public int videoSampleSize;
+
+	private File mOutput;
+	private Mp4Writer mWriter;
+	private int mVideoTrack, mAudioTrack;
+	private ByteBuffer mVideoKey, mVideo, mAudio;
+	private long mVideoPtsUs, mAudioPtsUs;
+	private int mFrames;
+	private long mVideoSamples, mAudioSamples;
+
+	@Setup(Level.Trial)
+	public void setupTrial() {
+		mVideoKey = createVideoSample(true);
+		mVideo = createVideoSample(false);
+		mAudio = ByteBuffer.allocateDirect(AUDIO_SAMPLE_SIZE);
+	}
+
+	@Setup(Level.Iteration)
+	public void setup() throws IOException {
+		mOutput = File.createTempFile("bench", ".mp4");
+		mOutput.deleteOnExit();
+		mWriter = new Mp4Writer(mOutput.getAbsolutePath(), !"plain".equals(mode));
+		mVideoTrack = mWriter.addTrack(TrackFormat.video(TrackFormat.MIME_AVC, 1280, 720, 4000000,
+			ByteBuffer.wrap(SPS), ByteBuffer.wrap(PPS)));
+		mAudioTrack = mWriter.addTrack(TrackFormat.audio(TrackFormat.MIME_AAC, 44100, 1, 64000,
+			ByteBuffer.wrap(ASC)));
+		mWriter.start();
+		mVideoPtsUs = mAudioPtsUs = 0;
+		mFrames = 0;
+		mVideoSamples = mAudioSamples = 0;
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() throws IOException {
+		final String path = mOutput.getAbsolutePath();
+		final int journalWrites = mWriter.getJournalWriteCount();
+		try {
+			if ("crash".equals(mode)) {
+				mWriter.release();
+				final int recovered = Mp4Recovery.recover(path);
+				final long written = mVideoSamples + mAudioSamples;
+				// samples after the last batch of journal are lost
+				if ((recovered > written) || (recovered < written - written / 8 - 256)) {
+					throw new IllegalStateException("recovered " + recovered + "/" + written + " samples");
+				}
+				verify(recovered);
+			} else {
+				mWriter.stop();
+				mWriter.release();
+				verify(mVideoSamples + mAudioSamples);
+			}
+			if (Mp4Recovery.needsRecovery(path)) {
+				throw new IllegalStateException("journal was not deleted");
+			}
+			System.out.println("\nsamples=" + (mVideoSamples + mAudioSamples)
+				+ ", journal writes=" + journalWrites);
+		} finally {
+			mOutput.delete();
+			new File(Mp4Writer.getJournalPath(path)).delete();
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public int writeFrame() throws IOException {
+		final ByteBuffer video = (mFrames++ % KEY_FRAME_INTERVAL) == 0 ? mVideoKey : mVideo;
+		mWriter.writeSampleData(mVideoTrack, video, 0, video.limit(), mVideoPtsUs, video == mVideoKey);
+		mVideoPtsUs += VIDEO_FRAME_US;
+		mVideoSamples++;
+		while (mAudioPtsUs < mVideoPtsUs) {
+			mWriter.writeSampleData(mAudioTrack, mAudio, 0, AUDIO_SAMPLE_SIZE, mAudioPtsUs, false);
+			mAudioPtsUs += AUDIO_FRAME_US;
+			mAudioSamples++;
+		}
+		return mFrames;
+	}
+
+	private ByteBuffer createVideoSample(final boolean isKeyFrame) {
+		final ByteBuffer buf = ByteBuffer.allocateDirect(videoSampleSize);
+		buf.put((byte)0).put((byte)0).put((byte)0).put((byte)1);
+		buf.put((byte)(isKeyFrame ? 0x65 : 0x41));
+		while (buf.hasRemaining()) {
+			buf.put((byte)0x55);
+		}
+		buf.flip();
+		return buf;
+	}
+
+	/**
+	 * parse output and check it
+	 * @param expectedSamples
+	 * @throws IOException
+	 */
+	private void verify(final long expectedSamples) throws IOException {
+		final RandomAccessFile file = new RandomAccessFile(mOutput, "r");
+		try {
+			final FileChannel channel = file.getChannel();
+			final ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			final int end = buf.limit();
+			final int mdat = Mp4Box.find(buf, 0, end, Mp4Box.MDAT);
+			final int moov = Mp4Box.find(buf, 0, end, Mp4Box.MOOV);
+			if ((mdat < 0) || (moov < 0)) {
+				throw new IllegalStateException("no mdat/moov");
+			}
+			final long mdatEnd = mdat + Mp4Box.size(buf, mdat);
+			final int moovEnd = (int)(moov + Mp4Box.size(buf, moov));
+			long samples = 0;
+			int track = 0;
+			for (int trak = Mp4Box.find(buf, moov + Mp4Box.HEADER_SIZE, moovEnd, Mp4Box.TRAK); trak >= 0;
+				trak = Mp4Box.find(buf, trak + (int)Mp4Box.size(buf, trak), moovEnd, Mp4Box.TRAK)) {
+
+				final int trakEnd = (int)(trak + Mp4Box.size(buf, trak));
+				final int stbl = Mp4Box.findPath(buf, trak + Mp4Box.HEADER_SIZE, trakEnd,
+					Mp4Box.MDIA, Mp4Box.MINF, Mp4Box.STBL);
+				final int stblEnd = (int)(stbl + Mp4Box.size(buf, stbl));
+				final int stsz = Mp4Box.find(buf, stbl + Mp4Box.HEADER_SIZE, stblEnd, Mp4Box.STSZ);
+				final int stsc = Mp4Box.find(buf, stbl + Mp4Box.HEADER_SIZE, stblEnd, Mp4Box.STSC);
+				final int stco = Mp4Box.find(buf, stbl + Mp4Box.HEADER_SIZE, stblEnd, Mp4Box.STCO);
+				final int count = buf.getInt(stsz + 16);
+				final int chunks = buf.getInt(stco + 12);
+				final int entries = buf.getInt(stsc + 12);
+				// walk chunks and check that every sample is in mdat
+				int sample = 0;
+				for (int i = 0; i < chunks; i++) {
+					int perChunk = 0;
+					for (int j = 0; j < entries; j++) {
+						if (buf.getInt(stsc + 16 + j * 12) - 1 <= i) {
+							perChunk = buf.getInt(stsc + 20 + j * 12);
+						}
+					}
+					long offset = buf.getInt(stco + 16 + i * 4) & 0xffffffffL;
+					for (int j = 0; j < perChunk; j++, sample++) {
+						final int size = buf.getInt(stsz + 20 + sample * 4);
+						if ((offset < mdat) || (offset + size > mdatEnd)) {
+							throw new IllegalStateException("sample " + sample + " is out of mdat");
+						}
+						if ((track == mVideoTrack) && (buf.getInt((int)offset) != size - 4)) {
+							// the first track is video, one NAL unit with length prefix
+							throw new IllegalStateException("wrong offset of video sample " + sample);
+						}
+						offset += size;
+					}
+				}
+				if (sample != count) {
+					throw new IllegalStateException("stsc/stco covers " + sample + " of " + count + " samples");
+				}
+				samples += count;
+				track++;
+			}
+			if (samples != expectedSamples) {
+				throw new IllegalStateException("sample count mismatch:" + samples + "/" + expectedSamples);
+			}
+		} finally {
+			file.close();
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package com.serenegiant.muxer;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: PreallocatedWriteBenchmark.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency percentiles of sequential writes of one chunk(like mdat payload of one fragment)
+ * with plain FileOutputStream, plain FileChannel and PreallocatedFileWriter
+ * in FileChannel mode and memory mapped mode.
+ * Each iteration writes to new file, the file is closed and its size is verified after the iteration.
+ * Results depend heavily on file system of java.io.tmpdir, run on the storage you care about
+ * with -Djava.io.tmpdir.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class PreallocatedWriteBenchmark {
+	@Param({"stream", "channel", "preallocated", "mmap"})
+	public String mode;
+
+	@Param({"16384"})
+	public int chunkSize;
+
+	@Param({"8388608"})
+	public int extentSize;
+
+	private byte[] mArray;
+	private ByteBuffer mBuffer;
+	private File mOutput;
+	private FileOutputStream mStream;
+	private FileChannel mChannel;
+	private PreallocatedFileWriter mWriter;
+	private long mBytes;
+
+	@Setup(Level.Trial)
+	public void setupTrial() {
+		mArray = new byte[chunkSize];
+		mBuffer = ByteBuffer.allocateDirect(chunkSize);
+		for (int i = 0; i < chunkSize; i++) {
+			mArray[i] = (byte)i;
+			mBuffer.put(i, (byte)i);
+		}
+	}
+
+	@Setup(Level.Iteration)
+	public void setup() throws IOException {
+		mOutput = File.createTempFile("bench", ".mp4");
+		mOutput.deleteOnExit();
+		mBytes = 0;
+		if ("stream".equals(mode)) {
+			mStream = new FileOutputStream(mOutput);
+		} else if ("channel".equals(mode)) {
+			mChannel = new RandomAccessFile(mOutput, "rw").getChannel();
+		} else {
+			mWriter = new PreallocatedFileWriter(mOutput.getAbsolutePath(), extentSize, "mmap".equals(mode), null);
+		}
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() throws IOException {
+		try {
+			if (mStream != null) {
+				mStream.close();
+				mStream = null;
+			}
+			if (mChannel != null) {
+				mChannel.close();
+				mChannel = null;
+			}
+			if (mWriter != null) {
+				mWriter.close();
+				mWriter = null;
+			}
+			if (mOutput.length() != mBytes) {
+				throw new IllegalStateException("unexpected file size " + mOutput.length() + "/" + mBytes);
+			}
+		} finally {
+			mOutput.delete();
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public long write() throws IOException {
+		if (mStream != null) {
+			mStream.write(mArray);
+		} else {
+			mBuffer.clear();
+			if (mChannel != null) {
+				while (mBuffer.hasRemaining()) {
+					mChannel.write(mBuffer);
+				}
+			} else {
+				mWriter.write(mBuffer);
+			}
+		}
+		return mBytes += chunkSize;
+	}
+}
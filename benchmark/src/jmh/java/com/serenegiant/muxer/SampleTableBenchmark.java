@@ -0,0 +1,154 @@
+package com.serenegiant.muxer;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: SampleTableBenchmark.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Append and finalize cost of SampleTable of Mp4Writer.
+ * mode:
+ * memory: all entries of the sample index are kept on java heap
+ * spill: full blocks of the sample index are spilled to temporary files
+ * append: each operation adds one 30fps video sample, heap size of the table is printed
+ * after each iteration.
+ * finalize: each operation writes stts/stss/stsc/stsz/stco of a 12 hour 30fps video track
+ * (every sample is its own chunk like interleaved A/V). On setup, tables of both modes are
+ * written once and it is verified that they are identical.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class SampleTableBenchmark {
+	private static final long VIDEO_FRAME_US = 33333;
+	private static final int KEY_FRAME_INTERVAL = 30;
+	private static final TrackFormat FORMAT = TrackFormat.video(TrackFormat.MIME_AVC, 1280, 720, 4000000,
+		ByteBuffer.wrap(new byte[] {0x67}), ByteBuffer.wrap(new byte[] {0x68}));
+
+	@Param({"memory", "spill"})
+	public String mode;
+
+	/**
+	 * number of samples of the finalize benchmark, 12 hours of 30fps video
+	 */
+	@Param({"1296000"})
+	public int finalizeSamples;
+
+	private File mSpillDir;
+	private SampleTable mAppendTable;
+	private int mAppended;
+	private SampleTable mFinalizeTable;
+	private ByteBuffer mBuffer;
+
+	@Setup(Level.Trial)
+	public void setupTrial() throws IOException {
+		mSpillDir = new File(System.getProperty("java.io.tmpdir"));
+		final SampleTable memory = createTable(null, finalizeSamples);
+		final SampleTable spill = createTable(mSpillDir, finalizeSamples);
+		mBuffer = ByteBuffer.allocateDirect((int)memory.getMaxBoxSize());
+		final ByteBuffer expected = ByteBuffer.allocateDirect((int)memory.getMaxBoxSize());
+		memory.write(expected);
+		expected.flip();
+		spill.write(mBuffer);
+		mBuffer.flip();
+		if (!expected.equals(mBuffer)) {
+			throw new IllegalStateException("sample tables are different");
+		}
+		System.out.println();
+		System.out.println("sample table " + expected.remaining() + " bytes,heap memory=" + memory.getMemoryBytes()
+			+ ",spill=" + spill.getMemoryBytes());
+		if ("spill".equals(mode)) {
+			memory.close();
+			mFinalizeTable = spill;
+		} else {
+			spill.close();
+			mFinalizeTable = memory;
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDownTrial() {
+		mFinalizeTable.close();
+	}
+
+	@Setup(Level.Iteration)
+	public void setup() {
+		mAppendTable = new SampleTable(FORMAT, "spill".equals(mode) ? mSpillDir : null);
+		mAppended = 0;
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() {
+		System.out.println();
+		System.out.println("appended=" + mAppended + ",heap memory=" + mAppendTable.getMemoryBytes() + " bytes");
+		mAppendTable.close();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public int append() throws IOException {
+		addSample(mAppendTable, mAppended++);
+		return mAppended;
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public int finalizeTable() throws IOException {
+		mBuffer.clear();
+		mFinalizeTable.write(mBuffer);
+		return mBuffer.position();
+	}
+
+	private static SampleTable createTable(final File spillDir, final int samples) throws IOException {
+		final SampleTable table = new SampleTable(FORMAT, spillDir);
+		for (int i = 0; i < samples; i++) {
+			addSample(table, i);
+		}
+		return table;
+	}
+
+	private static void addSample(final SampleTable table, final int i) throws IOException {
+		final int size = (i % KEY_FRAME_INTERVAL) == 0 ? 60000 : 12000 + (i % 7) * 100;
+		// gap between samples as audio samples are interleaved
+		table.add(i * 20000L, size, i * VIDEO_FRAME_US, (i % KEY_FRAME_INTERVAL) == 0);
+	}
+}
@@ -0,0 +1,229 @@
+package com.serenegiant.muxer;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: TsWriterBenchmark.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput and allocation of TsWriter on one thread at 4K bitrates.
+ * Each operation packetizes one 30fps video frame(Annex-B) of videoBitrate
+ * and its share of 48kHz AAC frames, so score / 30 is how many times faster than real time
+ * the packetizer is. Run with gc profiler to see that packetizing does not allocate.
+ * sink:
+ * null: packets are discarded, cost of packetizing only
+ * verify: sync byte, continuity counter of each PID, PCR interval and monotonicity,
+ * and number of PES packets are checked.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class TsWriterBenchmark {
+	private static final long VIDEO_FRAME_US = 33333;
+	private static final long AUDIO_FRAME_US = 21333;
+	private static final int KEY_FRAME_INTERVAL = 30;
+	private static final int AUDIO_SAMPLE_SIZE = 384;
+	private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x64, 0x00, 0x33, (byte)0xac, 0x34, (byte)0xe6, 0x00};
+	private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte)0xee, 0x3c, (byte)0xb0};
+	private static final byte[] ASC = {0x11, (byte)0x90};
+
+	@Param({"50000000", "100000000"})
+	public int videoBitrate;
+
+	@Param({"null", "verify"})
+	public String sink;
+
+	private TsWriter mWriter;
+	private VerifyingChannel mChannel;
+	private int mVideoTrack, mAudioTrack;
+	private ByteBuffer mVideoKey, mVideo, mAudio;
+	private long mVideoPtsUs, mAudioPtsUs;
+	private int mFrames;
+	private long mVideoSamples, mAudioSamples;
+
+	/**
+	 * consume packets and check them if required
+	 */
+	private static final class VerifyingChannel implements WritableByteChannel {
+		private final boolean mVerify;
+		private final int[] mContinuityCounters = new int[0x2000];
+		private final long[] mPesCounts = new long[0x2000];
+		private long mLastPcr = -1;
+		private long mMaxPcrInterval;
+		private long mBytes;
+
+		private VerifyingChannel(final boolean verify) {
+			mVerify = verify;
+			Arrays.fill(mContinuityCounters, -1);
+		}
+
+		@Override
+		public int write(final ByteBuffer src) {
+			final int n = src.remaining();
+			if (mVerify) {
+				if (n % TsWriter.PACKET_SIZE != 0) throw new IllegalStateException("partial packet");
+				for (int pos = src.position(); pos < src.limit(); pos += TsWriter.PACKET_SIZE) {
+					verifyPacket(src, pos);
+				}
+			}
+			src.position(src.limit());
+			mBytes += n;
+			return n;
+		}
+
+		private void verifyPacket(final ByteBuffer buf, final int pos) {
+			if (buf.get(pos) != 0x47) throw new IllegalStateException("lost sync at " + (mBytes + pos));
+			final int pid = ((buf.get(pos + 1) & 0x1f) << 8) | (buf.get(pos + 2) & 0xff);
+			final int control = (buf.get(pos + 3) >> 4) & 0x03;
+			final int cc = buf.get(pos + 3) & 0x0f;
+			if ((control & 0x01) != 0) {
+				final int expected = (mContinuityCounters[pid] + 1) & 0x0f;
+				if ((mContinuityCounters[pid] >= 0) && (cc != expected)) {
+					throw new IllegalStateException("discontinuity on PID " + pid);
+				}
+				mContinuityCounters[pid] = cc;
+			}
+			int payload = pos + 4;
+			if ((control & 0x02) != 0) {
+				final int length = buf.get(pos + 4) & 0xff;
+				if ((length > 0) && ((buf.get(pos + 5) & 0x10) != 0)) {
+					long base = 0;
+					for (int i = 0; i < 4; i++) {
+						base = (base << 8) | (buf.get(pos + 6 + i) & 0xff);
+					}
+					base = (base << 1) | ((buf.get(pos + 10) & 0x80) >> 7);
+					final long pcr = base * 300 + (((buf.get(pos + 10) & 0x01) << 8) | (buf.get(pos + 11) & 0xff));
+					if (mLastPcr >= 0) {
+						if (pcr <= mLastPcr) throw new IllegalStateException("PCR went backward");
+						mMaxPcrInterval = Math.max(mMaxPcrInterval, pcr - mLastPcr);
+					}
+					mLastPcr = pcr;
+				}
+				payload += 1 + length;
+			}
+			if (payload > pos + TsWriter.PACKET_SIZE) throw new IllegalStateException("broken adaptation field");
+			if (((buf.get(pos + 1) & 0x40) != 0) && (pid >= 0x100) && (pid < 0x1000)) {
+				if ((buf.get(payload) != 0) || (buf.get(payload + 1) != 0) || (buf.get(payload + 2) != 1)) {
+					throw new IllegalStateException("no PES start code");
+				}
+				mPesCounts[pid]++;
+			}
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setupTrial() {
+		final int frameSize = videoBitrate / 8 / 30;
+		mVideoKey = createVideoSample(frameSize, true);
+		mVideo = createVideoSample(frameSize, false);
+		mAudio = ByteBuffer.allocateDirect(AUDIO_SAMPLE_SIZE);
+	}
+
+	@Setup(Level.Iteration)
+	public void setup() {
+		mChannel = new VerifyingChannel("verify".equals(sink));
+		mWriter = new TsWriter(mChannel);
+		mVideoTrack = mWriter.addTrack(TrackFormat.video(TrackFormat.MIME_AVC, 3840, 2160, videoBitrate,
+			ByteBuffer.wrap(SPS), ByteBuffer.wrap(PPS)));
+		mAudioTrack = mWriter.addTrack(TrackFormat.audio(TrackFormat.MIME_AAC, 48000, 2, 128000,
+			ByteBuffer.wrap(ASC)));
+		mWriter.start();
+		mVideoPtsUs = mAudioPtsUs = 0;
+		mFrames = 0;
+		mVideoSamples = mAudioSamples = 0;
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() throws IOException {
+		mWriter.stop();
+		mWriter.release();
+		if (mWriter.getMaxPcrIntervalUs() > TsWriter.PCR_INTERVAL_US) {
+			throw new IllegalStateException("PCR interval " + mWriter.getMaxPcrIntervalUs() + "us");
+		}
+		if (mChannel.mVerify) {
+			if ((mChannel.mPesCounts[0x100] != mVideoSamples) || (mChannel.mPesCounts[0x101] != mAudioSamples)) {
+				throw new IllegalStateException("PES count mismatch: video=" + mChannel.mPesCounts[0x100] + "/" + mVideoSamples
+					+ ", audio=" + mChannel.mPesCounts[0x101] + "/" + mAudioSamples);
+			}
+			if (mChannel.mMaxPcrInterval > TsWriter.PCR_INTERVAL_US * 27) {
+				throw new IllegalStateException("PCR interval in stream " + mChannel.mMaxPcrInterval / 27 + "us");
+			}
+		}
+		System.out.println("\nframes=" + mFrames + ", packets=" + mWriter.getPacketCount()
+			+ ", bytes=" + mChannel.mBytes + ", pcr=" + mWriter.getPcrCount());
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public int writeFrame() throws IOException {
+		final ByteBuffer video = (mFrames++ % KEY_FRAME_INTERVAL) == 0 ? mVideoKey : mVideo;
+		mWriter.writeSampleData(mVideoTrack, video, 0, video.limit(), mVideoPtsUs, video == mVideoKey);
+		mVideoPtsUs += VIDEO_FRAME_US;
+		mVideoSamples++;
+		while (mAudioPtsUs < mVideoPtsUs) {
+			mWriter.writeSampleData(mAudioTrack, mAudio, 0, AUDIO_SAMPLE_SIZE, mAudioPtsUs, false);
+			mAudioPtsUs += AUDIO_FRAME_US;
+			mAudioSamples++;
+		}
+		return mFrames;
+	}
+
+	private static ByteBuffer createVideoSample(final int size, final boolean isKeyFrame) {
+		final ByteBuffer buf = ByteBuffer.allocateDirect(size);
+		buf.put((byte)0).put((byte)0).put((byte)0).put((byte)1);
+		buf.put((byte)(isKeyFrame ? 0x65 : 0x41));
+		while (buf.hasRemaining()) {
+			buf.put((byte)0x55);
+		}
+		buf.flip();
+		return buf;
+	}
+}
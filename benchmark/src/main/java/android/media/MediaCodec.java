@@ -0,0 +1,58 @@
+package android.media;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: MediaCodec.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+/**
+ * Stand-in of android.media.MediaCodec for JVM only benchmark build.
+ * Only constants and BufferInfo that the encoding pipeline uses are available.
+ */
+public final class MediaCodec {
+	public static final int INFO_TRY_AGAIN_LATER = -1;
+	public static final int INFO_OUTPUT_FORMAT_CHANGED = -2;
+	public static final int INFO_OUTPUT_BUFFERS_CHANGED = -3;
+
+	public static final int BUFFER_FLAG_SYNC_FRAME = 1;
+	public static final int BUFFER_FLAG_KEY_FRAME = 1;
+	public static final int BUFFER_FLAG_CODEC_CONFIG = 2;
+	public static final int BUFFER_FLAG_END_OF_STREAM = 4;
+	public static final int BUFFER_FLAG_PARTIAL_FRAME = 8;
+
+	public static final int CONFIGURE_FLAG_ENCODE = 1;
+
+	public static final class BufferInfo {
+		public int offset;
+		public int size;
+		public long presentationTimeUs;
+		public int flags;
+
+		public void set(final int newOffset, final int newSize, final long newTimeUs, final int newFlags) {
+			offset = newOffset;
+			size = newSize;
+			presentationTimeUs = newTimeUs;
+			flags = newFlags;
+		}
+	}
+
+	private MediaCodec() {
+	}
+}
@@ -0,0 +1,71 @@
+package android.media;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: MediaCodecInfo.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import android.util.Range;
+
+/**
+ * Stand-in of android.media.MediaCodecInfo for JVM only benchmark build.
+ * This has no codec, use CodecCapabilityCache.Loader that creates Entry directly.
+ */
+public final class MediaCodecInfo {
+	public static final class CodecProfileLevel {
+		public int profile;
+		public int level;
+	}
+
+	public static final class CodecCapabilities {
+		public CodecProfileLevel[] profileLevels;
+
+		public VideoCapabilities getVideoCapabilities() {
+			return null;
+		}
+
+		public AudioCapabilities getAudioCapabilities() {
+			return null;
+		}
+	}
+
+	public static final class VideoCapabilities {
+		public Range<Integer> getBitrateRange() {
+			return null;
+		}
+	}
+
+	public static final class AudioCapabilities {
+		public Range<Integer> getBitrateRange() {
+			return null;
+		}
+	}
+
+	private MediaCodecInfo() {
+	}
+
+	public String getName() {
+		return null;
+	}
+
+	public CodecCapabilities getCapabilitiesForType(final String type) {
+		throw new IllegalArgumentException("unsupported type:" + type);
+	}
+}
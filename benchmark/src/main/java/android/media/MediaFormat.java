@@ -0,0 +1,113 @@
+package android.media;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: MediaFormat.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stand-in of android.media.MediaFormat for JVM only benchmark build.
+ */
+public final class MediaFormat {
+	public static final String KEY_MIME = "mime";
+	public static final String KEY_WIDTH = "width";
+	public static final String KEY_HEIGHT = "height";
+	public static final String KEY_SAMPLE_RATE = "sample-rate";
+	public static final String KEY_CHANNEL_COUNT = "channel-count";
+	public static final String KEY_CHANNEL_MASK = "channel-mask";
+	public static final String KEY_BIT_RATE = "bitrate";
+	public static final String KEY_FRAME_RATE = "frame-rate";
+	public static final String KEY_I_FRAME_INTERVAL = "i-frame-interval";
+	public static final String KEY_COLOR_FORMAT = "color-format";
+	public static final String KEY_AAC_PROFILE = "aac-profile";
+	public static final String KEY_MAX_INPUT_SIZE = "max-input-size";
+	public static final String KEY_DURATION = "durationUs";
+
+	public static MediaFormat createVideoFormat(final String mime, final int width, final int height) {
+		final MediaFormat format = new MediaFormat();
+		format.setString(KEY_MIME, mime);
+		format.setInteger(KEY_WIDTH, width);
+		format.setInteger(KEY_HEIGHT, height);
+		return format;
+	}
+
+	public static MediaFormat createAudioFormat(final String mime, final int sampleRate, final int channelCount) {
+		final MediaFormat format = new MediaFormat();
+		format.setString(KEY_MIME, mime);
+		format.setInteger(KEY_SAMPLE_RATE, sampleRate);
+		format.setInteger(KEY_CHANNEL_COUNT, channelCount);
+		return format;
+	}
+
+	private final Map<String, Object> mMap = new HashMap<String, Object>();
+
+	public MediaFormat() {
+	}
+
+	public boolean containsKey(final String name) {
+		return mMap.containsKey(name);
+	}
+
+	public int getInteger(final String name) {
+		return ((Integer)mMap.get(name)).intValue();
+	}
+
+	public int getInteger(final String name, final int defaultValue) {
+		final Object value = mMap.get(name);
+		return value != null ? ((Integer)value).intValue() : defaultValue;
+	}
+
+	public long getLong(final String name) {
+		return ((Long)mMap.get(name)).longValue();
+	}
+
+	public String getString(final String name) {
+		return (String)mMap.get(name);
+	}
+
+	public ByteBuffer getByteBuffer(final String name) {
+		return (ByteBuffer)mMap.get(name);
+	}
+
+	public void setInteger(final String name, final int value) {
+		mMap.put(name, value);
+	}
+
+	public void setLong(final String name, final long value) {
+		mMap.put(name, value);
+	}
+
+	public void setString(final String name, final String value) {
+		mMap.put(name, value);
+	}
+
+	public void setByteBuffer(final String name, final ByteBuffer bytes) {
+		mMap.put(name, bytes);
+	}
+
+	@Override
+	public String toString() {
+		return mMap.toString();
+	}
+}
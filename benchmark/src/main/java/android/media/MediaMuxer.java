@@ -0,0 +1,60 @@
+package android.media;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: MediaMuxer.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Stand-in of android.media.MediaMuxer for JVM only benchmark build.
+ * This discards all samples, use MuxerBackend implementations to measure container writing.
+ */
+public final class MediaMuxer {
+	public static final class OutputFormat {
+		public static final int MUXER_OUTPUT_MPEG_4 = 0;
+
+		private OutputFormat() {
+		}
+	}
+
+	private int mTrackCount;
+
+	public MediaMuxer(final String path, final int format) throws IOException {
+	}
+
+	public int addTrack(final MediaFormat format) {
+		return mTrackCount++;
+	}
+
+	public void start() {
+	}
+
+	public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+	}
+
+	public void stop() {
+	}
+
+	public void release() {
+	}
+}
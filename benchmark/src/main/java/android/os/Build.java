@@ -0,0 +1,48 @@
+package android.os;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: Build.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+/**
+ * Stand-in of android.os.Build for JVM only benchmark build.
+ * SDK_INT is 0 so that API level dependent code takes the fallback path.
+ */
+public final class Build {
+	public static final String FINGERPRINT = "jvm/benchmark";
+
+	public static final class VERSION {
+		public static final int SDK_INT = 0;
+
+		private VERSION() {
+		}
+	}
+
+	public static final class VERSION_CODES {
+		public static final int LOLLIPOP = 21;
+
+		private VERSION_CODES() {
+		}
+	}
+
+	private Build() {
+	}
+}
@@ -0,0 +1,41 @@
+package android.os;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: Environment.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.File;
+
+/**
+ * Stand-in of android.os.Environment for JVM only benchmark build.
+ * External storage is mapped to java.io.tmpdir.
+ */
+public final class Environment {
+	public static final String DIRECTORY_MOVIES = "Movies";
+	public static final String DIRECTORY_DCIM = "DCIM";
+
+	private Environment() {
+	}
+
+	public static File getExternalStoragePublicDirectory(final String type) {
+		return new File(System.getProperty("java.io.tmpdir"), type);
+	}
+}
@@ -0,0 +1,37 @@
+package android.system;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: Os.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.FileDescriptor;
+
+/**
+ * Stand-in of android.system.Os for JVM only benchmark build.
+ */
+public final class Os {
+	private Os() {
+	}
+
+	public static void posix_fallocate(final FileDescriptor fd, final long offset, final long length) throws ErrnoException {
+		throw new ErrnoException("posix_fallocate", 38);	// ENOSYS
+	}
+}
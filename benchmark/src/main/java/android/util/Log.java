@@ -0,0 +1,90 @@
+package android.util;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: Log.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+/**
+ * Stand-in of android.util.Log for JVM only benchmark build.
+ * Only warnings and errors are printed to stderr.
+ */
+public final class Log {
+	public static final int VERBOSE = 2;
+	public static final int DEBUG = 3;
+	public static final int INFO = 4;
+	public static final int WARN = 5;
+	public static final int ERROR = 6;
+
+	private Log() {
+	}
+
+	public static int v(final String tag, final String msg) {
+		return 0;
+	}
+
+	public static int v(final String tag, final String msg, final Throwable tr) {
+		return 0;
+	}
+
+	public static int d(final String tag, final String msg) {
+		return 0;
+	}
+
+	public static int d(final String tag, final String msg, final Throwable tr) {
+		return 0;
+	}
+
+	public static int i(final String tag, final String msg) {
+		return 0;
+	}
+
+	public static int i(final String tag, final String msg, final Throwable tr) {
+		return 0;
+	}
+
+	public static int w(final String tag, final String msg) {
+		return print(WARN, tag, msg, null);
+	}
+
+	public static int w(final String tag, final String msg, final Throwable tr) {
+		return print(WARN, tag, msg, tr);
+	}
+
+	public static int w(final String tag, final Throwable tr) {
+		return print(WARN, tag, "", tr);
+	}
+
+	public static int e(final String tag, final String msg) {
+		return print(ERROR, tag, msg, null);
+	}
+
+	public static int e(final String tag, final String msg, final Throwable tr) {
+		return print(ERROR, tag, msg, tr);
+	}
+
+	private static int print(final int priority, final String tag, final String msg, final Throwable tr) {
+		System.err.println((priority == ERROR ? "E/" : "W/") + tag + ": " + msg);
+		if (tr != null) {
+			tr.printStackTrace();
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,44 @@
+package android.util;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: Range.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+/**
+ * Stand-in of android.util.Range for JVM only benchmark build.
+ */
+public final class Range<T extends Comparable<? super T>> {
+	private final T mLower;
+	private final T mUpper;
+
+	public Range(final T lower, final T upper) {
+		mLower = lower;
+		mUpper = upper;
+	}
+
+	public T getLower() {
+		return mLower;
+	}
+
+	public T getUpper() {
+		return mUpper;
+	}
+}
@@ -0,0 +1,206 @@
+package com.serenegiant.muxer;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: FastStartTest.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Round trip of a small file written by Mp4Writer through FastStart.
+ */
+public class FastStartTest {
+	private static final int FRAMES = 30;
+	private static final int CO64_CHUNK_SIZE = 256;
+
+	@Rule
+	public final TemporaryFolder mFolder = new TemporaryFolder();
+
+	@Test
+	public void movesMoovAheadOfMdat() throws IOException {
+		final File file = mFolder.newFile("faststart.mp4");
+		final Mp4Writer writer = Mp4TestFile.start(file, false);
+		try {
+			Mp4TestFile.write(writer, FRAMES);
+			writer.stop();
+		} finally {
+			writer.release();
+		}
+		final Mp4TestFile.Layout before = Mp4TestFile.parse(file);
+		assertTrue("moov should be after mdat", before.moovPos > before.mdatPos);
+		Mp4TestFile.assertSamples(file, before, FRAMES, FRAMES * Mp4TestFile.AUDIO_PER_FRAME);
+
+		assertTrue(FastStart.process(file.getAbsolutePath()));
+
+		final Mp4TestFile.Layout after = Mp4TestFile.parse(file);
+		assertTrue("moov should be ahead of mdat", after.moovPos < after.mdatPos);
+		assertEquals("file length", before.length, after.length);
+		assertEquals("moov size", before.moovSize, after.moovSize);
+		assertEquals("mdat size", before.mdatSize, after.mdatSize);
+		assertEquals("mdat position", before.mdatPos + before.moovSize, after.mdatPos);
+		for (int t = 0; t < before.tracks.size(); t++) {
+			final Mp4TestFile.Track src = before.tracks.get(t);
+			final Mp4TestFile.Track dst = after.tracks.get(t);
+			assertFalse("stco should not be converted", dst.is64);
+			assertEquals("chunks of track " + t, src.chunkOffsets.length, dst.chunkOffsets.length);
+			for (int i = 0; i < src.chunkOffsets.length; i++) {
+				assertEquals("chunk " + i + " of track " + t,
+					src.chunkOffsets[i] + before.moovSize, dst.chunkOffsets[i]);
+			}
+		}
+		Mp4TestFile.assertSamples(file, after, FRAMES, FRAMES * Mp4TestFile.AUDIO_PER_FRAME);
+	}
+
+	@Test
+	public void keepsFastStartFile() throws IOException {
+		final File file = mFolder.newFile("keep.mp4");
+		final Mp4Writer writer = Mp4TestFile.start(file, false);
+		try {
+			Mp4TestFile.write(writer, FRAMES);
+			writer.stop();
+		} finally {
+			writer.release();
+		}
+		assertTrue(FastStart.process(file.getAbsolutePath()));
+		final byte[] expected = Mp4TestFile.read(file).array();
+		assertFalse(FastStart.process(file.getAbsolutePath()));
+		assertArrayEquals(expected, Mp4TestFile.read(file).array());
+	}
+
+	@Test
+	public void shiftsCo64() throws IOException {
+		final File file = mFolder.newFile("co64.mp4");
+		final int chunks = 16;
+		createCo64File(file, chunks);
+		final Mp4TestFile.Layout before = Mp4TestFile.parse(file);
+
+		assertTrue(FastStart.process(file.getAbsolutePath()));
+
+		final Mp4TestFile.Layout after = Mp4TestFile.parse(file);
+		assertTrue("moov should be ahead of mdat", after.moovPos < after.mdatPos);
+		assertEquals("moov size", before.moovSize, after.moovSize);
+		final Mp4TestFile.Track track = after.tracks.get(0);
+		assertTrue("co64 should be kept", track.is64);
+		final ByteBuffer buf = Mp4TestFile.read(file);
+		for (int i = 0; i < chunks; i++) {
+			assertEquals("chunk " + i, before.tracks.get(0).chunkOffsets[i] + before.moovSize,
+				track.chunkOffsets[i]);
+			assertEquals("data of chunk " + i, i, buf.getInt((int)track.chunkOffsets[i]));
+		}
+	}
+
+	@Test
+	public void keepsBrokenFile() throws IOException {
+		final File file = mFolder.newFile("broken.mp4");
+		final Mp4Writer writer = Mp4TestFile.start(file, false);
+		try {
+			Mp4TestFile.write(writer, FRAMES);
+			writer.stop();
+		} finally {
+			writer.release();
+		}
+		// cut the tail of moov
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(raf.length() - 8);
+		} finally {
+			raf.close();
+		}
+		final byte[] expected = Mp4TestFile.read(file).array();
+		try {
+			FastStart.process(file.getAbsolutePath());
+			fail("broken file should be rejected");
+		} catch (final IOException e) {
+			// expected
+		}
+		assertArrayEquals(expected, Mp4TestFile.read(file).array());
+		assertFalse("temporary file should be deleted",
+			new File(file.getAbsolutePath() + ".faststart").exists());
+	}
+
+	/**
+	 * create non fast-start file with one track whose chunk offsets are in co64,
+	 * each chunk has one sample that starts with its index
+	 * @param file
+	 * @param chunks
+	 * @throws IOException
+	 */
+	private static void createCo64File(final File file, final int chunks) throws IOException {
+		final ByteBuffer buf = ByteBuffer.allocate(1024 + chunks * (CO64_CHUNK_SIZE + 12));
+		final int ftyp = Mp4Box.begin(buf, Mp4Box.FTYP);
+		buf.putInt(Mp4Box.fourcc("isom")).putInt(0).putInt(Mp4Box.fourcc("isom"));
+		Mp4Box.end(buf, ftyp);
+		final int mdat = Mp4Box.begin(buf, Mp4Box.MDAT);
+		final int dataPos = buf.position();
+		for (int i = 0; i < chunks; i++) {
+			buf.putInt(dataPos + i * CO64_CHUNK_SIZE, i);
+		}
+		buf.position(dataPos + chunks * CO64_CHUNK_SIZE);
+		Mp4Box.end(buf, mdat);
+		final int moov = Mp4Box.begin(buf, Mp4Box.MOOV);
+		final int trak = Mp4Box.begin(buf, Mp4Box.TRAK);
+		final int mdia = Mp4Box.begin(buf, Mp4Box.MDIA);
+		final int minf = Mp4Box.begin(buf, Mp4Box.MINF);
+		final int stbl = Mp4Box.begin(buf, Mp4Box.STBL);
+		final int stsc = Mp4Box.beginFull(buf, Mp4Box.STSC, 0, 0);
+		buf.putInt(1);
+		buf.putInt(1).putInt(1).putInt(1);	// first_chunk, samples_per_chunk, sample_description_index
+		Mp4Box.end(buf, stsc);
+		final int stsz = Mp4Box.beginFull(buf, Mp4Box.STSZ, 0, 0);
+		buf.putInt(0).putInt(chunks);
+		for (int i = 0; i < chunks; i++) {
+			buf.putInt(CO64_CHUNK_SIZE);
+		}
+		Mp4Box.end(buf, stsz);
+		final int co64 = Mp4Box.beginFull(buf, Mp4Box.CO64, 0, 0);
+		buf.putInt(chunks);
+		for (int i = 0; i < chunks; i++) {
+			buf.putLong(dataPos + (long)i * CO64_CHUNK_SIZE);
+		}
+		Mp4Box.end(buf, co64);
+		Mp4Box.end(buf, stbl);
+		Mp4Box.end(buf, minf);
+		Mp4Box.end(buf, mdia);
+		Mp4Box.end(buf, trak);
+		Mp4Box.end(buf, moov);
+		buf.flip();
+		final RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try {
+			out.setLength(0);
+			out.getChannel().write(buf, 0);
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package com.serenegiant.muxer;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: Mp4RecoveryTest.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Round trip of a small file written by Mp4Writer with journal, released without #stop
+ * like the process died, and rebuilt by Mp4Recovery.
+ */
+public class Mp4RecoveryTest {
+	private static final int FRAMES = 30;
+	private static final int SAMPLES = FRAMES * (1 + Mp4TestFile.AUDIO_PER_FRAME);
+
+	@Rule
+	public final TemporaryFolder mFolder = new TemporaryFolder();
+
+	@Test
+	public void recoversUnfinishedFile() throws IOException {
+		final File file = writeUnfinished("crash.mp4");
+		final long length = file.length();
+		assertTrue(Mp4Recovery.needsRecovery(file.getAbsolutePath()));
+
+		assertEquals("recovered samples", SAMPLES, Mp4Recovery.recover(file.getAbsolutePath()));
+
+		assertFalse("journal should be deleted", Mp4Recovery.needsRecovery(file.getAbsolutePath()));
+		final Mp4TestFile.Layout layout = Mp4TestFile.parse(file);
+		assertTrue("moov should be after mdat", layout.moovPos > layout.mdatPos);
+		assertEquals("end of mdat", length, layout.mdatEnd());
+		Mp4TestFile.assertSamples(file, layout, FRAMES, FRAMES * Mp4TestFile.AUDIO_PER_FRAME);
+		// sample table from the journal should be same as the one that Mp4Writer#stop writes
+		final File finished = mFolder.newFile("finished.mp4");
+		final Mp4Writer writer = Mp4TestFile.start(finished, true);
+		try {
+			Mp4TestFile.write(writer, FRAMES);
+			writer.stop();
+		} finally {
+			writer.release();
+		}
+		assertFalse("journal should be deleted by #stop", Mp4Recovery.needsRecovery(finished.getAbsolutePath()));
+		final Mp4TestFile.Layout expected = Mp4TestFile.parse(finished);
+		assertEquals("moov size", expected.moovSize, layout.moovSize);
+		for (int t = 0; t < expected.tracks.size(); t++) {
+			assertTrue("chunk offsets of track " + t, Arrays.equals(
+				expected.tracks.get(t).chunkOffsets, layout.tracks.get(t).chunkOffsets));
+			assertTrue("sample sizes of track " + t, Arrays.equals(
+				expected.tracks.get(t).sampleSizes, layout.tracks.get(t).sampleSizes));
+		}
+	}
+
+	@Test
+	public void ignoresTruncatedJournalRecord() throws IOException {
+		final File file = writeUnfinished("journal.mp4");
+		final long length = file.length();
+		// the last record is cut in the middle
+		truncate(new File(Mp4Writer.getJournalPath(file.getAbsolutePath())), SampleJournal.RECORD_SIZE / 2);
+
+		assertEquals("recovered samples", SAMPLES - 1, Mp4Recovery.recover(file.getAbsolutePath()));
+
+		final Mp4TestFile.Layout layout = Mp4TestFile.parse(file);
+		// data of the lost sample is removed
+		assertEquals("end of mdat", length - Mp4TestFile.lastSampleSize(), layout.mdatEnd());
+		Mp4TestFile.assertSamples(file, layout, FRAMES, FRAMES * Mp4TestFile.AUDIO_PER_FRAME - 1);
+	}
+
+	@Test
+	public void dropsUnwrittenSample() throws IOException {
+		final File file = writeUnfinished("mdat.mp4");
+		final long length = file.length();
+		// data of the last sample was not fully written
+		truncate(file, Mp4TestFile.lastSampleSize() / 2);
+
+		assertEquals("recovered samples", SAMPLES - 1, Mp4Recovery.recover(file.getAbsolutePath()));
+
+		final Mp4TestFile.Layout layout = Mp4TestFile.parse(file);
+		assertEquals("end of mdat", length - Mp4TestFile.lastSampleSize(), layout.mdatEnd());
+		Mp4TestFile.assertSamples(file, layout, FRAMES, FRAMES * Mp4TestFile.AUDIO_PER_FRAME - 1);
+	}
+
+	@Test
+	public void recoveredFileCanBeFastStarted() throws IOException {
+		final File file = writeUnfinished("faststart.mp4");
+		truncate(new File(Mp4Writer.getJournalPath(file.getAbsolutePath())), SampleJournal.RECORD_SIZE / 2);
+		assertEquals("recovered samples", SAMPLES - 1, Mp4Recovery.recover(file.getAbsolutePath()));
+		final Mp4TestFile.Layout recovered = Mp4TestFile.parse(file);
+
+		assertTrue(FastStart.process(file.getAbsolutePath()));
+
+		final Mp4TestFile.Layout layout = Mp4TestFile.parse(file);
+		assertTrue("moov should be ahead of mdat", layout.moovPos < layout.mdatPos);
+		assertEquals("file length", recovered.length, layout.length);
+		for (int t = 0; t < recovered.tracks.size(); t++) {
+			final long[] offsets = recovered.tracks.get(t).chunkOffsets.clone();
+			for (int i = 0; i < offsets.length; i++) {
+				offsets[i] += recovered.moovSize;
+			}
+			assertTrue("chunk offsets of track " + t,
+				Arrays.equals(offsets, layout.tracks.get(t).chunkOffsets));
+		}
+		Mp4TestFile.assertSamples(file, layout, FRAMES, FRAMES * Mp4TestFile.AUDIO_PER_FRAME - 1);
+	}
+
+	@Test
+	public void keepsFinishedFile() throws IOException {
+		final File file = mFolder.newFile("finished.mp4");
+		final Mp4Writer writer = Mp4TestFile.start(file, true);
+		try {
+			Mp4TestFile.write(writer, FRAMES);
+			writer.stop();
+		} finally {
+			writer.release();
+		}
+		final byte[] expected = Mp4TestFile.read(file).array();
+		assertEquals("recovered files", 0, Mp4Recovery.recoverAll(mFolder.getRoot()));
+		assertArrayEquals(expected, Mp4TestFile.read(file).array());
+	}
+
+	/**
+	 * write FRAMES frames with journal and release the writer without #stop
+	 * @param name
+	 * @return
+	 * @throws IOException
+	 */
+	private File writeUnfinished(final String name) throws IOException {
+		final File file = mFolder.newFile(name);
+		final Mp4Writer writer = Mp4TestFile.start(file, true);
+		try {
+			Mp4TestFile.write(writer, FRAMES);
+			assertEquals("written samples", SAMPLES, writer.getSampleCount());
+		} finally {
+			writer.release();
+		}
+		return file;
+	}
+
+	private static void truncate(final File file, final int bytes) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(raf.length() - bytes);
+		} finally {
+			raf.close();
+		}
+	}
+}
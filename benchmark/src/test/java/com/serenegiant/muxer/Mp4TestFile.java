@@ -0,0 +1,324 @@
+package com.serenegiant.muxer;
+/*
+ * AudioVideoRecordingSample
+ * Sample project to cature audio and video from internal mic/camera and save as MPEG4 file.
+ *
+ * Copyright (c) 2014-2015 saki t_saki@serenegiant.com
+ *
+ * File name: Mp4TestFile.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Small MP4 file for the tests of this package.
+ * Each frame has one video sample(Annex-B, one NAL unit) and two AAC samples, so video chunks have
+ * one sample and audio chunks have two. Every sample starts with its index in the track,
+ * (video samples have it between 0x55 bytes), so the sample that a chunk offset points to
+ * can be identified.
+ * #parse checks box sizes while reading the file back.
+ */
+/*package*/ final class Mp4TestFile {
+	static final int VIDEO_TRACK = 0;
+	static final int AUDIO_TRACK = 1;
+	static final int AUDIO_PER_FRAME = 2;
+	private static final long VIDEO_FRAME_US = 33333;
+	private static final long AUDIO_FRAME_US = 23220;
+	private static final int KEY_FRAME_INTERVAL = 10;
+	private static final int VIDEO_PAYLOAD_SIZE = 1000;
+	private static final int AUDIO_SAMPLE_SIZE = 200;
+	private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte)0xc0, 0x1e, (byte)0xda, 0x02, (byte)0x80, (byte)0xbf};
+	private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte)0xce, 0x3c, (byte)0x80};
+	private static final byte[] ASC = {0x12, 0x08};
+
+	/**
+	 * position and size of top level boxes and sample tables of the file
+	 */
+	static final class Layout {
+		long length;
+		long mdatPos = -1, mdatSize;
+		long moovPos = -1, moovSize;
+		final List<Track> tracks = new ArrayList<Track>();
+
+		/**
+		 * end of the payload of mdat
+		 * @return
+		 */
+		long mdatEnd() {
+			return mdatPos + mdatSize;
+		}
+	}
+
+	/**
+	 * sample table of one track
+	 */
+	static final class Track {
+		boolean is64;
+		long[] chunkOffsets;
+		long[] sampleOffsets;
+		int[] sampleSizes;
+	}
+
+	private Mp4TestFile() {
+		// never be instantiated
+	}
+
+	/**
+	 * create Mp4Writer with video and audio track and start it
+	 * @param file
+	 * @param useJournal
+	 * @return
+	 * @throws IOException
+	 */
+	static Mp4Writer start(final File file, final boolean useJournal) throws IOException {
+		final Mp4Writer writer = new Mp4Writer(file.getAbsolutePath(), useJournal);
+		assertEquals(VIDEO_TRACK, writer.addTrack(TrackFormat.video(TrackFormat.MIME_AVC, 320, 240, 500000,
+			ByteBuffer.wrap(SPS), ByteBuffer.wrap(PPS))));
+		assertEquals(AUDIO_TRACK, writer.addTrack(TrackFormat.audio(TrackFormat.MIME_AAC, 44100, 1, 64000,
+			ByteBuffer.wrap(ASC))));
+		writer.start();
+		return writer;
+	}
+
+	/**
+	 * write frames, one video sample and AUDIO_PER_FRAME audio samples per frame
+	 * @param writer
+	 * @param frames
+	 * @throws IOException
+	 */
+	static void write(final Mp4Writer writer, final int frames) throws IOException {
+		final ByteBuffer video = ByteBuffer.allocate(4 + 1 + VIDEO_PAYLOAD_SIZE);
+		final ByteBuffer audio = ByteBuffer.allocate(AUDIO_SAMPLE_SIZE);
+		for (int i = 0; i < frames; i++) {
+			final boolean isKeyFrame = (i % KEY_FRAME_INTERVAL) == 0;
+			video.clear();
+			video.putInt(1);	// start code
+			video.put((byte)(isKeyFrame ? 0x65 : 0x41));
+			video.putInt(videoMarker(i));
+			while (video.hasRemaining()) {
+				video.put((byte)0x55);
+			}
+			video.flip();
+			writer.writeSampleData(VIDEO_TRACK, video, 0, video.limit(), i * VIDEO_FRAME_US, isKeyFrame);
+			for (int j = 0; j < AUDIO_PER_FRAME; j++) {
+				final int index = i * AUDIO_PER_FRAME + j;
+				audio.clear();
+				audio.putInt(0, index);
+				writer.writeSampleData(AUDIO_TRACK, audio, 0, audio.limit(), index * AUDIO_FRAME_US, false);
+			}
+		}
+	}
+
+	/**
+	 * index of video sample with 0x55 on both sides,
+	 * so that it never looks like start code of Annex-B
+	 * @param index
+	 * @return
+	 */
+	private static int videoMarker(final int index) {
+		return 0x55000055 | ((index & 0xffff) << 8);
+	}
+
+	/**
+	 * size of the last audio sample in the file, it is the last sample that #write wrote
+	 * @return
+	 */
+	static int lastSampleSize() {
+		return AUDIO_SAMPLE_SIZE;
+	}
+
+	/**
+	 * read the file and check that top level boxes cover the whole file,
+	 * children of moov containers fill their parent exactly and
+	 * stsz/stco/co64 have the size that their entry count requires
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	static Layout parse(final File file) throws IOException {
+		final ByteBuffer buf = read(file);
+		final Layout layout = new Layout();
+		layout.length = buf.limit();
+		int pos = 0;
+		while (pos < buf.limit()) {
+			assertTrue("broken box header at " + pos, pos + Mp4Box.HEADER_SIZE <= buf.limit());
+			final long size = Mp4Box.size(buf, pos);
+			assertTrue("broken box size at " + pos, size >= Mp4Box.headerSize(buf, pos));
+			assertTrue("box at " + pos + " exceeds the file", pos + size <= buf.limit());
+			final int type = Mp4Box.type(buf, pos);
+			if (type == Mp4Box.MDAT) {
+				assertEquals("mdat count", -1, layout.mdatPos);
+				layout.mdatPos = pos + Mp4Box.headerSize(buf, pos);
+				layout.mdatSize = size - Mp4Box.headerSize(buf, pos);
+			} else if (type == Mp4Box.MOOV) {
+				assertEquals("moov count", -1, layout.moovPos);
+				layout.moovPos = pos;
+				layout.moovSize = size;
+				checkContainer(buf, pos);
+			}
+			pos += (int)size;
+		}
+		assertTrue("no mdat", layout.mdatPos >= 0);
+		assertTrue("no moov", layout.moovPos >= 0);
+		final int moov = (int)layout.moovPos;
+		final int moovEnd = (int)(moov + layout.moovSize);
+		for (int trak = Mp4Box.find(buf, moov + Mp4Box.HEADER_SIZE, moovEnd, Mp4Box.TRAK); trak >= 0;
+			trak = Mp4Box.find(buf, trak + (int)Mp4Box.size(buf, trak), moovEnd, Mp4Box.TRAK)) {
+
+			layout.tracks.add(parseTrack(buf, trak));
+		}
+		return layout;
+	}
+
+	/**
+	 * check that the samples that #write wrote are in mdat at the position of the sample table
+	 * @param file
+	 * @param layout
+	 * @param videoSamples expected number of video samples
+	 * @param audioSamples expected number of audio samples
+	 * @throws IOException
+	 */
+	static void assertSamples(final File file, final Layout layout,
+		final int videoSamples, final int audioSamples) throws IOException {
+
+		assertEquals("tracks", 2, layout.tracks.size());
+		final ByteBuffer buf = read(file);
+		final Track video = layout.tracks.get(VIDEO_TRACK);
+		final Track audio = layout.tracks.get(AUDIO_TRACK);
+		assertEquals("video samples", videoSamples, video.sampleOffsets.length);
+		assertEquals("audio samples", audioSamples, audio.sampleOffsets.length);
+		assertEquals("video chunks", videoSamples, video.chunkOffsets.length);
+		assertEquals("audio chunks", (audioSamples + AUDIO_PER_FRAME - 1) / AUDIO_PER_FRAME,
+			audio.chunkOffsets.length);
+		for (final Track track: layout.tracks) {
+			for (int i = 0; i < track.sampleOffsets.length; i++) {
+				assertTrue("sample " + i + " is out of mdat", (track.sampleOffsets[i] >= layout.mdatPos)
+					&& (track.sampleOffsets[i] + track.sampleSizes[i] <= layout.mdatEnd()));
+			}
+		}
+		for (int i = 0; i < videoSamples; i++) {
+			final int offset = (int)video.sampleOffsets[i];
+			// start code was replaced with length prefix
+			assertEquals("length prefix of video sample " + i, video.sampleSizes[i] - 4, buf.getInt(offset));
+			assertEquals("video sample " + i, videoMarker(i), buf.getInt(offset + 5));
+		}
+		for (int i = 0; i < audioSamples; i++) {
+			assertEquals("size of audio sample " + i, AUDIO_SAMPLE_SIZE, audio.sampleSizes[i]);
+			assertEquals("audio sample " + i, i, buf.getInt((int)audio.sampleOffsets[i]));
+		}
+	}
+
+	/**
+	 * read whole file
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	static ByteBuffer read(final File file) throws IOException {
+		final RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			final FileChannel channel = in.getChannel();
+			final ByteBuffer buf = ByteBuffer.allocate((int)channel.size());
+			while (buf.hasRemaining()) {
+				if (channel.read(buf, buf.position()) < 0) break;
+			}
+			buf.flip();
+			return buf;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void checkContainer(final ByteBuffer buf, final int pos) {
+		final int type = Mp4Box.type(buf, pos);
+		if ((type != Mp4Box.MOOV) && (type != Mp4Box.TRAK) && (type != Mp4Box.MDIA)
+			&& (type != Mp4Box.MINF) && (type != Mp4Box.STBL)) {
+
+			return;
+		}
+		final int end = (int)(pos + Mp4Box.size(buf, pos));
+		int child = pos + Mp4Box.headerSize(buf, pos);
+		while (child < end) {
+			final long size = Mp4Box.size(buf, child);
+			assertTrue("broken size of " + Mp4Box.toString(Mp4Box.type(buf, child)),
+				(size >= Mp4Box.HEADER_SIZE) && (child + size <= end));
+			checkContainer(buf, child);
+			child += (int)size;
+		}
+		assertEquals("children of " + Mp4Box.toString(type), end, child);
+	}
+
+	private static Track parseTrack(final ByteBuffer buf, final int trak) {
+		final int trakEnd = (int)(trak + Mp4Box.size(buf, trak));
+		final int stbl = Mp4Box.findPath(buf, trak + Mp4Box.HEADER_SIZE, trakEnd,
+			Mp4Box.MDIA, Mp4Box.MINF, Mp4Box.STBL);
+		assertTrue("no stbl", stbl >= 0);
+		final int start = stbl + Mp4Box.HEADER_SIZE;
+		final int end = (int)(stbl + Mp4Box.size(buf, stbl));
+		final int stsz = Mp4Box.find(buf, start, end, Mp4Box.STSZ);
+		final int stsc = Mp4Box.find(buf, start, end, Mp4Box.STSC);
+		int stco = Mp4Box.find(buf, start, end, Mp4Box.STCO);
+		final Track track = new Track();
+		track.is64 = stco < 0;
+		if (track.is64) {
+			stco = Mp4Box.find(buf, start, end, Mp4Box.CO64);
+		}
+		assertTrue("no stsz/stsc/stco", (stsz >= 0) && (stsc >= 0) && (stco >= 0));
+		final int count = buf.getInt(stsz + 16);
+		assertEquals("sample_size of stsz", 0, buf.getInt(stsz + 12));
+		assertEquals("size of stsz", 20 + count * 4, Mp4Box.size(buf, stsz));
+		final int entries = buf.getInt(stsc + 12);
+		assertEquals("size of stsc", 16 + entries * 12, Mp4Box.size(buf, stsc));
+		final int chunks = buf.getInt(stco + 12);
+		assertEquals("size of " + (track.is64 ? "co64" : "stco"),
+			16 + chunks * (track.is64 ? 8 : 4), Mp4Box.size(buf, stco));
+		track.chunkOffsets = new long[chunks];
+		track.sampleOffsets = new long[count];
+		track.sampleSizes = new int[count];
+		int sample = 0;
+		for (int i = 0; i < chunks; i++) {
+			final long chunkOffset = track.is64 ? buf.getLong(stco + 16 + i * 8)
+				: buf.getInt(stco + 16 + i * 4) & 0xffffffffL;
+			track.chunkOffsets[i] = chunkOffset;
+			// the last entry whose first_chunk(1 based) is not after this chunk
+			int perChunk = 0;
+			for (int j = 0; j < entries; j++) {
+				if (buf.getInt(stsc + 16 + j * 12) - 1 <= i) {
+					perChunk = buf.getInt(stsc + 20 + j * 12);
+				}
+			}
+			long offset = chunkOffset;
+			for (int j = 0; j < perChunk; j++, sample++) {
+				assertTrue("stsc has more samples than stsz", sample < count);
+				track.sampleOffsets[sample] = offset;
+				track.sampleSizes[sample] = buf.getInt(stsz + 20 + sample * 4);
+				offset += track.sampleSizes[sample];
+			}
+		}
+		assertEquals("samples in chunks", count, sample);
+		return track;
+	}
+}